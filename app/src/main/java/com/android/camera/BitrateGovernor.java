@@ -0,0 +1,179 @@
+package com.android.camera;
+
+import android.util.Log;
+
+/**
+ * Adapts the video bitrate to how fast the storage takes the data.
+ *
+ * <p>
+ * While recording, the owner feeds the write backlog of the
+ * {@link PipeWriter} to {@link #sample}: how many of its buffers wait for
+ * the storage and how long the write in progress has taken. If more than
+ * {@link #BACKLOG_LIMIT_BUFFERS} wait, or a write takes longer than
+ * {@link #BACKLOG_LIMIT_MS}, for several samples in a row, or the recorder
+ * fails, the next recording uses a lower bitrate. After a clip in which the
+ * storage kept up with room to spare, the bitrate goes back up towards the
+ * base. The bitrate never changes in the middle of a recording;
+ * MediaRecorder only takes it in {@code prepare()}.
+ *
+ * <p>
+ * The size of the file says nothing about the backlog: the encoder's
+ * output varies around the nominal bitrate and starts late, so comparing
+ * the two counts a backlog where there is none. The first
+ * {@link #WARMUP_MS} of a recording, while the encoder and the storage
+ * settle, are not judged at all.
+ */
+public class BitrateGovernor {
+	private static final String TAG = "BitrateGovernor";
+
+	// How many buffers may wait for the storage, and how long one write may
+	// take, before the recording counts as falling behind. The recorder
+	// stalls once all PipeWriter.BUFFER_COUNT buffers wait.
+	public static final int BACKLOG_LIMIT_BUFFERS = PipeWriter.BUFFER_COUNT / 2;
+	public static final long BACKLOG_LIMIT_MS = 3000;
+	// How many samples in a row must be behind.
+	private static final int BACKLOG_SAMPLES = 3;
+	// How long after the start samples are not judged.
+	public static final long WARMUP_MS = 3000;
+	// The shortest clip that may raise the bitrate.
+	private static final long STEP_UP_MIN_MS = 10000;
+	// The largest backlog of a clip that may raise the bitrate: no more than
+	// one buffer waiting behind the one being written, no write near the
+	// limit.
+	private static final int STEP_UP_MAX_BUFFERS = 2;
+	private static final long STEP_UP_MAX_WRITE_MS = BACKLOG_LIMIT_MS / 3;
+	private static final float STEP_DOWN = 0.75f;
+	private static final float STEP_UP = 1.25f;
+
+	private static BitrateGovernor sInstance;
+
+	private final int mBaseBitRate;
+	private final int mMinBitRate;
+	private int mBitRate;
+
+	private long mStartMs = -1;
+	private long mLastMs;
+	private long mLastBytes;
+	private int mBehindSamples;
+	private boolean mBacklog;
+	// Whether the backlog was known, i.e. sampled after the warm-up.
+	private boolean mSampled;
+	private int mMaxQueuedBuffers;
+	private long mMaxWriteMs;
+	private long mBytesPerSecond;
+
+	public BitrateGovernor(int baseBitRate, int minBitRate) {
+		mBaseBitRate = baseBitRate;
+		mMinBitRate = Math.min(minBitRate, baseBitRate);
+		mBitRate = baseBitRate;
+	}
+
+	/**
+	 * Returns the governor for {@code baseBitRate}. It outlives the activity
+	 * so that what was learnt about the storage carries over to a retake.
+	 */
+	public static synchronized BitrateGovernor getInstance(int baseBitRate) {
+		if (sInstance == null || sInstance.mBaseBitRate != baseBitRate) {
+			sInstance = new BitrateGovernor(baseBitRate,
+					ProfileResolver.MIN_BIT_RATE);
+		}
+		return sInstance;
+	}
+
+	/** The video bitrate to prepare the next recording with. */
+	public synchronized int getBitRate() {
+		return mBitRate;
+	}
+
+	/** The write throughput measured in the last recording, in bytes/s. */
+	public synchronized long getBytesPerSecond() {
+		return mBytesPerSecond;
+	}
+
+	/** The most buffers seen waiting in the last recording. */
+	public synchronized int getMaxQueuedBuffers() {
+		return mMaxQueuedBuffers;
+	}
+
+	/** The longest write seen in progress in the last recording. */
+	public synchronized long getMaxWriteMs() {
+		return mMaxWriteMs;
+	}
+
+	public synchronized void onRecordingStarted(long nowMs) {
+		mStartMs = nowMs;
+		mLastMs = nowMs;
+		mLastBytes = 0;
+		mBehindSamples = 0;
+		mBacklog = false;
+		mSampled = false;
+		mMaxQueuedBuffers = 0;
+		mMaxWriteMs = 0;
+		mBytesPerSecond = 0;
+	}
+
+	/**
+	 * Records that at {@code nowMs} the output file held {@code bytes},
+	 * {@code queuedBuffers} buffers waited for the storage, or -1 if that is
+	 * not known, and the write in progress had taken {@code writeMs}.
+	 */
+	public synchronized void sample(long nowMs, long bytes, int queuedBuffers,
+			long writeMs) {
+		if (mStartMs < 0 || nowMs <= mLastMs)
+			return;
+		mBytesPerSecond = (bytes - mLastBytes) * 1000 / (nowMs - mLastMs);
+		mLastMs = nowMs;
+		mLastBytes = bytes;
+		if (queuedBuffers < 0 || nowMs - mStartMs < WARMUP_MS)
+			return;
+		mSampled = true;
+		mMaxQueuedBuffers = Math.max(mMaxQueuedBuffers, queuedBuffers);
+		mMaxWriteMs = Math.max(mMaxWriteMs, writeMs);
+		if (queuedBuffers > BACKLOG_LIMIT_BUFFERS || writeMs > BACKLOG_LIMIT_MS) {
+			if (++mBehindSamples >= BACKLOG_SAMPLES && !mBacklog) {
+				mBacklog = true;
+				Log.w(TAG, "Storage behind: " + queuedBuffers
+						+ " buffers waiting, write taking " + writeMs + "ms, "
+						+ mBytesPerSecond + "B/s");
+			}
+		} else {
+			mBehindSamples = 0;
+		}
+	}
+
+	/** The recorder failed, most likely because the storage stalled. */
+	public synchronized void onRecorderError() {
+		mBacklog = true;
+	}
+
+	/**
+	 * Ends the recording and decides the bitrate of the next one.
+	 */
+	public synchronized void onRecordingStopped(long nowMs) {
+		if (mStartMs < 0)
+			return;
+		long durationMs = nowMs - mStartMs;
+		long averageBytesPerSecond = durationMs > 0 ? mLastBytes * 1000
+				/ durationMs : 0;
+		int old = mBitRate;
+		if (mBacklog) {
+			mBitRate = Math.max(mMinBitRate, (int) (mBitRate * STEP_DOWN));
+		} else if (mBitRate < mBaseBitRate && durationMs >= STEP_UP_MIN_MS
+				&& mSampled && mMaxQueuedBuffers <= STEP_UP_MAX_BUFFERS
+				&& mMaxWriteMs <= STEP_UP_MAX_WRITE_MS) {
+			mBitRate = Math.min(mBaseBitRate, (int) (mBitRate * STEP_UP));
+		}
+		Log.v(TAG, "Recorded " + durationMs + "ms at " + averageBytesPerSecond
+				+ "B/s average, " + mBytesPerSecond + "B/s last, max backlog "
+				+ mMaxQueuedBuffers + " buffers, max write " + mMaxWriteMs
+				+ "ms; bitrate " + old + " -> " + mBitRate);
+		mStartMs = -1;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "bitrate=" + mBitRate + "/" + mBaseBitRate + " throughput="
+				+ mBytesPerSecond + "B/s maxBacklog=" + mMaxQueuedBuffers
+				+ " buffers maxWrite=" + mMaxWriteMs + "ms";
+	}
+}
@@ -22,9 +22,15 @@ import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.Looper;
 import android.os.Message;
+import android.os.SystemClock;
 import android.util.Log;
+import android.view.SurfaceHolder;
 
 import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 
 /**
  * The class is used to hold an {@code android.hardware.Camera} instance.
@@ -40,6 +46,12 @@ import java.io.IOException;
  * <p>
  * This is used in switching between {@code Camera} and {@code VideoCamera}
  * activities.
+ *
+ * <p>
+ * The {@code *Async()} methods run the {@code android.hardware.Camera} calls
+ * on the "CameraHolder" thread, one after another in the order they were
+ * requested, so callers on the main thread never wait for the device. Each
+ * returns a {@code Future} and optionally reports to a {@link Callback}.
  */
 public class CameraHolder {
 	private static final String TAG = "CameraHolder";
@@ -48,11 +60,17 @@ public class CameraHolder {
 	private final Handler mHandler;
 	private int mUsers = 0; // number of open() - number of release()
 
+	// How long keep() holds on to the camera by default.
+	public static final long KEEP_DEFAULT_MS = 3000;
+
 	// We store the camera parameters when we actually open the device,
 	// so we can restore them in the subsequent open() requests by the user.
 	// This prevents the parameters set by the Camera activity used by
 	// the VideoCamera activity inadvertently.
 	private Parameters mParameters;
+	// Typed view of mParameters, created on first use by the async API and
+	// dropped with the device. Only used on the CameraHolder thread.
+	private ParameterCache mParameterCache;
 
 	// Use a singleton.
 	private static CameraHolder sHolder;
@@ -66,6 +84,22 @@ public class CameraHolder {
 
 	private static final int RELEASE_CAMERA = 1;
 
+	/**
+	 * Receives the result of an asynchronous request.
+	 */
+	public interface Callback {
+		void onSuccess(android.hardware.Camera camera);
+
+		void onFailure(Exception e);
+	}
+
+	/**
+	 * Reads the parameters of the opened camera on the CameraHolder thread.
+	 */
+	public interface ParametersReader {
+		void read(ParameterCache cache);
+	}
+
 	private class MyHandler extends Handler {
 		MyHandler(Looper looper) {
 			super(looper);
@@ -98,6 +132,8 @@ public class CameraHolder {
 	public synchronized android.hardware.Camera open()
 			throws CameraHardwareException {
 		Assert(mUsers == 0);
+		long begin = SystemClock.uptimeMillis();
+		boolean reconnect = mCameraDevice != null;
 		if (mCameraDevice == null) {
 			try {
 				mCameraDevice = android.hardware.Camera.open();
@@ -112,6 +148,7 @@ public class CameraHolder {
 			// mCameraDevice.setParameters(mParameters);
 			mParameters.setRotation(90);
 			mCameraDevice.setParameters(mParameters);
+			mParameterCache = null;
 		} else {
 			try {
 				mCameraDevice.reconnect();
@@ -124,6 +161,8 @@ public class CameraHolder {
 		++mUsers;
 		mHandler.removeMessages(RELEASE_CAMERA);
 		mKeepBeforeTime = 0;
+		Log.v(TAG, (reconnect ? "reconnect" : "open") + " took "
+				+ (SystemClock.uptimeMillis() - begin) + "ms");
 		return mCameraDevice;
 	}
 
@@ -162,15 +201,214 @@ public class CameraHolder {
 		}
 		mCameraDevice.release();
 		mCameraDevice = null;
+		mParameterCache = null;
 	}
 
 	public synchronized void keep() {
+		keep(KEEP_DEFAULT_MS);
+	}
+
+	/**
+	 * Keeps the camera instance, and the parameters last applied to it, for
+	 * {@code ttlMs} after it is released, so that the next {@link #open()}
+	 * only needs to reconnect.
+	 */
+	public synchronized void keep(long ttlMs) {
 		// We allow (mUsers == 0) for the convenience of the calling activity.
 		// The activity may not have a chance to call open() before the user
 		// choose the menu item to switch to another activity.
 		Assert(mUsers == 1 || mUsers == 0);
-		// Keep the camera instance for 3 seconds.
-		mKeepBeforeTime = System.currentTimeMillis() + 3000;
+		mKeepBeforeTime = System.currentTimeMillis() + ttlMs;
+	}
+
+	/**
+	 * Gives up on a previous {@link #keep(long)}; a camera that is kept but
+	 * not used is released right away.
+	 */
+	public synchronized void cancelKeep() {
+		mKeepBeforeTime = 0;
+		if (mUsers == 0 && mCameraDevice != null) {
+			mHandler.removeMessages(RELEASE_CAMERA);
+			mHandler.sendEmptyMessage(RELEASE_CAMERA);
+		}
+	}
+
+	/**
+	 * Opens the camera, or reconnects to the instance being kept.
+	 */
+	public Future<android.hardware.Camera> openAsync(Callback callback,
+			Handler handler) {
+		return submit(new Callable<android.hardware.Camera>() {
+			public android.hardware.Camera call() throws Exception {
+				return open();
+			}
+		}, callback, handler);
+	}
+
+	/**
+	 * Applies {@code values} and starts the preview of the opened camera. If
+	 * {@code holder} is not null, it becomes the preview display and the
+	 * camera is unlocked so that a MediaRecorder can use it; otherwise the
+	 * camera stays locked until {@link #setPreviewDisplayAsync} is called.
+	 */
+	public Future<android.hardware.Camera> startPreviewAsync(
+			final SurfaceHolder holder, final ParameterCache.Values values,
+			Callback callback, Handler handler) {
+		return submit(new Callable<android.hardware.Camera>() {
+			public android.hardware.Camera call() throws Exception {
+				android.hardware.Camera camera = getOpenedCamera();
+				camera.lock();
+				applyParameters(camera, values);
+				if (holder != null) {
+					camera.setPreviewDisplay(holder);
+				}
+				camera.startPreview();
+				if (holder != null) {
+					camera.unlock();
+				}
+				return camera;
+			}
+		}, callback, handler);
+	}
+
+	/**
+	 * Sets the preview display of a previewing camera and unlocks it.
+	 */
+	public Future<android.hardware.Camera> setPreviewDisplayAsync(
+			final SurfaceHolder holder, Callback callback, Handler handler) {
+		return submit(new Callable<android.hardware.Camera>() {
+			public android.hardware.Camera call() throws Exception {
+				android.hardware.Camera camera = getOpenedCamera();
+				camera.lock();
+				camera.setPreviewDisplay(holder);
+				camera.unlock();
+				return camera;
+			}
+		}, callback, handler);
+	}
+
+	/**
+	 * Applies {@code values} without restarting the preview. Fails if a
+	 * MediaRecorder still owns the camera and something has to change.
+	 */
+	public Future<android.hardware.Camera> setParametersAsync(
+			final ParameterCache.Values values, Callback callback,
+			Handler handler) {
+		return submit(new Callable<android.hardware.Camera>() {
+			public android.hardware.Camera call() throws Exception {
+				android.hardware.Camera camera = getOpenedCamera();
+				if (getParameterCache().update(values) == 0) {
+					// Nothing changed, leave the camera with its owner.
+					return camera;
+				}
+				// We need to lock the camera before writing parameters.
+				camera.lock();
+				camera.setParameters(mParameterCache.getParameters());
+				camera.unlock();
+				return camera;
+			}
+		}, callback, handler);
+	}
+
+	public Future<android.hardware.Camera> readParametersAsync(
+			final ParametersReader reader) {
+		return submit(new Callable<android.hardware.Camera>() {
+			public android.hardware.Camera call() throws Exception {
+				android.hardware.Camera camera = getOpenedCamera();
+				reader.read(getParameterCache());
+				return camera;
+			}
+		}, null, null);
+	}
+
+	/**
+	 * Releases the camera opened with {@link #openAsync}. If {@code after}
+	 * is not null, the CameraHolder thread first waits for it, e.g. for the
+	 * MediaRecorder that uses the camera to be released.
+	 */
+	public Future<android.hardware.Camera> releaseAsync(final Future<?> after) {
+		return submit(new Callable<android.hardware.Camera>() {
+			public android.hardware.Camera call() throws Exception {
+				if (after != null) {
+					try {
+						after.get();
+					} catch (ExecutionException e) {
+						Log.w(TAG, "release: preceding task failed", e);
+					}
+				}
+				synchronized (CameraHolder.this) {
+					if (mUsers == 0) {
+						// The open request failed or was never made.
+						return null;
+					}
+					android.hardware.Camera camera = mCameraDevice;
+					// If we don't lock the camera, release() will fail.
+					camera.lock();
+					release();
+					return camera;
+				}
+			}
+		}, null, null);
+	}
+
+	private synchronized android.hardware.Camera getOpenedCamera() {
+		if (mUsers == 0 || mCameraDevice == null) {
+			throw new IllegalStateException("camera is not open");
+		}
+		return mCameraDevice;
+	}
+
+	// The cache wraps mParameters, which is restored on reconnect, so a
+	// kept camera comes back as it was left.
+	private synchronized ParameterCache getParameterCache() {
+		if (mParameterCache == null) {
+			mParameterCache = new ParameterCache(mParameters);
+		}
+		return mParameterCache;
+	}
+
+	private void applyParameters(android.hardware.Camera camera,
+			ParameterCache.Values values) {
+		if (values == null)
+			return;
+		int changed = getParameterCache().update(values);
+		if (changed > 0) {
+			camera.setParameters(mParameterCache.getParameters());
+		}
+		Log.v(TAG, changed + " camera parameters changed");
+	}
+
+	private Future<android.hardware.Camera> submit(
+			Callable<android.hardware.Camera> task, final Callback callback,
+			final Handler handler) {
+		final FutureTask<android.hardware.Camera> future = new FutureTask<android.hardware.Camera>(
+				task) {
+			@Override
+			protected void done() {
+				if (callback == null)
+					return;
+				Runnable deliver = new Runnable() {
+					public void run() {
+						try {
+							callback.onSuccess(get());
+						} catch (ExecutionException e) {
+							Throwable cause = e.getCause();
+							callback.onFailure(cause instanceof Exception ? (Exception) cause
+									: e);
+						} catch (InterruptedException e) {
+							callback.onFailure(e);
+						}
+					}
+				};
+				if (handler != null) {
+					handler.post(deliver);
+				} else {
+					deliver.run();
+				}
+			}
+		};
+		mHandler.post(future);
+		return future;
 	}
 
 	public static void Assert(boolean cond) {
@@ -0,0 +1,222 @@
+package com.android.camera;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedList;
+
+/**
+ * A SHA-256 based digest of a recording, computed while it is recorded so
+ * that the finished file need not be read again. It is not the SHA-256 of
+ * the file, which cannot be computed that way, so it is kept tagged as
+ * {@link RecordingsCatalog#HASH_CONTENT_DIGEST}.
+ *
+ * <p>
+ * Finishing a recording rewrites the boxes around the media data, e.g. the
+ * mdat size and the moov box, which {@link FastStart} moves to the front,
+ * but not the media data itself. So the digest is that of the bytes in
+ * front of the media data, the SHA-256 of the media data and the bytes
+ * after it, in that order; the media data is hashed by a {@link Hasher} as
+ * it goes through the pipe, the rest once the file is finished.
+ * {@link #compute} gets the same digest from a file in one pass.
+ *
+ * <p>
+ * Nothing here depends on Android but logging, so it can be run on the JVM.
+ */
+public class ContentDigest {
+	private static final String ALGORITHM = "SHA-256";
+	private static final int BUFFER_BYTES = 256 * 1024;
+
+	/** Reads {@code file} and returns its digest. */
+	public static byte[] compute(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			Mp4Index index = Mp4Index.parse(channel);
+			if (index.mdatOffset < 0) {
+				// No media data; all of it, as SHA-256 would.
+				MessageDigest digest = newDigest();
+				update(digest, channel, 0, channel.size());
+				return digest.digest();
+			}
+			long start = index.mdatOffset + index.mdatHeaderSize;
+			MessageDigest media = newDigest();
+			update(media, channel, start, index.mdatOffset + index.mdatSize);
+			return combine(channel, index, media.digest());
+		} finally {
+			raf.close();
+		}
+	}
+
+	// The digest of the file open on channel, given that of its media data.
+	private static byte[] combine(FileChannel channel, Mp4Index index,
+			byte[] media) throws IOException {
+		MessageDigest digest = newDigest();
+		update(digest, channel, 0, index.mdatOffset + index.mdatHeaderSize);
+		digest.update(media);
+		update(digest, channel, index.mdatOffset + index.mdatSize,
+				channel.size());
+		return digest.digest();
+	}
+
+	private static void update(MessageDigest digest, FileChannel channel,
+			long from, long to) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(BUFFER_BYTES,
+				Math.max(0, to - from)));
+		while (from < to) {
+			buffer.clear();
+			buffer.limit((int) Math.min(buffer.capacity(), to - from));
+			Mp4Index.readFully(channel, buffer, from);
+			buffer.flip();
+			digest.update(buffer);
+			from += buffer.limit();
+		}
+	}
+
+	private static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance(ALGORITHM);
+		} catch (NoSuchAlgorithmException e) {
+			// Every Java platform has it.
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Hashes the media data of a recording as {@link PipeWriter} writes it.
+	 * It cannot tell the end of the media data from what follows, so the
+	 * state of the digest is kept at the start of each of the last buffers;
+	 * once the file is finished, {@link #finish} goes on from the last one
+	 * before the end, reading no more than a buffer or two.
+	 */
+	public static class Hasher implements PipeWriter.Observer {
+		// Of 256KB each, covering a moov box of up to 16MB.
+		private static final int MAX_CHECKPOINTS = 64;
+
+		private static class Checkpoint {
+			long offset;
+			MessageDigest digest;
+		}
+
+		private final PipeWriter.Observer mNext;
+		private final MessageDigest mDigest = newDigest();
+		private final LinkedList<Checkpoint> mCheckpoints = new LinkedList<Checkpoint>();
+		// In the stream: where the media data starts and how far it has
+		// been hashed.
+		private long mStart = -1;
+		private long mHashed;
+		private boolean mFailed;
+		private long mHashNanos;
+
+		/** Passes the buffers on to {@code next}, if not null. */
+		public Hasher(PipeWriter.Observer next) {
+			mNext = next;
+		}
+
+		public void onWrite(ByteBuffer data, long offset) {
+			if (mNext != null) {
+				mNext.onWrite(data.duplicate(), offset);
+			}
+			if (mFailed)
+				return;
+			long begin = System.nanoTime();
+			if (mStart < 0) {
+				mStart = offset == 0 ? findMediaData(data) : -1;
+				if (mStart < 0) {
+					mFailed = true;
+					return;
+				}
+				mHashed = mStart;
+			}
+			long end = offset + data.remaining();
+			if (end <= mHashed)
+				return;
+			data.position(data.position() + (int) (mHashed - offset));
+			try {
+				Checkpoint cp = new Checkpoint();
+				cp.offset = mHashed;
+				cp.digest = (MessageDigest) mDigest.clone();
+				mCheckpoints.addLast(cp);
+				if (mCheckpoints.size() > MAX_CHECKPOINTS) {
+					mCheckpoints.removeFirst();
+				}
+			} catch (CloneNotSupportedException e) {
+				mFailed = true;
+				return;
+			}
+			mDigest.update(data);
+			mHashed = end;
+			mHashNanos += System.nanoTime() - begin;
+		}
+
+		public void onFinish(long length) {
+			if (mNext != null) {
+				mNext.onFinish(length);
+			}
+		}
+
+		/** How long hashing took so far, on the writer thread. */
+		public long getHashMs() {
+			return mHashNanos / 1000000;
+		}
+
+		/**
+		 * Returns the digest of {@code file}, the recording once finished,
+		 * or null if its media data was not seen as a whole and the file has
+		 * to be read, see {@link ContentDigest#compute}.
+		 */
+		public byte[] finish(File file) throws IOException {
+			if (mFailed || mStart < 0)
+				return null;
+			RandomAccessFile raf = new RandomAccessFile(file, "r");
+			try {
+				FileChannel channel = raf.getChannel();
+				Mp4Index index = Mp4Index.parse(channel);
+				if (index.mdatOffset < 0)
+					return null;
+				long length = index.mdatSize - index.mdatHeaderSize;
+				// Where the media data ends, in the stream.
+				long end = mStart + length;
+				MessageDigest digest = null;
+				long from = 0;
+				if (mHashed <= end) {
+					digest = mDigest;
+					from = mHashed;
+				} else {
+					for (Checkpoint cp : mCheckpoints) {
+						if (cp.offset <= end) {
+							digest = cp.digest;
+							from = cp.offset;
+						}
+					}
+				}
+				if (digest == null)
+					return null;
+				// The media data has moved, but not changed.
+				long shift = index.mdatOffset + index.mdatHeaderSize - mStart;
+				update(digest, channel, from + shift, end + shift);
+				return combine(channel, index, digest.digest());
+			} finally {
+				raf.close();
+			}
+		}
+
+		// Returns where the payload of the mdat box starts in data, the start
+		// of the stream, or -1 if it does not. The size of the mdat box is a
+		// placeholder there, and the free box in front of it only a header,
+		// see Mp4Files#repairPipeOutput.
+		private static long findMediaData(ByteBuffer data) {
+			byte[] head = new byte[Math.min(data.remaining(),
+					Mp4Files.HEAD_BYTES)];
+			data.duplicate().get(head);
+			int mdat = Mp4Files.findPlaceholderMdat(head, head.length);
+			if (mdat < 0 || !Mp4Files.fixLeadingBoxes(head, mdat))
+				return -1;
+			return mdat + (head[mdat] == '?' ? 8 : 16);
+		}
+	}
+}
@@ -0,0 +1,242 @@
+package com.android.camera;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.hardware.Camera.Parameters;
+import android.hardware.Camera.Size;
+import android.media.CamcorderProfile;
+import android.os.Build;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * A snapshot of what the camera and the recorder of this device support.
+ *
+ * <p>
+ * It is captured once, from the parameters of the opened camera and the
+ * {@code CamcorderProfile}s, and stored in a small binary file in the
+ * application's files directory. Later starts load it before the camera is
+ * opened, so the first preview can be configured without asking the HAL.
+ * The file is keyed by {@code Build.FINGERPRINT} and ignored after a system
+ * update.
+ */
+public class DeviceCapabilities {
+	private static final String TAG = "DeviceCapabilities";
+
+	private static final String FILE_NAME = "device_capabilities";
+	private static final int MAGIC = 0x43415053; // "CAPS"
+	private static final int VERSION = 1;
+
+	public final String fingerprint;
+	public final RecordingProfile lowProfile;
+	public final RecordingProfile highProfile;
+	// Pairs of width and height.
+	public final int[] previewSizes;
+	// Pairs of minimum and maximum fps * 1000; empty before API level 9.
+	public final int[] previewFpsRanges;
+	public final String[] flashModes;
+	public final String[] whiteBalances;
+	public final String[] colorEffects;
+
+	private DeviceCapabilities(String fingerprint,
+			RecordingProfile lowProfile, RecordingProfile highProfile,
+			int[] previewSizes, int[] previewFpsRanges, String[] flashModes,
+			String[] whiteBalances, String[] colorEffects) {
+		this.fingerprint = fingerprint;
+		this.lowProfile = lowProfile;
+		this.highProfile = highProfile;
+		this.previewSizes = previewSizes;
+		this.previewFpsRanges = previewFpsRanges;
+		this.flashModes = flashModes;
+		this.whiteBalances = whiteBalances;
+		this.colorEffects = colorEffects;
+	}
+
+	/**
+	 * Captures the capabilities of the opened camera. Called on the
+	 * CameraHolder thread.
+	 */
+	public static DeviceCapabilities capture(ParameterCache cache) {
+		Parameters p = cache.getParameters();
+		List<Size> sizes = p.getSupportedPreviewSizes();
+		int[] previewSizes = new int[sizes == null ? 0 : sizes.size() * 2];
+		for (int i = 0; i < previewSizes.length / 2; i++) {
+			Size size = sizes.get(i);
+			previewSizes[i * 2] = size.width;
+			previewSizes[i * 2 + 1] = size.height;
+		}
+		return new DeviceCapabilities(Build.FINGERPRINT,
+				RecordingProfile.from(CamcorderProfile
+						.get(CamcorderProfile.QUALITY_LOW)),
+				RecordingProfile.from(CamcorderProfile
+						.get(CamcorderProfile.QUALITY_HIGH)), previewSizes,
+				getPreviewFpsRanges(p), toArray(p.getSupportedFlashModes()),
+				toArray(p.getSupportedWhiteBalance()),
+				toArray(p.getSupportedColorEffects()));
+	}
+
+	@TargetApi(9)
+	private static int[] getPreviewFpsRanges(Parameters p) {
+		if (Build.VERSION.SDK_INT < 9)
+			return new int[0];
+		List<int[]> ranges = p.getSupportedPreviewFpsRange();
+		int[] result = new int[ranges == null ? 0 : ranges.size() * 2];
+		for (int i = 0; i < result.length / 2; i++) {
+			int[] range = ranges.get(i);
+			result[i * 2] = range[Parameters.PREVIEW_FPS_MIN_INDEX];
+			result[i * 2 + 1] = range[Parameters.PREVIEW_FPS_MAX_INDEX];
+		}
+		return result;
+	}
+
+	private static String[] toArray(List<String> list) {
+		return list == null ? new String[0] : list
+				.toArray(new String[list.size()]);
+	}
+
+	public boolean isPreviewSizeSupported(int width, int height) {
+		for (int i = 0; i < previewSizes.length; i += 2) {
+			if (previewSizes[i] == width && previewSizes[i + 1] == height)
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Returns the stored snapshot, or null if there is none for this build.
+	 */
+	public static DeviceCapabilities load(Context context) {
+		File file = new File(context.getFilesDir(), FILE_NAME);
+		if (!file.exists())
+			return null;
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(
+					new FileInputStream(file)));
+			if (in.readInt() != MAGIC || in.readInt() != VERSION)
+				return null;
+			String fingerprint = in.readUTF();
+			if (!fingerprint.equals(Build.FINGERPRINT)) {
+				Log.v(TAG, "Stale snapshot for " + fingerprint);
+				return null;
+			}
+			return new DeviceCapabilities(fingerprint, readProfile(in),
+					readProfile(in), readInts(in), readInts(in),
+					readStrings(in), readStrings(in), readStrings(in));
+		} catch (IOException e) {
+			Log.w(TAG, "Cannot read " + file, e);
+			return null;
+		} finally {
+			Util.closeSilently(in);
+		}
+	}
+
+	/**
+	 * Stores the snapshot. The file is replaced atomically, so a crash never
+	 * leaves a partial one behind.
+	 */
+	public void save(Context context) {
+		File file = new File(context.getFilesDir(), FILE_NAME);
+		File tmp = new File(context.getFilesDir(), FILE_NAME + ".tmp");
+		DataOutputStream out = null;
+		try {
+			out = new DataOutputStream(new BufferedOutputStream(
+					new FileOutputStream(tmp)));
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeUTF(fingerprint);
+			writeProfile(out, lowProfile);
+			writeProfile(out, highProfile);
+			writeInts(out, previewSizes);
+			writeInts(out, previewFpsRanges);
+			writeStrings(out, flashModes);
+			writeStrings(out, whiteBalances);
+			writeStrings(out, colorEffects);
+			out.close();
+			out = null;
+			if (!tmp.renameTo(file)) {
+				Log.w(TAG, "Cannot rename " + tmp);
+				tmp.delete();
+			}
+		} catch (IOException e) {
+			Log.w(TAG, "Cannot write " + file, e);
+			Util.closeSilently(out);
+			tmp.delete();
+		}
+	}
+
+	private static void writeProfile(DataOutputStream out, RecordingProfile p)
+			throws IOException {
+		out.writeInt(p.duration);
+		out.writeInt(p.quality);
+		out.writeInt(p.fileFormat);
+		out.writeInt(p.videoCodec);
+		out.writeInt(p.videoBitRate);
+		out.writeInt(p.videoFrameRate);
+		out.writeInt(p.videoFrameWidth);
+		out.writeInt(p.videoFrameHeight);
+		out.writeInt(p.audioCodec);
+		out.writeInt(p.audioBitRate);
+		out.writeInt(p.audioSampleRate);
+		out.writeInt(p.audioChannels);
+	}
+
+	private static RecordingProfile readProfile(DataInputStream in)
+			throws IOException {
+		RecordingProfile p = new RecordingProfile();
+		p.duration = in.readInt();
+		p.quality = in.readInt();
+		p.fileFormat = in.readInt();
+		p.videoCodec = in.readInt();
+		p.videoBitRate = in.readInt();
+		p.videoFrameRate = in.readInt();
+		p.videoFrameWidth = in.readInt();
+		p.videoFrameHeight = in.readInt();
+		p.audioCodec = in.readInt();
+		p.audioBitRate = in.readInt();
+		p.audioSampleRate = in.readInt();
+		p.audioChannels = in.readInt();
+		return p;
+	}
+
+	private static void writeInts(DataOutputStream out, int[] values)
+			throws IOException {
+		out.writeShort(values.length);
+		for (int value : values) {
+			out.writeInt(value);
+		}
+	}
+
+	private static int[] readInts(DataInputStream in) throws IOException {
+		int[] values = new int[in.readUnsignedShort()];
+		for (int i = 0; i < values.length; i++) {
+			values[i] = in.readInt();
+		}
+		return values;
+	}
+
+	private static void writeStrings(DataOutputStream out, String[] values)
+			throws IOException {
+		out.writeShort(values.length);
+		for (String value : values) {
+			out.writeUTF(value);
+		}
+	}
+
+	private static String[] readStrings(DataInputStream in) throws IOException {
+		String[] values = new String[in.readUnsignedShort()];
+		for (int i = 0; i < values.length; i++) {
+			values[i] = in.readUTF();
+		}
+		return values;
+	}
+}
@@ -0,0 +1,176 @@
+package com.android.camera;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Moves the moov box of a recorded MP4 file in front of the media data, so
+ * a player can start before it has read the whole file.
+ *
+ * <p>
+ * The chunk offsets of every track are shifted by the size of the moov box.
+ * With enough free space the file is rewritten into a new one with
+ * {@code FileChannel.transferTo()}; otherwise the media data is moved up in
+ * place, from the end backwards, through a single direct buffer. An
+ * interrupted in-place run leaves the file broken, so it is only used when
+ * there is no room for a copy.
+ *
+ * <p>
+ * A free box of {@link #MOOV_RESERVE_BYTES} follows the moov box, so that it
+ * can grow a little later, e.g. by an edit list from {@link Mp4Trimmer},
+ * without moving the media data again.
+ */
+public class FastStart {
+	private static final String TAG = "FastStart";
+
+	private static final int SHIFT_BUFFER_BYTES = 1024 * 1024;
+
+	public static final int MOOV_RESERVE_BYTES = 1024;
+
+	private FastStart() {
+	}
+
+	/**
+	 * @param inPlace whether to move the data inside {@code file} instead of
+	 *            writing a copy.
+	 * @return false if the file is already fast start or has no media data.
+	 */
+	public static boolean process(File file, boolean inPlace)
+			throws IOException {
+		long begin = System.currentTimeMillis();
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		long length;
+		try {
+			FileChannel channel = raf.getChannel();
+			Mp4Index index = Mp4Index.parse(channel);
+			if (index.isFastStart() || index.mdatOffset < 0)
+				return false;
+			length = index.fileLength;
+
+			// Everything from the first mdat up to the moov box moves up.
+			long insert = index.mdatOffset;
+			long moovEnd = index.moovOffset + index.moovSize;
+			long shift = index.moovSize + MOOV_RESERVE_BYTES;
+			ByteBuffer moov = ByteBuffer.allocateDirect((int) index.moovSize);
+			moov.put(index.getMoov().duplicate());
+			shiftChunkOffsets(index, moov, insert, index.moovOffset, shift);
+			ByteBuffer free = freeBox(MOOV_RESERVE_BYTES);
+
+			if (inPlace) {
+				moveUp(channel, insert, index.moovOffset, shift);
+				moov.clear();
+				writeFully(channel, moov, insert);
+				writeFully(channel, free, insert + index.moovSize);
+			} else {
+				File tmp = new File(file.getPath() + ".faststart");
+				RandomAccessFile out = new RandomAccessFile(tmp, "rw");
+				try {
+					FileChannel target = out.getChannel();
+					target.truncate(0);
+					transferFully(channel, 0, insert, target);
+					moov.clear();
+					while (moov.hasRemaining()) {
+						target.write(moov);
+					}
+					while (free.hasRemaining()) {
+						target.write(free);
+					}
+					transferFully(channel, insert, index.moovOffset - insert,
+							target);
+					transferFully(channel, moovEnd, length - moovEnd, target);
+				} catch (IOException e) {
+					Util.closeSilently(out);
+					tmp.delete();
+					throw e;
+				}
+				out.close();
+				if (!tmp.renameTo(file)) {
+					tmp.delete();
+					throw new IOException("cannot replace " + file);
+				}
+			}
+		} finally {
+			Util.closeSilently(raf);
+		}
+		long elapsed = System.currentTimeMillis() - begin;
+		Log.v(TAG, (inPlace ? "In place" : "Copied") + " " + length
+				+ " bytes in " + elapsed + "ms, "
+				+ elapsed * (1L << 30) / Math.max(1, length) + "ms/GB");
+		return true;
+	}
+
+	static ByteBuffer freeBox(int size) {
+		ByteBuffer free = ByteBuffer.allocate(size);
+		free.putInt(size).putInt(Mp4Index.TYPE_FREE);
+		free.clear();
+		return free;
+	}
+
+	// Adds shift to the chunk offsets in [from, to) of every track.
+	static void shiftChunkOffsets(Mp4Index index, ByteBuffer moov,
+			long from, long to, long shift) throws IOException {
+		for (Mp4Index.Track t : index.tracks) {
+			int p = t.getChunkOffsetsPosition();
+			if (p < 0)
+				continue;
+			for (int i = 0; i < t.getChunkCount(); i++) {
+				long offset = t.getChunkOffset(i);
+				if (offset < from || offset >= to)
+					continue;
+				offset += shift;
+				if (t.hasChunkOffsets64()) {
+					moov.putLong(p + i * 8, offset);
+				} else if (offset > 0xffffffffL) {
+					// Would need the table converted to co64.
+					throw new IOException("chunk offset overflow");
+				} else {
+					moov.putInt(p + i * 4, (int) offset);
+				}
+			}
+		}
+	}
+
+	// Moves [from, to) up by shift bytes, starting at the end so that
+	// nothing is overwritten before it has been moved.
+	private static void moveUp(FileChannel channel, long from, long to,
+			long shift) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocateDirect(SHIFT_BUFFER_BYTES);
+		for (long end = to; end > from;) {
+			int n = (int) Math.min(buffer.capacity(), end - from);
+			long start = end - n;
+			buffer.clear();
+			buffer.limit(n);
+			while (buffer.hasRemaining()) {
+				if (channel.read(buffer, start + buffer.position()) < 0)
+					throw new IOException("unexpected end of file");
+			}
+			buffer.flip();
+			writeFully(channel, buffer, start + shift);
+			end = start;
+		}
+	}
+
+	static void writeFully(FileChannel channel, ByteBuffer buffer,
+			long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			position += channel.write(buffer, position);
+		}
+	}
+
+	// Appends [position, position + count) of source to target.
+	static void transferFully(FileChannel source, long position, long count,
+			FileChannel target) throws IOException {
+		while (count > 0) {
+			long n = source.transferTo(position, count, target);
+			if (n <= 0)
+				throw new IOException("transfer stalled at " + position);
+			position += n;
+			count -= n;
+		}
+	}
+}
@@ -0,0 +1,289 @@
+package com.android.camera;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * Loop recording, the way a dashcam does it: the recording is split into
+ * segments of a fixed length, kept in one directory, and the oldest of them
+ * are deleted to stay within a storage budget.
+ *
+ * <p>
+ * A protected segment is moved into {@link #PROTECTED_DIRECTORY} below the
+ * directory and is never deleted, though it still counts against the
+ * budget. The segment being recorded can be protected as well; it is moved
+ * once it has been added.
+ *
+ * <p>
+ * It also keeps track of the gaps between segments, from stopping one
+ * recorder until the next one has started, see
+ * {@link RecordingSession#roll}. Nothing is recorded in between, so each gap
+ * loses about gap times frame rate frames.
+ *
+ * <p>
+ * Segments are added on the session thread, the other methods may be
+ * called from any thread.
+ */
+public class LoopRecording {
+	private static final String TAG = "LoopRecording";
+
+	public static final String PROTECTED_DIRECTORY = "protected";
+
+	/** Told about the segments, on the thread that changed them. */
+	public interface Listener {
+		void onSegmentAdded(File file);
+
+		void onSegmentMoved(File from, File to);
+
+		void onSegmentDeleted(File file);
+	}
+
+	private final File mDirectory;
+	private final File mProtectedDirectory;
+	private final long mBudgetBytes;
+	private final int mSegmentMs;
+	private volatile Listener mListener;
+
+	// The unprotected segments, oldest first.
+	private final ArrayList<File> mSegments = new ArrayList<File>();
+	// Protected before they were added.
+	private final HashSet<File> mPending = new HashSet<File>();
+	// Of all segments, protected or not.
+	private long mUsedBytes;
+	private long mReserveBytes;
+
+	private int mSwitchCount;
+	private long mLastSwitchMs;
+	private long mMaxSwitchMs;
+	private long mTotalSwitchMs;
+	private long mFramesLost;
+
+	/**
+	 * Takes over the segments already in {@code directory}, e.g. from
+	 * before a restart.
+	 */
+	public LoopRecording(File directory, long budgetBytes, int segmentMs) {
+		// Segments are compared by path, and told absolute.
+		directory = directory.getAbsoluteFile();
+		mDirectory = directory;
+		mProtectedDirectory = new File(directory, PROTECTED_DIRECTORY);
+		mBudgetBytes = budgetBytes;
+		mSegmentMs = segmentMs;
+		directory.mkdirs();
+		for (File f : listSegments(directory)) {
+			mSegments.add(f);
+			mUsedBytes += f.length();
+		}
+		for (File f : listSegments(mProtectedDirectory)) {
+			mUsedBytes += f.length();
+		}
+		Log.v(TAG, mSegments.size() + " segments, " + mUsedBytes + " of "
+				+ budgetBytes + " bytes used in " + directory);
+	}
+
+	private static File[] listSegments(File directory) {
+		File[] files = directory.listFiles();
+		if (files == null)
+			return new File[0];
+		ArrayList<File> segments = new ArrayList<File>();
+		for (File f : files) {
+			if (f.isFile() && f.getName().endsWith(".mp4")) {
+				segments.add(f);
+			}
+		}
+		File[] result = segments.toArray(new File[segments.size()]);
+		Arrays.sort(result, new Comparator<File>() {
+			public int compare(File a, File b) {
+				long ma = a.lastModified();
+				long mb = b.lastModified();
+				if (ma != mb)
+					return ma < mb ? -1 : 1;
+				return a.getName().compareTo(b.getName());
+			}
+		});
+		return result;
+	}
+
+	public File getDirectory() {
+		return mDirectory;
+	}
+
+	public long getBudgetBytes() {
+		return mBudgetBytes;
+	}
+
+	public int getSegmentMs() {
+		return mSegmentMs;
+	}
+
+	public void setListener(Listener listener) {
+		mListener = listener;
+	}
+
+	/**
+	 * Sets how much room to keep for the segment being recorded, which is
+	 * not counted until it is added.
+	 */
+	public synchronized void setReserve(long bytes) {
+		mReserveBytes = bytes;
+	}
+
+	public synchronized long getUsedBytes() {
+		return mUsedBytes;
+	}
+
+	/** The segments that may still be deleted, oldest first. */
+	public synchronized List<File> getSegments() {
+		return new ArrayList<File>(mSegments);
+	}
+
+	/** Adds a finished segment and deletes old ones if over budget. */
+	public void add(File segment) {
+		segment = segment.getAbsoluteFile();
+		Listener listener = mListener;
+		File added = segment;
+		synchronized (this) {
+			if (!segment.isFile()) {
+				mPending.remove(segment);
+				return;
+			}
+			if (mPending.remove(segment)) {
+				try {
+					added = moveToProtected(segment);
+				} catch (IOException e) {
+					Log.e(TAG, "Cannot protect " + segment, e);
+					mSegments.add(segment);
+				}
+			} else {
+				mSegments.add(segment);
+			}
+			mUsedBytes += added.length();
+		}
+		if (listener != null) {
+			listener.onSegmentAdded(added);
+		}
+		reclaim();
+	}
+
+	/**
+	 * Deletes the oldest unprotected segments until the others and the
+	 * reserve fit into the budget.
+	 */
+	public void reclaim() {
+		Listener listener = mListener;
+		ArrayList<File> deleted = new ArrayList<File>();
+		synchronized (this) {
+			while (mUsedBytes + mReserveBytes > mBudgetBytes
+					&& !mSegments.isEmpty()) {
+				File f = mSegments.remove(0);
+				long length = f.length();
+				if (f.delete()) {
+					mUsedBytes -= length;
+					deleted.add(f);
+				} else {
+					// Still counted, but not tried again.
+					Log.w(TAG, "Cannot delete " + f);
+				}
+			}
+			if (mUsedBytes + mReserveBytes > mBudgetBytes) {
+				Log.w(TAG, "Over budget with " + mUsedBytes + " bytes left");
+			}
+		}
+		for (File f : deleted) {
+			Log.v(TAG, "Deleted " + f);
+			if (listener != null) {
+				listener.onSegmentDeleted(f);
+			}
+		}
+	}
+
+	/**
+	 * Protects {@code segment} from being deleted. A finished segment is
+	 * moved right away, the one being recorded once it is added.
+	 *
+	 * @return where the segment is kept.
+	 */
+	public File protect(File segment) throws IOException {
+		segment = segment.getAbsoluteFile();
+		Listener listener = mListener;
+		File target;
+		boolean moved = false;
+		synchronized (this) {
+			if (mProtectedDirectory.equals(segment.getParentFile()))
+				return segment;
+			if (mSegments.remove(segment)) {
+				try {
+					target = moveToProtected(segment);
+				} catch (IOException e) {
+					mSegments.add(0, segment);
+					throw e;
+				}
+				moved = true;
+			} else {
+				target = new File(mProtectedDirectory, segment.getName());
+				mPending.add(segment);
+			}
+		}
+		Log.v(TAG, "Protected " + segment);
+		if (moved && listener != null) {
+			listener.onSegmentMoved(segment, target);
+		}
+		return target;
+	}
+
+	private File moveToProtected(File segment) throws IOException {
+		mProtectedDirectory.mkdirs();
+		File target = new File(mProtectedDirectory, segment.getName());
+		if (!segment.renameTo(target))
+			throw new IOException("cannot move to " + target);
+		return target;
+	}
+
+	/**
+	 * Records a switch between segments that took {@code gapMs}, at
+	 * {@code frameRate} frames per second.
+	 */
+	public synchronized void onSwitched(long gapMs, int frameRate) {
+		++mSwitchCount;
+		mLastSwitchMs = gapMs;
+		mMaxSwitchMs = Math.max(mMaxSwitchMs, gapMs);
+		mTotalSwitchMs += gapMs;
+		mFramesLost += gapMs * frameRate / 1000;
+	}
+
+	public synchronized int getSwitchCount() {
+		return mSwitchCount;
+	}
+
+	public synchronized long getLastSwitchMs() {
+		return mLastSwitchMs;
+	}
+
+	public synchronized long getMaxSwitchMs() {
+		return mMaxSwitchMs;
+	}
+
+	public synchronized long getMeanSwitchMs() {
+		return mSwitchCount == 0 ? 0 : mTotalSwitchMs / mSwitchCount;
+	}
+
+	/** The frames estimated to be lost in all switches so far. */
+	public synchronized long getFramesLost() {
+		return mFramesLost;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return mSegments.size() + " segments, " + mUsedBytes + "/"
+				+ mBudgetBytes + " bytes, " + mSwitchCount + " switches, last "
+				+ mLastSwitchMs + "ms, max " + mMaxSwitchMs + "ms, mean "
+				+ getMeanSwitchMs() + "ms, " + mFramesLost + " frames lost";
+	}
+}
@@ -0,0 +1,540 @@
+package com.android.camera;
+
+import android.annotation.TargetApi;
+import android.hardware.Camera;
+import android.media.MediaRecorder;
+import android.os.Build;
+import android.os.ParcelFileDescriptor;
+import android.os.StatFs;
+import android.util.Log;
+import android.view.Surface;
+
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+
+/**
+ * Owns a {@code MediaRecorder} on behalf of a {@link RecordingSession}.
+ *
+ * <p>
+ * The recorder is created, configured, prepared, started, stopped and
+ * released on the session thread, so none of the blocking
+ * {@code MediaRecorder} calls run on the main thread. The caller only fills
+ * in the {@link Options}.
+ *
+ * <p>
+ * If {@code preallocateBytes} is set, the output file is extended to that
+ * size before recording so the filesystem can allocate it in one piece, and
+ * cut back to the end of the MP4 data once the recorder is finished.
+ *
+ * <p>
+ * With {@code pipeOutput} the recorder writes into a pipe that a
+ * {@link PipeWriter} drains to {@code outputPath}, so slow writes are
+ * absorbed by its buffers instead of stalling the encoder.
+ *
+ * <p>
+ * With {@code fastStart} the finished file is rewritten with the moov box
+ * in front, see {@link FastStart}, once the recorder is finished. That and
+ * the joining of {@code segments} are left to the {@link RecordingFinisher},
+ * which tells {@code finishListener}. The {@link ContentDigest} of the
+ * finished file then goes into {@code catalog}, if set; unless the
+ * recording was hashed while written, the catalog reads the file for it in
+ * the background.
+ *
+ * <p>
+ * With {@code segments} the recording is one segment of a paused and
+ * resumed video. It is added to them once finished, and once the last one
+ * is, they are joined instead of made fast start; see
+ * {@link RecordingSegments}.
+ *
+ * <p>
+ * With {@code loop} the recording is one segment of a loop recording. Old
+ * segments are deleted to make room for it before it starts, and it is
+ * added to the others once finished; see {@link LoopRecording}.
+ *
+ * <p>
+ * With {@code preRollCapture} the recording goes into that
+ * {@link PreRollBuffer} instead of a file. With {@code preRoll} the file
+ * starts with what that buffer holds, and the recording is appended to it
+ * as one more of the {@code segments}.
+ *
+ * <p>
+ * With {@code journal} the recording is noted in that
+ * {@link RecordingJournal} before it starts, so it can be recovered should
+ * the process die, and taken out once it is finished.
+ */
+public class MediaRecorderController implements RecordingSession.Recorder {
+	private static final String TAG = "MediaRecorderController";
+
+	private static final long FAST_START_RESERVE = 512L * 1024L;
+
+	/**
+	 * The recording parameters. Either {@code outputPath} or
+	 * {@code outputFileDescriptor} must be set.
+	 */
+	public static class Options {
+		public Camera camera;
+		public RecordingProfile profile;
+		public int maxDurationMs;
+		public int orientationHint;
+		public long maxFileSize;
+		// Only used with outputPath.
+		public long preallocateBytes;
+		// Only used with outputPath, on API level 9 and above.
+		public boolean pipeOutput;
+		public PipeWriter.Observer pipeObserver;
+		// Only used with outputPath: gets the ContentDigest. Cheapest with
+		// pipeOutput, as it is hashed while written.
+		public RecordingsCatalog catalog;
+		// Only used with pipeOutput: where in outputPath the recording
+		// starts. What is in front of it is kept.
+		public long outputOffset;
+		// Only used with outputPath.
+		public boolean fastStart;
+		// Only used with outputPath.
+		public RecordingSegments segments;
+		// Only used with outputPath.
+		public LoopRecording loop;
+		// On API level 9 and above; no output is used.
+		public PreRollBuffer preRollCapture;
+		// Only used with pipeOutput and segments; sets outputOffset.
+		public PreRollBuffer preRoll;
+		// Only used with outputPath.
+		public RecordingJournal journal;
+		// Only used with outputPath; not told about loop segments.
+		public RecordingFinisher.Listener finishListener;
+		public String outputPath;
+		public FileDescriptor outputFileDescriptor;
+		public Surface previewSurface;
+		public MediaRecorder.OnErrorListener errorListener;
+		public MediaRecorder.OnInfoListener infoListener;
+	}
+
+	private final Options mOptions;
+	private MediaRecorder mRecorder;
+	private RandomAccessFile mPreallocatedFile;
+	// The read end of the pipe and its writer, if pipeOutput is used.
+	private ParcelFileDescriptor mPipeSource;
+	private volatile PipeWriter mPipeWriter;
+	private ContentDigest.Hasher mHasher;
+	private volatile boolean mPreallocated;
+	private PreRollBuffer.Capture mCapture;
+	private boolean mStarted;
+
+	public MediaRecorderController(Options options) {
+		mOptions = options;
+	}
+
+	@TargetApi(9)
+	public void prepare() throws IOException {
+		Options o = mOptions;
+		mRecorder = new MediaRecorder();
+		mRecorder.setCamera(o.camera);
+		mRecorder.setVideoSource(MediaRecorder.VideoSource.CAMERA);
+		mRecorder.setAudioSource(MediaRecorder.AudioSource.MIC);
+		setProfile(mRecorder, o.profile);
+		mRecorder.setMaxDuration(o.maxDurationMs);
+		mRecorder.setOrientationHint(o.orientationHint);
+		ParcelFileDescriptor pipeSink = null;
+		if (o.loop != null && o.outputPath != null) {
+			o.loop.reclaim();
+		}
+		if (o.preRoll != null) {
+			// Written in the background while this one is recording.
+			o.outputOffset = o.preRoll.flush(new File(o.outputPath));
+		}
+		if (o.journal != null && o.outputPath != null
+				&& o.preRollCapture == null) {
+			o.journal.begin(o.outputPath, o.profile);
+		}
+		if (o.preRollCapture != null) {
+			pipeSink = startCapture(o.preRollCapture);
+			mRecorder.setOutputFile(pipeSink.getFileDescriptor());
+		} else if (o.outputFileDescriptor != null) {
+			mRecorder.setOutputFile(o.outputFileDescriptor);
+		} else if (o.pipeOutput && Build.VERSION.SDK_INT >= 9) {
+			pipeSink = startPipe(o);
+			mRecorder.setOutputFile(pipeSink.getFileDescriptor());
+		} else if (o.outputOffset > 0) {
+			throw new IOException("cannot append without a pipe");
+		} else if (o.preallocateBytes > 0) {
+			mPreallocatedFile = preallocate(o.outputPath, o.preallocateBytes);
+			mPreallocated = true;
+			mRecorder.setOutputFile(mPreallocatedFile.getFD());
+		} else {
+			mRecorder.setOutputFile(o.outputPath);
+		}
+		mRecorder.setPreviewDisplay(o.previewSurface);
+
+		try {
+			mRecorder.setMaxFileSize(o.maxFileSize);
+		} catch (RuntimeException exception) {
+			// We are going to ignore failure of setMaxFileSize here, as
+			// a) The composer selected may simply not support it, or
+			// b) The underlying media framework may not handle 64-bit range
+			// on the size restriction.
+		}
+
+		try {
+			mRecorder.prepare();
+		} catch (IOException e) {
+			Log.e(TAG, "prepare failed for " + o.outputPath);
+			throw e;
+		} finally {
+			// The recorder has its own copy of the descriptor; the writer
+			// sees the end of the stream once that one is closed.
+			if (pipeSink != null) {
+				closePipe(pipeSink);
+			}
+		}
+	}
+
+	// Returns the write end of the pipe.
+	@TargetApi(9)
+	private ParcelFileDescriptor startPipe(Options o) throws IOException {
+		ParcelFileDescriptor[] pipe = ParcelFileDescriptor.createPipe();
+		mPipeSource = pipe[0];
+		mPipeWriter = new PipeWriter(mPipeSource.getFileDescriptor(), new File(
+				o.outputPath), o.outputOffset, o.preallocateBytes);
+		// Of a paused recording, only the hasher of a first segment may see
+		// all of it, if it turns out to be the only one.
+		if (o.catalog != null && o.outputOffset == 0) {
+			mHasher = new ContentDigest.Hasher(o.pipeObserver);
+			mPipeWriter.setObserver(mHasher);
+		} else {
+			mPipeWriter.setObserver(o.pipeObserver);
+		}
+		try {
+			mPipeWriter.start();
+		} catch (IOException e) {
+			closePipe(pipe[1]);
+			closePipe(mPipeSource);
+			mPipeSource = null;
+			mPipeWriter = null;
+			throw e;
+		}
+		return pipe[1];
+	}
+
+	// Returns the write end of the pipe.
+	@TargetApi(9)
+	private ParcelFileDescriptor startCapture(PreRollBuffer buffer)
+			throws IOException {
+		ParcelFileDescriptor[] pipe = ParcelFileDescriptor.createPipe();
+		mPipeSource = pipe[0];
+		mCapture = buffer.capture(mPipeSource.getFileDescriptor());
+		return pipe[1];
+	}
+
+	private static void closePipe(ParcelFileDescriptor pfd) {
+		try {
+			pfd.close();
+		} catch (IOException e) {
+			Log.w(TAG, "Cannot close pipe", e);
+		}
+	}
+
+	private static RandomAccessFile preallocate(String path, long bytes)
+			throws IOException {
+		long begin = System.currentTimeMillis();
+		RandomAccessFile file = new RandomAccessFile(path, "rw");
+		try {
+			file.setLength(bytes);
+		} catch (IOException e) {
+			file.close();
+			new File(path).delete();
+			throw e;
+		}
+		Log.v(TAG, "Preallocated " + bytes + " bytes in "
+				+ (System.currentTimeMillis() - begin) + "ms");
+		return file;
+	}
+
+	// Same as MediaRecorder.setProfile(), which only takes a CamcorderProfile.
+	private static void setProfile(MediaRecorder recorder, RecordingProfile p) {
+		recorder.setOutputFormat(p.fileFormat);
+		recorder.setVideoFrameRate(p.videoFrameRate);
+		recorder.setVideoSize(p.videoFrameWidth, p.videoFrameHeight);
+		recorder.setVideoEncodingBitRate(p.videoBitRate);
+		recorder.setVideoEncoder(p.videoCodec);
+		recorder.setAudioEncodingBitRate(p.audioBitRate);
+		recorder.setAudioChannels(p.audioChannels);
+		recorder.setAudioSamplingRate(p.audioSampleRate);
+		recorder.setAudioEncoder(p.audioCodec);
+	}
+
+	/**
+	 * Returns how much of the recording has reached the output file so far,
+	 * or -1 if that cannot be told. May be called from any thread.
+	 */
+	public long getBytesWritten() {
+		PipeWriter writer = mPipeWriter;
+		if (writer != null)
+			return writer.getBytesWritten();
+		if (mPreallocated || mOptions.outputPath == null)
+			return -1;
+		return new File(mOptions.outputPath).length();
+	}
+
+	/**
+	 * Returns how many bytes the output file was extended to up front, 0 if
+	 * it was not. May be called from any thread.
+	 */
+	public long getPreallocatedBytes() {
+		return mPreallocated || mPipeWriter != null ? mOptions.preallocateBytes
+				: 0;
+	}
+
+	/**
+	 * Returns how many buffers of the pipe writer are waiting for the
+	 * storage, or -1 if the recording does not go through one.
+	 */
+	public int getQueuedBuffers() {
+		PipeWriter writer = mPipeWriter;
+		return writer != null ? writer.getQueuedBuffers() : -1;
+	}
+
+	/** How long the pipe writer has been stuck in its current write. */
+	public long getPendingWriteMs() {
+		PipeWriter writer = mPipeWriter;
+		return writer != null ? writer.getPendingWriteMs() : 0;
+	}
+
+	public void start() {
+		mRecorder.setOnErrorListener(mOptions.errorListener);
+		mRecorder.setOnInfoListener(mOptions.infoListener);
+		mRecorder.start(); // Recording is now started
+		mStarted = true;
+		if (mCapture != null) {
+			mCapture.onStarted();
+		}
+	}
+
+	public void stop() {
+		mRecorder.setOnErrorListener(null);
+		mRecorder.setOnInfoListener(null);
+		if (mCapture != null) {
+			mCapture.onStopped();
+		}
+		mRecorder.stop();
+	}
+
+	public void release() {
+		Log.v(TAG, "Releasing media recorder.");
+		if (mRecorder != null) {
+			mRecorder.reset();
+			mRecorder.release();
+			mRecorder = null;
+		}
+	}
+
+	public void finish() {
+		if (mCapture != null) {
+			mCapture.finish();
+			closePipe(mPipeSource);
+			mCapture = null;
+			mPipeSource = null;
+			return;
+		}
+		if (mPipeWriter != null) {
+			// All copies of the write end are closed now.
+			try {
+				mPipeWriter.finish();
+			} catch (IOException e) {
+				Log.e(TAG, "Pipe output failed", e);
+			}
+			closePipe(mPipeSource);
+			mPipeWriter = null;
+			mPipeSource = null;
+		}
+		if (mPreallocatedFile != null) {
+			truncate(mPreallocatedFile);
+			Util.closeSilently(mPreallocatedFile);
+			mPreallocatedFile = null;
+		}
+		cleanupEmptyFile(mOptions.outputPath);
+		if (mOptions.outputPath == null)
+			return;
+		RecordingSegments segments = mOptions.segments;
+		File file = new File(mOptions.outputPath);
+		if (mOptions.loop != null) {
+			// Before the loop may move or delete it.
+			endJournal(file);
+			if (mStarted) {
+				mOptions.loop.add(file);
+			}
+			return;
+		}
+		if (segments == null) {
+			submitFinish(file, null, mHasher);
+			return;
+		}
+		if (mOptions.preRoll != null) {
+			addPreRoll(segments);
+		}
+		if (mStarted) {
+			segments.add(file, mOptions.outputOffset);
+		}
+		// Until then, the segments are recovered and joined should the
+		// process die.
+		if (segments.isFinishing() && segments.takeFinish()) {
+			submitFinish(segments.getFile(), segments, hasherFor(segments));
+		}
+	}
+
+	/**
+	 * Has the paused recording this recorder was, or was to be, a segment
+	 * of finished, for when it is stopped without another segment being
+	 * recorded. Does nothing if {@link #finish} did so already.
+	 */
+	public void finishSegments() {
+		RecordingSegments segments = mOptions.segments;
+		segments.setFinishing();
+		if (segments.takeFinish()) {
+			submitFinish(segments.getFile(), segments, hasherFor(segments));
+		}
+	}
+
+	// The hasher, if it saw all of the recording the segments make up.
+	private ContentDigest.Hasher hasherFor(RecordingSegments segments) {
+		if (!mStarted || segments.needsJoin() || segments.size() != 1
+				|| !segments.getFile().getPath().equals(mOptions.outputPath))
+			return null;
+		return mHasher;
+	}
+
+	// Leaves the rest to the finisher, so the session can go idle.
+	private void submitFinish(final File file,
+			final RecordingSegments segments, final ContentDigest.Hasher hasher) {
+		RecordingFinisher.instance().submit(file.getPath(),
+				new RecordingFinisher.Job() {
+					public void run() {
+						if (segments != null && segments.needsJoin()) {
+							// Moving the moov box would take as long as
+							// copying the file. The journal keeps the
+							// segments if they cannot be joined, so they
+							// are when the recording is recovered.
+							if (!segments.join())
+								return;
+						} else if (mOptions.fastStart) {
+							makeFastStart(file);
+						}
+						catalogDigest(file, hasher);
+						if (segments != null && mOptions.journal != null) {
+							// Each segment file has an entry of its own.
+							for (File f : segments.getOtherFiles()) {
+								mOptions.journal.end(f.getPath(), null,
+										mOptions.profile);
+							}
+							mOptions.journal.end(file.getPath(), null,
+									mOptions.profile);
+						}
+						endJournal(file);
+					}
+				}, mOptions.finishListener);
+	}
+
+	// Adds the digest of the finished file to the catalog. Reading the whole
+	// file for it is left to the catalog, not to hold up the next recording.
+	private void catalogDigest(File file, ContentDigest.Hasher hasher) {
+		if (mOptions.catalog == null || !file.isFile())
+			return;
+		long begin = System.currentTimeMillis();
+		byte[] digest = null;
+		if (hasher != null) {
+			try {
+				digest = hasher.finish(file);
+			} catch (IOException e) {
+				Log.e(TAG, "Cannot hash " + file, e);
+			}
+		}
+		if (digest == null) {
+			mOptions.catalog.hashAsync(file.getPath());
+			return;
+		}
+		Log.v(TAG, "Hashed while recording in " + hasher.getHashMs()
+				+ "ms, finished in " + (System.currentTimeMillis() - begin)
+				+ "ms");
+		mOptions.catalog.add(file.getPath(), false, digest);
+	}
+
+	private void endJournal(File file) {
+		if (mOptions.journal != null) {
+			mOptions.journal.end(mOptions.outputPath, mStarted ? file : null,
+					mOptions.profile);
+		}
+	}
+
+	// Adds the segments the pre-roll was written as, once they are.
+	private void addPreRoll(RecordingSegments segments) {
+		File file = new File(mOptions.outputPath);
+		try {
+			for (long start : mOptions.preRoll.awaitFlush()) {
+				segments.add(file, start);
+			}
+		} catch (IOException e) {
+			Log.e(TAG, "Cannot write the pre-roll", e);
+			// Cover what made it into the file, so it is skipped.
+			long offset = mOptions.outputOffset;
+			if (offset >= 8 && offset <= 0xffffffffL) {
+				RandomAccessFile raf = null;
+				try {
+					raf = new RandomAccessFile(file, "rw");
+					ByteBuffer free = ByteBuffer.allocate(8);
+					free.putInt((int) offset).putInt(Mp4Index.TYPE_FREE);
+					free.flip();
+					FastStart.writeFully(raf.getChannel(), free, 0);
+				} catch (IOException e2) {
+					Log.e(TAG, "Cannot skip the pre-roll", e2);
+				} finally {
+					if (raf != null) {
+						Util.closeSilently(raf);
+					}
+				}
+			}
+		}
+	}
+
+	private static void makeFastStart(File file) {
+		if (!file.isFile() || file.length() == 0)
+			return;
+		// Copy if the copy fits, with the usual reserve left over.
+		boolean inPlace;
+		try {
+			StatFs stat = new StatFs(file.getParent());
+			long free = (long) stat.getAvailableBlocks() * stat.getBlockSize();
+			inPlace = free < file.length() + FAST_START_RESERVE;
+		} catch (RuntimeException e) {
+			inPlace = true;
+		}
+		try {
+			FastStart.process(file, inPlace);
+		} catch (IOException e) {
+			// The file still plays, only not progressively.
+			Log.e(TAG, "Cannot make " + file + " fast start", e);
+		}
+	}
+
+	// Cuts a pre-allocated file back to the data the recorder wrote; a file
+	// that was never recorded to ends up empty.
+	private static void truncate(RandomAccessFile file) {
+		try {
+			long end = Mp4Files.findEnd(file);
+			Log.v(TAG, "Truncating " + file.length() + " to " + end);
+			file.setLength(end);
+		} catch (IOException e) {
+			Log.e(TAG, "Cannot truncate the video file", e);
+		}
+	}
+
+	private static void cleanupEmptyFile(String filename) {
+		if (filename != null) {
+			File f = new File(filename);
+			if (f.isFile() && f.length() == 0 && f.delete()) {
+				Log.v(TAG, "Empty video file deleted: " + filename);
+			}
+		}
+	}
+}
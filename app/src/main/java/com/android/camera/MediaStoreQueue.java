@@ -0,0 +1,486 @@
+package com.android.camera;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.provider.MediaStore;
+import android.provider.MediaStore.Video;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Registers videos with the media provider on a thread of its own, so that
+ * stopping a recording does not wait for the provider.
+ *
+ * <p>
+ * {@link #insert} returns a file URI for the video right away; the content
+ * URI follows through the {@link Listener} once the video is registered.
+ * Whatever is queued by the time the thread gets to it goes to the provider
+ * in one batch. If the provider cannot be reached, e.g. while the card is
+ * being scanned or is unmounted, the changes stay queued until
+ * {@link #retry()} or the next change. If the batch is refused, the changes
+ * are applied one at a time instead, and one that the provider refuses
+ * {@link #MAX_ATTEMPTS} times while it takes others, or answers queries, is
+ * dropped, so that it does not hold up the rest. The queue is kept in a
+ * file, so it survives the process. There is one queue per process, see
+ * {@link #instance}.
+ */
+public class MediaStoreQueue {
+	private static final String TAG = "MediaStoreQueue";
+
+	private static final String FILE_NAME = "media_store_queue";
+
+	private static final int MAGIC = 0x4d535451; // "MSTQ"
+	private static final int VERSION = 2;
+
+	static final int MAX_ATTEMPTS = 3;
+
+	private static final int OP_INSERT = 0;
+	private static final int OP_MOVE = 1;
+	private static final int OP_DELETE = 2;
+
+	/** Told about each video registered, on the queue thread. */
+	public interface Listener {
+		void onInserted(String path, Uri uri);
+
+		/** The video at {@code path} could not be registered. */
+		void onDropped(String path);
+	}
+
+	private static class Op {
+		int kind;
+		String path;
+		// Where the file was moved to.
+		String to;
+		ContentValues values;
+		// Sent at least once: an insert may have gone through.
+		boolean tried;
+		// Sent before the current attempt.
+		boolean retried;
+		// Refused by the provider.
+		int attempts;
+	}
+
+	private static MediaStoreQueue sInstance;
+
+	private final ContentResolver mResolver;
+	private final File mFile;
+	private final ExecutorService mExecutor;
+	private volatile Listener mListener;
+
+	// Guarded by this.
+	private final ArrayList<Op> mOps = new ArrayList<Op>();
+	private boolean mScheduled;
+
+	public static synchronized MediaStoreQueue instance(Context context) {
+		if (sInstance == null) {
+			Context app = context.getApplicationContext();
+			sInstance = new MediaStoreQueue(app.getContentResolver(), new File(
+					app.getFilesDir(), FILE_NAME));
+		}
+		return sInstance;
+	}
+
+	private MediaStoreQueue(ContentResolver resolver, File file) {
+		mResolver = resolver;
+		mFile = file;
+		mExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				return new Thread(r, "MediaStoreQueue");
+			}
+		});
+		// Left over from an earlier process.
+		mExecutor.execute(new Runnable() {
+			public void run() {
+				ArrayList<Op> ops = load(mFile);
+				synchronized (MediaStoreQueue.this) {
+					mOps.addAll(0, ops);
+				}
+				if (!ops.isEmpty()) {
+					Log.v(TAG, ops.size() + " changes left over");
+					retry();
+				}
+			}
+		});
+	}
+
+	public void setListener(Listener listener) {
+		mListener = listener;
+	}
+
+	/**
+	 * Queues {@code values} of a video to be inserted. The size and
+	 * duration are filled in from the file if missing.
+	 *
+	 * @return a file URI of the video, to use until the content URI is
+	 *         known.
+	 */
+	public Uri insert(ContentValues values) {
+		Op op = new Op();
+		op.kind = OP_INSERT;
+		op.path = values.getAsString(Video.Media.DATA);
+		op.values = new ContentValues(values);
+		add(op);
+		return Uri.fromFile(new File(op.path));
+	}
+
+	/** Queues the path of a video to be changed from {@code from}. */
+	public void move(String from, String to) {
+		synchronized (this) {
+			Op insert = findPendingInsert(from);
+			if (insert != null) {
+				insert.path = to;
+				insert.values.put(Video.Media.DATA, to);
+				return;
+			}
+		}
+		Op op = new Op();
+		op.kind = OP_MOVE;
+		op.path = from;
+		op.to = to;
+		add(op);
+	}
+
+	/** Queues the video at {@code path} to be unregistered. */
+	public void delete(String path) {
+		synchronized (this) {
+			Op insert = findPendingInsert(path);
+			if (insert != null) {
+				mOps.remove(insert);
+				return;
+			}
+		}
+		Op op = new Op();
+		op.kind = OP_DELETE;
+		op.path = path;
+		add(op);
+	}
+
+	/** Tries again what could not be done so far. */
+	public synchronized void retry() {
+		if (!mOps.isEmpty()) {
+			schedule();
+		}
+	}
+
+	private synchronized void add(Op op) {
+		mOps.add(op);
+		schedule();
+	}
+
+	private void schedule() {
+		if (mScheduled)
+			return;
+		mScheduled = true;
+		mExecutor.execute(new Runnable() {
+			public void run() {
+				flush();
+			}
+		});
+	}
+
+	// An insert that has not been sent yet, which may still be changed.
+	private Op findPendingInsert(String path) {
+		for (Op op : mOps) {
+			if (op.kind == OP_INSERT && !op.tried && op.path.equals(path))
+				return op;
+		}
+		return null;
+	}
+
+	private void flush() {
+		ArrayList<Op> ops;
+		synchronized (this) {
+			mScheduled = false;
+			ops = new ArrayList<Op>(mOps);
+			// Sent from now on, not to be changed anymore.
+			for (Op op : ops) {
+				op.retried = op.tried;
+				op.tried = true;
+			}
+		}
+		save(ops);
+		if (ops.isEmpty())
+			return;
+		long begin = System.currentTimeMillis();
+		ArrayList<Op> done;
+		try {
+			apply(ops);
+			done = ops;
+		} catch (Exception e) {
+			// E.g. while the media scanner runs or the card is unmounted.
+			Log.w(TAG, "Cannot apply " + ops.size() + " changes", e);
+			done = ops.size() > 1 ? applyEach(ops) : new ArrayList<Op>();
+			ArrayList<Op> failed = new ArrayList<Op>(ops);
+			failed.removeAll(done);
+			// Held against the changes only if the provider is there; the
+			// rest waits for retry().
+			if (!done.isEmpty() || isReachable()) {
+				Log.v(TAG, "Applied " + done.size() + " of " + ops.size()
+						+ " changes one at a time");
+				done.addAll(dropRefused(failed));
+			}
+		}
+		Log.v(TAG, "Done with " + done.size() + " of " + ops.size()
+				+ " changes in " + (System.currentTimeMillis() - begin) + "ms");
+		synchronized (this) {
+			mOps.removeAll(done);
+			ops = new ArrayList<Op>(mOps);
+		}
+		save(ops);
+	}
+
+	// Applies the changes one by one; returns those applied.
+	private ArrayList<Op> applyEach(ArrayList<Op> ops) {
+		ArrayList<Op> done = new ArrayList<Op>();
+		for (Op op : ops) {
+			// Part of the batch may have gone through.
+			op.retried = true;
+			ArrayList<Op> one = new ArrayList<Op>(1);
+			one.add(op);
+			try {
+				apply(one);
+				done.add(op);
+			} catch (Exception e) {
+				Log.w(TAG, "Cannot apply a change of " + op.path, e);
+			}
+		}
+		return done;
+	}
+
+	// Counts an attempt against each of the changes; returns those given
+	// up on.
+	private ArrayList<Op> dropRefused(ArrayList<Op> failed) {
+		ArrayList<Op> dropped = new ArrayList<Op>();
+		for (Op op : failed) {
+			if (++op.attempts < MAX_ATTEMPTS)
+				continue;
+			Log.e(TAG, "Dropping a change of " + op.path + " after "
+					+ op.attempts + " attempts");
+			dropped.add(op);
+			if (op.kind == OP_INSERT) {
+				Listener listener = mListener;
+				if (listener != null) {
+					listener.onDropped(op.path);
+				}
+			}
+		}
+		return dropped;
+	}
+
+	private boolean isReachable() {
+		try {
+			Cursor c = mResolver.query(Video.Media.EXTERNAL_CONTENT_URI,
+					new String[] { Video.Media._ID }, "0", null, null);
+			if (c == null)
+				return false;
+			c.close();
+			return true;
+		} catch (RuntimeException e) {
+			return false;
+		}
+	}
+
+	private void apply(ArrayList<Op> ops) throws Exception {
+		ArrayList<Op> sent = new ArrayList<Op>();
+		ArrayList<ContentProviderOperation> batch = new ArrayList<ContentProviderOperation>();
+		Uri table = Video.Media.EXTERNAL_CONTENT_URI;
+		String where = Video.Media.DATA + "=?";
+		for (Op op : ops) {
+			if (op.kind == OP_INSERT) {
+				// Already inserted by a batch that failed later, or by the
+				// media scanner in the meantime?
+				Uri uri = op.retried ? findInserted(op.path) : null;
+				if (uri != null) {
+					onInserted(op.path, uri);
+					continue;
+				}
+				fillIn(op);
+				batch.add(ContentProviderOperation.newInsert(table)
+						.withValues(op.values).build());
+			} else if (op.kind == OP_MOVE) {
+				batch.add(ContentProviderOperation.newUpdate(table)
+						.withSelection(where, new String[] { op.path })
+						.withValue(Video.Media.DATA, op.to).build());
+			} else {
+				batch.add(ContentProviderOperation.newDelete(table)
+						.withSelection(where, new String[] { op.path })
+						.build());
+			}
+			sent.add(op);
+		}
+		if (batch.isEmpty())
+			return;
+		ContentProviderResult[] results = mResolver.applyBatch(
+				MediaStore.AUTHORITY, batch);
+		for (int i = 0; i < sent.size(); i++) {
+			Op op = sent.get(i);
+			if (op.kind == OP_INSERT && results[i].uri != null) {
+				onInserted(op.path, results[i].uri);
+			}
+		}
+	}
+
+	private Uri findInserted(String path) {
+		Cursor c = mResolver.query(Video.Media.EXTERNAL_CONTENT_URI,
+				new String[] { Video.Media._ID }, Video.Media.DATA + "=?",
+				new String[] { path }, null);
+		if (c == null)
+			return null;
+		try {
+			if (!c.moveToFirst())
+				return null;
+			return Uri.withAppendedPath(Video.Media.EXTERNAL_CONTENT_URI,
+					String.valueOf(c.getLong(0)));
+		} finally {
+			c.close();
+		}
+	}
+
+	private void onInserted(String path, Uri uri) {
+		Log.v(TAG, "Inserted " + path + " as " + uri);
+		Listener listener = mListener;
+		if (listener != null) {
+			listener.onInserted(path, uri);
+		}
+	}
+
+	// Reads what the provider shows of the file, which stopping the
+	// recording should not wait for.
+	private static void fillIn(Op op) {
+		File file = new File(op.path);
+		if (!op.values.containsKey(Video.Media.SIZE)) {
+			op.values.put(Video.Media.SIZE, file.length());
+		}
+		if (!op.values.containsKey(Video.Media.DURATION)) {
+			try {
+				op.values.put(Video.Media.DURATION, Mp4Index.parse(file)
+						.getDurationMs());
+			} catch (IOException e) {
+				Log.w(TAG, "Cannot read the duration of " + file, e);
+			}
+		}
+	}
+
+	// Replaces the file atomically, as DeviceCapabilities does.
+	private void save(ArrayList<Op> ops) {
+		File tmp = new File(mFile.getPath() + ".tmp");
+		if (ops.isEmpty()) {
+			mFile.delete();
+			return;
+		}
+		DataOutputStream out = null;
+		try {
+			out = new DataOutputStream(new BufferedOutputStream(
+					new FileOutputStream(tmp)));
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(ops.size());
+			for (Op op : ops) {
+				out.writeInt(op.kind);
+				out.writeBoolean(op.tried);
+				out.writeInt(op.attempts);
+				out.writeUTF(op.path);
+				out.writeUTF(op.to == null ? "" : op.to);
+				writeValues(out, op.values);
+			}
+			out.close();
+			out = null;
+			if (!tmp.renameTo(mFile)) {
+				Log.w(TAG, "Cannot rename " + tmp);
+				tmp.delete();
+			}
+		} catch (IOException e) {
+			Log.w(TAG, "Cannot write " + mFile, e);
+			Util.closeSilently(out);
+			tmp.delete();
+		}
+	}
+
+	private static ArrayList<Op> load(File file) {
+		ArrayList<Op> ops = new ArrayList<Op>();
+		if (!file.exists())
+			return ops;
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(
+					new FileInputStream(file)));
+			if (in.readInt() != MAGIC)
+				return ops;
+			// Those of version 1 have no attempts.
+			int version = in.readInt();
+			if (version != 1 && version != VERSION)
+				return ops;
+			for (int n = in.readInt(); n > 0; n--) {
+				Op op = new Op();
+				op.kind = in.readInt();
+				op.tried = in.readBoolean();
+				if (version >= 2) {
+					op.attempts = in.readInt();
+				}
+				op.path = in.readUTF();
+				op.to = in.readUTF();
+				op.values = readValues(in);
+				ops.add(op);
+			}
+		} catch (IOException e) {
+			Log.w(TAG, "Cannot read " + file, e);
+		} finally {
+			Util.closeSilently(in);
+		}
+		return ops;
+	}
+
+	// Only strings and numbers, which is all we register.
+	private static void writeValues(DataOutputStream out, ContentValues values)
+			throws IOException {
+		if (values == null) {
+			out.writeInt(0);
+			return;
+		}
+		out.writeInt(values.size());
+		for (Map.Entry<String, Object> e : values.valueSet()) {
+			out.writeUTF(e.getKey());
+			Object v = e.getValue();
+			if (v instanceof Number) {
+				out.writeBoolean(true);
+				out.writeLong(((Number) v).longValue());
+			} else {
+				out.writeBoolean(false);
+				out.writeUTF(String.valueOf(v));
+			}
+		}
+	}
+
+	private static ContentValues readValues(DataInputStream in)
+			throws IOException {
+		int n = in.readInt();
+		ContentValues values = new ContentValues(n);
+		for (int i = 0; i < n; i++) {
+			String key = in.readUTF();
+			if (in.readBoolean()) {
+				values.put(key, in.readLong());
+			} else {
+				values.put(key, in.readUTF());
+			}
+		}
+		return values;
+	}
+}
@@ -0,0 +1,177 @@
+package com.android.camera;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Writes a new moov box based on the one of an {@link Mp4Index}.
+ *
+ * <p>
+ * Given a {@link SampleTable} per track, the sample tables are replaced and
+ * the durations set from them; a track without one is dropped. Without any
+ * tables, the sample tables are kept and each track gets an edit list for
+ * [startMs, endMs) of its media instead. Existing edit lists are dropped
+ * either way, everything else is copied.
+ */
+class MoovWriter {
+	private final Mp4Index mIndex;
+	private final SampleTable[] mTables;
+	private long mEditStartMs;
+	private long mEditEndMs;
+
+	// Added to the chunk offsets of the tables, and whether they are
+	// written as 64 bit.
+	private long mBase;
+	private boolean mCo64;
+
+	/**
+	 * @param tables one per track of {@code index}, or null to keep the
+	 *            sample tables and write edit lists.
+	 */
+	MoovWriter(Mp4Index index, SampleTable[] tables) {
+		mIndex = index;
+		mTables = tables;
+	}
+
+	void setEdit(long startMs, long endMs) {
+		mEditStartMs = startMs;
+		mEditEndMs = endMs;
+	}
+
+	ByteBuffer write(long base, boolean co64) throws IOException {
+		mBase = base;
+		mCo64 = co64;
+		Mp4Builder out = new Mp4Builder((int) mIndex.moovSize + 256);
+		writeBoxes(out, Mp4Index.TYPE_MOOV, 0, null, null);
+		return out.finish();
+	}
+
+	/**
+	 * Returns the moov box for a new file made of an ftyp box of
+	 * {@code ftypSize}, the moov box, a free box of
+	 * {@link FastStart#MOOV_RESERVE_BYTES} and an mdat box holding
+	 * {@code dataSize} bytes, the chunk offsets being relative to its data.
+	 */
+	ByteBuffer writeFastStart(long ftypSize, long dataSize) throws IOException {
+		long base = ftypSize + FastStart.MOOV_RESERVE_BYTES
+				+ mdatHeader(dataSize).remaining();
+		// The chunk offsets depend on the size of the moov box, which only
+		// depends on whether they need 64 bits.
+		int size = write(0, false).remaining();
+		boolean co64 = base + size + dataSize > 0xffffffffL;
+		if (co64) {
+			size = write(0, true).remaining();
+		}
+		return write(base + size, co64);
+	}
+
+	static ByteBuffer mdatHeader(long dataSize) {
+		ByteBuffer mdat;
+		if (dataSize + 8 > 0xffffffffL) {
+			mdat = ByteBuffer.allocate(16);
+			mdat.putInt(1).putInt(Mp4Index.TYPE_MDAT).putLong(dataSize + 16);
+		} else {
+			mdat = ByteBuffer.allocate(8);
+			mdat.putInt((int) dataSize + 8).putInt(Mp4Index.TYPE_MDAT);
+		}
+		mdat.flip();
+		return mdat;
+	}
+
+	/** The duration of the new moov, in the movie timescale. */
+	long getDuration() {
+		long timescale = mIndex.timescale;
+		if (mTables == null)
+			return (mEditEndMs - mEditStartMs) * timescale / 1000;
+		long duration = 0;
+		for (SampleTable t : mTables) {
+			if (t != null) {
+				duration = Math.max(duration, t.duration * timescale
+						/ t.track.timescale);
+			}
+		}
+		return duration;
+	}
+
+	// Copies the container box at p, changing what is described above. The
+	// track is known once inside a trak box.
+	private void writeBoxes(Mp4Builder out, int type, int p,
+			Mp4Index.Track track, SampleTable table) throws IOException {
+		ByteBuffer moov = mIndex.getMoov();
+		int end = p + Mp4Index.boxSize(moov, p, moov.limit());
+		out.begin(type);
+		for (int c = p + 8; c + 8 <= end;) {
+			int size = Mp4Index.boxSize(moov, c, end);
+			int childType = moov.getInt(c + 4);
+			int start = out.position();
+			int version = moov.get(c + 8);
+			if (childType == Mp4Index.TYPE_TRAK) {
+				for (int i = 0; i < mIndex.tracks.size(); i++) {
+					Mp4Index.Track t = mIndex.tracks.get(i);
+					if (t.trakPosition != c)
+						continue;
+					SampleTable k = mTables == null ? null : mTables[i];
+					if (mTables == null || k != null) {
+						writeBoxes(out, childType, c, t, k);
+					}
+				}
+			} else if (childType == Mp4Index.TYPE_MDIA
+					|| childType == Mp4Index.TYPE_MINF) {
+				if (table == null) {
+					out.put(moov, c, size);
+				} else {
+					writeBoxes(out, childType, c, track, table);
+				}
+			} else if (childType == Mp4Index.TYPE_STBL && table != null) {
+				table.write(out, moov, track.stsdPosition, mBase, mCo64);
+			} else if (childType == Mp4Index.TYPE_EDTS) {
+				// Dropped, or replaced after the tkhd.
+			} else {
+				out.put(moov, c, size);
+				if (childType == Mp4Index.TYPE_MVHD) {
+					setDuration(out, start, version, 24, 32, getDuration());
+				} else if (childType == Mp4Index.TYPE_TKHD && track != null) {
+					setDuration(out, start, version, 28, 36, table == null
+							? getDuration() : table.duration
+									* mIndex.timescale / track.timescale);
+					if (table == null) {
+						writeEdits(out, track);
+					}
+				} else if (childType == Mp4Index.TYPE_MDHD && table != null) {
+					setDuration(out, start, version, 24, 32, table.duration);
+				}
+			}
+			c += size;
+		}
+		out.end();
+	}
+
+	private void writeEdits(Mp4Builder out, Mp4Index.Track t) {
+		long timescale = mIndex.timescale;
+		long trackEndMs = Math.min(mEditEndMs, t.getDurationMs());
+		out.begin(Mp4Index.TYPE_EDTS);
+		out.begin(Mp4Index.TYPE_ELST, 0, 0);
+		out.putInt(1);
+		if (trackEndMs <= mEditStartMs) {
+			// The track ends before the range: present nothing of it.
+			out.putInt((int) ((mEditEndMs - mEditStartMs) * timescale / 1000));
+			out.putInt(-1);
+		} else {
+			out.putInt((int) ((trackEndMs - mEditStartMs) * timescale / 1000));
+			out.putInt((int) (mEditStartMs * t.timescale / 1000));
+		}
+		out.putShort(1).putShort(0);
+		out.end();
+		out.end();
+	}
+
+	// Sets the duration of a copied mvhd, tkhd or mdhd box.
+	private static void setDuration(Mp4Builder out, int box, int version,
+			int offset0, int offset1, long duration) {
+		if (version == 1) {
+			out.setLong(box + offset1, duration);
+		} else {
+			out.setInt(box + offset0, (int) duration);
+		}
+	}
+}
@@ -0,0 +1,101 @@
+package com.android.camera;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Writes MP4 boxes into a growing buffer. A box is opened with
+ * {@link #begin(int)} and its size filled in by {@link #end()}, so nested
+ * boxes can be written without knowing their sizes up front.
+ */
+public class Mp4Builder {
+	private ByteBuffer mBuffer;
+	private int[] mOpen = new int[8];
+	private int mDepth;
+
+	public Mp4Builder(int capacity) {
+		mBuffer = ByteBuffer.allocate(Math.max(capacity, 64));
+		mBuffer.order(ByteOrder.BIG_ENDIAN);
+	}
+
+	public Mp4Builder begin(int type) {
+		if (mDepth == mOpen.length) {
+			int[] open = new int[mDepth * 2];
+			System.arraycopy(mOpen, 0, open, 0, mDepth);
+			mOpen = open;
+		}
+		mOpen[mDepth++] = mBuffer.position();
+		putInt(0);
+		return putInt(type);
+	}
+
+	/** Opens a full box, one with a version and flags. */
+	public Mp4Builder begin(int type, int version, int flags) {
+		begin(type);
+		return putInt((version << 24) | (flags & 0xffffff));
+	}
+
+	public Mp4Builder end() {
+		int start = mOpen[--mDepth];
+		mBuffer.putInt(start, mBuffer.position() - start);
+		return this;
+	}
+
+	public Mp4Builder putShort(int value) {
+		ensure(2);
+		mBuffer.putShort((short) value);
+		return this;
+	}
+
+	public Mp4Builder putInt(int value) {
+		ensure(4);
+		mBuffer.putInt(value);
+		return this;
+	}
+
+	public Mp4Builder putLong(long value) {
+		ensure(8);
+		mBuffer.putLong(value);
+		return this;
+	}
+
+	/** Copies {@code length} bytes of {@code src} from {@code position}. */
+	public Mp4Builder put(ByteBuffer src, int position, int length) {
+		ensure(length);
+		ByteBuffer slice = src.duplicate();
+		slice.limit(position + length).position(position);
+		mBuffer.put(slice);
+		return this;
+	}
+
+	public int position() {
+		return mBuffer.position();
+	}
+
+	public void setInt(int position, int value) {
+		mBuffer.putInt(position, value);
+	}
+
+	public void setLong(int position, long value) {
+		mBuffer.putLong(position, value);
+	}
+
+	/** Returns what was written, from position 0. All boxes must be ended. */
+	public ByteBuffer finish() {
+		if (mDepth != 0)
+			throw new IllegalStateException(mDepth + " boxes still open");
+		ByteBuffer result = mBuffer.duplicate();
+		result.flip();
+		return result;
+	}
+
+	private void ensure(int n) {
+		if (mBuffer.remaining() >= n)
+			return;
+		ByteBuffer grown = ByteBuffer.allocate(Math.max(mBuffer.capacity() * 2,
+				mBuffer.position() + n));
+		mBuffer.flip();
+		grown.put(mBuffer);
+		mBuffer = grown;
+	}
+}
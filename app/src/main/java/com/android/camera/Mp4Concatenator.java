@@ -0,0 +1,250 @@
+package com.android.camera;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Joins MP4 recordings of the same format into one, without re-encoding.
+ *
+ * <p>
+ * The sample tables of the segments are appended to each other track by
+ * track. The tracks are matched by their order and must agree in type,
+ * timescale and sample description, which they do when the segments were
+ * recorded with the same profile. Each track of a segment is lengthened by
+ * its last sample to the end of the segment's longest track, so audio and
+ * video stay in step across the joins.
+ *
+ * <p>
+ * {@link #concat} copies the media data of separate files into a new one
+ * with {@code FileChannel.transferTo()}. {@link #joinInPlace} takes segments
+ * that were recorded one after the other into the same file, see
+ * {@link PipeWriter}; it only appends a new moov box, so it takes the same
+ * time however long the recording is.
+ */
+public class Mp4Concatenator {
+	private static final String TAG = "Mp4Concatenator";
+
+	private final List<Mp4Index> mSegments;
+	private SampleTable[] mTables;
+
+	private Mp4Concatenator(List<Mp4Index> segments) throws IOException {
+		if (segments.isEmpty())
+			throw new IllegalArgumentException("no segments");
+		mSegments = segments;
+		Mp4Index first = segments.get(0);
+		for (Mp4Index s : segments) {
+			if (s.tracks.size() != first.tracks.size())
+				throw new IOException("track count differs");
+			for (int i = 0; i < s.tracks.size(); i++) {
+				if (!isSameFormat(first, first.tracks.get(i), s,
+						s.tracks.get(i)))
+					throw new IOException("format of track " + i + " differs");
+			}
+		}
+	}
+
+	/**
+	 * Writes the segments one after the other into {@code target}, which
+	 * ends up fast start.
+	 *
+	 * @return the duration of the result in milliseconds.
+	 */
+	public static long concat(List<File> segments, File target)
+			throws IOException {
+		long begin = System.currentTimeMillis();
+		ArrayList<RandomAccessFile> files = new ArrayList<RandomAccessFile>();
+		RandomAccessFile out = null;
+		try {
+			ArrayList<Mp4Index> indexes = new ArrayList<Mp4Index>();
+			for (File f : segments) {
+				RandomAccessFile raf = new RandomAccessFile(f, "r");
+				files.add(raf);
+				indexes.add(Mp4Index.parse(raf.getChannel()));
+			}
+			Mp4Concatenator c = new Mp4Concatenator(indexes);
+
+			// The media data of each segment goes right after that of the
+			// one before, its chunk offsets move along with it.
+			long[] deltas = new long[indexes.size()];
+			long data = 0;
+			for (int i = 0; i < indexes.size(); i++) {
+				Mp4Index s = indexes.get(i);
+				if (s.mdatOffset < 0)
+					throw new IOException("no media data in segment " + i);
+				deltas[i] = data - s.mdatOffset - s.mdatHeaderSize;
+				data += s.mdatSize - s.mdatHeaderSize;
+			}
+			c.collect(deltas);
+
+			Mp4Index first = indexes.get(0);
+			FileChannel source = files.get(0).getChannel();
+			long ftypSize = 0;
+			if (first.ftypOffset >= 0) {
+				ByteBuffer header = ByteBuffer.allocate(4);
+				Mp4Index.readFully(source, header, first.ftypOffset);
+				ftypSize = header.getInt(0) & 0xffffffffL;
+			}
+			MoovWriter moov = new MoovWriter(first, c.mTables);
+			out = new RandomAccessFile(target, "rw");
+			FileChannel channel = out.getChannel();
+			channel.truncate(0);
+			FastStart.transferFully(source, first.ftypOffset, ftypSize,
+					channel);
+			Mp4Trimmer.writeAll(channel, moov.writeFastStart(ftypSize, data));
+			Mp4Trimmer.writeAll(channel, FastStart
+					.freeBox(FastStart.MOOV_RESERVE_BYTES));
+			Mp4Trimmer.writeAll(channel, MoovWriter.mdatHeader(data));
+			for (int i = 0; i < indexes.size(); i++) {
+				Mp4Index s = indexes.get(i);
+				FastStart.transferFully(files.get(i).getChannel(),
+						s.mdatOffset + s.mdatHeaderSize, s.mdatSize
+								- s.mdatHeaderSize, channel);
+			}
+			out.close();
+			out = null;
+			long duration = moov.getDuration() * 1000
+					/ Math.max(1, first.timescale);
+			Log.v(TAG, "Copied " + segments.size() + " segments, " + data
+					+ " bytes in " + (System.currentTimeMillis() - begin)
+					+ "ms");
+			return duration;
+		} catch (IOException e) {
+			if (out != null) {
+				Util.closeSilently(out);
+				target.delete();
+			}
+			throw e;
+		} finally {
+			for (RandomAccessFile f : files) {
+				Util.closeSilently(f);
+			}
+		}
+	}
+
+	/**
+	 * Joins the segments stored back to back in {@code file}, segment i
+	 * starting at {@code starts[i]} and ending where the next one starts.
+	 * A moov box for all of them is appended and the boxes of the segments
+	 * other than their media data are turned into free boxes.
+	 *
+	 * @return the duration of the result in milliseconds.
+	 */
+	public static long joinInPlace(File file, long[] starts)
+			throws IOException {
+		long begin = System.currentTimeMillis();
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			FileChannel channel = raf.getChannel();
+			long length = channel.size();
+			ArrayList<Mp4Index> indexes = new ArrayList<Mp4Index>();
+			for (int i = 0; i < starts.length; i++) {
+				long end = i + 1 < starts.length ? starts[i + 1] : length;
+				indexes.add(Mp4Index.parse(channel, starts[i], end));
+			}
+			Mp4Concatenator c = new Mp4Concatenator(indexes);
+			// Each segment was written as if it started the file.
+			c.collect(starts);
+
+			boolean co64 = false;
+			for (SampleTable t : c.mTables) {
+				co64 |= t.getMaxChunkOffset(0) > 0xffffffffL;
+			}
+			Mp4Index first = indexes.get(0);
+			MoovWriter moov = new MoovWriter(first, c.mTables);
+			// Written in front of the old boxes being freed, so the file
+			// plays at least its first segment if this is interrupted.
+			FastStart.writeFully(channel, moov.write(0, co64), length);
+			ByteBuffer free = ByteBuffer.allocate(4);
+			for (int i = 0; i < indexes.size(); i++) {
+				Mp4Index s = indexes.get(i);
+				free.clear();
+				free.putInt(0, Mp4Index.TYPE_FREE);
+				FastStart.writeFully(channel, free, s.moovOffset + 4);
+				if (i > 0 && s.ftypOffset >= 0) {
+					free.clear();
+					FastStart.writeFully(channel, free, s.ftypOffset + 4);
+				}
+			}
+			long duration = moov.getDuration() * 1000
+					/ Math.max(1, first.timescale);
+			Log.v(TAG, "Joined " + starts.length + " segments of " + length
+					+ " bytes in " + (System.currentTimeMillis() - begin)
+					+ "ms");
+			return duration;
+		} finally {
+			Util.closeSilently(raf);
+		}
+	}
+
+	// Appends the samples of every segment to one table per track, adding
+	// deltas[i] to the chunk offsets of segment i.
+	private void collect(long[] deltas) {
+		Mp4Index first = mSegments.get(0);
+		int tracks = first.tracks.size();
+		mTables = new SampleTable[tracks];
+		for (int t = 0; t < tracks; t++) {
+			int samples = 0;
+			for (Mp4Index s : mSegments) {
+				samples += s.tracks.get(t).getSampleCount();
+			}
+			mTables[t] = new SampleTable(first.tracks.get(t), samples);
+		}
+		for (int i = 0; i < mSegments.size(); i++) {
+			Mp4Index segment = mSegments.get(i);
+			long endUs = 0;
+			for (int t = 0; t < tracks; t++) {
+				Mp4Index.Track track = segment.tracks.get(t);
+				SampleTable table = mTables[t];
+				Mp4Index.Samples s = track.samples();
+				int chunk = -1;
+				while (s.next()) {
+					if (s.chunk != chunk) {
+						chunk = s.chunk;
+						table.addChunk(track.getChunkOffset(chunk) + deltas[i]);
+					}
+					table.add(s);
+					table.addToChunk();
+				}
+				endUs = Math.max(endUs, table.duration * 1000000
+						/ track.timescale);
+			}
+			for (int t = 0; t < tracks; t++) {
+				SampleTable table = mTables[t];
+				table.extendTo(endUs * table.track.timescale / 1000000);
+			}
+		}
+	}
+
+	private static boolean isSameFormat(Mp4Index sa, Mp4Index.Track a,
+			Mp4Index sb, Mp4Index.Track b) {
+		if (a.handler != b.handler || a.codec != b.codec
+				|| a.timescale != b.timescale || a.timescale == 0)
+			return false;
+		if (a.isAllSync() != b.isAllSync()
+				|| a.hasCompositionOffsets() != b.hasCompositionOffsets()
+				|| a.stsdPosition < 0 || b.stsdPosition < 0)
+			return false;
+		// The sample descriptions hold e.g. the H.264 parameter sets.
+		ByteBuffer ma = sa.getMoov();
+		ByteBuffer mb = sb.getMoov();
+		try {
+			int size = Mp4Index.boxSize(ma, a.stsdPosition, ma.limit());
+			if (size != Mp4Index.boxSize(mb, b.stsdPosition, mb.limit()))
+				return false;
+			for (int i = 0; i < size; i++) {
+				if (ma.get(a.stsdPosition + i) != mb.get(b.stsdPosition + i))
+					return false;
+			}
+		} catch (IOException e) {
+			return false;
+		}
+		return true;
+	}
+}
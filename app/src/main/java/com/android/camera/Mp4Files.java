@@ -0,0 +1,304 @@
+package com.android.camera;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+
+/**
+ * Helpers for the MP4 files written by MediaRecorder.
+ */
+public class Mp4Files {
+	private static final String TAG = "Mp4Files";
+
+	// How far into a recording the mdat header is looked for. Only the ftyp
+	// box and a free box header come before it.
+	public static final int HEAD_BYTES = 4096;
+
+	private Mp4Files() {
+	}
+
+	/**
+	 * Returns where the MP4 data in {@code file} ends, by walking the top
+	 * level boxes from the start. Anything after the last complete box, such
+	 * as the zeros of a pre-allocated file, is not counted. Returns 0 if the
+	 * file does not start with a box.
+	 */
+	public static long findEnd(RandomAccessFile file) throws IOException {
+		long length = file.length();
+		long offset = 0;
+		byte[] header = new byte[16];
+		while (offset + 8 <= length) {
+			file.seek(offset);
+			file.readFully(header, 0, 8);
+			long size = readUInt32(header, 0);
+			int headerSize = 8;
+			if (size == 1) {
+				if (offset + 16 > length)
+					break;
+				file.readFully(header, 8, 8);
+				size = (readUInt32(header, 8) << 32) | readUInt32(header, 12);
+				headerSize = 16;
+			}
+			if (size < headerSize || !isBoxType(header, 4)
+					|| offset + size > length) {
+				// Zeros, garbage or a box cut short: the data ends here.
+				break;
+			}
+			offset += size;
+		}
+		return offset;
+	}
+
+	/**
+	 * Puts a file recorded through a pipe back in shape. MediaRecorder's
+	 * MPEG4Writer reserves room for the moov box in front of the media data
+	 * with a free box, seeking over its body, and later seeks back to fill in
+	 * the mdat size. Neither seek works on a pipe, so the stream holds:
+	 *
+	 * <ul>
+	 * <li>the ftyp box;
+	 * <li>the header of the free box alone, its size that of the reserve;
+	 * <li>the mdat header with "?" in place of the size, or of the 64 bit
+	 * size;
+	 * <li>the media data, then the mdat size;
+	 * <li>the moov box, whose chunk offsets count the reserve as written;
+	 * <li>if the moov box fit the reserve, the header of the free box meant
+	 * to fill the rest of it, again alone.
+	 * </ul>
+	 *
+	 * The mdat header is found by scanning, the free box in front of it is
+	 * cut down to what is there, the size is moved into the mdat header and
+	 * the moov box down to close the gap, a dangling free box after it is
+	 * dropped and the chunk offsets are made to point at the media data.
+	 *
+	 * <p>
+	 * The layout is modelled on AOSP's MPEG4Writer; see Mp4FilesTest.
+	 *
+	 * @return true if the file was repaired, false if it did not need to or
+	 *         the layout was not recognized.
+	 */
+	public static boolean repairPipeOutput(RandomAccessFile file)
+			throws IOException {
+		return repairPipeOutput(file, 0);
+	}
+
+	/**
+	 * Same as {@link #repairPipeOutput(RandomAccessFile)} for a recording
+	 * that was written to the end of {@code file}, starting at
+	 * {@code start}.
+	 */
+	public static boolean repairPipeOutput(RandomAccessFile file, long start)
+			throws IOException {
+		long length = file.length();
+		byte[] head = new byte[(int) Math.max(0,
+				Math.min(HEAD_BYTES, length - start))];
+		file.seek(start);
+		file.readFully(head);
+		int headMdat = findPlaceholderMdat(head, head.length);
+		if (headMdat < 0) {
+			// The size is in place; the file did not come through a pipe.
+			return false;
+		}
+		if (!fixLeadingBoxes(head, headMdat)) {
+			Log.w(TAG, "Unexpected boxes in front of the media data");
+			return false;
+		}
+		long mdat = start + headMdat;
+		int sizeBytes = head[headMdat] == '?' ? 4 : 8;
+		long patchAt = sizeBytes == 4 ? mdat : mdat + 8;
+
+		long moov = findAppendedMoov(file, mdat, sizeBytes, length);
+		if (moov < 0) {
+			Log.w(TAG, "No moov box after the media data");
+			return false;
+		}
+		file.seek(start);
+		file.write(head, 0, headMdat);
+
+		// Move the size into the header, then the moov box over the gap.
+		byte[] size = new byte[sizeBytes];
+		file.seek(moov - sizeBytes);
+		file.readFully(size);
+		file.seek(patchAt);
+		file.write(size);
+		byte[] buffer = new byte[64 * 1024];
+		for (long from = moov; from < length;) {
+			int n = (int) Math.min(buffer.length, length - from);
+			file.seek(from);
+			file.readFully(buffer, 0, n);
+			file.seek(from - sizeBytes);
+			file.write(buffer, 0, n);
+			from += n;
+		}
+		length -= sizeBytes;
+		moov -= sizeBytes;
+		file.seek(moov);
+		long moovSize = file.readInt() & 0xffffffffL;
+		if (moovSize < 8 || moov + moovSize > length
+				|| moovSize > Integer.MAX_VALUE)
+			throw new IOException("Bad moov box size " + moovSize);
+		long moovEnd = moov + moovSize;
+		if (moovEnd < length && isDanglingFree(file, moovEnd, length)) {
+			length = moovEnd;
+		}
+		file.setLength(length);
+
+		ByteBuffer moovBox = ByteBuffer.allocate((int) moovSize);
+		file.seek(moov);
+		file.readFully(moovBox.array());
+		long shift = fixChunkOffsets(moovBox, mdat - start + sizeBytes * 2);
+		if (shift != 0) {
+			Log.v(TAG, "Chunk offsets moved by " + shift);
+			file.seek(moov);
+			file.write(moovBox.array());
+		}
+		return true;
+	}
+
+	/**
+	 * Returns where in the first {@code length} bytes of {@code head} the
+	 * mdat header with a placeholder size, "????mdat" or the 64 bit
+	 * 00 00 00 01 'mdat' followed by eight '?', starts; or -1.
+	 */
+	public static int findPlaceholderMdat(byte[] head, int length) {
+		for (int i = 0; i + 16 <= length; i++) {
+			if (head[i + 4] != 'm' || head[i + 5] != 'd'
+					|| head[i + 6] != 'a' || head[i + 7] != 't')
+				continue;
+			if (isPlaceholder(head, i, 4)
+					|| (readUInt32(head, i) == 1 && isPlaceholder(head, i + 8,
+							8)))
+				return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * Walks the boxes in front of the mdat header at {@code mdat} in
+	 * {@code head} and cuts a free box that runs over it, the reserve for
+	 * the moov box, down to what is there.
+	 *
+	 * @return false if the boxes do not end at the mdat header.
+	 */
+	public static boolean fixLeadingBoxes(byte[] head, int mdat) {
+		int offset = 0;
+		while (offset + 8 <= mdat) {
+			long size = readUInt32(head, offset);
+			if (size < 8 || !isBoxType(head, offset + 4))
+				return false;
+			if (offset + size > mdat) {
+				if (!isFreeType(head, offset + 4))
+					return false;
+				size = mdat - offset;
+				head[offset] = (byte) (size >>> 24);
+				head[offset + 1] = (byte) (size >>> 16);
+				head[offset + 2] = (byte) (size >>> 8);
+				head[offset + 3] = (byte) size;
+			}
+			offset += size;
+		}
+		return offset == mdat;
+	}
+
+	/**
+	 * Makes the chunk offsets in {@code moov}, a moov box from its start,
+	 * point at the media data starting at {@code mediaStart}. MPEG4Writer
+	 * writes the first chunk right at the start of the media data, but
+	 * counts a reserve it could not write in front of it.
+	 *
+	 * @return how far the offsets were moved back.
+	 */
+	public static long fixChunkOffsets(ByteBuffer moov, long mediaStart)
+			throws IOException {
+		Mp4Index index = Mp4Index.fromMoov(moov);
+		long first = Long.MAX_VALUE;
+		for (Mp4Index.Track t : index.tracks) {
+			if (t.getChunkCount() > 0) {
+				first = Math.min(first, t.getChunkOffset(0));
+			}
+		}
+		if (first == Long.MAX_VALUE || first <= mediaStart)
+			return 0;
+		long shift = first - mediaStart;
+		FastStart.shiftChunkOffsets(index, moov, 0, Long.MAX_VALUE, -shift);
+		return shift;
+	}
+
+	// Whether [offset, length) of file is the header of a free box whose
+	// size runs past the end, or nothing but that.
+	private static boolean isDanglingFree(RandomAccessFile file,
+			long offset, long length) throws IOException {
+		if (length - offset < 8)
+			return true;
+		byte[] header = new byte[8];
+		file.seek(offset);
+		file.readFully(header);
+		return isFreeType(header, 4) && offset + readUInt32(header, 0) > length;
+	}
+
+	// A free or skip box, both of which mean nothing to a reader.
+	static boolean isFreeType(byte[] b, int off) {
+		int type = (int) readUInt32(b, off);
+		return type == Mp4Index.TYPE_FREE || type == Mp4Index.TYPE_SKIP;
+	}
+
+	// Looks backwards for a moov box preceded by the size of the mdat box
+	// that ends right in front of it.
+	private static long findAppendedMoov(RandomAccessFile file, long mdat,
+			int sizeBytes, long length) throws IOException {
+		byte[] window = new byte[64 * 1024];
+		long end = length;
+		while (end > mdat + sizeBytes + 8) {
+			long start = Math.max(mdat, end - window.length);
+			int n = (int) (end - start);
+			file.seek(start);
+			file.readFully(window, 0, n);
+			for (int i = n - 4; i >= 0; i--) {
+				if (window[i] != 'm' || window[i + 1] != 'o'
+						|| window[i + 2] != 'o' || window[i + 3] != 'v')
+					continue;
+				long moov = start + i - 4;
+				if (moov - sizeBytes <= mdat)
+					continue;
+				byte[] b = new byte[12];
+				file.seek(moov - sizeBytes);
+				file.readFully(b, 0, sizeBytes + 4);
+				long mdatSize = sizeBytes == 4 ? readUInt32(b, 0)
+						: (readUInt32(b, 0) << 32) | readUInt32(b, 4);
+				long moovSize = readUInt32(b, sizeBytes);
+				if (mdat + mdatSize == moov - sizeBytes
+						&& moov + moovSize <= length)
+					return moov;
+			}
+			// Overlap by the length of the type, it may straddle windows.
+			end = start + 3;
+			if (start == mdat)
+				break;
+		}
+		return -1;
+	}
+
+	private static boolean isPlaceholder(byte[] b, int off, int len) {
+		for (int i = off; i < off + len; i++) {
+			if (b[i] != '?')
+				return false;
+		}
+		return true;
+	}
+
+	static long readUInt32(byte[] b, int off) {
+		return ((b[off] & 0xffL) << 24) | ((b[off + 1] & 0xffL) << 16)
+				| ((b[off + 2] & 0xffL) << 8) | (b[off + 3] & 0xffL);
+	}
+
+	// Top level box types are four printable ASCII characters.
+	private static boolean isBoxType(byte[] b, int off) {
+		for (int i = off; i < off + 4; i++) {
+			if (b[i] < 0x20 || b[i] > 0x7e)
+				return false;
+		}
+		return true;
+	}
+}
@@ -0,0 +1,511 @@
+package com.android.camera;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The layout and metadata of an MP4 (ISO base media) file, read without
+ * decoding anything.
+ *
+ * <p>
+ * The top level boxes are found by reading their headers only, so the size
+ * of the media data does not matter. The moov box is then memory mapped and
+ * parsed in place: the sample tables of each {@link Track} stay views into
+ * the mapping and are read on demand, nothing is copied. The class has no
+ * dependency on the Android framework.
+ */
+public class Mp4Index {
+	public static final int TYPE_FTYP = fourcc("ftyp");
+	public static final int TYPE_MOOV = fourcc("moov");
+	public static final int TYPE_MDAT = fourcc("mdat");
+	public static final int TYPE_FREE = fourcc("free");
+	public static final int TYPE_SKIP = fourcc("skip");
+	public static final int TYPE_MVHD = fourcc("mvhd");
+	public static final int TYPE_TRAK = fourcc("trak");
+	public static final int TYPE_TKHD = fourcc("tkhd");
+	public static final int TYPE_EDTS = fourcc("edts");
+	public static final int TYPE_ELST = fourcc("elst");
+	public static final int TYPE_MDIA = fourcc("mdia");
+	public static final int TYPE_MDHD = fourcc("mdhd");
+	public static final int TYPE_HDLR = fourcc("hdlr");
+	public static final int TYPE_MINF = fourcc("minf");
+	public static final int TYPE_STBL = fourcc("stbl");
+	public static final int TYPE_STSD = fourcc("stsd");
+	public static final int TYPE_STTS = fourcc("stts");
+	public static final int TYPE_STSS = fourcc("stss");
+	public static final int TYPE_CTTS = fourcc("ctts");
+	public static final int TYPE_STSC = fourcc("stsc");
+	public static final int TYPE_STSZ = fourcc("stsz");
+	public static final int TYPE_STCO = fourcc("stco");
+	public static final int TYPE_CO64 = fourcc("co64");
+
+	public static final int HANDLER_VIDEO = fourcc("vide");
+	public static final int HANDLER_SOUND = fourcc("soun");
+
+	/**
+	 * A track and views of its sample tables. Positions are relative to the
+	 * start of the moov box, see {@link Mp4Index#getMoov()}.
+	 */
+	public static class Track {
+		public int trackId;
+		public int handler;
+		// Type of the first sample description, e.g. "avc1" or "samr".
+		public int codec;
+		public int width;
+		public int height;
+		public int rotation;
+		public long timescale;
+		public long duration;
+
+		// Position of the box, in the moov buffer.
+		public int trakPosition;
+		public int stsdPosition = -1;
+		public int edtsPosition = -1;
+
+		ByteBuffer mMoov;
+		int mSttsEntries;
+		int mSttsPosition = -1;
+		int mStssEntries;
+		int mStssPosition = -1;
+		int mCttsEntries;
+		int mCttsPosition = -1;
+		int mStscEntries;
+		int mStscPosition = -1;
+		int mSampleCount;
+		int mConstantSampleSize;
+		int mStszPosition = -1;
+		int mChunkCount;
+		int mChunkOffsetsPosition = -1;
+		boolean mChunkOffsets64;
+
+		public boolean isVideo() {
+			return handler == HANDLER_VIDEO;
+		}
+
+		public boolean isAudio() {
+			return handler == HANDLER_SOUND;
+		}
+
+		public long getDurationMs() {
+			return timescale == 0 ? 0 : duration * 1000 / timescale;
+		}
+
+		public int getSampleCount() {
+			return mSampleCount;
+		}
+
+		public int getSampleSize(int sample) {
+			if (mConstantSampleSize != 0)
+				return mConstantSampleSize;
+			return mMoov.getInt(mStszPosition + sample * 4);
+		}
+
+		public int getChunkCount() {
+			return mChunkCount;
+		}
+
+		public long getChunkOffset(int chunk) {
+			if (mChunkOffsets64)
+				return mMoov.getLong(mChunkOffsetsPosition + chunk * 8);
+			return mMoov.getInt(mChunkOffsetsPosition + chunk * 4) & 0xffffffffL;
+		}
+
+		/** Whether the chunk offsets are 64 bit (co64) or 32 bit (stco). */
+		public boolean hasChunkOffsets64() {
+			return mChunkOffsets64;
+		}
+
+		/** Position of the first chunk offset in the moov buffer. */
+		public int getChunkOffsetsPosition() {
+			return mChunkOffsetsPosition;
+		}
+
+		/** True if every sample is a sync sample (there is no stss). */
+		public boolean isAllSync() {
+			return mStssPosition < 0;
+		}
+
+		/** The number of sync samples, i.e. key frames of a video track. */
+		public int getSyncSampleCount() {
+			return isAllSync() ? mSampleCount : mStssEntries;
+		}
+
+		/** Whether the samples have composition offsets (there is a ctts). */
+		public boolean hasCompositionOffsets() {
+			return mCttsPosition >= 0;
+		}
+
+		/**
+		 * Returns a cursor over the samples in decoding order. It is a
+		 * single object that is updated in place by {@link Samples#next()}.
+		 */
+		public Samples samples() {
+			return new Samples(this);
+		}
+	}
+
+	/**
+	 * Walks the samples of a track, resolving their file offsets, sizes,
+	 * decoding times and sync flags from the tables.
+	 */
+	public static class Samples {
+		private final Track mTrack;
+
+		/** The current sample, 0 based; -1 before the first next(). */
+		public int index = -1;
+		public long offset;
+		public int size;
+		// Decoding time and duration, in the track's timescale.
+		public long time;
+		public int delta;
+		public boolean sync;
+		// The chunk the sample is in, 0 based.
+		public int chunk = -1;
+		// Presentation minus decoding time, 0 without a ctts.
+		public int compositionOffset;
+
+		private int mLeftInChunk;
+		private int mStscEntry = -1;
+		private int mSamplesPerChunk;
+		private int mSttsEntry = -1;
+		private int mLeftInStts;
+		private int mStssEntry;
+		private long mNextSync = -1;
+		private int mCttsEntry = -1;
+		private int mLeftInCtts;
+
+		Samples(Track track) {
+			mTrack = track;
+		}
+
+		public boolean next() {
+			Track t = mTrack;
+			if (index + 1 >= t.mSampleCount)
+				return false;
+			++index;
+
+			// Offset: advance within the chunk, or to the next chunk.
+			if (mLeftInChunk == 0) {
+				++chunk;
+				// stsc entries hold 1 based first chunk numbers.
+				while (mStscEntry + 1 < t.mStscEntries
+						&& t.mMoov.getInt(t.mStscPosition + (mStscEntry + 1)
+								* 12) <= chunk + 1) {
+					++mStscEntry;
+					mSamplesPerChunk = t.mMoov.getInt(t.mStscPosition
+							+ mStscEntry * 12 + 4);
+				}
+				mLeftInChunk = mSamplesPerChunk;
+				offset = t.getChunkOffset(chunk);
+			} else {
+				offset += size;
+			}
+			--mLeftInChunk;
+			size = t.getSampleSize(index);
+
+			// Time.
+			if (index > 0) {
+				time += delta;
+			}
+			if (mLeftInStts == 0 && mSttsEntry + 1 < t.mSttsEntries) {
+				++mSttsEntry;
+				int p = t.mSttsPosition + mSttsEntry * 8;
+				mLeftInStts = t.mMoov.getInt(p);
+				delta = t.mMoov.getInt(p + 4);
+			}
+			--mLeftInStts;
+			if (t.mCttsPosition >= 0) {
+				if (mLeftInCtts == 0 && mCttsEntry + 1 < t.mCttsEntries) {
+					++mCttsEntry;
+					int p = t.mCttsPosition + mCttsEntry * 8;
+					mLeftInCtts = t.mMoov.getInt(p);
+					compositionOffset = t.mMoov.getInt(p + 4);
+				}
+				--mLeftInCtts;
+			}
+
+			// Sync; stss holds 1 based sample numbers in increasing order.
+			if (t.mStssPosition < 0) {
+				sync = true;
+			} else {
+				if (mNextSync < 0 && mStssEntry < t.mStssEntries) {
+					mNextSync = (t.mMoov.getInt(t.mStssPosition + mStssEntry
+							* 4) & 0xffffffffL) - 1;
+				}
+				sync = mNextSync == index;
+				if (sync) {
+					++mStssEntry;
+					mNextSync = -1;
+				}
+			}
+			return true;
+		}
+	}
+
+	public int majorBrand;
+	public long ftypOffset = -1;
+	public long moovOffset = -1;
+	public long moovSize;
+	public long mdatOffset = -1;
+	public long mdatSize;
+	// Size of the mdat box header, 8 or 16.
+	public int mdatHeaderSize;
+	public long fileLength;
+
+	public long timescale;
+	public long duration;
+	public int mvhdPosition = -1;
+	public final List<Track> tracks = new ArrayList<Track>();
+
+	private ByteBuffer mMoov;
+
+	private Mp4Index() {
+	}
+
+	public static Mp4Index parse(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			return parse(raf.getChannel());
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Indexes the file open on {@code channel}. The moov mapping stays
+	 * valid after the channel is closed.
+	 */
+	public static Mp4Index parse(FileChannel channel) throws IOException {
+		return parse(channel, 0, channel.size());
+	}
+
+	/**
+	 * Indexes an MP4 file stored in [start, end) of the file open on
+	 * {@code channel}, e.g. one of several appended to each other. Box
+	 * offsets are in the whole file and {@code fileLength} is {@code end};
+	 * the chunk offsets in the tables are as written, relative to
+	 * {@code start}.
+	 */
+	public static Mp4Index parse(FileChannel channel, long start, long end)
+			throws IOException {
+		Mp4Index index = new Mp4Index();
+		index.fileLength = end;
+		ByteBuffer header = ByteBuffer.allocate(16);
+		long offset = start;
+		while (offset + 8 <= index.fileLength) {
+			header.clear();
+			readFully(channel, header, offset);
+			long size = header.getInt(0) & 0xffffffffL;
+			int type = header.getInt(4);
+			int headerSize = 8;
+			if (size == 1) {
+				size = header.getLong(8);
+				headerSize = 16;
+			} else if (size == 0) {
+				size = index.fileLength - offset;
+			}
+			if (size < headerSize || offset + size > index.fileLength) {
+				// Cut short, e.g. a recording that was never finished.
+				break;
+			}
+			if (type == TYPE_FTYP) {
+				index.ftypOffset = offset;
+				index.majorBrand = header.getInt(8);
+			} else if (type == TYPE_MOOV && index.moovOffset < 0) {
+				index.moovOffset = offset;
+				index.moovSize = size;
+			} else if (type == TYPE_MDAT && index.mdatOffset < 0) {
+				index.mdatOffset = offset;
+				index.mdatSize = size;
+				index.mdatHeaderSize = headerSize;
+			}
+			offset += size;
+		}
+		if (index.moovOffset < 0)
+			throw new IOException("no moov box");
+		if (index.moovSize > Integer.MAX_VALUE)
+			throw new IOException("moov box too large");
+		index.mMoov = channel.map(FileChannel.MapMode.READ_ONLY,
+				index.moovOffset, index.moovSize);
+		index.mMoov.order(ByteOrder.BIG_ENDIAN);
+		index.parseMoov();
+		return index;
+	}
+
+	/**
+	 * Indexes the moov box held in {@code moov} from index 0, e.g. one not
+	 * yet written to a file. The box offsets of the index are not set.
+	 */
+	public static Mp4Index fromMoov(ByteBuffer moov) throws IOException {
+		Mp4Index index = new Mp4Index();
+		index.moovSize = moov.limit();
+		index.mMoov = moov;
+		index.mMoov.order(ByteOrder.BIG_ENDIAN);
+		index.parseMoov();
+		return index;
+	}
+
+	static void readFully(FileChannel channel, ByteBuffer buffer,
+			long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position()) < 0)
+				break;
+		}
+	}
+
+	/**
+	 * The mapped moov box, positioned at its start. It is read only and
+	 * shared by the tracks; use absolute gets.
+	 */
+	public ByteBuffer getMoov() {
+		return mMoov;
+	}
+
+	public long getDurationMs() {
+		return timescale == 0 ? 0 : duration * 1000 / timescale;
+	}
+
+	/** Whether the moov box comes before the media data. */
+	public boolean isFastStart() {
+		return mdatOffset < 0 || moovOffset < mdatOffset;
+	}
+
+	public Track getVideoTrack() {
+		for (Track t : tracks) {
+			if (t.isVideo())
+				return t;
+		}
+		return null;
+	}
+
+	public Track getAudioTrack() {
+		for (Track t : tracks) {
+			if (t.isAudio())
+				return t;
+		}
+		return null;
+	}
+
+	/** The rotation of the video in degrees, from its track header. */
+	public int getRotation() {
+		Track video = getVideoTrack();
+		return video == null ? 0 : video.rotation;
+	}
+
+	private void parseMoov() throws IOException {
+		ByteBuffer b = mMoov;
+		int end = b.limit();
+		for (int p = 8; p + 8 <= end;) {
+			int size = boxSize(b, p, end);
+			int type = b.getInt(p + 4);
+			if (type == TYPE_MVHD) {
+				mvhdPosition = p;
+				int v = b.get(p + 8);
+				timescale = b.getInt(p + (v == 1 ? 28 : 20)) & 0xffffffffL;
+				duration = v == 1 ? b.getLong(p + 32)
+						: b.getInt(p + 24) & 0xffffffffL;
+			} else if (type == TYPE_TRAK) {
+				Track track = new Track();
+				track.mMoov = b;
+				track.trakPosition = p;
+				parseContainer(track, p + 8, p + size);
+				tracks.add(track);
+			}
+			p += size;
+		}
+	}
+
+	private void parseContainer(Track t, int start, int end)
+			throws IOException {
+		ByteBuffer b = mMoov;
+		for (int p = start; p + 8 <= end;) {
+			int size = boxSize(b, p, end);
+			int type = b.getInt(p + 4);
+			int v = b.get(p + 8);
+			if (type == TYPE_MDIA || type == TYPE_MINF || type == TYPE_STBL) {
+				parseContainer(t, p + 8, p + size);
+			} else if (type == TYPE_TKHD) {
+				t.trackId = b.getInt(p + (v == 1 ? 28 : 20));
+				int matrix = p + (v == 1 ? 60 : 48);
+				t.rotation = rotation(b.getInt(matrix), b.getInt(matrix + 4));
+				t.width = b.getInt(matrix + 36) >>> 16;
+				t.height = b.getInt(matrix + 40) >>> 16;
+			} else if (type == TYPE_EDTS) {
+				t.edtsPosition = p;
+			} else if (type == TYPE_MDHD) {
+				t.timescale = b.getInt(p + (v == 1 ? 28 : 20)) & 0xffffffffL;
+				t.duration = v == 1 ? b.getLong(p + 32)
+						: b.getInt(p + 24) & 0xffffffffL;
+			} else if (type == TYPE_HDLR) {
+				t.handler = b.getInt(p + 16);
+			} else if (type == TYPE_STSD) {
+				t.stsdPosition = p;
+				if (b.getInt(p + 12) > 0) {
+					t.codec = b.getInt(p + 20);
+				}
+			} else if (type == TYPE_STTS) {
+				t.mSttsEntries = b.getInt(p + 12);
+				t.mSttsPosition = p + 16;
+			} else if (type == TYPE_STSS) {
+				t.mStssEntries = b.getInt(p + 12);
+				t.mStssPosition = p + 16;
+			} else if (type == TYPE_CTTS) {
+				t.mCttsEntries = b.getInt(p + 12);
+				t.mCttsPosition = p + 16;
+			} else if (type == TYPE_STSC) {
+				t.mStscEntries = b.getInt(p + 12);
+				t.mStscPosition = p + 16;
+			} else if (type == TYPE_STSZ) {
+				t.mConstantSampleSize = b.getInt(p + 12);
+				t.mSampleCount = b.getInt(p + 16);
+				t.mStszPosition = p + 20;
+			} else if (type == TYPE_STCO || type == TYPE_CO64) {
+				t.mChunkOffsets64 = type == TYPE_CO64;
+				t.mChunkCount = b.getInt(p + 12);
+				t.mChunkOffsetsPosition = p + 16;
+			}
+			p += size;
+		}
+	}
+
+	// The size of the box at p, which must lie within end.
+	static int boxSize(ByteBuffer b, int p, int end) throws IOException {
+		long size = b.getInt(p) & 0xffffffffL;
+		if (size == 1) {
+			size = b.getLong(p + 8);
+		} else if (size == 0) {
+			size = end - p;
+		}
+		if (size < 8 || p + size > end)
+			throw new IOException("bad box size " + size + " at " + p);
+		return (int) size;
+	}
+
+	// Degrees from the a and b entries of a track matrix.
+	private static int rotation(int a, int b) {
+		if (a == 0 && b > 0)
+			return 90;
+		if (a < 0 && b == 0)
+			return 180;
+		if (a == 0 && b < 0)
+			return 270;
+		return 0;
+	}
+
+	public static int fourcc(String type) {
+		return (type.charAt(0) << 24) | (type.charAt(1) << 16)
+				| (type.charAt(2) << 8) | type.charAt(3);
+	}
+
+	public static String fourccToString(int type) {
+		return new String(new char[] { (char) (type >>> 24),
+				(char) ((type >> 16) & 0xff), (char) ((type >> 8) & 0xff),
+				(char) (type & 0xff) });
+	}
+}
@@ -0,0 +1,580 @@
+package com.android.camera;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+
+/**
+ * Recovers a recording that was never finished, e.g. because the process was
+ * killed: the media data is in the file, but the moov box describing it never
+ * got written.
+ *
+ * <p>
+ * MediaRecorder writes the samples in chunks, taking turns between the
+ * tracks. An H.264 sample is made of NAL units, each preceded by its length,
+ * so a run of them can be followed through the data; a sample starts with
+ * the first slice of a picture. An AMR frame starts with a header that gives
+ * its size. AAC frames carry no size at all: a chunk of them lasts until
+ * the next run of NAL units starts, and is split where a frame seems to end
+ * and the next to begin, see {@link Scanner#isAacStart}. Neither is there
+ * any timing in the media data, so the video samples are spread evenly
+ * over the duration of the AMR audio, or laid out at the nominal frame rate
+ * otherwise; the count of AAC frames is only as good as the splitting.
+ *
+ * <p>
+ * What cannot be found in the media data, the sample descriptions holding
+ * e.g. the H.264 parameter sets, is taken from a finished segment in front
+ * of the unfinished one, or else from a template: the moov box of a
+ * recording made with the same settings, see {@link #writeTemplate}.
+ *
+ * <p>
+ * The file is read through a window of {@link #WINDOW_BYTES}, so memory use
+ * does not grow with the size of the file, only with the number of samples,
+ * as the moov box does. A recording made of segments, see
+ * {@link RecordingSegments}, is joined once the last segment has been
+ * recovered.
+ */
+class Mp4Recovery {
+	private static final String TAG = "Mp4Recovery";
+
+	static final int WINDOW_BYTES = 256 * 1024;
+
+	// A run of zeros this long ends the data, e.g. of a pre-allocated file.
+	private static final int ZERO_RUN_BYTES = 4096;
+	// How far to look for the next run of video after data that cannot be
+	// parsed, such as AAC frames.
+	private static final int MAX_SKIP_BYTES = 16 * 1024 * 1024;
+
+	private static final int TYPE_AVC1 = Mp4Index.fourcc("avc1");
+	private static final int TYPE_SAMR = Mp4Index.fourcc("samr");
+	private static final int TYPE_SAWB = Mp4Index.fourcc("sawb");
+	private static final int TYPE_MP4A = Mp4Index.fourcc("mp4a");
+
+	// AMR frame sizes by frame type, without the header. Both last 20ms.
+	private static final int[] AMR_NB_SIZES = { 12, 13, 15, 17, 19, 20, 26,
+			31, 5 };
+	private static final int[] AMR_WB_SIZES = { 17, 23, 32, 36, 40, 46, 50,
+			58, 60, 5 };
+	private static final int AMR_FRAMES_PER_SECOND = 50;
+
+	private static final int AAC_SAMPLES_PER_FRAME = 1024;
+	// Of a silent one, which is a few bytes.
+	private static final int MIN_AAC_FRAME_BYTES = 4;
+	// The scale factor bands of a long and of a short window, at most.
+	private static final int MAX_SFB_LONG = 51;
+	private static final int MAX_SFB_SHORT = 15;
+
+	private static final int DEFAULT_FRAME_RATE = 30;
+
+	private Mp4Recovery() {
+	}
+
+	/**
+	 * Recovers {@code file} in place. A file that is not broken is only cut
+	 * back to its last complete box, and its segments joined if they are
+	 * not yet.
+	 *
+	 * @param template the moov box of a recording with the same settings,
+	 *            see {@link #writeTemplate}, or null.
+	 * @param frameRate the frame rate it was recorded at.
+	 * @return false if nothing was recorded to the file.
+	 * @throws IOException if it cannot be recovered, e.g. without a
+	 *             template.
+	 */
+	static boolean recover(File file, Mp4Index template, int frameRate)
+			throws IOException {
+		long begin = System.currentTimeMillis();
+		long[] starts;
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			FileChannel channel = raf.getChannel();
+			Layout layout = new Layout(channel);
+			ArrayList<Long> segments = layout.starts;
+			if (segments.isEmpty())
+				return false;
+			long start = segments.get(segments.size() - 1);
+			long end = layout.end;
+			if (layout.mdat >= 0 && (layout.unfinished || !layout.hasMoov)) {
+				Mp4Index index;
+				if (segments.size() > 1) {
+					index = Mp4Index.parse(channel, segments
+							.get(segments.size() - 2), start);
+				} else if (template != null) {
+					index = template;
+				} else {
+					throw new IOException("no template");
+				}
+				end = rebuild(channel, layout, index, frameRate);
+			} else if (!layout.hasMoov) {
+				end = start;
+			}
+			if (end == start) {
+				segments.remove(segments.size() - 1);
+			}
+			channel.truncate(end);
+			Log.v(TAG, "Recovered " + end + " of " + layout.length
+					+ " bytes in " + (System.currentTimeMillis() - begin)
+					+ "ms");
+			if (segments.isEmpty())
+				return false;
+			starts = new long[segments.size()];
+			for (int i = 0; i < starts.length; i++) {
+				starts[i] = segments.get(i);
+			}
+		} finally {
+			Util.closeSilently(raf);
+		}
+		if (starts.length > 1) {
+			Mp4Concatenator.joinInPlace(file, starts);
+		}
+		return true;
+	}
+
+	/**
+	 * Writes the moov box of the finished {@code recording}, without any
+	 * samples, to {@code template}. The file is replaced atomically.
+	 */
+	static void writeTemplate(File recording, File template)
+			throws IOException {
+		Mp4Index index = Mp4Index.parse(recording);
+		SampleTable[] tables = new SampleTable[index.tracks.size()];
+		for (int i = 0; i < tables.length; i++) {
+			tables[i] = new SampleTable(index.tracks.get(i), 0);
+		}
+		ByteBuffer moov = new MoovWriter(index, tables).write(0, false);
+		File tmp = new File(template.getPath() + ".tmp");
+		RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+		try {
+			raf.setLength(0);
+			FastStart.writeFully(raf.getChannel(), moov, 0);
+		} finally {
+			Util.closeSilently(raf);
+		}
+		if (!tmp.renameTo(template)) {
+			tmp.delete();
+			throw new IOException("cannot replace " + template);
+		}
+	}
+
+	// Rebuilds the sample tables of the last segment from its media data
+	// and appends a moov box for them. Returns the new end of the file,
+	// which is the start of the segment if nothing was found.
+	private static long rebuild(FileChannel channel, Layout layout,
+			Mp4Index template, int frameRate) throws IOException {
+		Mp4Index.Track video = template.getVideoTrack();
+		Mp4Index.Track audio = template.getAudioTrack();
+		if (video == null || video.codec != TYPE_AVC1)
+			throw new IOException("cannot recover "
+					+ (video == null ? "without video" : Mp4Index
+							.fourccToString(video.codec)));
+		Scanner scanner = new Scanner(new Reader(channel), layout, video,
+				audio);
+		scanner.scan();
+		SampleTable v = scanner.mVideo;
+		SampleTable a = scanner.mAudio;
+		if (v.count == 0)
+			return layout.start;
+
+		long duration;
+		if (a != null && a.count > 0 && scanner.mAmrSizes != null) {
+			duration = a.duration * video.timescale / audio.timescale;
+		} else {
+			duration = v.count * video.timescale
+					/ (frameRate > 0 ? frameRate : DEFAULT_FRAME_RATE);
+		}
+		v.spread(duration);
+
+		// Close the mdat box around what was found and append the moov box.
+		long end = scanner.mEnd;
+		long mdatSize = end - layout.mdat;
+		ByteBuffer size;
+		if (layout.mdatHeaderSize == 16) {
+			size = ByteBuffer.allocate(8);
+			size.putLong(mdatSize);
+		} else if (mdatSize <= 0xffffffffL) {
+			size = ByteBuffer.allocate(4);
+			size.putInt((int) mdatSize);
+		} else {
+			throw new IOException("mdat box too large: " + mdatSize);
+		}
+		size.flip();
+		SampleTable[] tables = new SampleTable[template.tracks.size()];
+		boolean co64 = false;
+		for (int i = 0; i < tables.length; i++) {
+			Mp4Index.Track t = template.tracks.get(i);
+			if (t == video) {
+				tables[i] = v;
+			} else if (t == audio && a != null && a.count > 0) {
+				tables[i] = a;
+			} else {
+				continue;
+			}
+			co64 |= tables[i].getMaxChunkOffset(0) > 0xffffffffL;
+		}
+		ByteBuffer moov = new MoovWriter(template, tables).write(0, co64);
+		int moovSize = moov.remaining();
+		FastStart.writeFully(channel, size, layout.mdat
+				+ (layout.mdatHeaderSize == 16 ? 8 : 0));
+		channel.truncate(end);
+		FastStart.writeFully(channel, moov, end);
+		Log.v(TAG, v.count + " video and " + (a == null ? 0 : a.count)
+				+ " audio samples, " + scanner.mSkipped + " bytes skipped");
+		return end + moovSize;
+	}
+
+	// The top level boxes of a file, as far as they are complete.
+	private static class Layout {
+		final long length;
+		// Where each segment starts, with its ftyp box.
+		final ArrayList<Long> starts = new ArrayList<Long>();
+		// Where the complete boxes end.
+		long end;
+
+		// Of the last segment.
+		long start;
+		boolean hasMoov;
+		long mdat = -1;
+		int mdatHeaderSize;
+		// Where the media data ends, as far as it was written.
+		long dataEnd;
+		// The mdat size was never written.
+		boolean unfinished;
+
+		Layout(FileChannel channel) throws IOException {
+			length = channel.size();
+			ByteBuffer header = ByteBuffer.allocate(16);
+			long offset = 0;
+			while (offset + 8 <= length) {
+				header.clear();
+				Mp4Index.readFully(channel, header, offset);
+				long size = header.getInt(0) & 0xffffffffL;
+				int type = header.getInt(4);
+				int headerSize = 8;
+				boolean placeholder = isPlaceholder(header, 0, 4);
+				if (size == 1) {
+					size = header.getLong(8);
+					headerSize = 16;
+					placeholder = isPlaceholder(header, 8, 8);
+				}
+				if (type == Mp4Index.TYPE_FTYP) {
+					starts.add(offset);
+					start = offset;
+					hasMoov = false;
+					mdat = -1;
+				} else if (type == Mp4Index.TYPE_MOOV) {
+					hasMoov = true;
+				} else if (type == Mp4Index.TYPE_MDAT) {
+					mdat = offset;
+					mdatHeaderSize = headerSize;
+					if (placeholder || size < headerSize
+							|| offset + size > length) {
+						dataEnd = length;
+						unfinished = true;
+						break;
+					}
+					dataEnd = offset + size;
+				}
+				if (size < headerSize || offset + size > length)
+					break;
+				offset += size;
+			}
+			end = offset;
+		}
+
+		private static boolean isPlaceholder(ByteBuffer b, int off, int len) {
+			for (int i = off; i < off + len; i++) {
+				if (b.get(i) != '?')
+					return false;
+			}
+			return true;
+		}
+	}
+
+	// Reads a file through a window that follows the reads.
+	private static class Reader {
+		private final FileChannel mChannel;
+		private final ByteBuffer mWindow = ByteBuffer.allocate(WINDOW_BYTES);
+		private long mWindowStart;
+		private long mWindowEnd;
+
+		Reader(FileChannel channel) {
+			mChannel = channel;
+		}
+
+		int get(long p) throws IOException {
+			if (p < mWindowStart || p >= mWindowEnd) {
+				mWindow.clear();
+				Mp4Index.readFully(mChannel, mWindow, p);
+				mWindowStart = p;
+				mWindowEnd = p + mWindow.position();
+				if (p >= mWindowEnd)
+					throw new IOException("read past the end at " + p);
+			}
+			return mWindow.get((int) (p - mWindowStart)) & 0xff;
+		}
+
+		long getUInt32(long p) throws IOException {
+			return ((long) get(p) << 24) | (get(p + 1) << 16)
+					| (get(p + 2) << 8) | get(p + 3);
+		}
+	}
+
+	// Finds the samples in the media data of the last segment. The chunk
+	// offsets are relative to the start of the segment, the sample offsets
+	// are in the file.
+	private static class Scanner {
+		final Reader mIn;
+		final long mStart;
+		final long mDataEnd;
+		final int mMaxNalBytes;
+		final int[] mAmrSizes;
+		final int mAmrDelta;
+		final boolean mAac;
+		final SampleTable mVideo;
+		// Null if there is no audio or it cannot be recovered.
+		final SampleTable mAudio;
+		final boolean mHasAudio;
+
+		// Where the last sample found ends.
+		long mEnd;
+		long mSkipped;
+
+		Scanner(Reader in, Layout layout, Mp4Index.Track video,
+				Mp4Index.Track audio) {
+			mIn = in;
+			mStart = layout.start;
+			mDataEnd = layout.dataEnd;
+			mEnd = layout.mdat + layout.mdatHeaderSize;
+			// An encoded picture is never larger than the raw one.
+			long raw = (long) video.width * video.height * 3 / 2;
+			mMaxNalBytes = (int) Math.min(Integer.MAX_VALUE,
+					raw > 0 ? raw + 1024 : Integer.MAX_VALUE);
+			mVideo = new SampleTable(video, 1024);
+			mHasAudio = audio != null;
+			if (audio != null && audio.codec == TYPE_SAMR) {
+				mAmrSizes = AMR_NB_SIZES;
+			} else if (audio != null && audio.codec == TYPE_SAWB) {
+				mAmrSizes = AMR_WB_SIZES;
+			} else {
+				if (audio != null && audio.codec != TYPE_MP4A) {
+					Log.w(TAG, "Cannot recover "
+							+ Mp4Index.fourccToString(audio.codec) + " audio");
+				}
+				mAmrSizes = null;
+			}
+			mAac = audio != null && audio.codec == TYPE_MP4A;
+			mAudio = mAmrSizes == null && !mAac ? null : new SampleTable(
+					audio, 1024);
+			mAmrDelta = mAmrSizes == null ? 0 : (int) (audio.timescale
+					/ AMR_FRAMES_PER_SECOND);
+		}
+
+		void scan() throws IOException {
+			long p = mEnd;
+			while (p < mDataEnd) {
+				if (isVideo(p)) {
+					p = readVideo(p);
+					mEnd = p;
+				} else if (isAmrFrame(p)) {
+					p = readAudio(p);
+					mEnd = p;
+				} else {
+					long next = skip(p);
+					if (next < 0)
+						break;
+					if (mAac && p == mEnd) {
+						// What lies between two runs of video.
+						readAac(p, next);
+					} else {
+						mSkipped += next - p;
+					}
+					p = next;
+				}
+			}
+		}
+
+		private long readVideo(long p) throws IOException {
+			mVideo.addChunk(p - mStart);
+			long sample = -1;
+			boolean slice = false;
+			boolean sync = false;
+			while (isVideo(p)) {
+				long size = mIn.getUInt32(p);
+				int type = mIn.get(p + 4) & 0x1f;
+				boolean isSlice = type == 1 || type == 5;
+				// A picture ends where something other than one of its
+				// slices follows, or the first slice of the next one,
+				// whose first_mb_in_slice is 0, coded as a single 1 bit.
+				if (sample >= 0 && slice
+						&& (!isSlice || (mIn.get(p + 5) & 0x80) != 0)) {
+					addVideo(sample, p, sync);
+					sample = -1;
+				}
+				if (sample < 0) {
+					sample = p;
+					slice = false;
+					sync = false;
+				}
+				slice |= isSlice;
+				sync |= type == 5;
+				p += 4 + size;
+			}
+			if (sample >= 0) {
+				addVideo(sample, p, sync);
+			}
+			return p;
+		}
+
+		private void addVideo(long start, long end, boolean sync) {
+			// The deltas are set once the duration is known.
+			mVideo.add(start, (int) (end - start), 0, 0, sync);
+			mVideo.addToChunk();
+		}
+
+		private long readAudio(long p) throws IOException {
+			mAudio.addChunk(p - mStart);
+			while (isAmrFrame(p)) {
+				int size = 1 + mAmrSizes[(mIn.get(p) >> 3) & 0xf];
+				mAudio.add(p, size, mAmrDelta, 0, true);
+				mAudio.addToChunk();
+				p += size;
+			}
+			return p;
+		}
+
+		// Adds the AAC frames from p to end as a chunk.
+		private void readAac(long p, long end) throws IOException {
+			mAudio.addChunk(p - mStart);
+			long frame = p;
+			for (long q = p + MIN_AAC_FRAME_BYTES; q < end; q++) {
+				if (isAacStart(q)) {
+					addAac(frame, q);
+					frame = q;
+					q += MIN_AAC_FRAME_BYTES - 1;
+				}
+			}
+			addAac(frame, end);
+		}
+
+		private void addAac(long start, long end) {
+			mAudio.add(start, (int) (end - start), AAC_SAMPLES_PER_FRAME, 0,
+					true);
+			mAudio.addToChunk();
+		}
+
+		// Whether an AAC LC frame seems to start at p: the one before ends
+		// with ID_END and the bits up to the byte boundary cleared, and a
+		// single or a channel pair element, instance 0, starts with an
+		// ics_info that is valid. Without decoding the frames this cannot
+		// be told for certain; a wrong split costs a frame of sound.
+		boolean isAacStart(long p) throws IOException {
+			int end = (mIn.get(p - 2) << 8) | mIn.get(p - 1);
+			if (end == 0)
+				return false;
+			int zeros = Integer.numberOfTrailingZeros(end);
+			if (zeros > 7 || ((end >> zeros) & 7) != 7)
+				return false;
+			long bits = mIn.getUInt32(p);
+			int element = (int) (bits >>> 29);
+			if ((bits >>> 25 & 0xf) != 0)
+				return false;
+			int ics;
+			if (element == 0) {
+				// global_gain, then ics_info.
+				ics = 15;
+			} else if (element == 1) {
+				// common_window, then ics_info or global_gain.
+				ics = (bits >>> 24 & 1) != 0 ? 8 : 16;
+			} else {
+				return false;
+			}
+			// ics_reserved_bit, window_sequence, window_shape, max_sfb and
+			// predictor_data_present of a long window.
+			int info = (int) (bits << ics >>> 20) & 0xfff;
+			if ((info & 0x800) != 0)
+				return false;
+			if ((info >> 9 & 3) == 2)
+				return (info >> 4 & 0xf) <= MAX_SFB_SHORT;
+			return (info >> 2 & 0x3f) <= MAX_SFB_LONG && (info & 2) == 0;
+		}
+
+		// Returns where the next run of video starts after p, or -1 if
+		// there is none within reach.
+		private long skip(long p) throws IOException {
+			long limit = Math.min(mDataEnd, p + MAX_SKIP_BYTES);
+			int zeros = mIn.get(p) == 0 ? 1 : 0;
+			for (long q = p + 1; q < limit; q++) {
+				if (mIn.get(q) != 0) {
+					zeros = 0;
+				} else if (++zeros >= ZERO_RUN_BYTES) {
+					return -1;
+				}
+				// Two NAL units in a row, more than isVideo() asks for.
+				if (isNal(q) && isVideo(q + 4 + mIn.getUInt32(q)))
+					return q;
+			}
+			return -1;
+		}
+
+		// Whether a NAL unit of a picture starts at p and is followed by
+		// another one, an audio frame or the end of the data.
+		private boolean isVideo(long p) throws IOException {
+			if (!isNal(p))
+				return false;
+			long next = p + 4 + mIn.getUInt32(p);
+			return next == mDataEnd || isNal(next) || isAudio(next);
+		}
+
+		private boolean isNal(long p) throws IOException {
+			if (p + 6 > mDataEnd)
+				return false;
+			long size = mIn.getUInt32(p);
+			if (size < 2 || size > mMaxNalBytes || p + 4 + size > mDataEnd)
+				return false;
+			int header = mIn.get(p + 4);
+			if ((header & 0x80) != 0)
+				return false;
+			int refIdc = header >> 5;
+			switch (header & 0x1f) {
+			case 1: // Slice
+				return true;
+			case 5: // IDR slice
+			case 7: // Sequence parameter set
+			case 8: // Picture parameter set
+				return refIdc != 0;
+			case 6: // SEI
+			case 9: // Access unit delimiter
+				return refIdc == 0;
+			default:
+				return false;
+			}
+		}
+
+		private boolean isAudio(long p) throws IOException {
+			if (!mHasAudio || p >= mDataEnd)
+				return false;
+			if (mAmrSizes != null)
+				return isAmrFrame(p);
+			// An AAC frame starts with a single or channel pair element,
+			// instance 0.
+			return (mIn.get(p) & 0xde) == 0;
+		}
+
+		private boolean isAmrFrame(long p) throws IOException {
+			if (mAmrSizes == null || p >= mDataEnd)
+				return false;
+			// No following frame, frame type, quality good, padding.
+			int header = mIn.get(p);
+			if ((header & 0x87) != 0x04)
+				return false;
+			int type = (header >> 3) & 0xf;
+			return type < mAmrSizes.length
+					&& p + 1 + mAmrSizes[type] <= mDataEnd;
+		}
+	}
+}
@@ -0,0 +1,284 @@
+package com.android.camera;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Cuts a recorded MP4 file down to a time range without re-encoding.
+ *
+ * <p>
+ * {@link #trimInstant} only writes an edit list into each track, telling the
+ * player which part of the media to present; the media data is untouched
+ * and the file keeps its size. It takes milliseconds and starts exactly
+ * where asked, the player decodes from the preceding sync sample.
+ *
+ * <p>
+ * {@link #trimCompact} writes a new file with only the samples of the range
+ * and sample tables rebuilt for them. The start moves back to the sync
+ * sample of the video at or before it, since nothing before a sync sample
+ * can be decoded on its own. The new file is fast start.
+ */
+public class Mp4Trimmer {
+	private static final String TAG = "Mp4Trimmer";
+
+	private final Mp4Index mIndex;
+	// The range, in media time.
+	private long mStartMs;
+	private long mEndMs;
+	// The samples kept of each track, null if none are.
+	private SampleTable[] mKept;
+
+	private Mp4Trimmer(Mp4Index index) {
+		mIndex = index;
+	}
+
+	/**
+	 * Limits playback of {@code file} to [startMs, endMs) of its media with
+	 * edit lists, replacing any it had. The moov box is rewritten where it
+	 * is if it still fits, e.g. into the room {@link FastStart} leaves after
+	 * it; otherwise it is appended and the file is no longer fast start.
+	 *
+	 * @return the duration of the trimmed file in milliseconds.
+	 */
+	public static long trimInstant(File file, long startMs, long endMs)
+			throws IOException {
+		long begin = System.currentTimeMillis();
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			FileChannel channel = raf.getChannel();
+			Mp4Trimmer trimmer = new Mp4Trimmer(Mp4Index.parse(channel));
+			trimmer.setRange(startMs, endMs);
+			MoovWriter moov = new MoovWriter(trimmer.mIndex, null);
+			moov.setEdit(trimmer.mStartMs, trimmer.mEndMs);
+			trimmer.replaceMoov(channel, moov.write(0, false));
+			Log.v(TAG, "Edited " + file + " to " + trimmer.mStartMs + "-"
+					+ trimmer.mEndMs + "ms in "
+					+ (System.currentTimeMillis() - begin) + "ms");
+			return trimmer.mEndMs - trimmer.mStartMs;
+		} finally {
+			Util.closeSilently(raf);
+		}
+	}
+
+	/**
+	 * Writes the samples of {@code source} in [startMs, endMs) to
+	 * {@code target}, starting at the video sync sample at or before
+	 * {@code startMs}.
+	 *
+	 * @return the duration of the new file in milliseconds.
+	 */
+	public static long trimCompact(File source, File target, long startMs,
+			long endMs) throws IOException {
+		long begin = System.currentTimeMillis();
+		RandomAccessFile in = new RandomAccessFile(source, "r");
+		RandomAccessFile out = null;
+		try {
+			FileChannel channel = in.getChannel();
+			Mp4Trimmer trimmer = new Mp4Trimmer(Mp4Index.parse(channel));
+			trimmer.setRange(startMs, endMs);
+			long[] runs = trimmer.collectSamples();
+			out = new RandomAccessFile(target, "rw");
+			MoovWriter moov = new MoovWriter(trimmer.mIndex, trimmer.mKept);
+			long length = trimmer.writeCompact(channel, out.getChannel(),
+					moov, runs);
+			out.close();
+			out = null;
+			Mp4Index index = trimmer.mIndex;
+			long duration = moov.getDuration() * 1000
+					/ Math.max(1, index.timescale);
+			Log.v(TAG, "Copied " + length + " of " + index.fileLength
+					+ " bytes to " + target + " in "
+					+ (System.currentTimeMillis() - begin) + "ms");
+			return duration;
+		} catch (IOException e) {
+			if (out != null) {
+				Util.closeSilently(out);
+				target.delete();
+			}
+			throw e;
+		} finally {
+			Util.closeSilently(in);
+		}
+	}
+
+	// The range is in media time, i.e. edits from an earlier trim do not
+	// shift it.
+	private void setRange(long startMs, long endMs) {
+		long duration = 0;
+		for (Mp4Index.Track t : mIndex.tracks) {
+			duration = Math.max(duration, t.getDurationMs());
+		}
+		mStartMs = Math.max(0, startMs);
+		mEndMs = Math.min(duration, endMs);
+		if (mStartMs >= mEndMs)
+			throw new IllegalArgumentException("empty range " + startMs + "-"
+					+ endMs + " of " + duration + "ms");
+	}
+
+	// Instant trim.
+
+	private void replaceMoov(FileChannel channel, ByteBuffer moov)
+			throws IOException {
+		Mp4Index index = mIndex;
+		long room = index.moovSize;
+		long next = index.moovOffset + index.moovSize;
+		// A free box right after it is room to grow into.
+		if (next + 8 <= index.fileLength) {
+			ByteBuffer header = ByteBuffer.allocate(8);
+			Mp4Index.readFully(channel, header, next);
+			long size = header.getInt(0) & 0xffffffffL;
+			if (header.getInt(4) == Mp4Index.TYPE_FREE && size >= 8
+					&& next + size <= index.fileLength) {
+				room += size;
+			}
+		}
+		int size = moov.remaining();
+		if (size == room || size + 8 <= room) {
+			FastStart.writeFully(channel, moov, index.moovOffset);
+			if (size < room) {
+				ByteBuffer free = ByteBuffer.allocate(8);
+				free.putInt(0, (int) (room - size));
+				free.putInt(4, Mp4Index.TYPE_FREE);
+				FastStart.writeFully(channel, free, index.moovOffset + size);
+			}
+		} else if (index.moovOffset + room >= index.fileLength) {
+			// Last in the file, it can just grow.
+			FastStart.writeFully(channel, moov, index.moovOffset);
+			channel.truncate(index.moovOffset + size);
+		} else {
+			// In front of the media data. Write the new one at the end
+			// first, so the file stays valid if this is interrupted.
+			Log.w(TAG, "No room for the edits, appending the moov box");
+			FastStart.writeFully(channel, moov, index.fileLength);
+			ByteBuffer free = ByteBuffer.allocate(4);
+			free.putInt(0, Mp4Index.TYPE_FREE);
+			FastStart.writeFully(channel, free, index.moovOffset + 4);
+		}
+	}
+
+	// Compact trim.
+
+	// Selects the samples to keep. Returns the source byte ranges to copy,
+	// as offset and length pairs, in the order they are written.
+	private long[] collectSamples() throws IOException {
+		Mp4Index index = mIndex;
+		long startUs = mStartMs * 1000;
+		long endUs = mEndMs * 1000;
+		Mp4Index.Track video = index.getVideoTrack();
+		if (video != null && !video.isAllSync()) {
+			Mp4Index.Samples s = video.samples();
+			long cutUs = 0;
+			while (s.next()) {
+				long us = s.time * 1000000 / video.timescale;
+				if (us > startUs)
+					break;
+				if (s.sync) {
+					cutUs = us;
+				}
+			}
+			startUs = cutUs;
+			mStartMs = cutUs / 1000;
+		}
+
+		int total = 0;
+		mKept = new SampleTable[index.tracks.size()];
+		for (int i = 0; i < mKept.length; i++) {
+			Mp4Index.Track t = index.tracks.get(i);
+			if (t.timescale == 0)
+				continue;
+			SampleTable k = new SampleTable(t, t.getSampleCount());
+			Mp4Index.Samples s = t.samples();
+			while (s.next()) {
+				long us = s.time * 1000000 / t.timescale;
+				if (us < startUs)
+					continue;
+				if (us >= endUs)
+					break;
+				k.add(s);
+			}
+			if (k.count > 0) {
+				mKept[i] = k;
+				total += k.count;
+			}
+		}
+		if (total == 0)
+			throw new IOException("no samples in range");
+
+		// Lay the samples out in their source order, which keeps the
+		// tracks interleaved as they were. A run of samples of one track
+		// is a chunk; a run of adjacent source bytes is one copy.
+		long[] runs = new long[total * 2];
+		int runCount = 0;
+		int[] next = new int[mKept.length];
+		long position = 0;
+		SampleTable last = null;
+		for (int n = 0; n < total; n++) {
+			SampleTable k = null;
+			int ki = -1;
+			for (int i = 0; i < mKept.length; i++) {
+				SampleTable c = mKept[i];
+				if (c != null && next[i] < c.count && (k == null
+						|| c.offsets[next[i]] < k.offsets[next[ki]])) {
+					k = c;
+					ki = i;
+				}
+			}
+			int sample = next[ki]++;
+			long offset = k.offsets[sample];
+			int size = k.sizes[sample];
+			if (k != last) {
+				k.addChunk(position);
+				last = k;
+			}
+			k.addToChunk();
+			if (runCount > 0
+					&& runs[runCount - 2] + runs[runCount - 1] == offset) {
+				runs[runCount - 1] += size;
+			} else {
+				runs[runCount++] = offset;
+				runs[runCount++] = size;
+			}
+			position += size;
+		}
+		long[] result = new long[runCount];
+		System.arraycopy(runs, 0, result, 0, runCount);
+		return result;
+	}
+
+	private long writeCompact(FileChannel source, FileChannel target,
+			MoovWriter moov, long[] runs) throws IOException {
+		Mp4Index index = mIndex;
+		long data = 0;
+		for (int i = 1; i < runs.length; i += 2) {
+			data += runs[i];
+		}
+		long ftypSize = 0;
+		if (index.ftypOffset >= 0) {
+			ByteBuffer header = ByteBuffer.allocate(4);
+			Mp4Index.readFully(source, header, index.ftypOffset);
+			ftypSize = header.getInt(0) & 0xffffffffL;
+		}
+
+		target.truncate(0);
+		FastStart.transferFully(source, index.ftypOffset, ftypSize, target);
+		writeAll(target, moov.writeFastStart(ftypSize, data));
+		writeAll(target, FastStart.freeBox(FastStart.MOOV_RESERVE_BYTES));
+		writeAll(target, MoovWriter.mdatHeader(data));
+		for (int i = 0; i < runs.length; i += 2) {
+			FastStart.transferFully(source, runs[i], runs[i + 1], target);
+		}
+		return target.position();
+	}
+
+	static void writeAll(FileChannel channel, ByteBuffer buffer)
+			throws IOException {
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+	}
+}
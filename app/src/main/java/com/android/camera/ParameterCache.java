@@ -0,0 +1,111 @@
+package com.android.camera;
+
+import android.hardware.Camera.Parameters;
+import android.hardware.Camera.Size;
+
+import java.util.List;
+
+/**
+ * The parameters of the camera held by {@link CameraHolder}, in typed form.
+ *
+ * <p>
+ * The {@code Parameters} object is parsed once when the device is opened and
+ * then kept in step with what was applied, so changing a setting neither
+ * calls {@code getParameters()} nor pushes anything when the value is already
+ * in effect. The supported lists are read once as well. Only used on the
+ * CameraHolder thread.
+ */
+public class ParameterCache {
+	/**
+	 * The settings a client wants. A {@code null} mode or a zero size or
+	 * frame rate leaves the current value alone.
+	 */
+	public static class Values {
+		public int previewWidth;
+		public int previewHeight;
+		public int previewFrameRate;
+		public String flashMode;
+		public String whiteBalance;
+		public String colorEffect;
+	}
+
+	private final Parameters mParameters;
+	private final List<String> mSupportedFlashModes;
+	private final List<String> mSupportedWhiteBalance;
+	private final List<String> mSupportedColorEffects;
+
+	private int mPreviewWidth;
+	private int mPreviewHeight;
+	private int mPreviewFrameRate;
+	private String mFlashMode;
+	private String mWhiteBalance;
+	private String mColorEffect;
+
+	ParameterCache(Parameters parameters) {
+		mParameters = parameters;
+		mSupportedFlashModes = parameters.getSupportedFlashModes();
+		mSupportedWhiteBalance = parameters.getSupportedWhiteBalance();
+		mSupportedColorEffects = parameters.getSupportedColorEffects();
+
+		Size size = parameters.getPreviewSize();
+		mPreviewWidth = size.width;
+		mPreviewHeight = size.height;
+		mPreviewFrameRate = parameters.getPreviewFrameRate();
+		mFlashMode = parameters.getFlashMode();
+		mWhiteBalance = parameters.getWhiteBalance();
+		mColorEffect = parameters.getColorEffect();
+	}
+
+	/**
+	 * The parameters with every update applied, ready for
+	 * {@code Camera.setParameters()}.
+	 */
+	public Parameters getParameters() {
+		return mParameters;
+	}
+
+	/**
+	 * Brings the cached parameters in line with {@code values}.
+	 *
+	 * @return the number of keys that changed; zero means there is nothing
+	 *         to push to the device.
+	 */
+	int update(Values values) {
+		int changed = 0;
+		if (values.previewWidth > 0 && values.previewHeight > 0
+				&& (values.previewWidth != mPreviewWidth || values.previewHeight != mPreviewHeight)) {
+			mPreviewWidth = values.previewWidth;
+			mPreviewHeight = values.previewHeight;
+			mParameters.setPreviewSize(mPreviewWidth, mPreviewHeight);
+			++changed;
+		}
+		if (values.previewFrameRate > 0
+				&& values.previewFrameRate != mPreviewFrameRate) {
+			mPreviewFrameRate = values.previewFrameRate;
+			mParameters.setPreviewFrameRate(mPreviewFrameRate);
+			++changed;
+		}
+		if (isChange(values.flashMode, mFlashMode, mSupportedFlashModes)) {
+			mFlashMode = values.flashMode;
+			mParameters.setFlashMode(mFlashMode);
+			++changed;
+		}
+		if (isChange(values.whiteBalance, mWhiteBalance, mSupportedWhiteBalance)) {
+			mWhiteBalance = values.whiteBalance;
+			mParameters.setWhiteBalance(mWhiteBalance);
+			++changed;
+		}
+		if (isChange(values.colorEffect, mColorEffect, mSupportedColorEffects)) {
+			mColorEffect = values.colorEffect;
+			mParameters.setColorEffect(mColorEffect);
+			++changed;
+		}
+		return changed;
+	}
+
+	private static boolean isChange(String value, String current,
+			List<String> supported) {
+		return value != null && !value.equals(current) && supported != null
+				&& supported.indexOf(value) >= 0;
+	}
+}
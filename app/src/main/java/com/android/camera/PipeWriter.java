@@ -0,0 +1,267 @@
+package com.android.camera;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Copies what the recorder writes into a pipe to the output file.
+ *
+ * <p>
+ * A reader thread drains the pipe into direct buffers taken from a fixed
+ * pool and a writer thread writes full buffers to the file, so a storage
+ * stall only holds up the recorder once the whole pool is waiting to be
+ * written. Writes are {@link #BUFFER_BYTES} long, except for the last one.
+ *
+ * <p>
+ * MediaRecorder cannot seek in a pipe, so the mdat size it patches in at
+ * the end lands after the media data instead; {@link Mp4Files#repairPipeOutput}
+ * puts it back once the stream has ended. An {@link Observer} sees the
+ * stream as it came from the recorder, before that repair.
+ */
+public class PipeWriter {
+	private static final String TAG = "PipeWriter";
+
+	public static final int BUFFER_BYTES = 256 * 1024;
+	public static final int BUFFER_COUNT = 8;
+
+	/** Sees every buffer before it is written. Called on the writer thread. */
+	public interface Observer {
+		void onWrite(ByteBuffer data, long offset);
+
+		void onFinish(long length);
+	}
+
+	// Marks the end of the stream in mFull.
+	private static final ByteBuffer END = ByteBuffer.allocate(0);
+
+	private final FileDescriptor mSource;
+	private final File mFile;
+	private final long mStart;
+	private final long mPreallocateBytes;
+	private final BlockingQueue<ByteBuffer> mFree = new ArrayBlockingQueue<ByteBuffer>(
+			BUFFER_COUNT);
+	private final BlockingQueue<ByteBuffer> mFull = new ArrayBlockingQueue<ByteBuffer>(
+			BUFFER_COUNT + 1);
+	private Observer mObserver;
+
+	private Thread mReader;
+	private Thread mWriter;
+	private volatile IOException mFailure;
+
+	// Metrics, written on the writer thread.
+	private volatile long mBytesWritten;
+	private volatile int mHighWaterBuffers;
+	private volatile long mMaxWriteMs;
+	// When the write in progress started, or 0.
+	private volatile long mWriteStartMs;
+
+	/**
+	 * @param source the read end of the pipe; it is not closed here.
+	 * @param preallocateBytes size to extend the file to up front, or 0.
+	 */
+	public PipeWriter(FileDescriptor source, File file, long preallocateBytes) {
+		this(source, file, 0, preallocateBytes);
+	}
+
+	/**
+	 * Writes the stream into {@code file} from {@code start} on, keeping
+	 * what is in front of it; see {@link Mp4Concatenator#joinInPlace}.
+	 */
+	public PipeWriter(FileDescriptor source, File file, long start,
+			long preallocateBytes) {
+		mSource = source;
+		mFile = file;
+		mStart = start;
+		mPreallocateBytes = preallocateBytes;
+	}
+
+	public void setObserver(Observer observer) {
+		mObserver = observer;
+	}
+
+	public void start() throws IOException {
+		for (int i = 0; i < BUFFER_COUNT; i++) {
+			mFree.add(ByteBuffer.allocateDirect(BUFFER_BYTES));
+		}
+		final RandomAccessFile out = new RandomAccessFile(mFile, "rw");
+		if (mPreallocateBytes > 0) {
+			try {
+				out.setLength(mStart + mPreallocateBytes);
+			} catch (IOException e) {
+				Util.closeSilently(out);
+				throw e;
+			}
+		}
+		mReader = new Thread(new Runnable() {
+			public void run() {
+				read();
+			}
+		}, "PipeReader");
+		mWriter = new Thread(new Runnable() {
+			public void run() {
+				write(out);
+			}
+		}, "PipeWriter");
+		mWriter.start();
+		mReader.start();
+	}
+
+	private void read() {
+		FileChannel in = new FileInputStream(mSource).getChannel();
+		ByteBuffer buffer = null;
+		try {
+			while (true) {
+				if (buffer == null) {
+					buffer = mFree.take();
+					buffer.clear();
+				}
+				if (in.read(buffer) < 0)
+					break;
+				if (!buffer.hasRemaining()) {
+					buffer.flip();
+					mFull.put(buffer);
+					buffer = null;
+				}
+			}
+			if (buffer != null && buffer.position() > 0) {
+				buffer.flip();
+				mFull.put(buffer);
+			}
+		} catch (IOException e) {
+			mFailure = e;
+		} catch (InterruptedException e) {
+			mFailure = new IOException("interrupted");
+		} finally {
+			// The writer must always get the end, or finish() hangs. There
+			// is always room for it, only BUFFER_COUNT buffers exist.
+			mFull.offer(END);
+		}
+	}
+
+	private void write(RandomAccessFile out) {
+		FileChannel channel = out.getChannel();
+		long offset = mStart;
+		try {
+			while (true) {
+				ByteBuffer buffer = mFull.take();
+				if (buffer == END)
+					break;
+				int backlog = mFull.size() + 1;
+				if (backlog > mHighWaterBuffers) {
+					mHighWaterBuffers = backlog;
+				}
+				// After a failure keep draining, so the recorder is not
+				// blocked on a full pipe until it is stopped.
+				if (mFailure == null) {
+					try {
+						offset = writeBuffer(channel, buffer, offset);
+					} catch (IOException e) {
+						Log.e(TAG, "Write failed at " + offset, e);
+						mFailure = e;
+					}
+				}
+				mFree.put(buffer);
+			}
+			if (mFailure == null) {
+				out.setLength(offset);
+				Mp4Files.repairPipeOutput(out, mStart);
+				if (mObserver != null) {
+					mObserver.onFinish(offset - mStart);
+				}
+			}
+		} catch (IOException e) {
+			mFailure = e;
+		} catch (InterruptedException e) {
+			mFailure = new IOException("interrupted");
+		} finally {
+			if (mFailure != null) {
+				cutPreallocated(out, offset);
+			}
+			Util.closeSilently(out);
+		}
+	}
+
+	// Cuts off what was preallocated beyond what was written, which would
+	// pass for part of a recording. An empty file is then deleted by the
+	// recorder.
+	private static void cutPreallocated(RandomAccessFile out, long offset) {
+		try {
+			if (out.length() > offset) {
+				out.setLength(offset);
+			}
+		} catch (IOException e) {
+			Log.e(TAG, "Cannot truncate at " + offset, e);
+		}
+	}
+
+	private long writeBuffer(FileChannel channel, ByteBuffer buffer,
+			long offset) throws IOException {
+		if (mObserver != null) {
+			mObserver.onWrite(buffer.duplicate(), offset - mStart);
+		}
+		long begin = System.currentTimeMillis();
+		mWriteStartMs = begin;
+		while (buffer.hasRemaining()) {
+			offset += channel.write(buffer, offset);
+		}
+		mWriteStartMs = 0;
+		mMaxWriteMs = Math.max(mMaxWriteMs, System.currentTimeMillis() - begin);
+		mBytesWritten = offset - mStart;
+		return offset;
+	}
+
+	/**
+	 * Waits until the stream has ended, i.e. the write end of the pipe has
+	 * been closed, and everything is on the storage.
+	 */
+	public void finish() throws IOException {
+		try {
+			mReader.join();
+			mWriter.join();
+		} catch (InterruptedException e) {
+			throw new IOException("interrupted");
+		}
+		Log.v(TAG, mBytesWritten + " bytes, backlog high water "
+				+ mHighWaterBuffers + "/" + BUFFER_COUNT
+				+ " buffers, slowest write " + mMaxWriteMs + "ms");
+		if (mFailure != null) {
+			throw mFailure;
+		}
+	}
+
+	public long getBytesWritten() {
+		return mBytesWritten;
+	}
+
+	/** The most buffers that were waiting to be written at once. */
+	public int getHighWaterBuffers() {
+		return mHighWaterBuffers;
+	}
+
+	public long getMaxWriteMs() {
+		return mMaxWriteMs;
+	}
+
+	/**
+	 * How many full buffers are waiting to be written right now, counting
+	 * the one being written. May be called from any thread.
+	 */
+	public int getQueuedBuffers() {
+		return mFull.size() + (mWriteStartMs != 0 ? 1 : 0);
+	}
+
+	/** How long the write in progress has taken so far, 0 if none. */
+	public long getPendingWriteMs() {
+		long start = mWriteStartMs;
+		return start == 0 ? 0 : System.currentTimeMillis() - start;
+	}
+}
@@ -0,0 +1,453 @@
+package com.android.camera;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+
+/**
+ * Keeps the last seconds of video in memory while not recording, so that a
+ * recording can start with what happened before the shutter was pressed.
+ *
+ * <p>
+ * MediaRecorder gives no access to the encoded frames, so the buffer is
+ * filled by recording short segments through a pipe, one after the other
+ * with {@link RecordingSession#roll}. Each segment starts with a sync
+ * sample. Its stream is kept in chunks of {@link #CHUNK_BYTES} from a pool
+ * that never grows beyond the budget; when the pool is used up, the oldest
+ * segment is dropped. Of the segments, the newest ones that together last
+ * at least the pre-roll are kept. What happens while one recorder is
+ * swapped for the next is missing between them; the gaps are logged when
+ * the segments are flushed.
+ *
+ * <p>
+ * {@link #flush} writes the segments to the start of the video file, which
+ * the live recording is then appended to, and they are joined like the
+ * segments of a paused recording, see {@link RecordingSegments}. Since only
+ * whole segments are kept, the video starts at a sync sample, up to one
+ * segment earlier than the pre-roll.
+ */
+public class PreRollBuffer {
+	private static final String TAG = "PreRollBuffer";
+
+	public static final int CHUNK_BYTES = 64 * 1024;
+
+	// How long flush() waits for a segment to come out of the pipe.
+	private static final long CAPTURE_WAIT_MS = 2000;
+
+	private static class Segment {
+		final ArrayList<byte[]> chunks = new ArrayList<byte[]>();
+		long length;
+		volatile long durationMs;
+		// Between the segment before and this one, see onRolled().
+		long gapMs;
+		// Ran out of memory while capturing.
+		boolean overflow;
+	}
+
+	private final long mPreRollMs;
+	private final int mMaxChunks;
+
+	// All of the state below is guarded by this.
+	private final ArrayList<byte[]> mFree = new ArrayList<byte[]>();
+	private int mAllocated;
+	private int mHighWaterChunks;
+	// The captured segments, oldest first.
+	private final ArrayList<Segment> mSegments = new ArrayList<Segment>();
+	private int mCapturing;
+	private Segment mLatest;
+
+	// The last flush.
+	private Thread mFlushThread;
+	private IOException mFlushFailure;
+	private long[] mFlushStarts;
+
+	public PreRollBuffer(long preRollMs, long budgetBytes) {
+		mPreRollMs = preRollMs;
+		mMaxChunks = (int) Math.max(1, budgetBytes / CHUNK_BYTES);
+	}
+
+	/**
+	 * Records one segment, as it comes out of the read end of a pipe. The
+	 * recorder reports when it starts and stops, for the duration.
+	 */
+	public class Capture {
+		private final Segment mSegment = new Segment();
+		private final Thread mThread;
+		private volatile long mStartMs = -1;
+
+		Capture(final FileDescriptor source) {
+			mThread = new Thread(new Runnable() {
+				public void run() {
+					read(new FileInputStream(source));
+				}
+			}, "PreRollCapture");
+		}
+
+		public void onStarted() {
+			mStartMs = System.currentTimeMillis();
+		}
+
+		public void onStopped() {
+			if (mStartMs >= 0) {
+				mSegment.durationMs = System.currentTimeMillis() - mStartMs;
+			}
+		}
+
+		/** Waits until the stream has ended. */
+		public void finish() {
+			try {
+				mThread.join();
+			} catch (InterruptedException e) {
+				Log.w(TAG, "Interrupted while capturing", e);
+			}
+		}
+
+		private void read(InputStream in) {
+			Segment s = mSegment;
+			byte[] chunk = null;
+			int used = CHUNK_BYTES;
+			byte[] scratch = null;
+			try {
+				while (true) {
+					if (s.overflow) {
+						// Drain, so the recorder is not blocked.
+						if (scratch == null) {
+							scratch = new byte[4096];
+						}
+						if (in.read(scratch) < 0)
+							break;
+						continue;
+					}
+					if (used == CHUNK_BYTES) {
+						chunk = takeChunk();
+						if (chunk == null) {
+							s.overflow = true;
+							continue;
+						}
+						s.chunks.add(chunk);
+						used = 0;
+					}
+					int n = in.read(chunk, used, CHUNK_BYTES - used);
+					if (n < 0)
+						break;
+					used += n;
+					s.length += n;
+				}
+			} catch (IOException e) {
+				Log.e(TAG, "Capture failed", e);
+				s.overflow = true;
+			}
+			complete(s);
+		}
+	}
+
+	/** Starts capturing a segment from {@code source}. */
+	public synchronized Capture capture(FileDescriptor source) {
+		Capture c = new Capture(source);
+		++mCapturing;
+		mLatest = c.mSegment;
+		c.mThread.start();
+		return c;
+	}
+
+	private synchronized byte[] takeChunk() {
+		byte[] chunk = null;
+		if (!mFree.isEmpty()) {
+			chunk = mFree.remove(mFree.size() - 1);
+		} else if (mAllocated < mMaxChunks) {
+			chunk = new byte[CHUNK_BYTES];
+			++mAllocated;
+		} else if (!mSegments.isEmpty()) {
+			Log.w(TAG, "Out of memory, dropping the oldest segment");
+			release(mSegments.remove(0));
+			chunk = mFree.remove(mFree.size() - 1);
+		}
+		mHighWaterChunks = Math.max(mHighWaterChunks, mAllocated
+				- mFree.size());
+		return chunk;
+	}
+
+	private synchronized void release(Segment s) {
+		mFree.addAll(s.chunks);
+		s.chunks.clear();
+	}
+
+	private synchronized void complete(Segment s) {
+		--mCapturing;
+		if (s.overflow || s.durationMs <= 0 || !patchMdat(s)) {
+			if (s.length > 0) {
+				Log.w(TAG, "Dropping a segment of " + s.length + " bytes");
+			}
+			release(s);
+		} else {
+			mSegments.add(s);
+			trim();
+			Log.v(TAG, this.toString());
+		}
+		notifyAll();
+	}
+
+	// Keeps the newest segments that last at least the pre-roll.
+	private void trim() {
+		long durationMs = getDurationMs();
+		while (mSegments.size() > 1
+				&& durationMs - mSegments.get(0).durationMs >= mPreRollMs) {
+			Segment s = mSegments.remove(0);
+			durationMs -= s.durationMs;
+			release(s);
+		}
+	}
+
+	/**
+	 * Notes the gap before the segment being captured, from stopping the
+	 * recorder of the one before until its own started; the frames in it
+	 * are missing from the pre-roll.
+	 */
+	public synchronized void onRolled(long gapMs) {
+		if (mLatest != null) {
+			mLatest.gapMs = gapMs;
+		}
+	}
+
+	/** Drops what has been captured so far. */
+	public synchronized void clear() {
+		for (Segment s : mSegments) {
+			release(s);
+		}
+		mSegments.clear();
+	}
+
+	/**
+	 * Writes the segments captured so far to the start of {@code file} and
+	 * empties the buffer. A segment still being captured is waited for, as
+	 * it ends once its recorder has been released. The writing is done in
+	 * the background, see {@link #awaitFlush()}.
+	 *
+	 * @return where the segments end in {@code file}.
+	 */
+	public long flush(final File file) {
+		final ArrayList<Segment> segments;
+		final long[] starts;
+		Thread thread;
+		long end = 0;
+		synchronized (this) {
+			long deadline = System.currentTimeMillis() + CAPTURE_WAIT_MS;
+			long now;
+			while (mCapturing > 0
+					&& (now = System.currentTimeMillis()) < deadline) {
+				try {
+					wait(deadline - now);
+				} catch (InterruptedException e) {
+					break;
+				}
+			}
+			if (mCapturing > 0) {
+				Log.w(TAG, "Flushing without the segment being captured");
+			}
+			segments = new ArrayList<Segment>(mSegments);
+			mSegments.clear();
+			long gapMs = 0;
+			long maxGapMs = 0;
+			for (int i = 1; i < segments.size(); i++) {
+				gapMs += segments.get(i).gapMs;
+				maxGapMs = Math.max(maxGapMs, segments.get(i).gapMs);
+			}
+			Log.v(TAG, "Flushing " + segments.size() + " segments with "
+					+ gapMs + "ms of gaps between them, at most " + maxGapMs
+					+ "ms");
+			starts = new long[segments.size()];
+			for (int i = 0; i < starts.length; i++) {
+				starts[i] = end;
+				end += segments.get(i).length;
+			}
+			mFlushStarts = starts;
+			mFlushFailure = null;
+			thread = new Thread(new Runnable() {
+				public void run() {
+					write(file, segments, starts);
+				}
+			}, "PreRollFlush");
+			mFlushThread = thread;
+		}
+		thread.start();
+		return end;
+	}
+
+	private void write(File file, ArrayList<Segment> segments, long[] starts) {
+		long begin = System.currentTimeMillis();
+		RandomAccessFile raf = null;
+		try {
+			raf = new RandomAccessFile(file, "rw");
+			FileChannel channel = raf.getChannel();
+			for (int i = 0; i < segments.size(); i++) {
+				Segment s = segments.get(i);
+				long position = starts[i];
+				long left = s.length;
+				for (byte[] chunk : s.chunks) {
+					int n = (int) Math.min(CHUNK_BYTES, left);
+					FastStart.writeFully(channel, ByteBuffer.wrap(chunk, 0, n),
+							position);
+					position += n;
+					left -= n;
+				}
+			}
+			Log.v(TAG, "Wrote " + segments.size() + " segments in "
+					+ (System.currentTimeMillis() - begin) + "ms");
+		} catch (IOException e) {
+			synchronized (this) {
+				mFlushFailure = e;
+			}
+		} finally {
+			if (raf != null) {
+				Util.closeSilently(raf);
+			}
+			for (Segment s : segments) {
+				release(s);
+			}
+		}
+	}
+
+	/**
+	 * Waits for the last {@link #flush} to be written.
+	 *
+	 * @return where in the file each flushed segment starts.
+	 */
+	public long[] awaitFlush() throws IOException {
+		Thread thread;
+		synchronized (this) {
+			thread = mFlushThread;
+		}
+		if (thread == null)
+			return new long[0];
+		try {
+			thread.join();
+		} catch (InterruptedException e) {
+			throw new IOException("interrupted");
+		}
+		synchronized (this) {
+			if (mFlushFailure != null)
+				throw mFlushFailure;
+			return mFlushStarts;
+		}
+	}
+
+	/** How long the captured segments last together. */
+	public synchronized long getDurationMs() {
+		long duration = 0;
+		for (Segment s : mSegments) {
+			duration += s.durationMs;
+		}
+		return duration;
+	}
+
+	/** The memory taken by captured data, including segments in progress. */
+	public synchronized long getMemoryBytes() {
+		return (long) (mAllocated - mFree.size()) * CHUNK_BYTES;
+	}
+
+	public long getBudgetBytes() {
+		return (long) mMaxChunks * CHUNK_BYTES;
+	}
+
+	public synchronized long getHighWaterBytes() {
+		return (long) mHighWaterChunks * CHUNK_BYTES;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return mSegments.size() + " segments, " + getDurationMs() + "ms, "
+				+ getMemoryBytes() / 1024 + "KB of " + getBudgetBytes() / 1024
+				+ "KB, high water " + getHighWaterBytes() / 1024 + "KB";
+	}
+
+	// MediaRecorder cannot seek back into a pipe, see
+	// Mp4Files#repairPipeOutput() for what it leaves. Rather than moving the
+	// moov box over the size it wrote after the media data, the mdat box is
+	// made to end right at the moov box; the stray size is left inside it.
+	// The rest is repaired the same way: the free box in front of the mdat
+	// box is cut down, one dangling after the moov box dropped and the chunk
+	// offsets made to point at the media data.
+	private static boolean patchMdat(Segment s) {
+		if (s.chunks.isEmpty())
+			return false;
+		byte[] head = s.chunks.get(0);
+		int mdat = Mp4Files.findPlaceholderMdat(head,
+				(int) Math.min(Mp4Files.HEAD_BYTES, s.length));
+		if (mdat < 0 || !Mp4Files.fixLeadingBoxes(head, mdat))
+			return false;
+		int fieldBytes = head[mdat] == '?' ? 4 : 8;
+		long field = fieldBytes == 4 ? mdat : mdat + 8;
+		for (long p = s.length - 8; p > mdat + 8; p--) {
+			if (getUInt32(s, p + 4) != Mp4Index.TYPE_MOOV)
+				continue;
+			long moovSize = getUInt32(s, p);
+			if (moovSize < 8 || !isDanglingFree(s, p + moovSize))
+				continue;
+			long size = p - mdat;
+			for (int i = fieldBytes - 1; i >= 0; i--) {
+				put(s, field + i, (byte) size);
+				size >>>= 8;
+			}
+			s.length = p + moovSize;
+			return fixChunkOffsets(s, p, (int) moovSize, mdat + fieldBytes * 2);
+		}
+		return false;
+	}
+
+	// Whether what follows offset is nothing, or the header of a free box
+	// that runs past the end.
+	private static boolean isDanglingFree(Segment s, long offset) {
+		if (offset > s.length)
+			return false;
+		if (s.length - offset < 8)
+			return true;
+		long type = getUInt32(s, offset + 4);
+		return (type == Mp4Index.TYPE_FREE || type == Mp4Index.TYPE_SKIP)
+				&& offset + getUInt32(s, offset) > s.length;
+	}
+
+	private static boolean fixChunkOffsets(Segment s, long moov, int size,
+			long mediaStart) {
+		ByteBuffer box = ByteBuffer.allocate(size);
+		for (int i = 0; i < size; i++) {
+			box.put(i, get(s, moov + i));
+		}
+		try {
+			if (Mp4Files.fixChunkOffsets(box, mediaStart) == 0)
+				return true;
+		} catch (IOException e) {
+			Log.w(TAG, "Bad moov box in a segment", e);
+			return false;
+		}
+		for (int i = 0; i < size; i++) {
+			put(s, moov + i, box.get(i));
+		}
+		return true;
+	}
+
+	private static long getUInt32(Segment s, long position) {
+		long value = 0;
+		for (int i = 0; i < 4; i++) {
+			long p = position + i;
+			byte[] chunk = s.chunks.get((int) (p / CHUNK_BYTES));
+			value = (value << 8) | (chunk[(int) (p % CHUNK_BYTES)] & 0xffL);
+		}
+		return value;
+	}
+
+	private static byte get(Segment s, long p) {
+		return s.chunks.get((int) (p / CHUNK_BYTES))[(int) (p % CHUNK_BYTES)];
+	}
+
+	private static void put(Segment s, long p, byte b) {
+		s.chunks.get((int) (p / CHUNK_BYTES))[(int) (p % CHUNK_BYTES)] = b;
+	}
+}
@@ -0,0 +1,135 @@
+package com.android.camera;
+
+import java.util.HashMap;
+
+/**
+ * Picks the recording size and bitrate for a camera.
+ *
+ * <p>
+ * The size is the supported preview size nearest to the requested one,
+ * preferring the same aspect ratio, and the bitrate follows from a budget of
+ * bits per pixel per frame, so it scales with the size and the frame rate
+ * instead of being a constant. Results are remembered per camera for the
+ * life of the process. The class has no dependency on the Android framework.
+ */
+public class ProfileResolver {
+	// Enough for H.264 at the sizes recorded here; H.263 needs about twice
+	// as much for the same quality.
+	public static final float DEFAULT_BITS_PER_PIXEL = 0.15f;
+	public static final int MIN_BIT_RATE = 64000;
+
+	/** The resolved recording size and video bitrate. */
+	public static class Result {
+		public final int width;
+		public final int height;
+		public final int bitRate;
+
+		Result(int width, int height, int bitRate) {
+			this.width = width;
+			this.height = height;
+			this.bitRate = bitRate;
+		}
+
+		@Override
+		public String toString() {
+			return width + "x" + height + " " + bitRate + "bps";
+		}
+	}
+
+	private static final HashMap<String, ProfileResolver> sResolvers = new HashMap<String, ProfileResolver>();
+
+	private final int[] mSizes;
+	private final float mBitsPerPixel;
+	private final int mMaxBitRate;
+	private final HashMap<String, Result> mResults = new HashMap<String, Result>();
+
+	/**
+	 * @param sizes pairs of width and height the camera supports; if empty,
+	 *            any size is taken as is.
+	 * @param maxBitRate upper bound of the bitrate, or 0 for none.
+	 */
+	public ProfileResolver(int[] sizes, float bitsPerPixel, int maxBitRate) {
+		mSizes = sizes;
+		mBitsPerPixel = bitsPerPixel;
+		mMaxBitRate = maxBitRate;
+	}
+
+	/**
+	 * Returns the resolver of the camera identified by {@code cameraKey},
+	 * creating it from {@code sizes} the first time.
+	 */
+	public static synchronized ProfileResolver forCamera(String cameraKey,
+			int[] sizes, int maxBitRate) {
+		ProfileResolver resolver = sResolvers.get(cameraKey);
+		if (resolver == null) {
+			resolver = new ProfileResolver(sizes, DEFAULT_BITS_PER_PIXEL,
+					maxBitRate);
+			sResolvers.put(cameraKey, resolver);
+		}
+		return resolver;
+	}
+
+	public synchronized Result resolve(int targetWidth, int targetHeight,
+			int frameRate) {
+		String key = targetWidth + "x" + targetHeight + "@" + frameRate;
+		Result result = mResults.get(key);
+		if (result == null) {
+			int width = targetWidth;
+			int height = targetHeight;
+			int index = nearestSize(mSizes, targetWidth, targetHeight);
+			if (index >= 0) {
+				width = mSizes[index];
+				height = mSizes[index + 1];
+			}
+			result = new Result(width, height, bitRate(width, height,
+					frameRate, mBitsPerPixel, mMaxBitRate));
+			mResults.put(key, result);
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the index in {@code sizes} of the width of the size nearest to
+	 * the target, or -1 if there are no sizes. Sizes with the target's aspect
+	 * ratio and within a factor of two in area win over the others; among
+	 * those the one closest in area wins, and the larger one on a tie.
+	 */
+	public static int nearestSize(int[] sizes, int width, int height) {
+		int best = -1;
+		boolean bestSameAspect = false;
+		long bestDistance = Long.MAX_VALUE;
+		long area = (long) width * height;
+		for (int i = 0; i + 1 < sizes.length; i += 2) {
+			int w = sizes[i];
+			int h = sizes[i + 1];
+			long a = (long) w * h;
+			boolean sameAspect = (long) w * height == (long) h * width
+					&& a * 2 >= area && a <= area * 2;
+			long distance = Math.abs(a - area);
+			if (best >= 0) {
+				if (bestSameAspect && !sameAspect)
+					continue;
+				if (sameAspect == bestSameAspect) {
+					if (distance > bestDistance)
+						continue;
+					if (distance == bestDistance
+							&& a <= (long) sizes[best] * sizes[best + 1])
+						continue;
+				}
+			}
+			best = i;
+			bestSameAspect = sameAspect;
+			bestDistance = distance;
+		}
+		return best;
+	}
+
+	public static int bitRate(int width, int height, int frameRate,
+			float bitsPerPixel, int maxBitRate) {
+		long bitRate = (long) (width * (long) height * frameRate * bitsPerPixel);
+		if (maxBitRate > 0 && bitRate > maxBitRate) {
+			bitRate = maxBitRate;
+		}
+		return (int) Math.max(bitRate, MIN_BIT_RATE);
+	}
+}
@@ -0,0 +1,85 @@
+package com.android.camera;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Finishes recordings on a thread of its own once their recorder is
+ * released: joins the segments of a paused recording, moves the moov box to
+ * the front and completes the digest. The session is back to idle
+ * meanwhile, so the next recording can be prepared; a recording is only
+ * published once its {@link Listener} is told it is finished.
+ *
+ * <p>
+ * Recordings are finished in the order they were stopped. There is one
+ * finisher per process, see {@link #instance}, so a recording is finished
+ * even if the activity that stopped it is gone.
+ */
+public class RecordingFinisher {
+	private static final String TAG = "RecordingFinisher";
+
+	/** Told about each recording finished, on the main thread. */
+	public interface Listener {
+		void onFinished(String path);
+	}
+
+	/** The work of finishing a recording, run on the finisher thread. */
+	public interface Job {
+		void run();
+	}
+
+	private static RecordingFinisher sInstance;
+
+	private final ExecutorService mExecutor;
+	private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+	public static synchronized RecordingFinisher instance() {
+		if (sInstance == null) {
+			sInstance = new RecordingFinisher();
+		}
+		return sInstance;
+	}
+
+	private RecordingFinisher() {
+		mExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				return new Thread(r, "RecordingFinisher");
+			}
+		});
+	}
+
+	/**
+	 * Queues {@code job}, which finishes the recording at {@code path}, and
+	 * tells {@code listener}, if any, once it has run. The listener is told
+	 * even if the job fails, so the recording is still published as it is.
+	 */
+	public void submit(final String path, final Job job,
+			final Listener listener) {
+		mExecutor.execute(new Runnable() {
+			public void run() {
+				long begin = System.currentTimeMillis();
+				try {
+					job.run();
+					Log.v(TAG, "Finished " + path + " in "
+							+ (System.currentTimeMillis() - begin) + "ms");
+				} catch (RuntimeException e) {
+					// E.g. a moov box cut short that the parser trips over.
+					Log.e(TAG, "Cannot finish " + path, e);
+				} finally {
+					if (listener != null) {
+						mHandler.post(new Runnable() {
+							public void run() {
+								listener.onFinished(path);
+							}
+						});
+					}
+				}
+			}
+		});
+	}
+}
@@ -0,0 +1,300 @@
+package com.android.camera;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Keeps track of the recordings in progress, so that those cut short by the
+ * process dying, e.g. killed for memory or by a pulled battery, can be
+ * recovered the next time the camera starts; see {@link Mp4Recovery}.
+ *
+ * <p>
+ * An entry is written for a recording before it starts and removed once it
+ * is finished. Entries left by an earlier process are of recordings that
+ * never finished. For each combination of recording settings, the moov box
+ * of the last finished recording is kept as the template to recover with,
+ * and a copy of it goes into each entry, so that a recording is recovered
+ * with the sample descriptions it was made with. A recording that cannot
+ * be recovered is given up on after {@link #MAX_ATTEMPTS} processes.
+ *
+ * <p>
+ * Entries are written on the session thread and taken out on that of the
+ * {@link RecordingFinisher}, recovery runs on a thread of its own, one per
+ * process.
+ */
+public class RecordingJournal {
+	private static final String TAG = "RecordingJournal";
+
+	private static final int MAGIC = 0x524a4e4c; // "RJNL"
+	private static final int VERSION = 2;
+	private static final String ENTRY_SUFFIX = ".entry";
+	private static final String TEMPLATE_SUFFIX = ".moov";
+
+	// Tells the entries of this process from those of earlier ones.
+	private static final long PROCESS_TOKEN = new Random().nextLong();
+
+	static final int MAX_ATTEMPTS = 3;
+	// A moov box without samples is a few KB.
+	private static final int MAX_TEMPLATE_BYTES = 64 * 1024;
+
+	private static final ExecutorService sRecoveryExecutor = Executors
+			.newSingleThreadExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					return new Thread(r, "RecordingRecovery");
+				}
+			});
+	// All guarded by sTried.
+	private static boolean sRecovering;
+	// The entries tried by this process, which are left to the next one.
+	private static final HashSet<String> sTried = new HashSet<String>();
+
+	/** Told about each recording recovered, on the recovery thread. */
+	public interface Listener {
+		void onRecovered(File file);
+	}
+
+	private static class Entry {
+		long token;
+		String path;
+		String templateName;
+		int frameRate;
+		int attempts;
+		// The template when the recording began, or null.
+		byte[] template;
+	}
+
+	private final File mDirectory;
+
+	public RecordingJournal(File directory) {
+		mDirectory = directory;
+		directory.mkdirs();
+	}
+
+	/** Notes that {@code path} is about to be recorded with {@code profile}. */
+	public void begin(String path, RecordingProfile profile) {
+		Entry entry = new Entry();
+		entry.token = PROCESS_TOKEN;
+		entry.path = path;
+		entry.templateName = getTemplateName(profile);
+		entry.frameRate = profile.videoFrameRate;
+		entry.template = readTemplate(new File(mDirectory, entry.templateName));
+		write(getEntryFile(path), entry);
+	}
+
+	private static byte[] readTemplate(File template) {
+		long length = template.length();
+		if (length <= 0 || length > MAX_TEMPLATE_BYTES)
+			return null;
+		byte[] bytes = new byte[(int) length];
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new FileInputStream(template));
+			in.readFully(bytes);
+			return bytes;
+		} catch (IOException e) {
+			Log.w(TAG, "Cannot read " + template, e);
+			return null;
+		} finally {
+			Util.closeSilently(in);
+		}
+	}
+
+	private static void write(File file, Entry entry) {
+		File tmp = new File(file.getPath() + ".tmp");
+		DataOutputStream out = null;
+		try {
+			out = new DataOutputStream(new BufferedOutputStream(
+					new FileOutputStream(tmp)));
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeLong(entry.token);
+			out.writeUTF(entry.path);
+			out.writeUTF(entry.templateName);
+			out.writeInt(entry.frameRate);
+			out.writeInt(entry.attempts);
+			if (entry.template != null) {
+				out.writeInt(entry.template.length);
+				out.write(entry.template);
+			} else {
+				out.writeInt(0);
+			}
+			out.close();
+			out = null;
+			if (!tmp.renameTo(file)) {
+				Log.w(TAG, "Cannot rename " + tmp);
+				tmp.delete();
+			}
+		} catch (IOException e) {
+			Log.w(TAG, "Cannot write " + file, e);
+			Util.closeSilently(out);
+			tmp.delete();
+		}
+	}
+
+	/**
+	 * Notes that {@code path} has been finished. If {@code file} holds the
+	 * finished recording, its moov box becomes the template for
+	 * {@code profile}.
+	 */
+	public void end(String path, File file, RecordingProfile profile) {
+		if (file != null && file.isFile() && file.length() > 0) {
+			try {
+				Mp4Recovery.writeTemplate(file, new File(mDirectory,
+						getTemplateName(profile)));
+			} catch (IOException e) {
+				Log.w(TAG, "Cannot keep the moov box of " + file, e);
+			}
+		}
+		getEntryFile(path).delete();
+	}
+
+	/**
+	 * Recovers the recordings that earlier processes left unfinished, on the
+	 * recovery thread. Does nothing while a recovery is running. A recording
+	 * that cannot be recovered yet, e.g. because no recording with its
+	 * settings had been finished before it, is tried again by the next
+	 * process, up to {@link #MAX_ATTEMPTS} times.
+	 */
+	public void recoverAsync(final Listener listener) {
+		synchronized (sTried) {
+			if (sRecovering)
+				return;
+			sRecovering = true;
+		}
+		sRecoveryExecutor.execute(new Runnable() {
+			public void run() {
+				try {
+					File[] files = mDirectory.listFiles();
+					if (files == null)
+						return;
+					for (File f : files) {
+						if (f.getName().endsWith(ENTRY_SUFFIX)) {
+							recover(f, listener);
+						}
+					}
+				} finally {
+					synchronized (sTried) {
+						sRecovering = false;
+					}
+				}
+			}
+		});
+	}
+
+	private void recover(File entryFile, Listener listener) {
+		Entry entry = read(entryFile);
+		if (entry == null) {
+			entryFile.delete();
+			return;
+		}
+		if (entry.token == PROCESS_TOKEN)
+			return;
+		synchronized (sTried) {
+			if (!sTried.add(entryFile.getName()))
+				return;
+		}
+		File file = new File(entry.path);
+		if (!file.isFile()) {
+			entryFile.delete();
+			return;
+		}
+		// Joined to the first segment, with which it goes.
+		if (RecordingSegments.isLeftOver(entry.path))
+			return;
+		try {
+			if (Mp4Recovery.recover(file, getTemplate(entry), entry.frameRate)) {
+				RecordingSegments.joinLeftOver(file);
+				Log.v(TAG, "Recovered " + file);
+				if (listener != null) {
+					listener.onRecovered(file);
+				}
+			} else if (file.delete()) {
+				Log.v(TAG, "Empty video file deleted: " + file);
+			}
+			entryFile.delete();
+		} catch (IOException e) {
+			entry.attempts++;
+			if (entry.attempts < MAX_ATTEMPTS) {
+				Log.e(TAG, "Cannot recover " + file + ", attempt "
+						+ entry.attempts, e);
+				write(entryFile, entry);
+			} else {
+				// The file is left as it is.
+				Log.e(TAG, "Giving up on " + file, e);
+				entryFile.delete();
+			}
+		}
+	}
+
+	// The template in the entry, or else the last one for its settings,
+	// from a recording finished since.
+	private Mp4Index getTemplate(Entry entry) throws IOException {
+		if (entry.template != null)
+			return Mp4Index.fromMoov(ByteBuffer.wrap(entry.template));
+		File template = new File(mDirectory, entry.templateName);
+		return template.isFile() ? Mp4Index.parse(template) : null;
+	}
+
+	private static Entry read(File file) {
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(
+					new FileInputStream(file)));
+			if (in.readInt() != MAGIC)
+				return null;
+			// Those of version 1 have neither attempts nor a template.
+			int version = in.readInt();
+			if (version != 1 && version != VERSION)
+				return null;
+			Entry entry = new Entry();
+			entry.token = in.readLong();
+			entry.path = in.readUTF();
+			entry.templateName = in.readUTF();
+			entry.frameRate = in.readInt();
+			if (version == 1)
+				return entry;
+			entry.attempts = in.readInt();
+			int length = in.readInt();
+			if (length < 0 || length > MAX_TEMPLATE_BYTES)
+				return null;
+			if (length > 0) {
+				entry.template = new byte[length];
+				in.readFully(entry.template);
+			}
+			return entry;
+		} catch (IOException e) {
+			Log.w(TAG, "Cannot read " + file, e);
+			return null;
+		} finally {
+			Util.closeSilently(in);
+		}
+	}
+
+	private File getEntryFile(String path) {
+		return new File(mDirectory, new File(path).getName() + "-"
+				+ Integer.toHexString(path.hashCode()) + ENTRY_SUFFIX);
+	}
+
+	// The settings that decide the sample descriptions; not the bit rate,
+	// which the bitrate governor changes between recordings.
+	private static String getTemplateName(RecordingProfile p) {
+		return p.fileFormat + "-" + p.videoCodec + "-" + p.videoFrameWidth
+				+ "x" + p.videoFrameHeight + "-" + p.videoFrameRate + "-"
+				+ p.audioCodec + "-" + p.audioSampleRate + "-"
+				+ p.audioChannels + TEMPLATE_SUFFIX;
+	}
+}
@@ -0,0 +1,62 @@
+package com.android.camera;
+
+import android.media.CamcorderProfile;
+
+/**
+ * The recording settings of a {@code CamcorderProfile}, in a form that can be
+ * created, copied and stored by the application.
+ */
+public class RecordingProfile {
+	public int duration;
+	public int quality;
+	public int fileFormat;
+	public int videoCodec;
+	public int videoBitRate;
+	public int videoFrameRate;
+	public int videoFrameWidth;
+	public int videoFrameHeight;
+	public int audioCodec;
+	public int audioBitRate;
+	public int audioSampleRate;
+	public int audioChannels;
+
+	public static RecordingProfile from(CamcorderProfile p) {
+		RecordingProfile r = new RecordingProfile();
+		r.duration = p.duration;
+		r.quality = p.quality;
+		r.fileFormat = p.fileFormat;
+		r.videoCodec = p.videoCodec;
+		r.videoBitRate = p.videoBitRate;
+		r.videoFrameRate = p.videoFrameRate;
+		r.videoFrameWidth = p.videoFrameWidth;
+		r.videoFrameHeight = p.videoFrameHeight;
+		r.audioCodec = p.audioCodec;
+		r.audioBitRate = p.audioBitRate;
+		r.audioSampleRate = p.audioSampleRate;
+		r.audioChannels = p.audioChannels;
+		return r;
+	}
+
+	public RecordingProfile copy() {
+		RecordingProfile r = new RecordingProfile();
+		r.duration = duration;
+		r.quality = quality;
+		r.fileFormat = fileFormat;
+		r.videoCodec = videoCodec;
+		r.videoBitRate = videoBitRate;
+		r.videoFrameRate = videoFrameRate;
+		r.videoFrameWidth = videoFrameWidth;
+		r.videoFrameHeight = videoFrameHeight;
+		r.audioCodec = audioCodec;
+		r.audioBitRate = audioBitRate;
+		r.audioSampleRate = audioSampleRate;
+		r.audioChannels = audioChannels;
+		return r;
+	}
+
+	@Override
+	public String toString() {
+		return videoFrameWidth + "x" + videoFrameHeight + "@" + videoFrameRate
+				+ " " + videoBitRate + "bps";
+	}
+}
@@ -0,0 +1,219 @@
+package com.android.camera;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+
+/**
+ * The segments of a recording that is paused and resumed, and how they
+ * become one video once it stops.
+ *
+ * <p>
+ * With {@code append}, every segment is recorded to the end of the video
+ * file itself, which takes pipe output, and the segments are joined by
+ * {@link Mp4Concatenator#joinInPlace}. Otherwise the first segment is the
+ * video file and each following one a file next to it, all of them copied
+ * together by {@link Mp4Concatenator#concat}. A recording that was never
+ * paused has a single segment and is left as it is.
+ *
+ * <p>
+ * In front of the first recorded segment there may be those of a
+ * {@link PreRollBuffer}, added in the same way.
+ *
+ * <p>
+ * Segments are added by {@link MediaRecorderController} on the session
+ * thread and joined on that of the {@link RecordingFinisher}; the owner asks
+ * for the next segment and marks the last one on the main thread.
+ */
+public class RecordingSegments {
+	private static final String TAG = "RecordingSegments";
+
+	private final File mFile;
+	private final boolean mAppend;
+	private final ArrayList<File> mFiles = new ArrayList<File>();
+	private final ArrayList<Long> mStarts = new ArrayList<Long>();
+	private volatile boolean mFinishing;
+	private boolean mFinishTaken;
+	private boolean mJoined;
+
+	public RecordingSegments(File file, boolean append) {
+		mFile = file;
+		mAppend = append;
+	}
+
+	public File getFile() {
+		return mFile;
+	}
+
+	public boolean isAppend() {
+		return mAppend;
+	}
+
+	/** The file the next segment is recorded to. */
+	public synchronized File nextFile() {
+		if (mAppend || mFiles.isEmpty())
+			return mFile;
+		return segmentFile(mFile, mFiles.size());
+	}
+
+	/** Where in {@link #nextFile()} the next segment starts. */
+	public synchronized long nextStart() {
+		return mAppend ? mFile.length() : 0;
+	}
+
+	public synchronized int size() {
+		return mFiles.size();
+	}
+
+	/**
+	 * Whether there is more than one segment, or one that does not start
+	 * the file.
+	 */
+	public synchronized boolean needsJoin() {
+		return mFiles.size() > 1 || (mFiles.size() == 1 && mStarts.get(0) > 0);
+	}
+
+	/** Marks the segment being recorded, if any, as the last one. */
+	public void setFinishing() {
+		mFinishing = true;
+	}
+
+	public boolean isFinishing() {
+		return mFinishing;
+	}
+
+	/**
+	 * Returns true the first time only, to whoever is to have the video
+	 * finished once the last segment is added.
+	 */
+	public synchronized boolean takeFinish() {
+		if (mFinishTaken)
+			return false;
+		mFinishTaken = true;
+		return true;
+	}
+
+	/** Adds a segment that was recorded to {@code start} of {@code file}. */
+	public synchronized void add(File file, long start) {
+		if (file.length() <= start) {
+			Log.w(TAG, "Dropping empty segment " + mFiles.size());
+			return;
+		}
+		mFiles.add(file);
+		mStarts.add(start);
+	}
+
+	/** The files of the segments after the first, if not appended. */
+	public synchronized ArrayList<File> getOtherFiles() {
+		ArrayList<File> files = new ArrayList<File>();
+		for (File f : mFiles) {
+			if (!f.equals(mFile) && !files.contains(f)) {
+				files.add(f);
+			}
+		}
+		return files;
+	}
+
+	/**
+	 * Makes the video file out of the segments. Does nothing the second
+	 * time.
+	 *
+	 * @return false if they cannot be joined. They are all kept then, for
+	 *         {@link #joinLeftOver} or {@link Mp4Recovery} to join once the
+	 *         recording is recovered; the video file plays the first one
+	 *         meanwhile.
+	 */
+	public synchronized boolean join() {
+		if (mJoined || !needsJoin())
+			return true;
+		long length = mFile.length();
+		try {
+			if (mAppend) {
+				long[] starts = new long[mStarts.size()];
+				for (int i = 0; i < starts.length; i++) {
+					starts[i] = mStarts.get(i);
+				}
+				Mp4Concatenator.joinInPlace(mFile, starts);
+			} else {
+				File joined = new File(mFile.getPath() + ".joined");
+				Mp4Concatenator.concat(mFiles, joined);
+				if (!joined.renameTo(mFile)) {
+					joined.delete();
+					throw new IOException("cannot replace " + mFile);
+				}
+			}
+		} catch (IOException e) {
+			Log.e(TAG, "Cannot join " + mFiles.size() + " segments", e);
+			if (mAppend && mFile.length() > length) {
+				// Drop what there is of the new moov box.
+				RandomAccessFile raf = null;
+				try {
+					raf = new RandomAccessFile(mFile, "rw");
+					raf.setLength(length);
+				} catch (IOException e2) {
+					Log.e(TAG, "Cannot truncate " + mFile, e2);
+				} finally {
+					if (raf != null) {
+						Util.closeSilently(raf);
+					}
+				}
+			}
+			return false;
+		}
+		mJoined = true;
+		for (File f : getOtherFiles()) {
+			f.delete();
+		}
+		return true;
+	}
+
+	/**
+	 * Joins the segments of a recording that were not appended and could
+	 * not be joined when it was stopped, if {@code file} is the first of
+	 * them. The others are deleted once they are.
+	 *
+	 * @return false if there are none.
+	 */
+	public static boolean joinLeftOver(File file) throws IOException {
+		ArrayList<File> files = new ArrayList<File>();
+		files.add(file);
+		for (File f = segmentFile(file, 1); f.isFile(); f = segmentFile(file,
+				files.size())) {
+			files.add(f);
+		}
+		if (files.size() == 1)
+			return false;
+		File joined = new File(file.getPath() + ".joined");
+		Mp4Concatenator.concat(files, joined);
+		if (!joined.renameTo(file)) {
+			joined.delete();
+			throw new IOException("cannot replace " + file);
+		}
+		for (int i = 1; i < files.size(); i++) {
+			files.get(i).delete();
+		}
+		return true;
+	}
+
+	/**
+	 * Returns whether {@code path} is that of a segment after the first one
+	 * of a recording that was not appended, whose first one is still there.
+	 */
+	public static boolean isLeftOver(String path) {
+		int dot = path.lastIndexOf('.');
+		if (dot < 0 || dot == path.length() - 1)
+			return false;
+		for (int i = dot + 1; i < path.length(); i++) {
+			if (!Character.isDigit(path.charAt(i)))
+				return false;
+		}
+		return new File(path.substring(0, dot)).isFile();
+	}
+
+	private static File segmentFile(File file, int index) {
+		return new File(file.getPath() + "." + index);
+	}
+}
@@ -0,0 +1,353 @@
+package com.android.camera;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * A UI independent recording engine.
+ *
+ * <p>
+ * The session owns the recorder state and runs every transition on its own
+ * worker thread, so callers never block on {@code prepare()}, {@code start()}
+ * or {@code stop()}. The owner only issues requests and observes the state
+ * through {@link Listener}; each request may also carry a {@link Callback}
+ * that reports its outcome. The states and their legal transitions are:
+ *
+ * <pre>
+ * IDLE -> PREPARING -> READY -> RECORDING -> FINALIZING -> IDLE
+ *           |            |          |
+ *           +-> IDLE     |          +-> RECORDING (roll to the next recorder)
+ *                        +-> IDLE (release of a prepared recorder)
+ * any state -> RELEASED
+ * </pre>
+ *
+ * <p>
+ * The class has no dependency on the Android framework; the actual recorder
+ * is plugged in through {@link Recorder}.
+ */
+public class RecordingSession {
+	public static final int STATE_IDLE = 0;
+	public static final int STATE_PREPARING = 1;
+	public static final int STATE_READY = 2;
+	public static final int STATE_RECORDING = 3;
+	public static final int STATE_FINALIZING = 4;
+	public static final int STATE_RELEASED = 5;
+
+	private static final String[] STATE_NAMES = { "IDLE", "PREPARING",
+			"READY", "RECORDING", "FINALIZING", "RELEASED" };
+
+	/**
+	 * The recorder driven by the session. All methods are called on the
+	 * session thread, one at a time.
+	 */
+	public interface Recorder {
+		void prepare() throws IOException;
+
+		void start();
+
+		void stop();
+
+		/** Lets go of the camera and the encoders. */
+		void release();
+
+		/**
+		 * Completes the output after {@link #release()}. May take long; when
+		 * rolling over it runs while the next recorder is recording.
+		 */
+		void finish();
+	}
+
+	/**
+	 * Observes the session. Callbacks are invoked on the session thread;
+	 * owners that touch the UI must post them to their own thread.
+	 */
+	public interface Listener {
+		void onStateChanged(RecordingSession session, int oldState,
+				int newState);
+
+		/**
+		 * Called when a transition failed. The session has already moved to
+		 * {@code newState} when this is called.
+		 */
+		void onError(RecordingSession session, int failedState, int newState,
+				Exception e);
+	}
+
+	/**
+	 * Reports the completion of a single request. Invoked on the session
+	 * thread after the listener has seen the resulting state.
+	 */
+	public interface Callback {
+		/**
+		 * @param success true if the request caused its transition, false if
+		 *            it failed or was ignored in the current state.
+		 * @param elapsedMs time spent in the recorder for this request.
+		 */
+		void onComplete(RecordingSession session, boolean success,
+				long elapsedMs);
+	}
+
+	private final ExecutorService mExecutor;
+	private final Listener mListener;
+
+	// Written on the session thread only, read from any thread.
+	private volatile int mState = STATE_IDLE;
+
+	// Only accessed on the session thread.
+	private Recorder mRecorder;
+
+	public RecordingSession(Listener listener) {
+		mListener = listener;
+		mExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				return new Thread(r, "RecordingSession");
+			}
+		});
+	}
+
+	public static String stateToString(int state) {
+		return state >= 0 && state < STATE_NAMES.length ? STATE_NAMES[state]
+				: Integer.toString(state);
+	}
+
+	public int getState() {
+		return mState;
+	}
+
+	public boolean isRecording() {
+		return mState == STATE_RECORDING;
+	}
+
+	public boolean isReady() {
+		return mState == STATE_READY;
+	}
+
+	public Future<?> prepare(Recorder recorder) {
+		return prepare(recorder, null);
+	}
+
+	/**
+	 * Prepares {@code recorder}. Ignored unless the session is idle; in that
+	 * case {@code recorder} is released right away.
+	 */
+	public Future<?> prepare(final Recorder recorder, final Callback callback) {
+		return submit(new Runnable() {
+			public void run() {
+				long begin = System.nanoTime();
+				if (mState != STATE_IDLE) {
+					recorder.release();
+					recorder.finish();
+					complete(callback, false, begin);
+					return;
+				}
+				mRecorder = recorder;
+				setState(STATE_PREPARING);
+				try {
+					recorder.prepare();
+				} catch (Exception e) {
+					releaseRecorder();
+					fail(STATE_PREPARING, STATE_IDLE, e);
+					complete(callback, false, begin);
+					return;
+				}
+				setState(STATE_READY);
+				complete(callback, true, begin);
+			}
+		});
+	}
+
+	public Future<?> start() {
+		return start(null);
+	}
+
+	public Future<?> start(final Callback callback) {
+		return submit(new Runnable() {
+			public void run() {
+				long begin = System.nanoTime();
+				if (mState != STATE_READY) {
+					complete(callback, false, begin);
+					return;
+				}
+				try {
+					mRecorder.start();
+				} catch (RuntimeException e) {
+					releaseRecorder();
+					fail(STATE_READY, STATE_IDLE, e);
+					complete(callback, false, begin);
+					return;
+				}
+				setState(STATE_RECORDING);
+				complete(callback, true, begin);
+			}
+		});
+	}
+
+	public Future<?> stop() {
+		return stop(null);
+	}
+
+	/**
+	 * Stops a running recording, or drops a prepared recorder that was never
+	 * started. Either way the session ends up idle.
+	 */
+	public Future<?> stop(final Callback callback) {
+		return submit(new Runnable() {
+			public void run() {
+				long begin = System.nanoTime();
+				if (mState == STATE_READY) {
+					releaseRecorder();
+					setState(STATE_IDLE);
+					complete(callback, true, begin);
+					return;
+				}
+				if (mState != STATE_RECORDING) {
+					complete(callback, false, begin);
+					return;
+				}
+				setState(STATE_FINALIZING);
+				RuntimeException failure = null;
+				try {
+					mRecorder.stop();
+				} catch (RuntimeException e) {
+					failure = e;
+				}
+				releaseRecorder();
+				if (failure != null) {
+					fail(STATE_FINALIZING, STATE_IDLE, failure);
+				} else {
+					setState(STATE_IDLE);
+				}
+				complete(callback, failure == null, begin);
+			}
+		});
+	}
+
+	/**
+	 * Replaces the running recorder by {@code next}, for a recording made of
+	 * back to back segments. To keep the gap between them short, the current
+	 * recorder is stopped and released, {@code next} prepared and started,
+	 * and only then is the current one finished. The session stays
+	 * RECORDING; the elapsedMs of the callback is the gap, from stopping the
+	 * current recorder until the next one has started.
+	 *
+	 * <p>
+	 * If the current recorder fails to stop, that is reported as a failure
+	 * in FINALIZING with RECORDING as the new state, and the next one starts
+	 * all the same. If the next one fails, the session ends up IDLE with a
+	 * failure in RECORDING. Ignored unless recording; in that case
+	 * {@code next} is released right away.
+	 */
+	public Future<?> roll(final Recorder next, final Callback callback) {
+		return submit(new Runnable() {
+			public void run() {
+				long begin = System.nanoTime();
+				if (mState != STATE_RECORDING) {
+					next.release();
+					next.finish();
+					complete(callback, false, begin);
+					return;
+				}
+				Recorder previous = mRecorder;
+				try {
+					previous.stop();
+				} catch (RuntimeException e) {
+					mListener.onError(RecordingSession.this, STATE_FINALIZING,
+							STATE_RECORDING, e);
+				}
+				previous.release();
+				mRecorder = next;
+				try {
+					next.prepare();
+					next.start();
+				} catch (Exception e) {
+					releaseRecorder();
+					previous.finish();
+					fail(STATE_RECORDING, STATE_IDLE, e);
+					complete(callback, false, begin);
+					return;
+				}
+				long gapNanos = System.nanoTime() - begin;
+				previous.finish();
+				if (callback != null) {
+					callback.onComplete(RecordingSession.this, true,
+							gapNanos / 1000000L);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Stops whatever is in progress and shuts the session thread down. The
+	 * returned future completes once the recorder has been released.
+	 */
+	public Future<?> release() {
+		Future<?> future = submit(new Runnable() {
+			public void run() {
+				if (mState == STATE_RELEASED)
+					return;
+				if (mState == STATE_RECORDING) {
+					setState(STATE_FINALIZING);
+					try {
+						mRecorder.stop();
+					} catch (RuntimeException e) {
+						releaseRecorder();
+						fail(STATE_FINALIZING, STATE_RELEASED, e);
+						return;
+					}
+				}
+				releaseRecorder();
+				setState(STATE_RELEASED);
+			}
+		});
+		mExecutor.shutdown();
+		return future;
+	}
+
+	// Requests made after release() are dropped; the returned future is
+	// already done so callers waiting on it do not hang.
+	private Future<?> submit(Runnable r) {
+		try {
+			return mExecutor.submit(r);
+		} catch (RejectedExecutionException e) {
+			FutureTask<Void> done = new FutureTask<Void>(new Runnable() {
+				public void run() {
+				}
+			}, null);
+			done.run();
+			return done;
+		}
+	}
+
+	private void releaseRecorder() {
+		if (mRecorder != null) {
+			mRecorder.release();
+			mRecorder.finish();
+			mRecorder = null;
+		}
+	}
+
+	private void complete(Callback callback, boolean success, long beginNanos) {
+		if (callback != null) {
+			callback.onComplete(this, success,
+					(System.nanoTime() - beginNanos) / 1000000L);
+		}
+	}
+
+	private void setState(int state) {
+		int old = mState;
+		if (old == state)
+			return;
+		mState = state;
+		mListener.onStateChanged(this, old, state);
+	}
+
+	private void fail(int failedState, int newState, Exception e) {
+		mState = newState;
+		mListener.onError(this, failedState, newState, e);
+	}
+}
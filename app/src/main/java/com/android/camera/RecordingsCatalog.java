@@ -0,0 +1,624 @@
+package com.android.camera;
+
+import android.content.Context;
+import android.os.Process;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * What we have recorded: the size, duration, rotation and key frame count of
+ * each video, so that they need not be read from the files or the media
+ * provider again.
+ *
+ * <p>
+ * The catalog is kept in memory and queried there. Each change is appended
+ * to a file, which is rewritten once it holds much more than the entries.
+ * Videos are added as they are finished, see {@link #add}; changes made
+ * behind our back, e.g. by a gallery or over USB, are found by
+ * {@link #reconcileAsync}, which compares the size and modification time of
+ * the files in a directory with the entries.
+ *
+ * <p>
+ * Files are read and written on a thread of its own. Until the file has been
+ * loaded, shortly after the catalog is created, queries find nothing. Videos
+ * are hashed, see {@link #hashAsync}, on another one, so that reading them
+ * does not hold up the rest. There is one catalog per process, see
+ * {@link #instance}.
+ */
+public class RecordingsCatalog {
+	private static final String TAG = "RecordingsCatalog";
+
+	private static final String FILE_NAME = "recordings_catalog";
+
+	private static final int MAGIC = 0x52434154; // "RCAT"
+	private static final int VERSION = 3;
+
+	private static final int RECORD_PUT = 0;
+	private static final int RECORD_REMOVE = 1;
+
+	// The file is rewritten once it holds this many records per entry.
+	private static final int MAX_RECORDS_PER_ENTRY = 2;
+
+	/** Copied off the device, e.g. uploaded; the first to go for room. */
+	public static final int FLAG_COPIED = 1;
+	/** Kept by the user, never deleted for room. */
+	public static final int FLAG_PROTECTED = 2;
+
+	/** The hash is the SHA-256 of the file. */
+	public static final int HASH_SHA256 = 0;
+	/** The hash is the {@link ContentDigest} of the file. */
+	public static final int HASH_CONTENT_DIGEST = 1;
+
+	/** A video; not to be changed, the catalog replaces it as a whole. */
+	public static class Entry {
+		public String path;
+		public long size;
+		// Tells a file changed since it was read.
+		public long modified;
+		public long durationMs;
+		public int rotation;
+		public int keyFrames;
+		// The modification time the thumbnail in the ThumbnailService is
+		// keyed by, 0 if none was made.
+		public long thumbnailModified;
+		// Of the file, null if not known; what it is tells hashScheme.
+		public byte[] hash;
+		// HASH_SHA256 or HASH_CONTENT_DIGEST.
+		public int hashScheme;
+		// FLAG_COPIED and FLAG_PROTECTED.
+		public int flags;
+
+		public boolean isCopied() {
+			return (flags & FLAG_COPIED) != 0;
+		}
+
+		public boolean isProtected() {
+			return (flags & FLAG_PROTECTED) != 0;
+		}
+
+		// Takes over what cannot be read from the file from the entry of
+		// the same video before; the thumbnail and hash only if the file
+		// did not change.
+		void inherit(Entry old) {
+			if (old == null)
+				return;
+			flags = old.flags;
+			if (old.modified == modified) {
+				thumbnailModified = old.thumbnailModified;
+				hash = old.hash;
+				hashScheme = old.hashScheme;
+			}
+		}
+	}
+
+	private static RecordingsCatalog sInstance;
+
+	private final File mFile;
+	private final ExecutorService mExecutor;
+	private final ExecutorService mHashExecutor;
+
+	// Guarded by this.
+	private final HashMap<String, Entry> mEntries = new HashMap<String, Entry>();
+	private final HashSet<String> mReconciled = new HashSet<String>();
+
+	// On the catalog thread.
+	private DataOutputStream mOut;
+	private int mRecords;
+	// An append failed, the file may end in a broken record.
+	private boolean mBroken;
+
+	public static synchronized RecordingsCatalog instance(Context context) {
+		if (sInstance == null) {
+			sInstance = new RecordingsCatalog(new File(context
+					.getApplicationContext().getFilesDir(), FILE_NAME));
+		}
+		return sInstance;
+	}
+
+	RecordingsCatalog(File file) {
+		mFile = file;
+		mExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				return new Thread(r, "RecordingsCatalog");
+			}
+		});
+		mExecutor.execute(new Runnable() {
+			public void run() {
+				load();
+			}
+		});
+		mHashExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			public Thread newThread(final Runnable r) {
+				return new Thread(new Runnable() {
+					public void run() {
+						Process.setThreadPriority(
+								Process.THREAD_PRIORITY_BACKGROUND);
+						r.run();
+					}
+				}, "RecordingsHasher");
+			}
+		});
+	}
+
+	/**
+	 * Adds the video at {@code path}, once it is finished, or updates it.
+	 *
+	 * @param thumbnail whether a thumbnail of the video as it is now has
+	 *            been requested from the ThumbnailService.
+	 * @param hash the {@link ContentDigest} of the file, or null.
+	 */
+	public void add(final String path, final boolean thumbnail,
+			final byte[] hash) {
+		mExecutor.execute(new Runnable() {
+			public void run() {
+				Entry entry = read(new File(path));
+				if (entry == null)
+					return;
+				entry.inherit(get(path));
+				if (thumbnail) {
+					entry.thumbnailModified = entry.modified;
+				}
+				if (hash != null) {
+					entry.hash = hash;
+					entry.hashScheme = HASH_CONTENT_DIGEST;
+				}
+				put(entry);
+			}
+		});
+	}
+
+	/**
+	 * Reads the video at {@code path}, once it is finished, for its
+	 * {@link ContentDigest} and adds it as {@link #add} does. The digest is
+	 * dropped if the file changes meanwhile.
+	 */
+	public void hashAsync(final String path) {
+		mHashExecutor.execute(new Runnable() {
+			public void run() {
+				File file = new File(path);
+				final long modified = file.lastModified();
+				final byte[] hash;
+				long begin = System.currentTimeMillis();
+				try {
+					hash = ContentDigest.compute(file);
+				} catch (IOException e) {
+					Log.w(TAG, "Cannot hash " + file, e);
+					return;
+				}
+				Log.v(TAG, "Hashed " + file.length() + " bytes in "
+						+ (System.currentTimeMillis() - begin) + "ms");
+				mExecutor.execute(new Runnable() {
+					public void run() {
+						Entry entry = read(new File(path));
+						if (entry == null || entry.modified != modified)
+							return;
+						entry.inherit(get(path));
+						entry.hash = hash;
+						entry.hashScheme = HASH_CONTENT_DIGEST;
+						put(entry);
+					}
+				});
+			}
+		});
+	}
+
+	/** Moves the entry of a video that was moved from {@code from}. */
+	public void move(final String from, final String to) {
+		mExecutor.execute(new Runnable() {
+			public void run() {
+				Entry old;
+				synchronized (RecordingsCatalog.this) {
+					old = mEntries.get(from);
+				}
+				Entry entry = read(new File(to));
+				if (entry == null)
+					return;
+				if (old != null) {
+					drop(from);
+					entry.inherit(old);
+				}
+				put(entry);
+			}
+		});
+	}
+
+	/** Removes the entry of a video that was deleted. */
+	public void remove(final String path) {
+		mExecutor.execute(new Runnable() {
+			public void run() {
+				drop(path);
+			}
+		});
+	}
+
+	/**
+	 * Sets or clears {@code flag} of the video at {@code path}, if it is in
+	 * the catalog.
+	 */
+	public void setFlag(final String path, final int flag, final boolean set) {
+		mExecutor.execute(new Runnable() {
+			public void run() {
+				Entry old = get(path);
+				if (old == null)
+					return;
+				Entry entry = new Entry();
+				entry.path = old.path;
+				entry.size = old.size;
+				entry.modified = old.modified;
+				entry.durationMs = old.durationMs;
+				entry.rotation = old.rotation;
+				entry.keyFrames = old.keyFrames;
+				entry.inherit(old);
+				entry.flags = set ? old.flags | flag : old.flags & ~flag;
+				put(entry);
+			}
+		});
+	}
+
+	/**
+	 * Waits until the changes queued so far are done, e.g. the file loaded
+	 * and the directories reconciled. Not to be called on the main thread.
+	 */
+	public void awaitSettled() throws InterruptedException {
+		Future<?> future = mExecutor.submit(new Runnable() {
+			public void run() {
+			}
+		});
+		try {
+			future.get();
+		} catch (ExecutionException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Brings the entries of the videos in {@code directory} in line with the
+	 * files, in the background. Done once per directory and process.
+	 */
+	public void reconcileAsync(final File directory) {
+		synchronized (this) {
+			if (!mReconciled.add(directory.getPath()))
+				return;
+		}
+		mExecutor.execute(new Runnable() {
+			public void run() {
+				reconcile(directory);
+			}
+		});
+	}
+
+	public synchronized Entry get(String path) {
+		return mEntries.get(path);
+	}
+
+	/**
+	 * Returns the videos last modified in [{@code fromMs}, {@code toMs}),
+	 * oldest first.
+	 */
+	public synchronized List<Entry> queryByDate(long fromMs, long toMs) {
+		ArrayList<Entry> result = new ArrayList<Entry>();
+		for (Entry e : mEntries.values()) {
+			if (e.modified >= fromMs && e.modified < toMs) {
+				result.add(e);
+			}
+		}
+		Collections.sort(result, BY_DATE);
+		return result;
+	}
+
+	/**
+	 * Returns the videos of {@code minBytes} to {@code maxBytes}, largest
+	 * first.
+	 */
+	public synchronized List<Entry> queryBySize(long minBytes, long maxBytes) {
+		ArrayList<Entry> result = new ArrayList<Entry>();
+		for (Entry e : mEntries.values()) {
+			if (e.size >= minBytes && e.size <= maxBytes) {
+				result.add(e);
+			}
+		}
+		Collections.sort(result, new Comparator<Entry>() {
+			public int compare(Entry a, Entry b) {
+				return a.size > b.size ? -1 : (a.size == b.size ? 0 : 1);
+			}
+		});
+		return result;
+	}
+
+	/** Returns the videos directly in {@code directory}. */
+	public synchronized List<Entry> list(File directory) {
+		ArrayList<Entry> result = new ArrayList<Entry>();
+		for (Entry e : mEntries.values()) {
+			if (directory.equals(new File(e.path).getParentFile())) {
+				result.add(e);
+			}
+		}
+		return result;
+	}
+
+	public synchronized long getTotalSize() {
+		long total = 0;
+		for (Entry e : mEntries.values()) {
+			total += e.size;
+		}
+		return total;
+	}
+
+	public synchronized int getCount() {
+		return mEntries.size();
+	}
+
+	static final Comparator<Entry> BY_DATE = new Comparator<Entry>() {
+		public int compare(Entry a, Entry b) {
+			return a.modified < b.modified ? -1
+					: (a.modified == b.modified ? 0 : 1);
+		}
+	};
+
+	// Reads what we keep of the video at file, null if it is not one.
+	private static Entry read(File file) {
+		if (!file.isFile())
+			return null;
+		Entry entry = new Entry();
+		entry.path = file.getPath();
+		entry.size = file.length();
+		entry.modified = file.lastModified();
+		try {
+			Mp4Index index = Mp4Index.parse(file);
+			entry.durationMs = index.getDurationMs();
+			entry.rotation = index.getRotation();
+			Mp4Index.Track video = index.getVideoTrack();
+			if (video != null) {
+				entry.keyFrames = video.getSyncSampleCount();
+			}
+		} catch (IOException e) {
+			// E.g. still being recorded; the size is still worth keeping.
+			Log.w(TAG, "Cannot index " + file, e);
+		}
+		return entry;
+	}
+
+	private void reconcile(File directory) {
+		long begin = System.currentTimeMillis();
+		File[] files = directory.listFiles();
+		if (files == null)
+			return;
+		HashSet<String> found = new HashSet<String>();
+		int read = 0;
+		for (File f : files) {
+			String name = f.getName();
+			if (!name.endsWith(".mp4") && !name.endsWith(".3gp"))
+				continue;
+			found.add(f.getPath());
+			Entry old = get(f.getPath());
+			if (old != null && old.size == f.length()
+					&& old.modified == f.lastModified())
+				continue;
+			Entry entry = read(f);
+			if (entry == null)
+				continue;
+			entry.inherit(old);
+			put(entry);
+			++read;
+		}
+		ArrayList<String> gone = new ArrayList<String>();
+		synchronized (this) {
+			for (String path : mEntries.keySet()) {
+				if (!found.contains(path)
+						&& directory.equals(new File(path).getParentFile())) {
+					gone.add(path);
+				}
+			}
+		}
+		for (String path : gone) {
+			drop(path);
+		}
+		if (mRecords > getCount() * MAX_RECORDS_PER_ENTRY) {
+			rewrite();
+		}
+		Log.v(TAG, "Reconciled " + directory + ": " + read + " read, "
+				+ gone.size() + " gone, in "
+				+ (System.currentTimeMillis() - begin) + "ms");
+	}
+
+	private void put(Entry entry) {
+		synchronized (this) {
+			mEntries.put(entry.path, entry);
+		}
+		append(RECORD_PUT, entry.path, entry);
+	}
+
+	private void drop(String path) {
+		synchronized (this) {
+			if (mEntries.remove(path) == null)
+				return;
+		}
+		append(RECORD_REMOVE, path, null);
+	}
+
+	// Appends a change to the file, or writes it anew if it may be broken.
+	private void append(int kind, String path, Entry entry) {
+		if (mBroken) {
+			rewrite();
+			return;
+		}
+		try {
+			DataOutputStream out = open();
+			out.writeByte(kind);
+			if (entry != null) {
+				writeEntry(out, entry);
+			} else {
+				out.writeUTF(path);
+			}
+			out.flush();
+			++mRecords;
+		} catch (IOException e) {
+			Log.w(TAG, "Cannot write " + mFile, e);
+			Util.closeSilently(mOut);
+			mOut = null;
+			mBroken = true;
+		}
+	}
+
+	// The file to append to, created if need be.
+	private DataOutputStream open() throws IOException {
+		if (mOut == null) {
+			boolean exists = mFile.length() > 0;
+			mOut = new DataOutputStream(new BufferedOutputStream(
+					new FileOutputStream(mFile, true)));
+			if (!exists) {
+				mOut.writeInt(MAGIC);
+				mOut.writeInt(VERSION);
+			}
+		}
+		return mOut;
+	}
+
+	private void load() {
+		if (!mFile.exists())
+			return;
+		HashMap<String, Entry> entries = new HashMap<String, Entry>();
+		int records = 0;
+		boolean complete = false;
+		int version = 0;
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(
+					new FileInputStream(mFile)));
+			if (in.readInt() == MAGIC) {
+				version = in.readInt();
+			}
+			if (version >= 1 && version <= VERSION) {
+				while (true) {
+					int kind = in.read();
+					if (kind < 0) {
+						complete = true;
+						break;
+					}
+					if (kind == RECORD_PUT) {
+						Entry entry = readEntry(in, version);
+						entries.put(entry.path, entry);
+					} else if (kind == RECORD_REMOVE) {
+						entries.remove(in.readUTF());
+					} else {
+						break;
+					}
+					++records;
+				}
+			}
+		} catch (EOFException e) {
+			// The last record was being appended.
+		} catch (IOException e) {
+			Log.w(TAG, "Cannot read " + mFile, e);
+		} finally {
+			Util.closeSilently(in);
+		}
+		synchronized (this) {
+			mEntries.putAll(entries);
+		}
+		mRecords = records;
+		Log.v(TAG, "Loaded " + entries.size() + " videos");
+		if (!complete || version != VERSION) {
+			// Not to append to a broken record or an older version.
+			rewrite();
+		}
+	}
+
+	// Replaces the file atomically, as DeviceCapabilities does.
+	private void rewrite() {
+		Util.closeSilently(mOut);
+		mOut = null;
+		ArrayList<Entry> entries;
+		synchronized (this) {
+			entries = new ArrayList<Entry>(mEntries.values());
+		}
+		File tmp = new File(mFile.getPath() + ".tmp");
+		DataOutputStream out = null;
+		try {
+			out = new DataOutputStream(new BufferedOutputStream(
+					new FileOutputStream(tmp)));
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			for (Entry entry : entries) {
+				out.writeByte(RECORD_PUT);
+				writeEntry(out, entry);
+			}
+			out.close();
+			out = null;
+			if (!tmp.renameTo(mFile)) {
+				Log.w(TAG, "Cannot rename " + tmp);
+				tmp.delete();
+				return;
+			}
+			mRecords = entries.size();
+			mBroken = false;
+		} catch (IOException e) {
+			Log.w(TAG, "Cannot write " + mFile, e);
+			Util.closeSilently(out);
+			tmp.delete();
+		}
+	}
+
+	private static void writeEntry(DataOutputStream out, Entry entry)
+			throws IOException {
+		out.writeUTF(entry.path);
+		out.writeLong(entry.size);
+		out.writeLong(entry.modified);
+		out.writeLong(entry.durationMs);
+		out.writeInt(entry.rotation);
+		out.writeInt(entry.keyFrames);
+		out.writeLong(entry.thumbnailModified);
+		if (entry.hash == null) {
+			out.writeShort(0);
+		} else {
+			out.writeShort(entry.hash.length);
+			out.write(entry.hash);
+		}
+		out.writeInt(entry.flags);
+		out.writeByte(entry.hashScheme);
+	}
+
+	private static Entry readEntry(DataInputStream in, int version)
+			throws IOException {
+		Entry entry = new Entry();
+		entry.path = in.readUTF();
+		entry.size = in.readLong();
+		entry.modified = in.readLong();
+		entry.durationMs = in.readLong();
+		entry.rotation = in.readInt();
+		entry.keyFrames = in.readInt();
+		entry.thumbnailModified = in.readLong();
+		int n = in.readUnsignedShort();
+		if (n > 0) {
+			entry.hash = new byte[n];
+			in.readFully(entry.hash);
+		}
+		if (version >= 2) {
+			entry.flags = in.readInt();
+		}
+		if (version >= 3) {
+			entry.hashScheme = in.readUnsignedByte();
+		}
+		return entry;
+	}
+}
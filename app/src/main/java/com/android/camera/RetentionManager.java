@@ -0,0 +1,177 @@
+package com.android.camera;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.StatFs;
+import android.util.Log;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Deletes recorded videos to keep a floor of free space on a volume and the
+ * videos in its directory under a size cap, so that the next recording has
+ * room. The directory is that of the volume the next video goes to, see
+ * {@link #enforceAsync}.
+ *
+ * <p>
+ * The videos are taken from the {@link RecordingsCatalog}: first those
+ * copied off the device, then the others, oldest first each. Protected
+ * videos are never deleted, and neither is the newest one, which may still
+ * be being reviewed. Deleted videos are unregistered through the
+ * {@link MediaStoreQueue}.
+ *
+ * <p>
+ * Runs on a thread of its own; the callback comes on the main thread.
+ */
+public class RetentionManager {
+	private static final String TAG = "RetentionManager";
+
+	/** Called on the main thread once the videos have been deleted. */
+	public interface Callback {
+		/**
+		 * {@code satisfied} is false if the floor could not be reached;
+		 * {@code freedBytes} were deleted.
+		 */
+		void onEnforced(boolean satisfied, long freedBytes);
+	}
+
+	private final RecordingsCatalog mCatalog;
+	private final MediaStoreQueue mMediaStoreQueue;
+	private final long mFloorBytes;
+	private final long mCapBytes;
+	private final Handler mHandler = new Handler(Looper.getMainLooper());
+	private final ExecutorService mExecutor;
+
+	/**
+	 * @param floorBytes the free space to keep, 0 for none.
+	 * @param capBytes how much the videos in the directory may take, 0 for
+	 *            no cap.
+	 */
+	public RetentionManager(RecordingsCatalog catalog, MediaStoreQueue queue,
+			long floorBytes, long capBytes) {
+		mCatalog = catalog;
+		mMediaStoreQueue = queue;
+		mFloorBytes = floorBytes;
+		mCapBytes = capBytes;
+		mExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				return new Thread(r, "RetentionManager");
+			}
+		});
+	}
+
+	/**
+	 * Deletes what has to go from {@code directory} for room on its volume,
+	 * in the background.
+	 */
+	public void enforceAsync(final File directory, final Callback callback) {
+		mExecutor.execute(new Runnable() {
+			public void run() {
+				final long freed = enforce(directory);
+				final boolean satisfied = getFreeBytes(directory)
+						>= mFloorBytes;
+				mHandler.post(new Runnable() {
+					public void run() {
+						callback.onEnforced(satisfied, freed);
+					}
+				});
+			}
+		});
+	}
+
+	// Returns the bytes deleted.
+	private long enforce(File directory) {
+		try {
+			// The catalog may still be loading or reconciling.
+			mCatalog.awaitSettled();
+		} catch (InterruptedException e) {
+			return 0;
+		}
+		long free = getFreeBytes(directory);
+		if (free < 0)
+			return 0;
+		long begin = System.currentTimeMillis();
+		List<RecordingsCatalog.Entry> entries = mCatalog.list(directory);
+		long deleted = 0;
+		int count = 0;
+		for (RecordingsCatalog.Entry e : select(entries, free, mFloorBytes,
+				mCapBytes)) {
+			File file = new File(e.path);
+			if (!file.delete() && file.exists()) {
+				Log.w(TAG, "Cannot delete " + file);
+				continue;
+			}
+			mCatalog.remove(e.path);
+			mMediaStoreQueue.delete(e.path);
+			deleted += e.size;
+			++count;
+		}
+		if (count > 0) {
+			Log.v(TAG, "Deleted " + count + " videos, " + deleted
+					+ " bytes, in " + (System.currentTimeMillis() - begin)
+					+ "ms");
+		}
+		return deleted;
+	}
+
+	private static long getFreeBytes(File directory) {
+		try {
+			StatFs stat = new StatFs(directory.getPath());
+			return (long) stat.getAvailableBlocks()
+					* (long) stat.getBlockSize();
+		} catch (RuntimeException ex) {
+			// E.g. the card is not mounted.
+			return -1;
+		}
+	}
+
+	/**
+	 * Returns the videos of {@code entries} to delete, in order, for
+	 * {@code freeBytes} to reach {@code floorBytes} and the videos to take
+	 * no more than {@code capBytes}.
+	 */
+	static List<RecordingsCatalog.Entry> select(
+			List<RecordingsCatalog.Entry> entries, long freeBytes,
+			long floorBytes, long capBytes) {
+		ArrayList<RecordingsCatalog.Entry> result = new ArrayList<RecordingsCatalog.Entry>();
+		long used = 0;
+		for (RecordingsCatalog.Entry e : entries) {
+			used += e.size;
+		}
+		if (freeBytes >= floorBytes && (capBytes <= 0 || used <= capBytes))
+			return result;
+
+		ArrayList<RecordingsCatalog.Entry> candidates = new ArrayList<RecordingsCatalog.Entry>(
+				entries);
+		Collections.sort(candidates, RecordingsCatalog.BY_DATE);
+		if (!candidates.isEmpty()) {
+			// The newest.
+			candidates.remove(candidates.size() - 1);
+		}
+		Collections.sort(candidates, new Comparator<RecordingsCatalog.Entry>() {
+			public int compare(RecordingsCatalog.Entry a,
+					RecordingsCatalog.Entry b) {
+				if (a.isCopied() != b.isCopied())
+					return a.isCopied() ? -1 : 1;
+				return RecordingsCatalog.BY_DATE.compare(a, b);
+			}
+		});
+		for (RecordingsCatalog.Entry e : candidates) {
+			if (freeBytes >= floorBytes && (capBytes <= 0 || used <= capBytes))
+				break;
+			if (e.isProtected())
+				continue;
+			result.add(e);
+			freeBytes += e.size;
+			used -= e.size;
+		}
+		return result;
+	}
+}
@@ -0,0 +1,209 @@
+package com.android.camera;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * The sample tables of a track being written, built up one sample and one
+ * chunk at a time and written out as an stbl box by {@link #write}.
+ */
+class SampleTable {
+	final Mp4Index.Track track;
+	int count;
+	// Where each sample is in the source, for copying it.
+	long[] offsets;
+	int[] sizes;
+	int[] deltas;
+	int[] compositionOffsets;
+	boolean[] sync;
+	// Sum of the deltas, in the track's timescale.
+	long duration;
+
+	int chunkCount;
+	// Relative to the base passed to write().
+	long[] chunkOffsets;
+	int[] chunkSamples;
+
+	SampleTable(Mp4Index.Track track, int capacity) {
+		this.track = track;
+		int n = Math.max(capacity, 16);
+		offsets = new long[n];
+		sizes = new int[n];
+		deltas = new int[n];
+		compositionOffsets = new int[n];
+		sync = new boolean[n];
+		chunkOffsets = new long[n];
+		chunkSamples = new int[n];
+	}
+
+	/** Adds the sample the cursor is at, outside of any chunk. */
+	void add(Mp4Index.Samples s) {
+		add(s.offset, s.size, s.delta, s.compositionOffset, s.sync);
+	}
+
+	/** Adds a sample, outside of any chunk. */
+	void add(long offset, int size, int delta, int compositionOffset,
+			boolean sync) {
+		if (count == sizes.length) {
+			int n = count * 2;
+			offsets = grow(offsets, n);
+			sizes = grow(sizes, n);
+			deltas = grow(deltas, n);
+			compositionOffsets = grow(compositionOffsets, n);
+			boolean[] b = new boolean[n];
+			System.arraycopy(this.sync, 0, b, 0, count);
+			this.sync = b;
+		}
+		offsets[count] = offset;
+		sizes[count] = size;
+		deltas[count] = delta;
+		compositionOffsets[count] = compositionOffset;
+		this.sync[count] = sync;
+		duration += delta;
+		++count;
+	}
+
+	/** Starts a new chunk at {@code offset}. */
+	void addChunk(long offset) {
+		if (chunkCount == chunkOffsets.length) {
+			int n = chunkCount * 2;
+			chunkOffsets = grow(chunkOffsets, n);
+			chunkSamples = grow(chunkSamples, n);
+		}
+		chunkOffsets[chunkCount] = offset;
+		chunkSamples[chunkCount] = 0;
+		++chunkCount;
+	}
+
+	/** Counts one more sample in the last chunk. */
+	void addToChunk() {
+		++chunkSamples[chunkCount - 1];
+	}
+
+	/** Gives all samples the same delta, so the track lasts {@code duration}. */
+	void spread(long duration) {
+		if (count == 0)
+			return;
+		int delta = (int) Math.max(1, duration / count);
+		for (int i = 0; i < count; i++) {
+			deltas[i] = delta;
+		}
+		this.duration = (long) delta * count;
+		extendTo(duration);
+	}
+
+	/** Lengthens the last sample so the track lasts {@code duration}. */
+	void extendTo(long duration) {
+		if (count > 0 && duration > this.duration) {
+			deltas[count - 1] += (int) (duration - this.duration);
+			this.duration = duration;
+		}
+	}
+
+	/**
+	 * Writes the stbl box, with the sample description copied from
+	 * {@code stsdPosition} of {@code moov} and {@code base} added to the
+	 * chunk offsets.
+	 */
+	void write(Mp4Builder out, ByteBuffer moov, int stsdPosition, long base,
+			boolean co64) throws IOException {
+		out.begin(Mp4Index.TYPE_STBL);
+		out.put(moov, stsdPosition, Mp4Index.boxSize(moov, stsdPosition,
+				moov.limit()));
+
+		out.begin(Mp4Index.TYPE_STTS, 0, 0);
+		writeRuns(out, deltas);
+		out.end();
+
+		if (track.hasCompositionOffsets()) {
+			out.begin(Mp4Index.TYPE_CTTS, 0, 0);
+			writeRuns(out, compositionOffsets);
+			out.end();
+		}
+
+		if (!track.isAllSync()) {
+			out.begin(Mp4Index.TYPE_STSS, 0, 0);
+			int entries = out.position();
+			out.putInt(0);
+			int n = 0;
+			for (int i = 0; i < count; i++) {
+				if (sync[i]) {
+					out.putInt(i + 1);
+					++n;
+				}
+			}
+			out.setInt(entries, n);
+			out.end();
+		}
+
+		out.begin(Mp4Index.TYPE_STSC, 0, 0);
+		int entries = out.position();
+		out.putInt(0);
+		int n = 0;
+		for (int i = 0; i < chunkCount; i++) {
+			if (i == 0 || chunkSamples[i] != chunkSamples[i - 1]) {
+				out.putInt(i + 1).putInt(chunkSamples[i]).putInt(1);
+				++n;
+			}
+		}
+		out.setInt(entries, n);
+		out.end();
+
+		out.begin(Mp4Index.TYPE_STSZ, 0, 0);
+		out.putInt(0).putInt(count);
+		for (int i = 0; i < count; i++) {
+			out.putInt(sizes[i]);
+		}
+		out.end();
+
+		out.begin(co64 ? Mp4Index.TYPE_CO64 : Mp4Index.TYPE_STCO, 0, 0);
+		out.putInt(chunkCount);
+		for (int i = 0; i < chunkCount; i++) {
+			if (co64) {
+				out.putLong(base + chunkOffsets[i]);
+			} else {
+				out.putInt((int) (base + chunkOffsets[i]));
+			}
+		}
+		out.end();
+		out.end();
+	}
+
+	/** The largest chunk offset write() would produce. */
+	long getMaxChunkOffset(long base) {
+		long max = 0;
+		for (int i = 0; i < chunkCount; i++) {
+			max = Math.max(max, base + chunkOffsets[i]);
+		}
+		return max;
+	}
+
+	// Writes values run length encoded, as (count, value) pairs.
+	private void writeRuns(Mp4Builder out, int[] values) {
+		int entries = out.position();
+		out.putInt(0);
+		int n = 0;
+		for (int i = 0; i < count;) {
+			int j = i + 1;
+			while (j < count && values[j] == values[i]) {
+				++j;
+			}
+			out.putInt(j - i).putInt(values[i]);
+			++n;
+			i = j;
+		}
+		out.setInt(entries, n);
+	}
+
+	private static long[] grow(long[] a, int n) {
+		long[] b = new long[n];
+		System.arraycopy(a, 0, b, 0, a.length);
+		return b;
+	}
+
+	private static int[] grow(int[] a, int n) {
+		int[] b = new int[n];
+		System.arraycopy(a, 0, b, 0, a.length);
+		return b;
+	}
+}
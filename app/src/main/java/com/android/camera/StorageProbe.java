@@ -0,0 +1,115 @@
+package com.android.camera;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Measures how fast a directory takes recorded data: the sequential write
+ * throughput and the latency of {@code fsync()}.
+ *
+ * <p>
+ * The class has no dependency on the Android framework, so it can be run
+ * against any directory on a desktop JVM as well, see {@link #main}.
+ */
+public class StorageProbe {
+	public static final int DEFAULT_PROBE_BYTES = 4 * 1024 * 1024;
+	private static final int CHUNK_BYTES = 64 * 1024;
+	private static final int SYNC_BYTES = 4 * 1024;
+	private static final int SYNC_ROUNDS = 4;
+	private static final String PROBE_FILE = ".storage_probe";
+
+	/** The outcome of a probe. */
+	public static class Result {
+		public final String path;
+		public final long bytesPerSecond;
+		public final long syncLatencyUs;
+		// System.currentTimeMillis() of the measurement.
+		public final long measuredAt;
+
+		public Result(String path, long bytesPerSecond, long syncLatencyUs,
+				long measuredAt) {
+			this.path = path;
+			this.bytesPerSecond = bytesPerSecond;
+			this.syncLatencyUs = syncLatencyUs;
+			this.measuredAt = measuredAt;
+		}
+
+		/** Returns the result as a single line, see {@link #decode}. */
+		public String encode() {
+			return bytesPerSecond + "," + syncLatencyUs + "," + measuredAt;
+		}
+
+		/** Returns the result encoded by {@link #encode}, or null. */
+		public static Result decode(String path, String encoded) {
+			if (encoded == null)
+				return null;
+			String[] fields = encoded.split(",");
+			if (fields.length != 3)
+				return null;
+			try {
+				return new Result(path, Long.parseLong(fields[0]),
+						Long.parseLong(fields[1]), Long.parseLong(fields[2]));
+			} catch (NumberFormatException e) {
+				return null;
+			}
+		}
+
+		@Override
+		public String toString() {
+			return path + ": " + bytesPerSecond / 1024 + "KB/s, fsync "
+					+ syncLatencyUs + "us";
+		}
+	}
+
+	/**
+	 * Writes {@code bytes} to a scratch file in {@code dir}, syncs it, then
+	 * times a few small synced writes. The scratch file is removed.
+	 */
+	public static Result probe(File dir, int bytes) throws IOException {
+		File file = new File(dir, PROBE_FILE);
+		try {
+			return probe(dir.getPath(), new FileOutputStream(file), bytes);
+		} finally {
+			file.delete();
+		}
+	}
+
+	/** Probes through {@code out}, which is closed. */
+	static Result probe(String path, FileOutputStream out, int bytes)
+			throws IOException {
+		try {
+			byte[] chunk = new byte[CHUNK_BYTES];
+			long begin = System.nanoTime();
+			for (int written = 0; written < bytes; written += chunk.length) {
+				out.write(chunk, 0, Math.min(chunk.length, bytes - written));
+			}
+			out.getFD().sync();
+			long elapsed = Math.max(1, System.nanoTime() - begin);
+			long bytesPerSecond = bytes * 1000000000L / elapsed;
+
+			long syncTotal = 0;
+			for (int i = 0; i < SYNC_ROUNDS; i++) {
+				long syncBegin = System.nanoTime();
+				out.write(chunk, 0, SYNC_BYTES);
+				out.getFD().sync();
+				syncTotal += System.nanoTime() - syncBegin;
+			}
+			return new Result(path, bytesPerSecond, syncTotal / SYNC_ROUNDS
+					/ 1000, System.currentTimeMillis());
+		} finally {
+			try {
+				out.close();
+			} catch (IOException e) {
+				// Only the measurement matters.
+			}
+		}
+	}
+
+	/** Probes the directories named on the command line. */
+	public static void main(String[] args) throws IOException {
+		for (String dir : args) {
+			System.out.println(probe(new File(dir), DEFAULT_PROBE_BYTES));
+		}
+	}
+}
@@ -0,0 +1,208 @@
+package com.android.camera;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Keeps the volume videos go to and its free space, so that the main thread
+ * need not ask the file system each time.
+ *
+ * <p>
+ * The volume is chosen from the {@link StorageVolumes} and measured on a
+ * background thread: when the media is mounted or unmounted, see
+ * {@link #refreshAsync}, and every {@link #REFRESH_MS} while started. In
+ * between, the bytes written by the recordings, see {@link #setBytesWritten},
+ * and those freed by deleting videos, see {@link #onFreed}, are taken off or
+ * added to what was measured.
+ */
+public class StorageTracker {
+	private static final String TAG = "StorageTracker";
+
+	private static final long REFRESH_MS = 15000;
+
+	/** Returned by {@link #getFreeBytes} if there is no volume to write to. */
+	public static final long NO_STORAGE = -1L;
+	/** Returned by {@link #getFreeBytes} if the volume cannot be measured. */
+	public static final long CANNOT_STAT = -2L;
+
+	/** Told about each measurement, on the main thread. */
+	public interface Listener {
+		void onStorageChanged();
+	}
+
+	private final StorageVolumes mVolumes;
+	private final long mMinFreeBytes;
+	private final Handler mHandler = new Handler(Looper.getMainLooper());
+	private final ExecutorService mExecutor;
+	private Listener mListener;
+	private boolean mStarted;
+
+	// Guarded by this.
+	private boolean mMeasured;
+	private boolean mRefreshQueued;
+	private StorageVolumes.Volume mVolume;
+	private long mFreeBytes;
+	// Written less freed, since the tracker was created, and at the time of
+	// the measurement.
+	private long mConsumedBytes;
+	private long mConsumedAtMeasure;
+	// As last told by setBytesWritten().
+	private long mRecordingBytes;
+
+	private final Runnable mRefresh = new Runnable() {
+		public void run() {
+			refreshAsync();
+			mHandler.postDelayed(this, REFRESH_MS);
+		}
+	};
+
+	/**
+	 * @param minFreeBytes the free space a volume needs to be chosen, as in
+	 *            {@link StorageVolumes#select}, and which recordings do not
+	 *            use, see {@link #getRemainingMs}.
+	 */
+	public StorageTracker(StorageVolumes volumes, long minFreeBytes) {
+		mVolumes = volumes;
+		mMinFreeBytes = minFreeBytes;
+		mExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				return new Thread(r, "StorageTracker");
+			}
+		});
+	}
+
+	public void setListener(Listener listener) {
+		mListener = listener;
+	}
+
+	/** Measures now and every {@link #REFRESH_MS} until {@link #stop}. */
+	public void start() {
+		if (mStarted)
+			return;
+		mStarted = true;
+		mRefresh.run();
+	}
+
+	public void stop() {
+		mStarted = false;
+		mHandler.removeCallbacks(mRefresh);
+	}
+
+	/** Measures again in the background, e.g. once the media was mounted. */
+	public void refreshAsync() {
+		synchronized (this) {
+			if (mRefreshQueued)
+				return;
+			mRefreshQueued = true;
+		}
+		mExecutor.execute(new Runnable() {
+			public void run() {
+				synchronized (StorageTracker.this) {
+					mRefreshQueued = false;
+				}
+				measure();
+				mHandler.post(new Runnable() {
+					public void run() {
+						Listener listener = mListener;
+						if (listener != null) {
+							listener.onStorageChanged();
+						}
+					}
+				});
+			}
+		});
+	}
+
+	private void measure() {
+		long consumed;
+		synchronized (this) {
+			consumed = mConsumedBytes;
+		}
+		StorageVolumes.Volume volume = mVolumes.select(mMinFreeBytes);
+		long free = volume == null ? NO_STORAGE : volume.getFreeBytes();
+		if (free < 0 && volume != null) {
+			free = CANNOT_STAT;
+		}
+		synchronized (this) {
+			mVolume = volume;
+			mFreeBytes = free;
+			mConsumedAtMeasure = consumed;
+			mMeasured = true;
+		}
+	}
+
+	/**
+	 * Returns the volume the next video goes to, null if there is none. The
+	 * first time, it may have to be measured on the calling thread.
+	 */
+	public StorageVolumes.Volume getVolume() {
+		ensureMeasured();
+		synchronized (this) {
+			return mVolume;
+		}
+	}
+
+	/**
+	 * Returns the free bytes of the volume the next video goes to, as
+	 * measured less what has been written since, or {@link #NO_STORAGE} or
+	 * {@link #CANNOT_STAT}. The first time, it may have to be measured on
+	 * the calling thread.
+	 */
+	public long getFreeBytes() {
+		ensureMeasured();
+		synchronized (this) {
+			if (mFreeBytes < 0)
+				return mFreeBytes;
+			return Math.max(0,
+					mFreeBytes - (mConsumedBytes - mConsumedAtMeasure));
+		}
+	}
+
+	private void ensureMeasured() {
+		synchronized (this) {
+			if (mMeasured)
+				return;
+		}
+		Log.v(TAG, "Measuring on the calling thread");
+		measure();
+	}
+
+	/**
+	 * Tells how many bytes the recording in progress takes on the volume so
+	 * far: those written, or those preallocated if more, which a
+	 * measurement already finds taken. A smaller number than before starts
+	 * the count of a new recording or segment.
+	 */
+	public synchronized void setBytesWritten(long bytes) {
+		if (bytes < mRecordingBytes) {
+			mRecordingBytes = 0;
+		}
+		mConsumedBytes += bytes - mRecordingBytes;
+		mRecordingBytes = bytes;
+	}
+
+	/** Tells that {@code bytes} have been freed, e.g. by deleting a video. */
+	public synchronized void onFreed(long bytes) {
+		mConsumedBytes -= bytes;
+	}
+
+	/**
+	 * Returns how long a recording at {@code bytesPerSecond} can go on before
+	 * the volume is down to the minimum free space, or Long.MAX_VALUE if
+	 * that cannot be told. Does not block.
+	 */
+	public long getRemainingMs(long bytesPerSecond) {
+		long free;
+		synchronized (this) {
+			if (!mMeasured || mFreeBytes < 0 || bytesPerSecond <= 0)
+				return Long.MAX_VALUE;
+			free = mFreeBytes - (mConsumedBytes - mConsumedAtMeasure);
+		}
+		return Math.max(0, free - mMinFreeBytes) * 1000 / bytesPerSecond;
+	}
+}
@@ -0,0 +1,157 @@
+package com.android.camera;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.StatFs;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+
+/**
+ * The places a video can be recorded to, and which of them to use.
+ *
+ * <p>
+ * The candidates are the camera folder on the primary external storage, the
+ * same folder on any secondary storage listed in {@code SECONDARY_STORAGE},
+ * and the application's own files directory. {@link #probeAsync()} measures
+ * each of them with {@link StorageProbe} in the background and remembers the
+ * results in the shared preferences for a week.
+ */
+public class StorageVolumes {
+	private static final String TAG = "StorageVolumes";
+
+	private static final String KEY_PREFIX = "pref_storage_probe_";
+	private static final long PROBE_MAX_AGE_MS = 7L * 24 * 60 * 60 * 1000;
+
+	/** A directory videos can be written to. */
+	public static class Volume {
+		public final File dir;
+		// Whether other applications see the videos. The files directory
+		// of the application is only used if no shared volume has room.
+		public final boolean shared;
+		volatile StorageProbe.Result mProbe;
+
+		Volume(File dir, boolean shared) {
+			this.dir = dir;
+			this.shared = shared;
+		}
+
+		public StorageProbe.Result getProbe() {
+			return mProbe;
+		}
+
+		boolean isWritable() {
+			dir.mkdirs();
+			return dir.isDirectory() && dir.canWrite();
+		}
+
+		/** Returns the free bytes, or -1 if they cannot be read. */
+		public long getFreeBytes() {
+			try {
+				StatFs stat = new StatFs(dir.getPath());
+				return (long) stat.getAvailableBlocks()
+						* (long) stat.getBlockSize();
+			} catch (RuntimeException ex) {
+				return -1;
+			}
+		}
+
+		long getBytesPerSecond() {
+			StorageProbe.Result probe = mProbe;
+			return probe == null ? 0 : probe.bytesPerSecond;
+		}
+	}
+
+	private final SharedPreferences mPreferences;
+	private final ArrayList<Volume> mVolumes = new ArrayList<Volume>();
+
+	public StorageVolumes(Context context) {
+		mPreferences = PreferenceManager.getDefaultSharedPreferences(context);
+		mVolumes.add(new Volume(new File(
+				CameraSettings.CAMERA_IMAGE_BUCKET_NAME), true));
+		String secondary = System.getenv("SECONDARY_STORAGE");
+		if (secondary != null) {
+			for (String root : secondary.split(":")) {
+				if (root.length() > 0) {
+					mVolumes.add(new Volume(new File(root, "DCIM/Camera"), true));
+				}
+			}
+		}
+		mVolumes.add(new Volume(new File(context.getFilesDir(), "video"),
+				false));
+
+		long now = System.currentTimeMillis();
+		for (Volume v : mVolumes) {
+			StorageProbe.Result probe = StorageProbe.Result.decode(
+					v.dir.getPath(),
+					mPreferences.getString(KEY_PREFIX + v.dir.getPath(), null));
+			if (probe != null && now - probe.measuredAt < PROBE_MAX_AGE_MS) {
+				v.mProbe = probe;
+			}
+		}
+	}
+
+	/**
+	 * Measures the volumes without a recent result on a background thread.
+	 */
+	public void probeAsync() {
+		new Thread(new Runnable() {
+			public void run() {
+				for (Volume v : mVolumes) {
+					if (v.mProbe != null || !v.isWritable())
+						continue;
+					try {
+						v.mProbe = StorageProbe.probe(v.dir,
+								StorageProbe.DEFAULT_PROBE_BYTES);
+					} catch (IOException e) {
+						Log.w(TAG, "Cannot probe " + v.dir, e);
+						continue;
+					}
+					Log.v(TAG, v.mProbe.toString());
+					mPreferences.edit().putString(
+							KEY_PREFIX + v.dir.getPath(), v.mProbe.encode())
+							.commit();
+				}
+			}
+		}, "StorageProbe").start();
+	}
+
+	/**
+	 * Returns the fastest shared volume with at least {@code minFreeBytes},
+	 * the application's own one if none has, or else the shared volume with
+	 * the most room. Returns null if nothing can be written to.
+	 */
+	public Volume select(long minFreeBytes) {
+		Volume best = null;
+		Volume roomiest = null;
+		long roomiestFree = -1;
+		Volume fallback = null;
+		for (Volume v : mVolumes) {
+			// The primary storage is checked the way the rest of the
+			// application does it.
+			if (v == mVolumes.get(0) ? !CameraSettings.hasStorage()
+					: !v.isWritable())
+				continue;
+			long free = v.getFreeBytes();
+			if (free < minFreeBytes) {
+				if (v.shared && free > roomiestFree) {
+					roomiest = v;
+					roomiestFree = free;
+				}
+				continue;
+			}
+			if (!v.shared) {
+				fallback = v;
+			} else if (best == null
+					|| v.getBytesPerSecond() > best.getBytesPerSecond()) {
+				best = v;
+			}
+		}
+		if (best != null)
+			return best;
+		return fallback != null ? fallback : roomiest;
+	}
+}
@@ -0,0 +1,295 @@
+package com.android.camera;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.media.ThumbnailUtils;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.provider.MediaStore.Video;
+import android.support.v4.util.LruCache;
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Makes video thumbnails on a pool of background threads and caches them,
+ * in memory and as JPEG data packed into a {@link ThumbnailStore} on disk,
+ * keyed by the path and the last modification time of the video so that a
+ * changed file gets a new one.
+ *
+ * <p>
+ * A thumbnail in memory is handed out right away, see {@link #getCached};
+ * otherwise {@link #request} delivers it on the main thread later. Requests
+ * for a thumbnail that is already being loaded wait for that load instead
+ * of starting another. The modification time is best passed in, e.g. from
+ * the {@link RecordingsCatalog}; if it is not, it is read on a background
+ * thread, never on the main one. There is one service per process, see
+ * {@link #instance}.
+ */
+public class ThumbnailService {
+	private static final String TAG = "ThumbnailService";
+
+	private static final String DIRECTORY = "thumbnails";
+	private static final int THREADS = 2;
+	private static final long DISK_BUDGET_BYTES = 4L * 1024L * 1024L;
+	// Of the packed file, before it is compacted.
+	private static final float DISK_DEAD_SHARE = 0.5f;
+	private static final int JPEG_QUALITY = 80;
+
+	/** Called on the main thread, with null if there is no thumbnail. */
+	public interface Callback {
+		void onThumbnail(String path, Bitmap bitmap);
+	}
+
+	/** A thumbnail on its way. */
+	public static class Request {
+		private final Callback mCallback;
+		private volatile boolean mCancelled;
+		private volatile Load mLoad;
+
+		Request(Callback callback) {
+			mCallback = callback;
+		}
+
+		/** The callback will not be called after this. */
+		public void cancel() {
+			mCancelled = true;
+			Load load = mLoad;
+			if (load != null) {
+				load.onCancelled();
+			}
+		}
+
+		public boolean isCancelled() {
+			return mCancelled;
+		}
+	}
+
+	// Loads a thumbnail for all the requests made for it meanwhile.
+	private class Load implements Runnable {
+		final String mPath;
+		// -1 if not known yet.
+		final long mModified;
+		final String mKey;
+		// Both guarded by mLoads.
+		final ArrayList<Request> mRequests = new ArrayList<Request>();
+		Future<?> mFuture;
+
+		Load(String path, long modified, String key) {
+			mPath = path;
+			mModified = modified;
+			mKey = key;
+		}
+
+		public void run() {
+			long modified = mModified >= 0 ? mModified : new File(mPath)
+					.lastModified();
+			final Bitmap bitmap = load(mPath, modified);
+			final ArrayList<Request> requests;
+			synchronized (mLoads) {
+				if (mLoads.get(mKey) == this) {
+					mLoads.remove(mKey);
+				}
+				requests = new ArrayList<Request>(mRequests);
+			}
+			mHandler.post(new Runnable() {
+				public void run() {
+					for (Request r : requests) {
+						if (r.mCallback != null && !r.isCancelled()) {
+							r.mCallback.onThumbnail(mPath, bitmap);
+						}
+					}
+				}
+			});
+		}
+
+		// Called once one of the requests is; the load is dropped once all
+		// of them are.
+		void onCancelled() {
+			synchronized (mLoads) {
+				for (Request r : mRequests) {
+					if (!r.isCancelled())
+						return;
+				}
+				if (mLoads.get(mKey) == this) {
+					mLoads.remove(mKey);
+				}
+				mFuture.cancel(false);
+			}
+		}
+	}
+
+	private static ThumbnailService sInstance;
+
+	private final File mDirectory;
+	private final Handler mHandler = new Handler(Looper.getMainLooper());
+	private final ExecutorService mExecutor;
+	private final LruCache<String, Bitmap> mMemory;
+	// The thumbnails being loaded, by key.
+	private final HashMap<String, Load> mLoads = new HashMap<String, Load>();
+	// Opened on first use, on a background thread; guarded by this.
+	private ThumbnailStore mStore;
+	private boolean mStoreOpened;
+
+	public static synchronized ThumbnailService instance(Context context) {
+		if (sInstance == null) {
+			sInstance = new ThumbnailService(new File(context
+					.getApplicationContext().getCacheDir(), DIRECTORY));
+		}
+		return sInstance;
+	}
+
+	private ThumbnailService(File directory) {
+		mDirectory = directory;
+		mExecutor = Executors.newFixedThreadPool(THREADS, new ThreadFactory() {
+			public Thread newThread(final Runnable r) {
+				return new Thread(new Runnable() {
+					public void run() {
+						Process.setThreadPriority(
+								Process.THREAD_PRIORITY_BACKGROUND);
+						r.run();
+					}
+				}, "Thumbnail");
+			}
+		});
+		// An eighth of what the application may use.
+		int budget = (int) Math.min(Integer.MAX_VALUE, Runtime.getRuntime()
+				.maxMemory() / 8);
+		mMemory = new LruCache<String, Bitmap>(budget) {
+			@Override
+			protected int sizeOf(String key, Bitmap bitmap) {
+				return bitmap.getRowBytes() * bitmap.getHeight();
+			}
+		};
+	}
+
+	/**
+	 * Returns the thumbnail of the video at {@code path}, last modified at
+	 * {@code modified}, if it is in memory, else null.
+	 */
+	public Bitmap getCached(String path, long modified) {
+		return mMemory.get(getKey(path, modified));
+	}
+
+	/**
+	 * Gets the thumbnail of the video at {@code path}, last modified at
+	 * {@code modified}. If it is in memory, {@code callback} is called
+	 * before this returns. The callback may be null, to only have the
+	 * thumbnail cached.
+	 */
+	public Request request(String path, long modified, Callback callback) {
+		Request request = new Request(callback);
+		String key = getKey(path, modified);
+		if (modified >= 0) {
+			Bitmap bitmap = mMemory.get(key);
+			if (bitmap != null) {
+				if (callback != null) {
+					callback.onThumbnail(path, bitmap);
+				}
+				return request;
+			}
+		}
+		synchronized (mLoads) {
+			Load load = mLoads.get(key);
+			if (load == null) {
+				load = new Load(path, modified, key);
+				mLoads.put(key, load);
+				load.mFuture = mExecutor.submit(load);
+			}
+			load.mRequests.add(request);
+			request.mLoad = load;
+		}
+		return request;
+	}
+
+	/**
+	 * Gets the thumbnail of the video at {@code path} as it is now, always
+	 * on the main thread after this returns.
+	 */
+	public Request request(String path, Callback callback) {
+		return request(path, -1, callback);
+	}
+
+	// From memory, disk or the video, in that order.
+	private Bitmap load(String path, long mtime) {
+		String key = getKey(path, mtime);
+		Bitmap bitmap = mMemory.get(key);
+		if (bitmap != null)
+			return bitmap;
+		long begin = System.currentTimeMillis();
+		ThumbnailStore store = getStore();
+		if (store != null) {
+			try {
+				byte[] data = store.get(path, mtime);
+				if (data != null) {
+					bitmap = BitmapFactory.decodeByteArray(data, 0, data.length);
+				}
+			} catch (IOException e) {
+				Log.w(TAG, "Cannot read the thumbnail of " + path, e);
+			}
+		}
+		if (bitmap == null) {
+			bitmap = ThumbnailUtils.createVideoThumbnail(path,
+					Video.Thumbnails.MINI_KIND);
+			if (bitmap == null)
+				return null;
+			if (store != null) {
+				store(store, path, mtime, bitmap);
+			}
+		}
+		mMemory.put(key, bitmap);
+		Log.v(TAG, "Loaded " + path + " in "
+				+ (System.currentTimeMillis() - begin) + "ms");
+		return bitmap;
+	}
+
+	private static void store(ThumbnailStore store, String path, long mtime,
+			Bitmap bitmap) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		bitmap.compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY, out);
+		try {
+			store.put(path, mtime, out.toByteArray());
+		} catch (IOException e) {
+			Log.w(TAG, "Cannot write the thumbnail of " + path, e);
+		}
+	}
+
+	// Null if the store cannot be opened; memory has to do then.
+	private synchronized ThumbnailStore getStore() {
+		if (mStoreOpened)
+			return mStore;
+		mStoreOpened = true;
+		mDirectory.mkdirs();
+		// One file per thumbnail, as they were kept before.
+		File[] files = mDirectory.listFiles();
+		if (files != null) {
+			for (File f : files) {
+				if (f.getName().endsWith(".jpg")) {
+					f.delete();
+				}
+			}
+		}
+		try {
+			mStore = new ThumbnailStore(mDirectory, DISK_BUDGET_BYTES,
+					DISK_DEAD_SHARE);
+			Log.v(TAG, "Opened " + mStore);
+		} catch (IOException e) {
+			Log.w(TAG, "Cannot open the thumbnails in " + mDirectory, e);
+		}
+		return mStore;
+	}
+
+	private static String getKey(String path, long modified) {
+		return path + ":" + modified;
+	}
+}
@@ -0,0 +1,490 @@
+package com.android.camera;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Random;
+
+/**
+ * Encoded thumbnails packed into two files, rather than one file each,
+ * which FAT cards are slow to list once there are thousands.
+ *
+ * <p>
+ * The data file is only appended to: after its header come the records,
+ * each the hash of the video's path, its modification time, the length and
+ * the encoded thumbnail. The index file is a hash table of fixed size slots
+ * keyed by the hash of the path. It is memory mapped, so a lookup touches
+ * only the slots it probes and then reads the record.
+ *
+ * <p>
+ * Putting a thumbnail for a path again, or removing one, leaves a dead
+ * record behind. Once dead records take more than the given share of the
+ * data file, or the live ones more than the budget, the store is compacted:
+ * the newest live records that fit into the budget are copied to a new
+ * data file and the index is built anew. A data file and an index that do
+ * not belong together, e.g. after a crash, are put back in step by building
+ * the index from the data file.
+ *
+ * <p>
+ * Nothing here depends on Android, so it can be run on the JVM. The methods
+ * are synchronized.
+ */
+public class ThumbnailStore {
+	static final String DATA_FILE = "thumbnails.dat";
+	static final String INDEX_FILE = "thumbnails.idx";
+
+	private static final int DATA_MAGIC = 0x54484d44; // "THMD"
+	private static final int INDEX_MAGIC = 0x54484d49; // "THMI"
+	private static final int VERSION = 1;
+
+	// Magic, version, generation.
+	private static final int DATA_HEADER_BYTES = 16;
+	// Path hash, modification time, length.
+	private static final int RECORD_HEADER_BYTES = 20;
+
+	// Magic, version, generation, capacity, used slots, live slots, live
+	// bytes, dead bytes, end of the data.
+	private static final int INDEX_HEADER_BYTES = 64;
+	private static final int INDEX_GENERATION = 8;
+	private static final int INDEX_CAPACITY = 16;
+	private static final int INDEX_USED = 20;
+	private static final int INDEX_LIVE = 24;
+	private static final int INDEX_LIVE_BYTES = 32;
+	private static final int INDEX_DEAD_BYTES = 40;
+	private static final int INDEX_DATA_END = 48;
+
+	// Path hash, modification time, record offset, thumbnail length, state.
+	private static final int SLOT_BYTES = 32;
+	private static final int SLOT_MTIME = 8;
+	private static final int SLOT_OFFSET = 16;
+	private static final int SLOT_LENGTH = 24;
+	private static final int SLOT_STATE = 28;
+	private static final int STATE_EMPTY = 0;
+	private static final int STATE_LIVE = 1;
+	// Removed, but still on the probe path of others.
+	private static final int STATE_DEAD = 2;
+
+	private static final int MIN_CAPACITY = 256;
+	// Compacting is not worth it for less.
+	private static final long MIN_DEAD_BYTES = 64 * 1024;
+	// Anything longer is taken for a damaged record.
+	private static final int MAX_THUMBNAIL_BYTES = 4 * 1024 * 1024;
+
+	private final File mDataFile;
+	private final File mIndexFile;
+	private final long mBudgetBytes;
+	private final float mDeadShare;
+
+	private RandomAccessFile mData;
+	private long mGeneration;
+	private MappedByteBuffer mIndex;
+	private int mCapacity;
+	private int mCompactions;
+
+	/**
+	 * Opens the store in {@code directory}, creating it if need be.
+	 *
+	 * @param budgetBytes how much the live thumbnails may take.
+	 * @param deadShare the share of the data file dead records may take
+	 *            before it is compacted.
+	 */
+	public ThumbnailStore(File directory, long budgetBytes, float deadShare)
+			throws IOException {
+		directory.mkdirs();
+		mDataFile = new File(directory, DATA_FILE);
+		mIndexFile = new File(directory, INDEX_FILE);
+		mBudgetBytes = budgetBytes;
+		mDeadShare = deadShare;
+		open();
+	}
+
+	private void open() throws IOException {
+		mData = new RandomAccessFile(mDataFile, "rw");
+		if (!readDataHeader()) {
+			mGeneration = new Random().nextLong();
+			mData.setLength(0);
+			writeDataHeader(mData, mGeneration);
+			createIndex(mIndexFile, MIN_CAPACITY);
+			setLong(INDEX_DATA_END, DATA_HEADER_BYTES);
+			return;
+		}
+		if (!mapIndex() || getLong(INDEX_DATA_END) > mData.length()) {
+			rebuildIndex();
+		} else if (mData.length() > getLong(INDEX_DATA_END)) {
+			// A record that was being appended.
+			mData.setLength(getLong(INDEX_DATA_END));
+		}
+	}
+
+	private boolean readDataHeader() throws IOException {
+		if (mData.length() < DATA_HEADER_BYTES)
+			return false;
+		mData.seek(0);
+		if (mData.readInt() != DATA_MAGIC || mData.readInt() != VERSION)
+			return false;
+		mGeneration = mData.readLong();
+		return true;
+	}
+
+	private static void writeDataHeader(RandomAccessFile data, long generation)
+			throws IOException {
+		data.seek(0);
+		data.writeInt(DATA_MAGIC);
+		data.writeInt(VERSION);
+		data.writeLong(generation);
+	}
+
+	// Maps the index file if it belongs to the data file.
+	private boolean mapIndex() throws IOException {
+		if (!mIndexFile.isFile() || mIndexFile.length() < INDEX_HEADER_BYTES)
+			return false;
+		MappedByteBuffer index = map(mIndexFile, mIndexFile.length());
+		int capacity = index.getInt(INDEX_CAPACITY);
+		if (index.getInt(0) != INDEX_MAGIC || index.getInt(4) != VERSION
+				|| index.getLong(INDEX_GENERATION) != mGeneration
+				|| capacity < MIN_CAPACITY
+				|| Integer.bitCount(capacity) != 1
+				|| mIndexFile.length() != indexBytes(capacity))
+			return false;
+		mIndex = index;
+		mCapacity = capacity;
+		return true;
+	}
+
+	private static MappedByteBuffer map(File file, long length)
+			throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.setLength(length);
+			return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+					length);
+		} finally {
+			raf.close();
+		}
+	}
+
+	private static long indexBytes(int capacity) {
+		return INDEX_HEADER_BYTES + (long) capacity * SLOT_BYTES;
+	}
+
+	// Makes mIndex an empty index of the data file in file.
+	private void createIndex(File file, int capacity) throws IOException {
+		file.delete();
+		mIndex = map(file, indexBytes(capacity));
+		mCapacity = capacity;
+		mIndex.putInt(0, INDEX_MAGIC);
+		mIndex.putInt(4, VERSION);
+		mIndex.putLong(INDEX_GENERATION, mGeneration);
+		mIndex.putInt(INDEX_CAPACITY, capacity);
+	}
+
+	// Builds the index from the records of the data file, cutting it back
+	// to the last complete one. Removals are not in the data file, so what
+	// was removed since the last compaction comes back, unused.
+	private void rebuildIndex() throws IOException {
+		createIndex(mIndexFile, MIN_CAPACITY);
+		long length = mData.length();
+		long offset = DATA_HEADER_BYTES;
+		while (offset + RECORD_HEADER_BYTES <= length) {
+			mData.seek(offset);
+			long hash = mData.readLong();
+			long mtime = mData.readLong();
+			int size = mData.readInt();
+			if (size < 0 || size > MAX_THUMBNAIL_BYTES
+					|| offset + RECORD_HEADER_BYTES + size > length)
+				break;
+			setLong(INDEX_DATA_END, offset + RECORD_HEADER_BYTES + size);
+			index(hash, mtime, offset, size);
+			offset += RECORD_HEADER_BYTES + size;
+		}
+		setLong(INDEX_DATA_END, offset);
+		mData.setLength(offset);
+	}
+
+	/**
+	 * Returns the thumbnail of the video at {@code path}, last modified at
+	 * {@code mtime}, or null if there is none.
+	 */
+	public synchronized byte[] get(String path, long mtime) throws IOException {
+		long hash = hash(path);
+		int slot = find(hash);
+		if (slot < 0)
+			return null;
+		int p = slotPosition(slot);
+		if (mIndex.getLong(p + SLOT_MTIME) != mtime)
+			return null;
+		long offset = mIndex.getLong(p + SLOT_OFFSET);
+		int size = mIndex.getInt(p + SLOT_LENGTH);
+		mData.seek(offset);
+		if (mData.readLong() != hash || mData.readLong() != mtime
+				|| mData.readInt() != size)
+			return null;
+		byte[] data = new byte[size];
+		mData.readFully(data);
+		return data;
+	}
+
+	/**
+	 * Stores {@code data} as the thumbnail of the video at {@code path}, last
+	 * modified at {@code mtime}, replacing any it had.
+	 */
+	public synchronized void put(String path, long mtime, byte[] data)
+			throws IOException {
+		if (data.length > MAX_THUMBNAIL_BYTES)
+			throw new IOException("thumbnail too large: " + data.length);
+		long hash = hash(path);
+		long offset = getLong(INDEX_DATA_END);
+		ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_BYTES
+				+ data.length);
+		record.putLong(hash).putLong(mtime).putInt(data.length).put(data);
+		mData.seek(offset);
+		mData.write(record.array());
+		// Only now does the index know about the record.
+		setLong(INDEX_DATA_END, offset + record.capacity());
+		index(hash, mtime, offset, data.length);
+		compactIfNeeded();
+	}
+
+	/** Removes the thumbnail of the video at {@code path}, if any. */
+	public synchronized void remove(String path) throws IOException {
+		int slot = find(hash(path));
+		if (slot < 0)
+			return;
+		int p = slotPosition(slot);
+		long size = RECORD_HEADER_BYTES + mIndex.getInt(p + SLOT_LENGTH);
+		mIndex.putInt(p + SLOT_STATE, STATE_DEAD);
+		mIndex.putInt(INDEX_LIVE, mIndex.getInt(INDEX_LIVE) - 1);
+		setLong(INDEX_LIVE_BYTES, getLong(INDEX_LIVE_BYTES) - size);
+		setLong(INDEX_DEAD_BYTES, getLong(INDEX_DEAD_BYTES) + size);
+		compactIfNeeded();
+	}
+
+	// Points the slot for hash at the record, the one it pointed to dying.
+	private void index(long hash, long mtime, long offset, int length)
+			throws IOException {
+		int slot = find(hash);
+		long size = RECORD_HEADER_BYTES + length;
+		if (slot >= 0) {
+			long old = RECORD_HEADER_BYTES
+					+ mIndex.getInt(slotPosition(slot) + SLOT_LENGTH);
+			setLong(INDEX_LIVE_BYTES, getLong(INDEX_LIVE_BYTES) - old);
+			setLong(INDEX_DEAD_BYTES, getLong(INDEX_DEAD_BYTES) + old);
+		} else {
+			// Keep the table at most three quarters full.
+			if ((mIndex.getInt(INDEX_USED) + 1) * 4L > mCapacity * 3L) {
+				growIndex();
+			}
+			slot = -find(hash) - 1;
+			int p = slotPosition(slot);
+			if (mIndex.getInt(p + SLOT_STATE) == STATE_EMPTY) {
+				mIndex.putInt(INDEX_USED, mIndex.getInt(INDEX_USED) + 1);
+			}
+			mIndex.putInt(INDEX_LIVE, mIndex.getInt(INDEX_LIVE) + 1);
+		}
+		int p = slotPosition(slot);
+		mIndex.putLong(p, hash);
+		mIndex.putLong(p + SLOT_MTIME, mtime);
+		mIndex.putLong(p + SLOT_OFFSET, offset);
+		mIndex.putInt(p + SLOT_LENGTH, length);
+		mIndex.putInt(p + SLOT_STATE, STATE_LIVE);
+		setLong(INDEX_LIVE_BYTES, getLong(INDEX_LIVE_BYTES) + size);
+	}
+
+	// Returns the live slot for hash, or else -1 - the slot to put it in.
+	private int find(long hash) {
+		int mask = mCapacity - 1;
+		int insert = -1;
+		for (int i = (int) (hash ^ (hash >>> 32)) & mask;; i = (i + 1) & mask) {
+			int p = slotPosition(i);
+			int state = mIndex.getInt(p + SLOT_STATE);
+			if (state == STATE_EMPTY)
+				return -1 - (insert >= 0 ? insert : i);
+			if (state == STATE_DEAD) {
+				if (insert < 0) {
+					insert = i;
+				}
+			} else if (mIndex.getLong(p) == hash) {
+				return i;
+			}
+		}
+	}
+
+	private static int slotPosition(int slot) {
+		return INDEX_HEADER_BYTES + slot * SLOT_BYTES;
+	}
+
+	// Rehashes the live slots into a table twice their number, at least.
+	private void growIndex() throws IOException {
+		long[][] live = liveSlots();
+		long liveBytes = getLong(INDEX_LIVE_BYTES);
+		long deadBytes = getLong(INDEX_DEAD_BYTES);
+		long dataEnd = getLong(INDEX_DATA_END);
+		int capacity = MIN_CAPACITY;
+		while (capacity < (live.length + 1) * 4) {
+			capacity *= 2;
+		}
+		File tmp = new File(mIndexFile.getPath() + ".tmp");
+		createIndex(tmp, capacity);
+		for (long[] s : live) {
+			index(s[0], s[1], s[2], (int) s[3]);
+		}
+		setLong(INDEX_LIVE_BYTES, liveBytes);
+		setLong(INDEX_DEAD_BYTES, deadBytes);
+		setLong(INDEX_DATA_END, dataEnd);
+		rename(tmp, mIndexFile);
+	}
+
+	// Hash, mtime, offset and length of each live slot.
+	private long[][] liveSlots() {
+		long[][] live = new long[mIndex.getInt(INDEX_LIVE)][];
+		int n = 0;
+		for (int i = 0; i < mCapacity && n < live.length; i++) {
+			int p = slotPosition(i);
+			if (mIndex.getInt(p + SLOT_STATE) == STATE_LIVE) {
+				live[n++] = new long[] { mIndex.getLong(p),
+						mIndex.getLong(p + SLOT_MTIME),
+						mIndex.getLong(p + SLOT_OFFSET),
+						mIndex.getInt(p + SLOT_LENGTH) };
+			}
+		}
+		return n == live.length ? live : Arrays.copyOf(live, n);
+	}
+
+	private void compactIfNeeded() throws IOException {
+		long live = getLong(INDEX_LIVE_BYTES);
+		long dead = getLong(INDEX_DEAD_BYTES);
+		if (live > mBudgetBytes
+				|| (dead >= MIN_DEAD_BYTES && dead > (live + dead) * mDeadShare)) {
+			compact();
+		}
+	}
+
+	/**
+	 * Copies the newest live records that fit into the budget to a new data
+	 * file and builds its index. Over the budget, only three quarters of it
+	 * are kept, not to compact again on the next put.
+	 */
+	public synchronized void compact() throws IOException {
+		long budget = getLong(INDEX_LIVE_BYTES) > mBudgetBytes ? mBudgetBytes
+				/ 4 * 3 : mBudgetBytes;
+		long[][] live = liveSlots();
+		// Newest first, by where they were appended.
+		Arrays.sort(live, new Comparator<long[]>() {
+			public int compare(long[] a, long[] b) {
+				return a[2] > b[2] ? -1 : (a[2] == b[2] ? 0 : 1);
+			}
+		});
+		int keep = 0;
+		long bytes = 0;
+		while (keep < live.length
+				&& bytes + RECORD_HEADER_BYTES + live[keep][3] <= budget) {
+			bytes += RECORD_HEADER_BYTES + live[keep][3];
+			++keep;
+		}
+
+		File tmp = new File(mDataFile.getPath() + ".tmp");
+		RandomAccessFile out = new RandomAccessFile(tmp, "rw");
+		long generation = mGeneration + 1;
+		try {
+			out.setLength(0);
+			writeDataHeader(out, generation);
+			byte[] buffer = new byte[64 * 1024];
+			// Oldest first again, to stay in the order they were put.
+			for (int i = keep - 1; i >= 0; i--) {
+				long[] s = live[i];
+				long from = s[2];
+				long to = out.getFilePointer();
+				int left = RECORD_HEADER_BYTES + (int) s[3];
+				while (left > 0) {
+					int n = Math.min(left, buffer.length);
+					mData.seek(from);
+					mData.readFully(buffer, 0, n);
+					out.write(buffer, 0, n);
+					from += n;
+					left -= n;
+				}
+				s[2] = to;
+			}
+		} finally {
+			out.close();
+		}
+		mData.close();
+		rename(tmp, mDataFile);
+		mData = new RandomAccessFile(mDataFile, "rw");
+		mGeneration = generation;
+
+		// An index written before a crash here no longer matches the data
+		// file by its generation, and is built anew on opening.
+		File index = new File(mIndexFile.getPath() + ".tmp");
+		int capacity = MIN_CAPACITY;
+		while (capacity < (keep + 1) * 4) {
+			capacity *= 2;
+		}
+		createIndex(index, capacity);
+		for (int i = keep - 1; i >= 0; i--) {
+			index(live[i][0], live[i][1], live[i][2], (int) live[i][3]);
+		}
+		setLong(INDEX_DATA_END, mData.length());
+		rename(index, mIndexFile);
+		++mCompactions;
+	}
+
+	private static void rename(File from, File to) throws IOException {
+		if (!from.renameTo(to)) {
+			from.delete();
+			throw new IOException("cannot replace " + to);
+		}
+	}
+
+	public synchronized int getCount() {
+		return mIndex.getInt(INDEX_LIVE);
+	}
+
+	public synchronized long getLiveBytes() {
+		return getLong(INDEX_LIVE_BYTES);
+	}
+
+	public synchronized long getDeadBytes() {
+		return getLong(INDEX_DEAD_BYTES);
+	}
+
+	public synchronized int getCompactions() {
+		return mCompactions;
+	}
+
+	public synchronized void close() throws IOException {
+		mIndex.force();
+		mData.close();
+	}
+
+	@Override
+	public synchronized String toString() {
+		return getCount() + " thumbnails, " + getLiveBytes() + " bytes live, "
+				+ getDeadBytes() + " dead, " + mCapacity + " slots, "
+				+ mCompactions + " compactions";
+	}
+
+	private long getLong(int position) {
+		return mIndex.getLong(position);
+	}
+
+	private void setLong(int position, long value) {
+		mIndex.putLong(position, value);
+	}
+
+	// 64 bit FNV-1a.
+	static long hash(String path) {
+		long h = 0xcbf29ce484222325L;
+		for (int i = 0; i < path.length(); i++) {
+			char c = path.charAt(i);
+			h = (h ^ (c & 0xff)) * 0x100000001b3L;
+			h = (h ^ (c >>> 8)) * 0x100000001b3L;
+		}
+		return h;
+	}
+}
@@ -16,7 +16,6 @@
 
 package com.android.camera;
 
-import android.annotation.TargetApi;
 import android.app.Activity;
 import android.content.ActivityNotFoundException;
 import android.content.BroadcastReceiver;
@@ -30,18 +29,15 @@ import android.content.res.Configuration;
 import android.content.res.Resources;
 import android.graphics.Bitmap;
 import android.graphics.drawable.Drawable;
-import android.hardware.Camera.Parameters;
-import android.hardware.Camera.Size;
+import android.hardware.Camera;
 import android.media.CamcorderProfile;
 import android.media.MediaRecorder;
-import android.media.ThumbnailUtils;
+import android.media.MediaScannerConnection;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
-import android.os.Environment;
 import android.os.Handler;
 import android.os.Message;
-import android.os.StatFs;
 import android.os.SystemClock;
 import android.preference.PreferenceManager;
 import android.provider.MediaStore;
@@ -67,14 +63,14 @@ import android.widget.Toast;
 
 import java.io.File;
 import java.io.FileDescriptor;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.text.DecimalFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
-import java.util.List;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.concurrent.Future;
 
 import com.camera.R;
 
@@ -102,9 +98,16 @@ public class VideoRecorder extends Activity implements View.OnClickListener,
 	private static final int INIT_RECORDER = 3;
 	private static final int CLEAR_SCREEN_DELAY = 4;
 	private static final int UPDATE_RECORD_TIME = 5;
-	private static final int ENABLE_SHUTTER_BUTTON = 6;
+	private static final int RECORDER_REQUEST_DONE = 6;
+	private static final int RECORDER_STATE_CHANGED = 7;
+	private static final int RECORDER_ERROR = 8;
+	private static final int ROLL_SEGMENT = 9;
+	private static final int SEGMENT_ROLLED = 10;
 
 	private static final int SCREEN_DELAY = 2 * 60 * 1000;
+	// How long the camera is kept open while the recorded clip is reviewed,
+	// so that a retake only needs to reconnect to it.
+	private static final long REVIEW_KEEP_CAMERA_MS = 30 * 1000;
 	private static final int MAX_DURATION_MS_DEFAULT = 30 * 1000;
 
 	// mt15i:
@@ -112,8 +115,10 @@ public class VideoRecorder extends Activity implements View.OnClickListener,
 	// mProfile.videoFrameHeight=144
 	// mProfile.videoBitRate=96000
 
-	private static final float VIDEO_SIZE_RATE = 2.0f;
-	private static final int VIDEO_BIT_RATE = 256000 * 3;// mt15i:96000,i9000:256000
+	// The size we record at, CIF, or the supported size nearest to it. The
+	// bitrate is derived from the size, see ProfileResolver.
+	private static final int VIDEO_TARGET_WIDTH = 352;
+	private static final int VIDEO_TARGET_HEIGHT = 288;
 
 	// The brightness settings used when it is set to automatic in the system.
 	// The reason why it is set to 0.7 is just because 1.0 is too bright.
@@ -127,8 +132,6 @@ public class VideoRecorder extends Activity implements View.OnClickListener,
 	private static final int STORAGE_STATUS_LOW = 1;
 	private static final int STORAGE_STATUS_NONE = 2;
 
-	private static final long SHUTTER_BUTTON_TIMEOUT = 500L; // 500ms
-
 	/**
 	 * An unpublished intent flag requesting to start recording straight away
 	 * and return as soon as recording is stopped. TODO: consider publishing by
@@ -136,6 +139,48 @@ public class VideoRecorder extends Activity implements View.OnClickListener,
 	 */
 	private final static String EXTRA_QUICK_CAPTURE = "android.intent.extra.quickCapture";
 
+	/**
+	 * Unpublished intent extras turning on loop recording, see
+	 * LoopRecording: the length of a segment in seconds and the storage
+	 * budget of all segments in megabytes.
+	 */
+	private final static String EXTRA_LOOP_SEGMENT_SECONDS = "com.android.camera.extra.LOOP_SEGMENT_SECONDS";
+	private final static String EXTRA_LOOP_BUDGET_MB = "com.android.camera.extra.LOOP_BUDGET_MB";
+	private static final int LOOP_BUDGET_MB_DEFAULT = 1024;
+	// Below the video directory.
+	private static final String LOOP_DIRECTORY = "Loop";
+	// Below the application's files directory.
+	private static final String JOURNAL_DIRECTORY = "journal";
+
+	/**
+	 * An unpublished intent extra turning on the pre-roll: how many seconds
+	 * from before the shutter is pressed the video starts with, see
+	 * PreRollBuffer. Needs API level 9 for the pipe.
+	 */
+	private final static String EXTRA_PRE_ROLL_SECONDS = "com.android.camera.extra.PRE_ROLL_SECONDS";
+	private static final int PRE_ROLL_SEGMENT_MS = 2000;
+	private static final long PRE_ROLL_BUDGET_BYTES = 4L * 1024L * 1024L;
+
+	/**
+	 * Unpublished intent extras turning on the deletion of old videos, see
+	 * RetentionManager: the free space to keep on the volume and the most
+	 * the videos in the camera directory may take, in megabytes.
+	 */
+	/**
+	 * An unpublished intent extra turning on recording through a pipe
+	 * drained by our own writer, see PipeWriter. Needs API level 9; the
+	 * pre-roll turns it on too.
+	 */
+	private final static String EXTRA_PIPE_OUTPUT = "com.android.camera.extra.PIPE_OUTPUT";
+
+	private final static String EXTRA_RETENTION_FREE_MB = "com.android.camera.extra.RETENTION_FREE_MB";
+	private final static String EXTRA_RETENTION_LIBRARY_MB = "com.android.camera.extra.RETENTION_LIBRARY_MB";
+
+	// What a roll was for, in arg2 of SEGMENT_ROLLED.
+	private static final int ROLL_LOOP = 0;
+	private static final int ROLL_PRE_ROLL = 1;
+	private static final int ROLL_LIVE = 2;
+
 	private SharedPreferences mPreferences;
 
 	private FrameLayout mFrame;
@@ -143,16 +188,33 @@ public class VideoRecorder extends Activity implements View.OnClickListener,
 	private SurfaceView mVideoPreview;
 	private SurfaceHolder mSurfaceHolder = null;
 	private ImageView mVideoFrame;
+	private ThumbnailService mThumbnails;
+	// The thumbnail for mVideoFrame, while it is being made.
+	private ThumbnailService.Request mThumbnailRequest;
 	private GLRootView mGLRootView;
 
 	private boolean mQuickCapture;
 
 	private boolean mStartPreviewFail = false;
+	// True while an open/startPreview request is queued on the CameraHolder
+	// thread.
+	private boolean mStartingPreview = false;
+	// Bumped every time the camera is closed, see CameraRequest.
+	private int mCameraGeneration = 0;
 
 	private int mStorageStatus = STORAGE_STATUS_OK;
 
-	private MediaRecorder mMediaRecorder;
-	private boolean mMediaRecorderRecording = false;
+	// Owns the MediaRecorder and runs its transitions off the main thread.
+	// Created in onResume() and released in onPause().
+	private RecordingSession mSession;
+	private Future<?> mPrepareFuture;
+	// Set when the review screen should be shown once the recording has been
+	// finished.
+	private boolean mReviewAfterStop = false;
+	// Set when the video should be returned to the caller once it has been
+	// finished, and once it has been registered.
+	private boolean mReturnAfterStop = false;
+	private boolean mReturnPending = false;
 	private long mRecordingStartTime;
 	// The video file that the hardware camera is about to record into
 	// (or is recording into.)
@@ -164,8 +226,90 @@ public class VideoRecorder extends Activity implements View.OnClickListener,
 	private String mCurrentVideoFilename;
 	private Uri mCurrentVideoUri;
 	private ContentValues mCurrentVideoValues;
-
-	private CamcorderProfile mProfile;
+	// Set if it went to the caller's EXTRA_OUTPUT rather than to a file of
+	// ours; the descriptor itself is let go of once the recorder is.
+	private boolean mCurrentVideoToCaller;
+	// Cleared if it went to our own files directory, where neither the
+	// media provider nor the caller can read it.
+	private boolean mCurrentVideoShared = true;
+
+	private RecordingProfile mProfile;
+	// Loaded before the camera is opened; null until the first preview of
+	// this build has been captured.
+	private DeviceCapabilities mCapabilities;
+	private BitrateGovernor mBitrateGovernor;
+	// The recorder of the current or last recording.
+	private MediaRecorderController mRecorderController;
+	private StorageVolumes mStorageVolumes;
+	// The volume chosen and its free space, measured in the background.
+	private StorageTracker mStorage;
+	// The directory of the volume chosen by getAvailableStorage().
+	private File mVideoDir;
+	// Whether other applications see the videos in mVideoDir, see
+	// StorageVolumes.Volume.shared.
+	private boolean mVideoShared = true;
+	// See EXTRA_PIPE_OUTPUT.
+	private boolean mPipeOutput;
+
+	// A recording that is paused is stopped and continued in a new segment;
+	// mSegments holds them from the first until the video is finished.
+	private RecordingSegments mSegments;
+	private boolean mPauseRequested = false;
+	private boolean mPaused = false;
+	// Recording time of the segments before the current one.
+	private long mRecordedMs;
+	// The profile of the first segment, which the others must match.
+	private RecordingProfile mSegmentProfile;
+
+	// Loop recording is on if the segment length is set. The recording then
+	// rolls over to a new segment every mLoopSegmentMs and is never paused.
+	private int mLoopSegmentMs;
+	private long mLoopBudgetBytes;
+	private LoopRecording mLoop;
+	// Whether its segments are registered with the media provider.
+	private boolean mLoopShared;
+
+	// Notes the recordings in progress, to recover them if we die.
+	private RecordingJournal mJournal;
+
+	// Registers the videos in the background.
+	private MediaStoreQueue mMediaStoreQueue;
+	// What we have recorded, without asking the media provider.
+	private RecordingsCatalog mCatalog;
+
+	// A video that is stopped, to be registered, catalogued and shown once
+	// the RecordingFinisher is done with it.
+	private static class Publication {
+		String path;
+		// Null if it is not ours to register.
+		ContentValues values;
+		// False if other applications cannot read it; the caller gets
+		// nothing then.
+		boolean shared;
+		boolean catalog;
+		boolean review;
+		boolean returnToCaller;
+	}
+
+	// The videos stopped but not finished yet, by path.
+	private final HashMap<String, Publication> mPublications = new HashMap<String, Publication>();
+	// Those finished before onRecordingStopped() got to them.
+	private final HashSet<String> mFinished = new HashSet<String>();
+
+	// Set if old videos are deleted for room. It runs before the recorder
+	// for each new recording is prepared, which waits for it while
+	// mRetentionPending is set; mRetentionChecked is set once it has run.
+	private RetentionManager mRetention;
+	private boolean mRetentionPending = false;
+	private boolean mRetentionChecked = false;
+
+	// Set if the pre-roll is on. While no video is being recorded, the
+	// session records into it instead, which mPreRolling tells; once the
+	// shutter is pressed, mStartingLive is set until the session has rolled
+	// over to the video file.
+	private PreRollBuffer mPreRoll;
+	private boolean mPreRolling = false;
+	private boolean mStartingLive = false;
 
 	// The video duration limit. 0 menas no limit.
 	private int mMaxVideoDurationInMs;
@@ -183,7 +327,8 @@ public class VideoRecorder extends Activity implements View.OnClickListener,
 	private final ArrayList<MenuItem> mGalleryItems = new ArrayList<MenuItem>();
 
 	private final Handler mHandler = new MainHandler();
-	private Parameters mParameters;
+	// The camera settings last requested from CameraHolder.
+	private ParameterCache.Values mCameraValues;
 
 	@Override
 	public void onCreate(Bundle icicle) {
@@ -203,28 +348,46 @@ public class VideoRecorder extends Activity implements View.OnClickListener,
 
 		mPreferences = PreferenceManager.getDefaultSharedPreferences(this);
 
+		mStorageVolumes = new StorageVolumes(this);
+		mStorageVolumes.probeAsync();
+		mStorage = new StorageTracker(mStorageVolumes, LOW_STORAGE_THRESHOLD);
+		mStorage.setListener(mStorageListener);
+		mStorage.refreshAsync();
+		mCapabilities = DeviceCapabilities.load(this);
+		mMediaStoreQueue = MediaStoreQueue.instance(this);
+		mMediaStoreQueue.setListener(mMediaStoreListener);
+		mCatalog = RecordingsCatalog.instance(this);
+		mCatalog.reconcileAsync(new File(
+				CameraSettings.CAMERA_IMAGE_BUCKET_NAME));
+		Intent intent = getIntent();
+		if (intent.hasExtra(EXTRA_RETENTION_FREE_MB)
+				|| intent.hasExtra(EXTRA_RETENTION_LIBRARY_MB)) {
+			long floor = intent.getIntExtra(EXTRA_RETENTION_FREE_MB, 0)
+					* 1024L * 1024L;
+			long cap = intent.getIntExtra(EXTRA_RETENTION_LIBRARY_MB, 0)
+					* 1024L * 1024L;
+			mRetention = new RetentionManager(mCatalog, mMediaStoreQueue,
+					Math.max(floor, LOW_STORAGE_THRESHOLD), cap);
+		}
+		mJournal = new RecordingJournal(new File(getFilesDir(),
+				JOURNAL_DIRECTORY));
+		final Context context = getApplicationContext();
+		final RecordingsCatalog catalog = mCatalog;
+		mJournal.recoverAsync(new RecordingJournal.Listener() {
+			public void onRecovered(File file) {
+				MediaScannerConnection.scanFile(context,
+						new String[] { file.getPath() }, null, null);
+				catalog.add(file.getPath(), false, null);
+			}
+		});
 		readVideoPreferences();
 
 		/*
-		 * To reduce startup time, we start the preview in another thread. We
-		 * make sure the preview is started at the end of onCreate.
+		 * To reduce startup time, the camera is opened and the preview is
+		 * started on the CameraHolder thread while we inflate the views.
 		 */
-		Thread startPreviewThread = new Thread(new Runnable() {
-			public void run() {
-				try {
-					mStartPreviewFail = false;
-					startPreview();
-				} catch (CameraHardwareException e) {
-					// In eng build, we throw the exception so that test tool
-					// can detect it and report it
-					if ("eng".equals(Build.TYPE)) {
-						throw new RuntimeException(e);
-					}
-					mStartPreviewFail = true;
-				}
-			}
-		}, "startPreviewThread");
-		startPreviewThread.start();
+		mStartPreviewFail = false;
+		startPreview();
 
 		mContentResolver = getContentResolver();
 
@@ -237,6 +400,7 @@ public class VideoRecorder extends Activity implements View.OnClickListener,
 
 		mVideoPreview = (SurfaceView) findViewById(R.id.camera_preview);
 		mVideoFrame = (ImageView) findViewById(R.id.video_frame);
+		mThumbnails = ThumbnailService.instance(this);
 
 		// don't set mSurfaceHolder here. We have it set ONLY within
 		// surfaceCreated / surfaceDestroyed, other parts of the code
@@ -250,6 +414,8 @@ public class VideoRecorder extends Activity implements View.OnClickListener,
 		if (mRecordingTimeView instanceof RotateTextView) {
 			((RotateTextView) mRecordingTimeView).setDegree(-90);
 		}
+		// Tapping the recording time pauses and resumes.
+		mRecordingTimeView.setOnClickListener(this);
 
 		ViewGroup rootView = (ViewGroup) findViewById(R.id.video_camera);
 		LayoutInflater inflater = this.getLayoutInflater();
@@ -260,17 +426,6 @@ public class VideoRecorder extends Activity implements View.OnClickListener,
 		mShutterButton.requestFocus();
 
 		((RotateImageView) findViewById(R.id.video_switch_icon)).setDegree(90);
-
-		// Make sure preview is started.
-		try {
-			startPreviewThread.join();
-			if (mStartPreviewFail) {
-				showCameraBusyAndFinish();
-				return;
-			}
-		} catch (InterruptedException ex) {
-			// ignore
-		}
 	}
 
 	// This Handler is used to post message back onto the main thread of the
@@ -280,8 +435,10 @@ public class VideoRecorder extends Activity implements View.OnClickListener,
 		public void handleMessage(Message msg) {
 			switch (msg.what) {
 
-			case ENABLE_SHUTTER_BUTTON:
-				mShutterButton.setEnabled(true);
+			case RECORDER_REQUEST_DONE:
+				// The shutter stays disabled while a request is in flight
+				// and comes back once the recorder can take the next one.
+				updateShutterButton();
 				break;
 
 			case CLEAR_SCREEN_DELAY: {
@@ -300,6 +457,26 @@ public class VideoRecorder extends Activity implements View.OnClickListener,
 				break;
 			}
 
+			case RECORDER_STATE_CHANGED: {
+				onRecorderStateChanged(msg.arg1, msg.arg2);
+				break;
+			}
+
+			case RECORDER_ERROR: {
+				onRecorderError(msg.arg1, msg.arg2, (Exception) msg.obj);
+				break;
+			}
+
+			case ROLL_SEGMENT: {
+				rollSegment();
+				break;
+			}
+
+			case SEGMENT_ROLLED: {
+				onSegmentRolled(msg.arg2, msg.arg1 != 0, (Long) msg.obj);
+				break;
+			}
+
 			default:
 				Log.v(TAG, "Unhandled message: " + msg.what);
 				break;
@@ -307,6 +484,156 @@ public class VideoRecorder extends Activity implements View.OnClickListener,
 		}
 	}
 
+	// Forwards the session callbacks, which arrive on the session thread, to
+	// the main thread.
+	private final RecordingSession.Listener mSessionListener = new RecordingSession.Listener() {
+		public void onStateChanged(RecordingSession session, int oldState,
+				int newState) {
+			Log.v(TAG, "Recorder " + RecordingSession.stateToString(oldState)
+					+ " -> " + RecordingSession.stateToString(newState));
+			mHandler.obtainMessage(RECORDER_STATE_CHANGED, oldState, newState)
+					.sendToTarget();
+		}
+
+		public void onError(RecordingSession session, int failedState,
+				int newState, Exception e) {
+			Log.e(TAG, "Recorder failed in "
+					+ RecordingSession.stateToString(failedState), e);
+			mHandler.obtainMessage(RECORDER_ERROR, failedState, newState, e)
+					.sendToTarget();
+		}
+	};
+
+	// Reports how long each recorder request took and wakes up the shutter
+	// button on the main thread.
+	private class RequestCallback implements RecordingSession.Callback {
+		private final String mRequest;
+
+		RequestCallback(String request) {
+			mRequest = request;
+		}
+
+		public void onComplete(RecordingSession session, boolean success,
+				long elapsedMs) {
+			Log.v(TAG, "Recorder " + mRequest + (success ? "" : " failed")
+					+ " in " + elapsedMs + "ms");
+			mHandler.sendEmptyMessage(RECORDER_REQUEST_DONE);
+		}
+	}
+
+	private final RecordingSession.Callback mPrepareCallback = new RequestCallback(
+			"prepare");
+	private final RecordingSession.Callback mStartCallback = new RequestCallback(
+			"start");
+	private final RecordingSession.Callback mStopCallback = new RequestCallback(
+			"stop");
+
+	// Passes the gap of a roll to the main thread.
+	private class RollCallback implements RecordingSession.Callback {
+		private final int mKind;
+
+		RollCallback(int kind) {
+			mKind = kind;
+		}
+
+		public void onComplete(RecordingSession session, boolean success,
+				long elapsedMs) {
+			mHandler.obtainMessage(SEGMENT_ROLLED, success ? 1 : 0, mKind,
+					elapsedMs).sendToTarget();
+		}
+	}
+
+	private final RecordingSession.Callback mLoopRollCallback = new RollCallback(
+			ROLL_LOOP);
+	private final RecordingSession.Callback mPreRollCallback = new RollCallback(
+			ROLL_PRE_ROLL);
+	private final RecordingSession.Callback mLiveCallback = new RollCallback(
+			ROLL_LIVE);
+
+	// Keeps the media provider, through the queue, and the catalog in step
+	// with the loop segments.
+	private final LoopRecording.Listener mLoopListener = new LoopRecording.Listener() {
+		public void onSegmentAdded(File file) {
+			mCatalog.add(file.getPath(), false, null);
+			if (!mLoopShared)
+				return;
+			long dateTaken = file.lastModified();
+			ContentValues values = new ContentValues(5);
+			values.put(Video.Media.TITLE, createName(dateTaken));
+			values.put(Video.Media.DISPLAY_NAME, file.getName());
+			values.put(Video.Media.DATE_TAKEN, dateTaken);
+			values.put(Video.Media.MIME_TYPE, "video/mpeg4");
+			values.put(Video.Media.DATA, file.getPath());
+			mMediaStoreQueue.insert(values);
+		}
+
+		public void onSegmentMoved(File from, File to) {
+			mMediaStoreQueue.move(from.getPath(), to.getPath());
+			mCatalog.move(from.getPath(), to.getPath());
+		}
+
+		public void onSegmentDeleted(File file) {
+			mMediaStoreQueue.delete(file.getPath());
+			mCatalog.remove(file.getPath());
+		}
+	};
+
+	// Publishes the videos as they are finished. They are ours to publish
+	// even if we are paused meanwhile.
+	private final RecordingFinisher.Listener mFinishListener = new RecordingFinisher.Listener() {
+		public void onFinished(String path) {
+			Publication publication = mPublications.remove(path);
+			if (publication != null) {
+				publish(publication);
+			} else {
+				mFinished.add(path);
+			}
+		}
+	};
+
+	// Replaces the file URI of the video just recorded by its content URI
+	// once it is registered, and returns it to the caller if it waits.
+	private final MediaStoreQueue.Listener mMediaStoreListener = new MediaStoreQueue.Listener() {
+		public void onInserted(final String path, final Uri uri) {
+			mHandler.post(new Runnable() {
+				public void run() {
+					if (path.equals(mCurrentVideoFilename)) {
+						mCurrentVideoUri = uri;
+						returnIfPending();
+					}
+				}
+			});
+		}
+
+		public void onDropped(final String path) {
+			mHandler.post(new Runnable() {
+				public void run() {
+					if (path.equals(mCurrentVideoFilename)) {
+						// With the file URI, as good as it gets.
+						returnIfPending();
+					}
+				}
+			});
+		}
+	};
+
+	// Updates the storage status from each measurement, and initializes
+	// the recorder once there is room again.
+	private final StorageTracker.Listener mStorageListener = new StorageTracker.Listener() {
+		public void onStorageChanged() {
+			if (mPausing)
+				return;
+			int old = mStorageStatus;
+			mStorageStatus = getStorageStatus(true);
+			if (mStorageStatus == old)
+				return;
+			showStorageHint();
+			if (mStorageStatus == STORAGE_STATUS_OK) {
+				initializeRecorder();
+			}
+		}
+	};
+
 	private BroadcastReceiver mReceiver = null;
 
 	private class MyBroadcastReceiver extends BroadcastReceiver {
@@ -316,17 +643,21 @@ public class VideoRecorder extends Activity implements View.OnClickListener,
 			if (action.equals(Intent.ACTION_MEDIA_EJECT)) {
 				updateAndShowStorageHint(false);
 				stopVideoRecording();
+				mStorage.refreshAsync();
 			} else if (action.equals(Intent.ACTION_MEDIA_MOUNTED)) {
-				updateAndShowStorageHint(true);
-				initializeRecorder();
+				// The recorder is initialized once the volume is measured.
+				mStorage.refreshAsync();
+				mMediaStoreQueue.retry();
 			} else if (action.equals(Intent.ACTION_MEDIA_UNMOUNTED)) {
 				// SD card unavailable
 				// handled in ACTION_MEDIA_EJECT
+				mStorage.refreshAsync();
 			} else if (action.equals(Intent.ACTION_MEDIA_SCANNER_STARTED)) {
 				Toast.makeText(VideoRecorder.this,
 						getResources().getString(R.string.wait), 5000).show();
 			} else if (action.equals(Intent.ACTION_MEDIA_SCANNER_FINISHED)) {
-				updateAndShowStorageHint(true);
+				mStorage.refreshAsync();
+				mMediaStoreQueue.retry();
 			}
 		}
 	}
@@ -401,6 +732,17 @@ public class VideoRecorder extends Activity implements View.OnClickListener,
 	public void onClick(View v) {
 		if (v == mFrame) {
 			discardCurrentVideoAndInitRecorder();
+		} else if (v == mRecordingTimeView) {
+			if (mLoopSegmentMs > 0) {
+				// Loop recordings are not paused, the tap keeps the segment.
+				if (isRecording()) {
+					protectLoopSegment();
+				}
+			} else if (mPaused) {
+				startVideoRecording();
+			} else if (isRecording() && mSegments != null && !mPauseRequested) {
+				pauseVideoRecording();
+			}
 		}
 	}
 
@@ -415,28 +757,35 @@ public class VideoRecorder extends Activity implements View.OnClickListener,
 		// stopVideoRecordingAndShowAlert();
 		// }
 
+		// The review screen is started once the session has finalized the
+		// file, see onRecordingStopped().
+		mReviewAfterStop = true;
 		stopVideoRecording();
-		startMovieView(mCurrentVideoFilename, mCurrentVideoUri);
-		finish();
 	}
 
 	public void onShutterButtonClick(ShutterButton button) {
 		if (button == mShutterButton) {
-			if (mMediaRecorderRecording) {
+			if (isRecording() || mPaused) {
 				onStopVideoRecording(true);
-			} else if (mMediaRecorder != null) {
+			} else if (mPrepareFuture != null) {
 				// If the click comes before recorder initialization, it is
 				// ignored. If users click the button during initialization,
 				// the event is put in the queue and record will be started
 				// eventually.
 				startVideoRecording();
 			}
-			mShutterButton.setEnabled(false);
-			mHandler.sendEmptyMessageDelayed(ENABLE_SHUTTER_BUTTON,
-					SHUTTER_BUTTON_TIMEOUT);
 		}
 	}
 
+	// The shutter is usable only when the recorder is ready to start or is
+	// recording and can be stopped.
+	private void updateShutterButton() {
+		int state = mSession == null ? RecordingSession.STATE_RELEASED
+				: mSession.getState();
+		mShutterButton.setEnabled(state == RecordingSession.STATE_READY
+				|| state == RecordingSession.STATE_RECORDING);
+	}
+
 	private void discardCurrentVideoAndInitRecorder() {
 		deleteCurrentVideo();
 		hideAlertAndInitializeRecorder();
@@ -491,7 +840,15 @@ public class VideoRecorder extends Activity implements View.OnClickListener,
 
 		// Set video duration limit. The limit is read from the preference,
 		// unless it is specified in the intent.
-		if (intent.hasExtra(MediaStore.EXTRA_DURATION_LIMIT)) {
+		if (intent.hasExtra(EXTRA_LOOP_SEGMENT_SECONDS)
+				&& !intent.hasExtra(MediaStore.EXTRA_OUTPUT)) {
+			mLoopSegmentMs = 1000 * Math.max(1,
+					intent.getIntExtra(EXTRA_LOOP_SEGMENT_SECONDS, 0));
+			mLoopBudgetBytes = intent.getIntExtra(EXTRA_LOOP_BUDGET_MB,
+					LOOP_BUDGET_MB_DEFAULT) * 1024L * 1024L;
+			// Recording goes on until stopped.
+			mMaxVideoDurationInMs = 0;
+		} else if (intent.hasExtra(MediaStore.EXTRA_DURATION_LIMIT)) {
 			int seconds = intent
 					.getIntExtra(MediaStore.EXTRA_DURATION_LIMIT, 0);
 			mMaxVideoDurationInMs = 1000 * seconds;
@@ -500,30 +857,60 @@ public class VideoRecorder extends Activity implements View.OnClickListener,
 			// .getVidoeDurationInMillis(quality);
 			mMaxVideoDurationInMs = MAX_DURATION_MS_DEFAULT;
 		}
+		if (mPreRoll == null && intent.hasExtra(EXTRA_PRE_ROLL_SECONDS)
+				&& mLoopSegmentMs == 0 && Build.VERSION.SDK_INT >= 9
+				&& !intent.hasExtra(MediaStore.EXTRA_OUTPUT)) {
+			mPreRoll = new PreRollBuffer(1000L * intent.getIntExtra(
+					EXTRA_PRE_ROLL_SECONDS, 0), PRE_ROLL_BUDGET_BYTES);
+		}
+		// The pre-roll is appended to through the pipe.
+		mPipeOutput = Build.VERSION.SDK_INT >= 9
+				&& (mPreRoll != null || intent.getBooleanExtra(
+						EXTRA_PIPE_OUTPUT, false));
 		// videoQualityHigh = true;
 		// mProfile = CamcorderProfile
 		// .get(videoQualityHigh ? CamcorderProfile.QUALITY_HIGH
 		// : CamcorderProfile.QUALITY_LOW);
 
 		videoQualityHigh = false;
-		mProfile = CamcorderProfile
-				.get(videoQualityHigh ? CamcorderProfile.QUALITY_HIGH
-						: CamcorderProfile.QUALITY_LOW);
-		mProfile.videoFrameWidth = (int) (mProfile.videoFrameWidth * VIDEO_SIZE_RATE);
-		mProfile.videoFrameHeight = (int) (mProfile.videoFrameHeight * VIDEO_SIZE_RATE);
-		mProfile.videoBitRate = VIDEO_BIT_RATE;
+		RecordingProfile highProfile;
+		if (mCapabilities != null) {
+			mProfile = (videoQualityHigh ? mCapabilities.highProfile
+					: mCapabilities.lowProfile).copy();
+			highProfile = mCapabilities.highProfile;
+		} else {
+			mProfile = RecordingProfile.from(CamcorderProfile
+					.get(videoQualityHigh ? CamcorderProfile.QUALITY_HIGH
+							: CamcorderProfile.QUALITY_LOW));
+			highProfile = RecordingProfile.from(CamcorderProfile
+					.get(CamcorderProfile.QUALITY_HIGH));
+		}
+		ProfileResolver resolver;
+		if (mCapabilities != null) {
+			resolver = ProfileResolver.forCamera(mCapabilities.fingerprint,
+					mCapabilities.previewSizes, highProfile.videoBitRate);
+		} else {
+			// Nothing known about the preview sizes yet, take the target.
+			resolver = new ProfileResolver(new int[0],
+					ProfileResolver.DEFAULT_BITS_PER_PIXEL,
+					highProfile.videoBitRate);
+		}
+		ProfileResolver.Result resolved = resolver.resolve(VIDEO_TARGET_WIDTH,
+				VIDEO_TARGET_HEIGHT, mProfile.videoFrameRate);
+		mProfile.videoFrameWidth = resolved.width;
+		mProfile.videoFrameHeight = resolved.height;
+		mProfile.videoBitRate = resolved.bitRate;
 		Log.i(TAG, "mProfile.videoFrameWidth=" + mProfile.videoFrameWidth);
 		Log.i(TAG, "mProfile.videoFrameHeight=" + mProfile.videoFrameHeight);
 		Log.i(TAG, "mProfile.videoBitRate=" + mProfile.videoBitRate);
 		// mProfile.videoBitRate *= 10;
 		// mProfile.videoFrameRate += 3;
 
-		CamcorderProfile highProfile = CamcorderProfile
-				.get(CamcorderProfile.QUALITY_HIGH);
 		mProfile.videoCodec = highProfile.videoCodec;
 		mProfile.audioCodec = highProfile.audioCodec;
 		// mProfile.fileFormat = highProfile.fileFormat;
 		mProfile.fileFormat = MediaRecorder.OutputFormat.MPEG_4;
+		mBitrateGovernor = BitrateGovernor.getInstance(mProfile.videoBitRate);
 	}
 
 	private void resizeForPreviewAspectRatio() {
@@ -540,13 +927,12 @@ public class VideoRecorder extends Activity implements View.OnClickListener,
 		readVideoPreferences();
 		resizeForPreviewAspectRatio();
 		if (!mPreviewing && !mStartPreviewFail) {
-			try {
-				startPreview();
-			} catch (CameraHardwareException e) {
-				showCameraBusyAndFinish();
-				return;
-			}
+			startPreview();
 		}
+		mSession = new RecordingSession(mSessionListener);
+		// Videos may have come and gone meanwhile.
+		mRetentionChecked = false;
+		updateShutterButton();
 		keepScreenOnAwhile();
 
 		// install an intent filter to receive SD card related events.
@@ -559,6 +945,7 @@ public class VideoRecorder extends Activity implements View.OnClickListener,
 		intentFilter.addDataScheme("file");
 		mReceiver = new MyBroadcastReceiver();
 		registerReceiver(mReceiver, intentFilter);
+		mStorage.start();
 		mStorageStatus = getStorageStatus(true);
 
 		mHandler.postDelayed(new Runnable() {
@@ -574,65 +961,109 @@ public class VideoRecorder extends Activity implements View.OnClickListener,
 		changeHeadUpDisplayState();
 	}
 
-	private void setPreviewDisplay(SurfaceHolder holder) {
-		try {
-			mCameraDevice.setPreviewDisplay(holder);
-		} catch (Throwable ex) {
-			closeCamera();
-			throw new RuntimeException("setPreviewDisplay failed", ex);
+	/**
+	 * Result of a request made to the CameraHolder thread. Results of
+	 * requests issued before the camera was last closed are dropped, so a
+	 * late callback cannot bring back a released device.
+	 */
+	private abstract class CameraRequest implements CameraHolder.Callback {
+		private final int mGeneration = mCameraGeneration;
+
+		public void onSuccess(Camera camera) {
+			if (mGeneration == mCameraGeneration) {
+				onCameraReady(camera);
+			}
+		}
+
+		public void onFailure(Exception e) {
+			if (mGeneration != mCameraGeneration || mStartPreviewFail)
+				return;
+			Log.e(TAG, "Camera request failed", e);
+			// In eng build, we throw the exception so that test tool
+			// can detect it and report it
+			if ("eng".equals(Build.TYPE)) {
+				throw new RuntimeException(e);
+			}
+			mStartPreviewFail = true;
+			closeCamera(null);
+			showCameraBusyAndFinish();
 		}
+
+		abstract void onCameraReady(Camera camera);
 	}
 
-	private void startPreview() throws CameraHardwareException {
+	private void startPreview() {
 		Log.v(TAG, "startPreview");
-		if (mPreviewing) {
+		if (mPreviewing || mStartingPreview) {
 			// After recording a video, preview is not stopped. So just return.
 			return;
 		}
+		mStartingPreview = true;
+		final long begin = SystemClock.uptimeMillis();
 
+		CameraHolder cameraHolder = CameraHolder.instance();
 		if (mCameraDevice == null) {
 			// If the activity is paused and resumed, camera device has been
 			// released and we need to open the camera.
-			mCameraDevice = CameraHolder.instance().open();
-		}
-
-		mCameraDevice.lock();
-		setCameraParameters();
-		setPreviewDisplay(mSurfaceHolder);
-
-		try {
-			mCameraDevice.startPreview();
-			mPreviewing = true;
-		} catch (Throwable ex) {
-			closeCamera();
-			throw new RuntimeException("startPreview failed", ex);
-		}
+			cameraHolder.openAsync(new CameraRequest() {
+				void onCameraReady(Camera camera) {
+					mCameraDevice = camera;
+				}
+			}, mHandler);
+		}
+
+		// If setPreviewDisplay has been set with a valid surface, the camera
+		// is unlocked right away. If surface is null, it is unlocked later.
+		// Otherwise, setPreviewDisplay in surfaceChanged will fail.
+		final boolean hasDisplay = mSurfaceHolder != null;
+		cameraHolder.startPreviewAsync(mSurfaceHolder, getCameraValues(),
+				new CameraRequest() {
+					void onCameraReady(Camera camera) {
+						mCameraDevice = camera;
+						mStartingPreview = false;
+						mPreviewing = true;
+						Log.v(TAG, "Preview started in "
+								+ (SystemClock.uptimeMillis() - begin) + "ms");
+						if (mCapabilities == null) {
+							captureCapabilities();
+						}
+						if (hasDisplay) {
+							mHandler.sendEmptyMessage(INIT_RECORDER);
+						}
+					}
+				}, mHandler);
+	}
 
-		// If setPreviewDisplay has been set with a valid surface, unlock now.
-		// If surface is null, unlock later. Otherwise, setPreviewDisplay in
-		// surfaceChanged will fail.
-		if (mSurfaceHolder != null) {
-			mCameraDevice.unlock();
-		}
+	private void captureCapabilities() {
+		final Context context = getApplicationContext();
+		CameraHolder.instance().readParametersAsync(
+				new CameraHolder.ParametersReader() {
+					public void read(ParameterCache cache) {
+						DeviceCapabilities.capture(cache).save(context);
+					}
+				});
 	}
 
-	private void closeCamera() {
+	// Releases the camera on the CameraHolder thread once
+	// {@code recorderReleased}, if any, is done with it.
+	private void closeCamera(Future<?> recorderReleased) {
 		Log.v(TAG, "closeCamera");
-		if (mCameraDevice == null) {
+		if (mCameraDevice == null && !mStartingPreview) {
 			Log.d(TAG, "already stopped.");
 			return;
 		}
-		// If we don't lock the camera, release() will fail.
-		mCameraDevice.lock();
-		CameraHolder.instance().release();
+		++mCameraGeneration;
+		CameraHolder.instance().releaseAsync(recorderReleased);
 		mCameraDevice = null;
 		mPreviewing = false;
+		mStartingPreview = false;
 	}
 
 	@Override
 	protected void onPause() {
 		super.onPause();
 		mPausing = true;
+		mStorage.stop();
 
 		changeHeadUpDisplayState();
 
@@ -641,14 +1072,20 @@ public class VideoRecorder extends Activity implements View.OnClickListener,
 		mVideoPreview.setVisibility(View.INVISIBLE);
 
 		// This is similar to what mShutterButton.performClick() does,
-		// but not quite the same.
-		if (mMediaRecorderRecording) {
-			stopVideoRecording();
-			showAlert();
-		} else {
-			stopVideoRecording();
+		// but not quite the same. The camera cannot be released before the
+		// recorder, so the CameraHolder thread waits for the session to let
+		// go of it. A recording in progress is finalized and shown in
+		// onRecordingStopped().
+		Future<?> recorderReleased = null;
+		if (mSegments != null) {
+			mSegments.setFinishing();
+		}
+		if (mSession != null) {
+			recorderReleased = mSession.release();
+			mSession = null;
 		}
-		closeCamera();
+		mPrepareFuture = null;
+		closeCamera(recorderReleased);
 
 		if (mReceiver != null) {
 			unregisterReceiver(mReceiver);
@@ -656,12 +1093,19 @@ public class VideoRecorder extends Activity implements View.OnClickListener,
 		}
 		resetScreenOn();
 		mHandler.removeMessages(INIT_RECORDER);
+		mHandler.removeMessages(ROLL_SEGMENT);
+	}
+
+	@Override
+	protected void onDestroy() {
+		super.onDestroy();
+		mMediaStoreQueue.setListener(null);
 	}
 
 	@Override
 	public void onUserInteraction() {
 		super.onUserInteraction();
-		if (!mMediaRecorderRecording)
+		if (!isRecording())
 			keepScreenOnAwhile();
 	}
 
@@ -669,7 +1113,7 @@ public class VideoRecorder extends Activity implements View.OnClickListener,
 	public void onBackPressed() {
 		if (mPausing)
 			return;
-		if (mMediaRecorderRecording) {
+		if (isRecording() || mPaused) {
 			onStopVideoRecording(false);
 		}
 		// else if (mHeadUpDisplay == null || !mHeadUpDisplay.collapse()) {
@@ -698,7 +1142,7 @@ public class VideoRecorder extends Activity implements View.OnClickListener,
 			}
 			break;
 		case KeyEvent.KEYCODE_MENU:
-			if (mMediaRecorderRecording) {
+			if (isRecording() || mPaused) {
 				onStopVideoRecording(true);
 				return true;
 			}
@@ -735,25 +1179,52 @@ public class VideoRecorder extends Activity implements View.OnClickListener,
 			return;
 		}
 
-		// The mCameraDevice will be null if it is fail to connect to the
+		// Nothing to attach the surface to if we failed to connect to the
 		// camera hardware. In this case we will show a dialog and then
-		// finish the activity, so it's OK to ignore it.
-		if (mCameraDevice == null)
+		// finish the activity, so it's OK to ignore it. A preview that is
+		// still starting gets the display after it is up, since requests to
+		// the CameraHolder thread run in order.
+		if (mStartPreviewFail || (!mPreviewing && !mStartingPreview))
 			return;
 
-		if (mMediaRecorderRecording) {
-			stopVideoRecording();
-		}
-
 		// Set preview display if the surface is being created. Preview was
 		// already started.
-		if (holder.isCreating()) {
+		final boolean creating = holder.isCreating();
+		if (mSession != null && mSession.isRecording()) {
+			// The preview display cannot be changed while the recorder
+			// still holds the camera, so it is set once the session has let
+			// go of it.
+			final SurfaceHolder surface = holder;
+			stopVideoRecording(new RequestCallback("stop") {
+				@Override
+				public void onComplete(RecordingSession session,
+						boolean success, long elapsedMs) {
+					super.onComplete(session, success, elapsedMs);
+					if (!creating)
+						return;
+					mHandler.post(new Runnable() {
+						public void run() {
+							if (!mPausing && mSurfaceHolder == surface) {
+								setPreviewDisplay(surface);
+							}
+						}
+					});
+				}
+			});
+		} else if (creating) {
 			setPreviewDisplay(holder);
-			mCameraDevice.unlock();
-			mHandler.sendEmptyMessage(INIT_RECORDER);
 		}
 	}
 
+	private void setPreviewDisplay(SurfaceHolder holder) {
+		CameraHolder.instance().setPreviewDisplayAsync(holder,
+				new CameraRequest() {
+					void onCameraReady(Camera camera) {
+						mHandler.sendEmptyMessage(INIT_RECORDER);
+					}
+				}, mHandler);
+	}
+
 	public void surfaceCreated(SurfaceHolder holder) {
 		mSurfaceHolder = holder;
 	}
@@ -768,7 +1239,19 @@ public class VideoRecorder extends Activity implements View.OnClickListener,
 		return true;
 	}
 
+	// Returns the video to the caller, once it has a content URI. Ours is
+	// registered in the background; see mMediaStoreListener.
 	private void doReturnToCaller(boolean valid) {
+		if (valid && !mCurrentVideoToCaller && mCurrentVideoUri != null
+				&& "file".equals(mCurrentVideoUri.getScheme())) {
+			mReturnPending = true;
+			return;
+		}
+		mReturnPending = false;
+		setResultAndFinish(valid);
+	}
+
+	private void setResultAndFinish(boolean valid) {
 		Intent resultIntent = new Intent();
 		int resultCode;
 		if (valid) {
@@ -786,49 +1269,83 @@ public class VideoRecorder extends Activity implements View.OnClickListener,
 	 * 
 	 * @return number of bytes available, or an ERROR code.
 	 */
-	private static long getAvailableStorage() {
-		try {
-			if (!CameraSettings.hasStorage()) {
-				return NO_STORAGE_ERROR;
-			} else {
-				String storageDirectory = Environment
-						.getExternalStorageDirectory().toString();
-				StatFs stat = new StatFs(storageDirectory);
-				return (long) stat.getAvailableBlocks()
-						* (long) stat.getBlockSize();
-			}
-		} catch (RuntimeException ex) {
+	// Also picks the volume the next video goes to. Both come from the
+	// tracker, which does not touch the file system here.
+	private long getAvailableStorage() {
+		StorageVolumes.Volume volume = mStorage.getVolume();
+		long free = mStorage.getFreeBytes();
+		if (volume == null || free == StorageTracker.NO_STORAGE) {
+			return NO_STORAGE_ERROR;
+		}
+		if (free < 0) {
 			// if we can't stat the filesystem then we don't know how many
 			// free bytes exist. It might be zero but just leave it
 			// blank since we really don't know.
 			return CANNOT_STAT_ERROR;
 		}
+		if (!volume.dir.equals(mVideoDir)) {
+			// Room is made on the new volume before the next recording.
+			mVideoDir = volume.dir;
+			mVideoShared = volume.shared;
+			mRetentionChecked = false;
+		}
+		mCatalog.reconcileAsync(volume.dir);
+		return free;
 	}
 
-	private void cleanupEmptyFile() {
-		if (mCameraVideoFilename != null) {
-			File f = new File(mCameraVideoFilename);
-			if (f.length() == 0 && f.delete()) {
-				Log.v(TAG, "Empty video file deleted: " + mCameraVideoFilename);
-				mCameraVideoFilename = null;
-			}
-		}
+	// Recording a video, as opposed to just the pre-roll.
+	private boolean isRecording() {
+		return mSession != null && mSession.isRecording() && !mPreRolling;
 	}
 
 	private android.hardware.Camera mCameraDevice;
 
 	// Prepares media recorder.
-	@TargetApi(9)
 	private void initializeRecorder() {
 		Log.v(TAG, "initializeRecorder");
-		if (mMediaRecorder != null)
+		if (mSession == null
+				|| mSession.getState() != RecordingSession.STATE_IDLE
+				|| (mPrepareFuture != null && !mPrepareFuture.isDone()))
 			return;
 
 		// We will call initializeRecorder() again when the alert is hidden.
 		// If the mCameraDevice is null, then this activity is going to finish
-		if (isAlertVisible() || mCameraDevice == null)
+		// or the preview is still being started, which will call us again.
+		if (isAlertVisible() || mCameraDevice == null || !mPreviewing)
+			return;
+
+		// Make room first, rather than record to /dev/null.
+		if (mRetention != null && !mPaused) {
+			if (mRetentionPending)
+				return;
+			if (!mRetentionChecked) {
+				// On the volume the video is going to.
+				getAvailableStorage();
+				if (mVideoDir != null) {
+					mRetentionPending = true;
+					mRetention.enforceAsync(mVideoDir, mRetentionCallback);
+					return;
+				}
+			}
+		}
+
+		if (mPreRoll != null && !mPaused) {
+			// Recording into the pre-roll until the shutter is pressed.
+			mPreRolling = true;
+			mRecorderController = createPreRollRecorder();
+			mPrepareFuture = mSession.prepare(mRecorderController,
+					mPrepareCallback);
+			mSession.start(mStartCallback);
 			return;
+		}
+		mRecorderController = createRecorder();
+		mPrepareFuture = mSession.prepare(mRecorderController,
+				mPrepareCallback);
+	}
 
+	// Sets up the recorder for a new recording, the next segment of a paused
+	// one, or the next segment of a loop recording.
+	private MediaRecorderController createRecorder() {
 		Intent intent = getIntent();
 		Bundle myExtras = intent.getExtras();
 
@@ -848,28 +1365,64 @@ public class VideoRecorder extends Activity implements View.OnClickListener,
 			}
 			requestedSizeLimit = myExtras.getLong(MediaStore.EXTRA_SIZE_LIMIT);
 		}
-		mMediaRecorder = new MediaRecorder();
-
-		mMediaRecorder.setCamera(mCameraDevice);
-		mMediaRecorder.setVideoSource(MediaRecorder.VideoSource.CAMERA);
-		mMediaRecorder.setAudioSource(MediaRecorder.AudioSource.MIC);
-		mMediaRecorder.setProfile(mProfile);
-		mMediaRecorder.setMaxDuration(mMaxVideoDurationInMs);
-		mMediaRecorder.setOrientationHint(90);
+		// The MediaRecorder itself is created and prepared on the session
+		// thread, see MediaRecorderController.
+		MediaRecorderController.Options options = new MediaRecorderController.Options();
+		options.camera = mCameraDevice;
+		RecordingProfile profile;
+		if (mStartingLive) {
+			// Joined to the pre-roll, so in the same format.
+			profile = mSegmentProfile;
+			options.maxDurationMs = mMaxVideoDurationInMs;
+		} else if (mPaused) {
+			profile = mSegmentProfile;
+			options.maxDurationMs = mMaxVideoDurationInMs == 0 ? 0
+					: (int) Math.max(1000, mMaxVideoDurationInMs - mRecordedMs);
+		} else {
+			profile = mProfile.copy();
+			profile.videoBitRate = mBitrateGovernor.getBitRate();
+			Log.v(TAG, "Bitrate governor: " + mBitrateGovernor);
+			options.maxDurationMs = mMaxVideoDurationInMs;
+		}
+		// Only for preallocating, the segments are rolled over by us.
+		int expectedMs = mLoopSegmentMs > 0 ? mLoopSegmentMs
+				: options.maxDurationMs;
+		options.profile = profile;
+		options.orientationHint = 90;
+		options.errorListener = this;
+		options.infoListener = this;
 
 		// Set output file.
 		if (mStorageStatus != STORAGE_STATUS_OK) {
-			mMediaRecorder.setOutputFile("/dev/null");
+			options.outputPath = "/dev/null";
 		} else {
 			if (mCameraVideoFileDescriptor != null) {
-				mMediaRecorder.setOutputFile(mCameraVideoFileDescriptor);
+				options.outputFileDescriptor = mCameraVideoFileDescriptor;
 			} else {
-				createVideoPath();
-				mMediaRecorder.setOutputFile(mCameraVideoFilename);
+				if (mLoopSegmentMs > 0) {
+					options.loop = getLoopRecording();
+					createVideoPath();
+					options.outputPath = mCameraVideoFilename;
+				} else if (!mPaused) {
+					createVideoPath();
+					mSegments = new RecordingSegments(new File(
+							mCameraVideoFilename), mPipeOutput);
+					mSegmentProfile = profile;
+					if (mStartingLive) {
+						options.preRoll = mPreRoll;
+					}
+				}
+				if (options.loop == null) {
+					options.outputPath = mSegments.nextFile().getPath();
+					options.outputOffset = mSegments.nextStart();
+					options.segments = mSegments;
+					options.finishListener = mFinishListener;
+				}
+				options.journal = mJournal;
 			}
 		}
 
-		mMediaRecorder.setPreviewDisplay(mSurfaceHolder.getSurface());
+		options.previewSurface = mSurfaceHolder.getSurface();
 
 		// Set maximum file size.
 		// remaining >= LOW_STORAGE_THRESHOLD at this point, reserve a quarter
@@ -880,40 +1433,73 @@ public class VideoRecorder extends Activity implements View.OnClickListener,
 			maxFileSize = requestedSizeLimit;
 		}
 
-		try {
-			mMediaRecorder.setMaxFileSize(maxFileSize);
-		} catch (RuntimeException exception) {
-			// We are going to ignore failure of setMaxFileSize here, as
-			// a) The composer selected may simply not support it, or
-			// b) The underlying media framework may not handle 64-bit range
-			// on the size restriction.
+		options.maxFileSize = maxFileSize;
+
+		// Reserve the space the clip is expected to take, plus a tenth for
+		// the container, so the file does not grow one cluster at a time.
+		boolean toOwnFile = options.outputFileDescriptor == null
+				&& mStorageStatus == STORAGE_STATUS_OK;
+		if (toOwnFile && expectedMs > 0) {
+			long expected = (long) (profile.videoBitRate + profile.audioBitRate)
+					/ 8 * expectedMs / 1000;
+			options.preallocateBytes = Math.min(expected + expected / 10,
+					maxFileSize);
+		}
+		if (options.loop != null) {
+			options.loop.setReserve(options.preallocateBytes);
+		}
+		options.pipeOutput = mPipeOutput && toOwnFile;
+		// Loop segments are left as recorded, so that finishing one does not
+		// compete with the next one for the storage.
+		options.fastStart = toOwnFile && options.loop == null;
+		// For deduplicating uploads; loop segments are not uploaded.
+		if (toOwnFile && options.loop == null) {
+			options.catalog = mCatalog;
 		}
 
-		try {
-			mMediaRecorder.prepare();
-		} catch (IOException e) {
-			Log.e(TAG, "prepare failed for " + mCameraVideoFilename);
-			releaseMediaRecorder();
-			throw new RuntimeException(e);
+		return new MediaRecorderController(options);
+	}
+
+	// Sets up the recorder for the next segment of the pre-roll.
+	private MediaRecorderController createPreRollRecorder() {
+		MediaRecorderController.Options options = new MediaRecorderController.Options();
+		options.camera = mCameraDevice;
+		if (mSegmentProfile == null) {
+			mSegmentProfile = mProfile.copy();
+			mSegmentProfile.videoBitRate = mBitrateGovernor.getBitRate();
 		}
-		mMediaRecorderRecording = false;
+		options.profile = mSegmentProfile;
+		options.orientationHint = 90;
+		options.errorListener = this;
+		options.previewSurface = mSurfaceHolder.getSurface();
+		options.preRollCapture = mPreRoll;
+		return new MediaRecorderController(options);
 	}
 
-	private void releaseMediaRecorder() {
-		Log.v(TAG, "Releasing media recorder.");
-		if (mMediaRecorder != null) {
-			cleanupEmptyFile();
-			mMediaRecorder.reset();
-			mMediaRecorder.release();
-			mMediaRecorder = null;
+	// The loop recording in the directory of the chosen volume.
+	private LoopRecording getLoopRecording() {
+		String cameraDirPath = mVideoDir != null ? mVideoDir.getPath()
+				: CameraSettings.CAMERA_IMAGE_BUCKET_NAME;
+		File dir = new File(cameraDirPath, LOOP_DIRECTORY);
+		if (mLoop == null || !mLoop.getDirectory().equals(dir)) {
+			mLoop = new LoopRecording(dir, mLoopBudgetBytes, mLoopSegmentMs);
+			mLoop.setListener(mLoopListener);
+			mLoopShared = mVideoShared;
 		}
+		return mLoop;
 	}
 
 	private void createVideoPath() {
 		long dateTaken = System.currentTimeMillis();
 		String title = createName(dateTaken);
 		String filename = title + ".mp4"; // Used when emailing.
-		String cameraDirPath = CameraSettings.CAMERA_IMAGE_BUCKET_NAME;
+		String cameraDirPath;
+		if (mLoopSegmentMs > 0) {
+			cameraDirPath = getLoopRecording().getDirectory().getPath();
+		} else {
+			cameraDirPath = mVideoDir != null ? mVideoDir.getPath()
+					: CameraSettings.CAMERA_IMAGE_BUCKET_NAME;
+		}
 		String filePath = cameraDirPath + "/" + filename;
 		File cameraDir = new File(cameraDirPath);
 		cameraDir.mkdirs();
@@ -926,54 +1512,84 @@ public class VideoRecorder extends Activity implements View.OnClickListener,
 		mCameraVideoFilename = filePath;
 		Log.v(TAG, "Current camera video filename: " + mCameraVideoFilename);
 		mCurrentVideoValues = values;
-	}
-
-	private void registerVideo() {
-		if (mCameraVideoFileDescriptor == null) {
-			Uri videoTable = Uri.parse("content://media/external/video/media");
-			mCurrentVideoValues.put(Video.Media.SIZE, new File(
-					mCurrentVideoFilename).length());
-			try {
-				mCurrentVideoUri = mContentResolver.insert(videoTable,
-						mCurrentVideoValues);
-			} catch (Exception e) {
-				// We failed to insert into the database. This can happen if
-				// the SD card is unmounted.
-				mCurrentVideoUri = null;
-				mCurrentVideoFilename = null;
-			} finally {
-				Log.v(TAG, "Current video URI: " + mCurrentVideoUri);
+		mCurrentVideoShared = mVideoShared;
+	}
+
+	// Registers, catalogues and shows a video that is finished. The size and
+	// duration are read and the video inserted in the background; until
+	// then, the video is known by its file URI.
+	private void publish(Publication publication) {
+		String path = publication.path;
+		boolean current = path != null && path.equals(mCurrentVideoFilename);
+		if (publication.values != null) {
+			Uri uri = mMediaStoreQueue.insert(publication.values);
+			Log.v(TAG, "Video URI: " + uri);
+			if (current) {
+				mCurrentVideoUri = uri;
 			}
 		}
-		mCurrentVideoValues = null;
+		if (publication.catalog && path != null) {
+			// Made in the background, so it is cached by the time it is
+			// shown.
+			mThumbnails.request(path, null);
+			mCatalog.add(path, true, null);
+		}
+		if (publication.returnToCaller) {
+			if (!publication.shared) {
+				Log.w(TAG, "Cannot return " + path + " from the files directory");
+			}
+			doReturnToCaller(publication.shared);
+		} else if (publication.review) {
+			// The camera is released in onPause(); hold on to it so that a
+			// retake from the review screen comes back quickly.
+			CameraHolder.instance().keep(REVIEW_KEEP_CAMERA_MS);
+			startMovieView(path, mCurrentVideoUri);
+			finish();
+		} else if (mPausing && (current || path == null)) {
+			showAlert();
+		}
 	}
 
 	private void deleteCurrentVideo() {
 		if (mCurrentVideoFilename != null) {
-			deleteVideoFile(mCurrentVideoFilename);
+			long size = new File(mCurrentVideoFilename).length();
+			if (deleteVideoFile(mCurrentVideoFilename)) {
+				mStorage.onFreed(size);
+			}
+			if (!mCurrentVideoToCaller) {
+				mMediaStoreQueue.delete(mCurrentVideoFilename);
+			}
+			mCatalog.remove(mCurrentVideoFilename);
 			mCurrentVideoFilename = null;
 		}
 		if (mCurrentVideoUri != null) {
-			mContentResolver.delete(mCurrentVideoUri, null, null);
+			if (mCurrentVideoToCaller) {
+				// The caller's own.
+				mContentResolver.delete(mCurrentVideoUri, null, null);
+			}
 			mCurrentVideoUri = null;
 		}
 		updateAndShowStorageHint(true);
 	}
 
-	private void deleteVideoFile(String fileName) {
+	private boolean deleteVideoFile(String fileName) {
 		Log.v(TAG, "Deleting video " + fileName);
 		File f = new File(fileName);
 		if (!f.delete()) {
 			Log.v(TAG, "Could not delete " + fileName);
+			return false;
 		}
+		return true;
 	}
 
 	// from MediaRecorder.OnErrorListener
 	public void onError(MediaRecorder mr, int what, int extra) {
 		if (what == MediaRecorder.MEDIA_RECORDER_ERROR_UNKNOWN) {
-			// We may have run out of space on the sdcard.
+			// We may have run out of space on the sdcard, or the card could
+			// not keep up with the recorder.
+			mBitrateGovernor.onRecorderError();
 			stopVideoRecording();
-			updateAndShowStorageHint(true);
+			mStorage.refreshAsync();
 		}
 	}
 
@@ -983,13 +1599,18 @@ public class VideoRecorder extends Activity implements View.OnClickListener,
 			Toast.makeText(VideoRecorder.this,
 					R.string.video_reach_duration_limit, Toast.LENGTH_LONG)
 					.show();
-			if (mMediaRecorderRecording)
+			if (isRecording())
 				onStopVideoRecording(true);
+		} else if (what == MediaRecorder.MEDIA_RECORDER_INFO_MAX_FILESIZE_REACHED
+				&& mLoopSegmentMs > 0) {
+			// Cut the segment short rather than ending the recording.
+			mHandler.removeMessages(ROLL_SEGMENT);
+			rollSegment();
 		} else if (what == MediaRecorder.MEDIA_RECORDER_INFO_MAX_FILESIZE_REACHED) {
 			// Show the toast.
 			Toast.makeText(VideoRecorder.this, R.string.video_reach_size_limit,
 					Toast.LENGTH_LONG).show();
-			if (mMediaRecorderRecording)
+			if (isRecording())
 				onStopVideoRecording(true);
 		}
 	}
@@ -1009,39 +1630,324 @@ public class VideoRecorder extends Activity implements View.OnClickListener,
 
 	private void startVideoRecording() {
 		Log.v(TAG, "startVideoRecording");
-		if (!mMediaRecorderRecording) {
+		if (!isRecording()) {
 
 			if (mStorageStatus != STORAGE_STATUS_OK) {
 				Log.v(TAG, "Storage issue, ignore the start request");
 				return;
 			}
 
-			// Check mMediaRecorder to see whether it is initialized or not.
-			if (mMediaRecorder == null) {
+			// Check mPrepareFuture to see whether the recorder has been
+			// requested or not. A start queued behind a pending prepare runs
+			// as soon as the recorder is ready.
+			if (mSession == null || mPrepareFuture == null) {
 				Log.e(TAG, "MediaRecorder is not initialized.");
 				return;
 			}
 
 			pauseAudioPlayback();
+			mShutterButton.setEnabled(false);
+			if (mPreRolling) {
+				// Continue from the pre-roll into the video file.
+				mHandler.removeMessages(ROLL_SEGMENT);
+				mPreRolling = false;
+				mStartingLive = true;
+				mRecorderController = createRecorder();
+				mSession.roll(mRecorderController, mLiveCallback);
+				return;
+			}
+			mSession.start(mStartCallback);
+		}
+	}
+
+	private void onRecorderStateChanged(int oldState, int newState) {
+		if (newState == RecordingSession.STATE_RECORDING) {
+			if (mPreRolling) {
+				mHandler.sendEmptyMessageDelayed(ROLL_SEGMENT,
+						PRE_ROLL_SEGMENT_MS);
+			} else {
+				onRecordingStarted();
+			}
+		} else if (oldState == RecordingSession.STATE_FINALIZING) {
+			onRecordingStopped();
+		} else if (oldState == RecordingSession.STATE_READY) {
+			// A prepared recorder was dropped without recording. While
+			// paused, that is how the recording ends.
+			if (mPaused) {
+				onRecordingStopped();
+			} else {
+				onRecorderReleased();
+			}
+		}
+	}
+
+	private void onRecordingStarted() {
+		// mHeadUpDisplay.setEnabled(false);
+		long now = SystemClock.uptimeMillis();
+		// The time of the segments before counts as well.
+		mRecordingStartTime = now - mRecordedMs;
+		mPaused = false;
+		mBitrateGovernor.onRecordingStarted(now);
+		updateRecordingIndicator(false);
+		mRecordingTimeView.setText("");
+		mRecordingTimeView.setVisibility(View.VISIBLE);
+		updateRecordingTime();
+		keepScreenOn();
+		if (mLoopSegmentMs > 0) {
+			mHandler.sendEmptyMessageDelayed(ROLL_SEGMENT, mLoopSegmentMs);
+		}
+	}
+
+	private void onRecorderError(int failedState, int newState, Exception e) {
+		if (mPreRolling && newState != RecordingSession.STATE_RECORDING) {
+			// Turned off rather than failing over and over; it is back on
+			// once the activity is resumed.
+			Log.w(TAG, "Pre-roll failed, recording without it");
+			mPreRolling = false;
+			mPreRoll.clear();
+			mPreRoll = null;
+			mSegmentProfile = null;
+			onRecorderReleased();
+			if (!mPausing) {
+				mHandler.sendEmptyMessage(INIT_RECORDER);
+			}
+			return;
+		}
+		switch (failedState) {
+		case RecordingSession.STATE_PREPARING:
+			mPrepareFuture = null;
+			// While paused, the file still holds what was recorded.
+			if (!mPaused) {
+				mCameraVideoFilename = null;
+				mCameraVideoFileDescriptor = null;
+			}
+			break;
+		case RecordingSession.STATE_READY:
+			Log.e(TAG, "Could not start media recorder. ", e);
+			if (mPaused) {
+				// Cannot resume; keep what was recorded so far.
+				onRecordingStopped();
+			} else {
+				onRecorderReleased();
+			}
+			break;
+		case RecordingSession.STATE_FINALIZING:
+			// The file may still be usable, handle it like a normal stop.
+			Log.e(TAG, "stop fail: " + e.getMessage());
+			mBitrateGovernor.onRecorderError();
+			// When rolling over, the next segment is recording regardless.
+			if (newState != RecordingSession.STATE_RECORDING) {
+				onRecordingStopped();
+			}
+			break;
+		case RecordingSession.STATE_RECORDING:
+			// The next segment of a loop recording could not be started.
+			onRecordingStopped();
+			break;
+		}
+	}
 
-			try {
-				mMediaRecorder.setOnErrorListener(this);
-				mMediaRecorder.setOnInfoListener(this);
-				mMediaRecorder.start(); // Recording is now started
-			} catch (RuntimeException e) {
-				Log.e(TAG, "Could not start media recorder. ", e);
+	private final RetentionManager.Callback mRetentionCallback = new RetentionManager.Callback() {
+		public void onEnforced(boolean satisfied, long freedBytes) {
+			mStorage.onFreed(freedBytes);
+			mRetentionPending = false;
+			mRetentionChecked = true;
+			if (!satisfied) {
+				Log.w(TAG, "Not enough room left after deleting old videos");
+			}
+			if (mPausing)
+				return;
+			updateAndShowStorageHint(true);
+			if (mSurfaceHolder != null) {
+				mHandler.sendEmptyMessage(INIT_RECORDER);
+			}
+		}
+	};
+
+	// Called once the session has stopped the recorder and released it.
+	private void onRecordingStopped() {
+		// mHeadUpDisplay.setEnabled(true);
+		mHandler.removeMessages(ROLL_SEGMENT);
+		mStartingLive = false;
+		if (mPreRolling) {
+			// Only the pre-roll was being recorded.
+			mPreRolling = false;
+			mPreRoll.clear();
+			mSegmentProfile = null;
+			onRecorderReleased();
+			if (!mPausing && mSurfaceHolder != null) {
+				mHandler.sendEmptyMessage(INIT_RECORDER);
+			}
+			return;
+		}
+		if (!mPaused) {
+			mBitrateGovernor.onRecordingStopped(SystemClock.uptimeMillis());
+		}
+		if (mPauseRequested) {
+			mPauseRequested = false;
+			if (!mPausing) {
+				onRecordingPaused();
 				return;
 			}
-			// mHeadUpDisplay.setEnabled(false);
+		}
+		boolean finishing = mSegments != null;
+		if (finishing) {
+			// Left to the finisher on the session thread already, unless
+			// it is stopped while paused, or the activity was paused while
+			// a segment was being stopped for a pause.
+			mRecorderController.finishSegments();
+			mSegments = null;
+		}
+		mPaused = false;
+		mRecordedMs = 0;
+		mSegmentProfile = null;
+		// The next recording needs room again, and the estimate of the free
+		// space is replaced by a measurement.
+		mRetentionChecked = false;
+		mStorage.refreshAsync();
+		mCurrentVideoFilename = mCameraVideoFilename;
+		mCurrentVideoToCaller = mCameraVideoFileDescriptor != null;
+		Log.v(TAG, "Setting current video filename: " + mCurrentVideoFilename);
+		onRecorderReleased();
+		boolean review = mReviewAfterStop;
+		boolean returnToCaller = mReturnAfterStop;
+		mReviewAfterStop = false;
+		mReturnAfterStop = false;
+		if (mLoopSegmentMs > 0) {
+			// The segments are registered as they are finished, and there
+			// is no single clip to review.
+			mCurrentVideoValues = null;
+			review = false;
+			if (returnToCaller) {
+				doReturnToCaller(true);
+			}
+		} else {
+			Publication publication = new Publication();
+			publication.path = mCurrentVideoFilename;
+			boolean stored = mStorageStatus == STORAGE_STATUS_OK;
+			boolean shared = mCurrentVideoToCaller || mCurrentVideoShared;
+			if (stored && !mCurrentVideoToCaller && mCurrentVideoShared) {
+				publication.values = mCurrentVideoValues;
+			}
+			mCurrentVideoValues = null;
+			// The review screen plays it by its content URI.
+			review = review && shared;
+			publication.catalog = stored;
+			publication.shared = shared;
+			publication.review = review;
+			publication.returnToCaller = returnToCaller;
+			String path = publication.path;
+			if (!finishing || path == null) {
+				publish(publication);
+			} else if (mFinished.remove(path)) {
+				publish(publication);
+			} else {
+				// The next recording need not wait for it.
+				mPublications.put(path, publication);
+			}
+		}
+		if (!review && !returnToCaller && !mPausing && mSurfaceHolder != null) {
+			mHandler.sendEmptyMessage(INIT_RECORDER);
+		}
+	}
 
-			mMediaRecorderRecording = true;
-			mRecordingStartTime = SystemClock.uptimeMillis();
-			updateRecordingIndicator(false);
-			mRecordingTimeView.setText("");
-			mRecordingTimeView.setVisibility(View.VISIBLE);
-			updateRecordingTime();
-			keepScreenOn();
+	// Continues a loop recording or the pre-roll in a new segment, see
+	// RecordingSession#roll.
+	private void rollSegment() {
+		if (mSession == null || !mSession.isRecording() || mPausing)
+			return;
+		if (mPreRolling) {
+			mRecorderController = createPreRollRecorder();
+			mSession.roll(mRecorderController, mPreRollCallback);
+			return;
 		}
+		if (mLoopSegmentMs == 0)
+			return;
+		// Each segment counts as a recording of its own for the governor.
+		long now = SystemClock.uptimeMillis();
+		mBitrateGovernor.onRecordingStopped(now);
+		mRecorderController = createRecorder();
+		mSession.roll(mRecorderController, mLoopRollCallback);
+	}
+
+	// A failed roll has ended the recording, see onRecorderError().
+	private void onSegmentRolled(int kind, boolean success, long gapMs) {
+		if (kind == ROLL_PRE_ROLL) {
+			if (success && mPreRoll != null) {
+				Log.v(TAG, "Rolled the pre-roll over in " + gapMs + "ms");
+				mPreRoll.onRolled(gapMs);
+			}
+			if (success && mPreRolling && mSession != null
+					&& mSession.isRecording()) {
+				mHandler.sendEmptyMessageDelayed(ROLL_SEGMENT,
+						PRE_ROLL_SEGMENT_MS);
+			}
+			return;
+		}
+		if (kind == ROLL_LIVE) {
+			mStartingLive = false;
+			updateShutterButton();
+			if (success) {
+				Log.v(TAG, "Went live after the pre-roll in " + gapMs + "ms");
+				onRecordingStarted();
+			}
+			return;
+		}
+		if (!success)
+			return;
+		Log.v(TAG, "Rolled over in " + gapMs + "ms");
+		if (mLoop != null) {
+			mLoop.onSwitched(gapMs, mProfile.videoFrameRate);
+			Log.v(TAG, "Loop recording: " + mLoop);
+		}
+		if (!isRecording())
+			return;
+		mBitrateGovernor.onRecordingStarted(SystemClock.uptimeMillis());
+		mHandler.sendEmptyMessageDelayed(ROLL_SEGMENT, mLoopSegmentMs);
+	}
+
+	// Keeps the loop segment being recorded from being deleted.
+	private void protectLoopSegment() {
+		if (mLoop == null || mCameraVideoFilename == null)
+			return;
+		try {
+			mLoop.protect(new File(mCameraVideoFilename));
+			Toast.makeText(this, R.string.video_segment_protected,
+					Toast.LENGTH_SHORT).show();
+		} catch (IOException e) {
+			Log.e(TAG, "Cannot protect " + mCameraVideoFilename, e);
+		}
+	}
+
+	private void pauseVideoRecording() {
+		Log.v(TAG, "pauseVideoRecording");
+		mRecordedMs = SystemClock.uptimeMillis() - mRecordingStartTime;
+		mPauseRequested = true;
+		mShutterButton.setEnabled(false);
+		mSession.stop(mStopCallback);
+	}
+
+	// Called once a segment has been stopped for a pause. The recorder for
+	// the next one is prepared right away, so that resuming is quick.
+	private void onRecordingPaused() {
+		mPaused = true;
+		mPrepareFuture = null;
+		mHandler.removeMessages(UPDATE_RECORD_TIME);
+		mRecordingTimeView.setText(getString(R.string.video_paused) + " "
+				+ seconds2TimeString(mRecordedMs / 1000));
+		keepScreenOnAwhile();
+		mHandler.sendEmptyMessage(INIT_RECORDER);
+	}
+
+	private void onRecorderReleased() {
+		mPrepareFuture = null;
+		updateRecordingIndicator(true);
+		mRecordingTimeView.setVisibility(View.GONE);
+		if (!mPausing) {
+			keepScreenOnAwhile();
+		}
+		mCameraVideoFilename = null;
+		mCameraVideoFileDescriptor = null;
 	}
 
 	private void updateRecordingIndicator(boolean showRecording) {
@@ -1051,9 +1957,22 @@ public class VideoRecorder extends Activity implements View.OnClickListener,
 		mShutterButton.setImageDrawable(drawable);
 	}
 
+	// A valid video is returned once it is published, see publish().
 	private void stopVideoRecordingAndReturn(boolean valid) {
+		if (valid) {
+			mReturnAfterStop = true;
+			stopVideoRecording();
+			return;
+		}
 		stopVideoRecording();
-		doReturnToCaller(valid);
+		doReturnToCaller(false);
+	}
+
+	private void returnIfPending() {
+		if (mReturnPending) {
+			mReturnPending = false;
+			setResultAndFinish(true);
+		}
 	}
 
 	private void stopVideoRecordingAndShowAlert() {
@@ -1064,8 +1983,14 @@ public class VideoRecorder extends Activity implements View.OnClickListener,
 	private void showAlert() {
 		fadeOut(findViewById(R.id.shutter_button));
 		if (mCurrentVideoFilename != null) {
-			mVideoFrame.setImageBitmap(ThumbnailUtils.createVideoThumbnail(
-					mCurrentVideoFilename, Video.Thumbnails.MINI_KIND));
+			mVideoFrame.setImageBitmap(null);
+			mThumbnailRequest = mThumbnails.request(mCurrentVideoFilename,
+					new ThumbnailService.Callback() {
+						public void onThumbnail(String path, Bitmap bitmap) {
+							mThumbnailRequest = null;
+							mVideoFrame.setImageBitmap(bitmap);
+						}
+					});
 			mVideoFrame.setVisibility(View.VISIBLE);
 		}
 		// int[] pickIds = { R.id.btn_retake, R.id.btn_done, R.id.btn_play };
@@ -1076,6 +2001,10 @@ public class VideoRecorder extends Activity implements View.OnClickListener,
 	}
 
 	private void hideAlert() {
+		if (mThumbnailRequest != null) {
+			mThumbnailRequest.cancel();
+			mThumbnailRequest = null;
+		}
 		mVideoFrame.setVisibility(View.INVISIBLE);
 		fadeIn(findViewById(R.id.shutter_button));
 		// int[] pickIds = { R.id.btn_retake, R.id.btn_done, R.id.btn_play };
@@ -1105,7 +2034,8 @@ public class VideoRecorder extends Activity implements View.OnClickListener,
 
 	private void viewLastVideo() {
 		Intent intent = null;
-		String sizeString = getVideoSizeString(mCurrentVideoFilename);
+		String sizeString = getVideoSizeString(
+				getVideoSize(mCurrentVideoFilename));
 		String tips = "视频大小为" + sizeString + ",确定要发送吗？";
 		Toast.makeText(this, tips, 0).show();
 		// if (mThumbController.isUriValid()) {
@@ -1125,36 +2055,27 @@ public class VideoRecorder extends Activity implements View.OnClickListener,
 		// }
 	}
 
+	// Asks the session to stop. The file is registered and the UI updated in
+	// onRecordingStopped() once the recorder has been finalized.
 	private void stopVideoRecording() {
+		stopVideoRecording(mStopCallback);
+	}
+
+	private void stopVideoRecording(RecordingSession.Callback callback) {
 		Log.v(TAG, "stopVideoRecording");
-		boolean needToRegisterRecording = false;
-		if (mMediaRecorderRecording || mMediaRecorder != null) {
-			if (mMediaRecorderRecording && mMediaRecorder != null) {
-				try {
-					mMediaRecorder.setOnErrorListener(null);
-					mMediaRecorder.setOnInfoListener(null);
-					mMediaRecorder.stop();
-				} catch (RuntimeException e) {
-					Log.e(TAG, "stop fail: " + e.getMessage());
-				}
-				// mHeadUpDisplay.setEnabled(true);
-				mCurrentVideoFilename = mCameraVideoFilename;
-				Log.v(TAG, "Setting current video filename: "
-						+ mCurrentVideoFilename);
-				needToRegisterRecording = true;
-				mMediaRecorderRecording = false;
-			}
-			releaseMediaRecorder();
-			updateRecordingIndicator(true);
-			mRecordingTimeView.setVisibility(View.GONE);
-			keepScreenOnAwhile();
+		if (mSegments != null) {
+			mSegments.setFinishing();
+		}
+		if (mPaused && mPrepareFuture == null) {
+			// No recorder for the next segment to drop; the recording is
+			// already complete.
+			onRecordingStopped();
+			return;
 		}
-		if (needToRegisterRecording && mStorageStatus == STORAGE_STATUS_OK) {
-			registerVideo();
+		if (mSession != null) {
+			mShutterButton.setEnabled(false);
+			mSession.stop(callback);
 		}
-
-		mCameraVideoFilename = null;
-		mCameraVideoFileDescriptor = null;
 	}
 
 	private void resetScreenOn() {
@@ -1178,27 +2099,46 @@ public class VideoRecorder extends Activity implements View.OnClickListener,
 		mHandler.sendEmptyMessage(INIT_RECORDER);
 	}
 
-	private void acquireVideoThumb() {
-		Bitmap videoFrame = ThumbnailUtils.createVideoThumbnail(
-				mCurrentVideoFilename, Video.Thumbnails.MINI_KIND);
-	}
-
 	private void updateRecordingTime() {
-		if (!mMediaRecorderRecording) {
+		if (!isRecording()) {
 			return;
 		}
 		long now = SystemClock.uptimeMillis();
 		long delta = now - mRecordingStartTime;
 		long deltaSeconds = delta / 1000;
 
-		// Starting a minute before reaching the max duration
-		// limit, we'll countdown the remaining time instead.
-		boolean countdownRemainingTime = (mMaxVideoDurationInMs != 0 && delta >= mMaxVideoDurationInMs - 60000);
+		long written = mRecorderController != null ? mRecorderController
+				.getBytesWritten() : -1;
+		long bytesPerSecond = (mBitrateGovernor.getBitRate()
+				+ mProfile.audioBitRate) / 8;
+		if (written >= 0) {
+			mBitrateGovernor.sample(now, written, mRecorderController
+					.getQueuedBuffers(), mRecorderController
+					.getPendingWriteMs());
+		} else {
+			// Into a preallocated file; as much as the bitrates say, which
+			// errs on the safe side.
+			written = bytesPerSecond * delta / 1000;
+		}
+		if (mRecorderController != null) {
+			// A preallocated file takes its room up front.
+			written = Math.max(written, mRecorderController
+					.getPreallocatedBytes());
+		}
+		mStorage.setBytesWritten(written);
+
+		// Starting a minute before reaching the max duration limit, or
+		// running out of room, we'll countdown the remaining time instead.
+		long remainingMs = mStorage.getRemainingMs(bytesPerSecond);
+		if (mMaxVideoDurationInMs != 0) {
+			remainingMs = Math.min(remainingMs, mMaxVideoDurationInMs - delta);
+		}
+		boolean countdownRemainingTime = remainingMs <= 60000;
 
 		long next_update_delay = 1000 - (delta % 1000);
 		long seconds;
 		if (countdownRemainingTime) {
-			delta = Math.max(0, mMaxVideoDurationInMs - delta);
+			delta = Math.max(0, remainingMs);
 			seconds = (delta + 999) / 1000;
 		} else {
 			seconds = delta / 1000; // round to nearest
@@ -1253,53 +2193,24 @@ public class VideoRecorder extends Activity implements View.OnClickListener,
 		return text;
 	}
 
-	private static boolean isSupported(String value, List<String> supported) {
-		return supported == null ? false : supported.indexOf(value) >= 0;
-	}
-
-	private void setCameraParameters() {
-		mParameters = mCameraDevice.getParameters();
-
-		mParameters.setPreviewSize(mProfile.videoFrameWidth,
-				mProfile.videoFrameHeight);
-		mParameters.setPreviewFrameRate(mProfile.videoFrameRate);
-
-		// Set flash mode.
-		String flashMode = mPreferences.getString(
+	// Reads the settings on the main thread; CameraHolder applies the ones
+	// that changed on its own thread.
+	private ParameterCache.Values getCameraValues() {
+		ParameterCache.Values values = new ParameterCache.Values();
+		values.previewWidth = mProfile.videoFrameWidth;
+		values.previewHeight = mProfile.videoFrameHeight;
+		values.previewFrameRate = mProfile.videoFrameRate;
+		values.flashMode = mPreferences.getString(
 				CameraSettings.KEY_VIDEOCAMERA_FLASH_MODE,
 				getString(R.string.pref_camera_video_flashmode_default));
-		List<String> supportedFlash = mParameters.getSupportedFlashModes();
-		if (isSupported(flashMode, supportedFlash)) {
-			mParameters.setFlashMode(flashMode);
-		} else {
-			flashMode = mParameters.getFlashMode();
-			if (flashMode == null) {
-				flashMode = getString(R.string.pref_camera_flashmode_no_flash);
-			}
-		}
-
-		// Set white balance parameter.
-		String whiteBalance = mPreferences.getString(
+		values.whiteBalance = mPreferences.getString(
 				CameraSettings.KEY_WHITE_BALANCE,
 				getString(R.string.pref_camera_whitebalance_default));
-		if (isSupported(whiteBalance, mParameters.getSupportedWhiteBalance())) {
-			mParameters.setWhiteBalance(whiteBalance);
-		} else {
-			whiteBalance = mParameters.getWhiteBalance();
-			if (whiteBalance == null) {
-				whiteBalance = Parameters.WHITE_BALANCE_AUTO;
-			}
-		}
-
-		// Set color effect parameter.
-		String colorEffect = mPreferences.getString(
+		values.colorEffect = mPreferences.getString(
 				CameraSettings.KEY_COLOR_EFFECT,
 				getString(R.string.pref_camera_coloreffect_default));
-		if (isSupported(colorEffect, mParameters.getSupportedColorEffects())) {
-			mParameters.setColorEffect(colorEffect);
-		}
-
-		mCameraDevice.setParameters(mParameters);
+		mCameraValues = values;
+		return values;
 	}
 
 	@Override
@@ -1316,31 +2227,21 @@ public class VideoRecorder extends Activity implements View.OnClickListener,
 
 	private void resetCameraParameters() {
 		// We need to restart the preview if preview size is changed.
-		Size size = mParameters.getPreviewSize();
-		if (size.width != mProfile.videoFrameWidth
-				|| size.height != mProfile.videoFrameHeight) {
+		if (mCameraValues == null
+				|| mCameraValues.previewWidth != mProfile.videoFrameWidth
+				|| mCameraValues.previewHeight != mProfile.videoFrameHeight) {
 			// It is assumed media recorder is released before
 			// onSharedPreferenceChanged, so we can close the camera here.
-			closeCamera();
-			try {
-				resizeForPreviewAspectRatio();
-				startPreview(); // Parameters will be set in startPreview().
-			} catch (CameraHardwareException e) {
-				showCameraBusyAndFinish();
-			}
+			closeCamera(null);
+			resizeForPreviewAspectRatio();
+			startPreview(); // Parameters will be set in startPreview().
 		} else {
-			try {
-				// We need to lock the camera before writing parameters.
-				mCameraDevice.lock();
-			} catch (RuntimeException e) {
-				// When preferences are added for the first time, this method
-				// will be called. But OnScreenSetting is not displayed yet and
-				// media recorder still owns the camera. Lock will fail and we
-				// just ignore it.
-				return;
-			}
-			setCameraParameters();
-			mCameraDevice.unlock();
+			// When preferences are added for the first time, this method
+			// will be called. But OnScreenSetting is not displayed yet and
+			// media recorder still owns the camera. Lock will fail and we
+			// just ignore it, so no callback here.
+			CameraHolder.instance().setParametersAsync(getCameraValues(),
+					null, null);
 		}
 	}
 
@@ -1348,8 +2249,7 @@ public class VideoRecorder extends Activity implements View.OnClickListener,
 	}
 
 	// //////////
-	public static String getVideoSizeString(String videoPath) {
-		int size = getVideoSize(videoPath);
+	public static String getVideoSizeString(long size) {
 		DecimalFormat df = new DecimalFormat("###.##");
 		float f = ((float) size / (float) (1024 * 1024));
 		if (f < 1.0) {
@@ -1360,19 +2260,10 @@ public class VideoRecorder extends Activity implements View.OnClickListener,
 		}
 	}
 
-	public static int getVideoSize(String videoPath) {
-		File file = new File(videoPath);
-		FileInputStream fis;
-		try {
-			fis = new FileInputStream(file);
-			int fileLen = fis.available(); // 这就是文件大小
-			return fileLen;
-		} catch (FileNotFoundException e) {
-			e.printStackTrace();
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
-		return -1;
+	// From the catalog if it has the video, else from the file.
+	private long getVideoSize(String videoPath) {
+		RecordingsCatalog.Entry entry = mCatalog.get(videoPath);
+		return entry != null ? entry.size : new File(videoPath).length();
 	}
 
 }
@@ -1,5 +1,6 @@
 package com.camera;
 
+import com.android.camera.CameraHolder;
 import com.android.camera.MovieView;
 
 import android.app.Activity;
@@ -21,6 +22,9 @@ public class VideoPlayActivity extends MovieView {
 	float initScale = -1;
 	String url;
 	String protraitPath;
+	// Set when the user goes back to the recorder, which reuses the camera
+	// kept open by it.
+	boolean retake = false;
 
 	@Override
 	public void onCreate(Bundle savedInstanceState) {
@@ -41,6 +45,9 @@ public class VideoPlayActivity extends MovieView {
 
 	@Override
 	public void finish() {
+		if (!retake) {
+			CameraHolder.instance().cancelKeep();
+		}
 		super.finish();
 		overridePendingTransition(0, 0);
 	}
@@ -129,6 +136,18 @@ public class VideoPlayActivity extends MovieView {
 		int margin = (int) (5 * 1.5f);
 		int width = (int) (45 * 1.5f);
 
+		if (isInSDCard && toSend) {
+			FrameLayout.LayoutParams anewFrameParams = new FrameLayout.LayoutParams(
+					width, ViewGroup.LayoutParams.WRAP_CONTENT);
+			anewFrameParams.gravity = Gravity.LEFT;
+			anewFrameParams.setMargins(margin, margin, margin, margin);
+			Button anewButton = new Button(mediaController.getContext());
+			anewButton.setText("重拍");
+			anewButton.setOnClickListener(anewOnClickListener);
+			mediaController.addView(anewButton, anewFrameParams);
+			anewButton.setPadding(margin, 0, margin, 0);
+		}
+
 		FrameLayout.LayoutParams useFrameParams = new FrameLayout.LayoutParams(
 				width, ViewGroup.LayoutParams.WRAP_CONTENT);
 		useFrameParams.gravity = Gravity.RIGHT;
@@ -145,6 +164,9 @@ public class VideoPlayActivity extends MovieView {
 		@Override
 		public void onClick(View v) {
 			// IntentUtil.openVideoRecordActivity(VideoPlayActivity.this);
+			retake = true;
+			startActivity(new Intent(VideoPlayActivity.this,
+					VideoRecordActivity.class));
 			finish();
 		}
 	};
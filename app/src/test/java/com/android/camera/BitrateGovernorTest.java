@@ -0,0 +1,116 @@
+package com.android.camera;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Feeds the governor backlog samples of whole recordings and checks the
+ * bitrate it picks for the next one.
+ */
+public class BitrateGovernorTest {
+	private static final int BASE = 8000000;
+	private static final int MIN = 4000000;
+	private static final int LIMIT = BitrateGovernor.BACKLOG_LIMIT_BUFFERS;
+
+	private BitrateGovernor mGovernor;
+
+	@Before
+	public void setUp() {
+		mGovernor = new BitrateGovernor(BASE, MIN);
+	}
+
+	// Records for durationMs, sampling every second from the start with
+	// queuedBuffers waiting and a write taking writeMs.
+	private void record(long durationMs, int queuedBuffers, long writeMs) {
+		mGovernor.onRecordingStarted(0);
+		for (long t = 1000; t < durationMs; t += 1000) {
+			mGovernor.sample(t, t * 1000, queuedBuffers, writeMs);
+		}
+		mGovernor.onRecordingStopped(durationMs);
+	}
+
+	@Test
+	public void keepsTheBaseWhenTheStorageKeepsUp() {
+		record(20000, 1, 100);
+		assertEquals(BASE, mGovernor.getBitRate());
+	}
+
+	@Test
+	public void stepsDownWhenBehind() {
+		record(20000, LIMIT + 1, 100);
+		assertEquals(BASE * 3 / 4, mGovernor.getBitRate());
+		// A write that takes too long counts as well.
+		record(20000, 1, BitrateGovernor.BACKLOG_LIMIT_MS + 1);
+		assertEquals(BASE * 9 / 16, mGovernor.getBitRate());
+	}
+
+	@Test
+	public void needsSeveralSamplesInARow() {
+		mGovernor.onRecordingStarted(0);
+		long t = BitrateGovernor.WARMUP_MS;
+		for (int i = 0; i < 5; i++) {
+			mGovernor.sample(t += 1000, t, LIMIT + 1, 0);
+			mGovernor.sample(t += 1000, t, LIMIT + 1, 0);
+			mGovernor.sample(t += 1000, t, LIMIT, 0);
+		}
+		mGovernor.onRecordingStopped(t);
+		assertEquals(BASE, mGovernor.getBitRate());
+	}
+
+	@Test
+	public void ignoresTheWarmUp() {
+		mGovernor.onRecordingStarted(0);
+		for (long t = 500; t < BitrateGovernor.WARMUP_MS; t += 500) {
+			mGovernor.sample(t, t, PipeWriter.BUFFER_COUNT, 10000);
+		}
+		mGovernor.onRecordingStopped(20000);
+		assertEquals(BASE, mGovernor.getBitRate());
+	}
+
+	@Test
+	public void stepsDownOnRecorderError() {
+		mGovernor.onRecordingStarted(0);
+		mGovernor.onRecorderError();
+		mGovernor.onRecordingStopped(1000);
+		assertEquals(BASE * 3 / 4, mGovernor.getBitRate());
+	}
+
+	@Test
+	public void neverGoesBelowTheMinimum() {
+		for (int i = 0; i < 10; i++) {
+			record(20000, LIMIT + 1, 0);
+		}
+		assertEquals(MIN, mGovernor.getBitRate());
+	}
+
+	@Test
+	public void stepsUpToTheBase() {
+		record(20000, LIMIT + 1, 0);
+		record(20000, LIMIT + 1, 0);
+		assertEquals(BASE * 9 / 16, mGovernor.getBitRate());
+		record(20000, 2, 1000);
+		assertEquals(BASE * 9 / 16 * 5 / 4, mGovernor.getBitRate());
+		record(20000, 0, 0);
+		record(20000, 0, 0);
+		// Not past it.
+		assertEquals(BASE, mGovernor.getBitRate());
+	}
+
+	@Test
+	public void stepsUpOnlyWithRoomToSpare() {
+		record(20000, LIMIT + 1, 0);
+		int lowered = mGovernor.getBitRate();
+		// Too short, too many buffers waiting, too slow a write.
+		record(9000, 0, 0);
+		record(20000, 3, 0);
+		record(20000, 0, 1001);
+		assertEquals(lowered, mGovernor.getBitRate());
+		// Or not sampled past the warm-up at all.
+		mGovernor.onRecordingStarted(0);
+		mGovernor.sample(1000, 1000, -1, 0);
+		mGovernor.onRecordingStopped(20000);
+		assertEquals(lowered, mGovernor.getBitRate());
+	}
+}
@@ -0,0 +1,130 @@
+package com.android.camera;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Times what hashing costs a recording: on the writer thread as
+ * {@link PipeWriter} hands the {@link ContentDigest.Hasher} its buffers,
+ * and once the file is finished, against reading all of it. Clips are built
+ * as in {@link Mp4Corpus}, at about 420kbps. Run with
+ * "./gradlew :app:benchmark".
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ContentDigestBenchmark {
+	// As MPEG4Writer reserves for the moov box of a long clip.
+	private static final int RESERVE = 3 * 1024 * 1024;
+
+	@Param({ "1", "10" })
+	public int minutes;
+
+	private byte[] mStream;
+	private File mFile;
+
+	/** A hasher that has seen the whole stream, for {@link #finish}. */
+	@State(Scope.Thread)
+	public static class Written {
+		ContentDigest.Hasher hasher;
+
+		@Setup(Level.Invocation)
+		public void setUp(ContentDigestBenchmark benchmark) {
+			hasher = benchmark.write(null);
+		}
+	}
+
+	@Setup
+	public void setUp() throws IOException {
+		int chunks = minutes * 60 * 30 / Mp4Fixture.VIDEO_PER_CHUNK;
+		mStream = new Mp4Fixture(12, chunks).pipeStream(RESERVE, false);
+		mFile = File.createTempFile("benchmark", ".mp4");
+		FileOutputStream out = new FileOutputStream(mFile);
+		try {
+			out.write(mStream);
+		} finally {
+			out.close();
+		}
+		RandomAccessFile raf = new RandomAccessFile(mFile, "rw");
+		try {
+			Mp4Files.repairPipeOutput(raf);
+		} finally {
+			raf.close();
+		}
+	}
+
+	@TearDown
+	public void tearDown() {
+		mFile.delete();
+	}
+
+	// Hands the stream to a hasher in the buffers PipeWriter writes, or
+	// to observer alone if it is not null.
+	ContentDigest.Hasher write(PipeWriter.Observer observer) {
+		ContentDigest.Hasher hasher = null;
+		if (observer == null) {
+			observer = hasher = new ContentDigest.Hasher(null);
+		}
+		int size = PipeWriter.BUFFER_BYTES;
+		for (int offset = 0; offset < mStream.length; offset += size) {
+			observer.onWrite(ByteBuffer.wrap(mStream, offset,
+					Math.min(size, mStream.length - offset)), offset);
+		}
+		observer.onFinish(mStream.length);
+		return hasher;
+	}
+
+	/** What the writer thread pays for each recording. */
+	@Benchmark
+	public ContentDigest.Hasher hashWhileWritten() {
+		return write(null);
+	}
+
+	/** The same buffers with no hashing, to tell the cost of the loop. */
+	@Benchmark
+	public long writeOnly() {
+		final long[] bytes = new long[1];
+		write(new PipeWriter.Observer() {
+			public void onWrite(ByteBuffer data, long offset) {
+				bytes[0] += data.remaining();
+			}
+
+			public void onFinish(long length) {
+			}
+		});
+		return bytes[0];
+	}
+
+	/** What is left to do once the file is finished. */
+	@Benchmark
+	public byte[] finish(Written written) throws IOException {
+		return written.hasher.finish(mFile);
+	}
+
+	/** What the catalog does instead, for a file that was not hashed. */
+	@Benchmark
+	public byte[] compute() throws IOException {
+		return ContentDigest.compute(mFile);
+	}
+}
@@ -0,0 +1,140 @@
+package com.android.camera;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * Hashes recordings as {@link PipeWriter} writes them, in buffers of
+ * several sizes, and checks the digest against the one read from the
+ * finished file, before and after it is made fast start.
+ */
+public class ContentDigestTest {
+	// As in Mp4FilesTest.
+	private static final int RESERVE = 3 * 1024 * 1024 / 100;
+
+	private File mFile;
+
+	@Before
+	public void setUp() throws IOException {
+		mFile = File.createTempFile("contentdigest", ".mp4");
+	}
+
+	@After
+	public void tearDown() {
+		mFile.delete();
+	}
+
+	private void write(byte[] data) throws IOException {
+		FileOutputStream out = new FileOutputStream(mFile);
+		try {
+			out.write(data);
+		} finally {
+			out.close();
+		}
+	}
+
+	// Writes stream to the file as the pipe would, through a hasher in
+	// buffers of bufferBytes, and finishes the file.
+	private ContentDigest.Hasher record(byte[] stream, int bufferBytes)
+			throws IOException {
+		ContentDigest.Hasher hasher = new ContentDigest.Hasher(null);
+		for (int offset = 0; offset < stream.length; offset += bufferBytes) {
+			int n = Math.min(bufferBytes, stream.length - offset);
+			hasher.onWrite(ByteBuffer.wrap(stream, offset, n), offset);
+		}
+		hasher.onFinish(stream.length);
+		write(stream);
+		RandomAccessFile raf = new RandomAccessFile(mFile, "rw");
+		try {
+			assertTrue(Mp4Files.repairPipeOutput(raf));
+		} finally {
+			raf.close();
+		}
+		return hasher;
+	}
+
+	@Test
+	public void hashesWhileWritten() throws IOException {
+		byte[] stream = new Mp4Fixture(51, 20).pipeStream(RESERVE, false);
+		for (int bufferBytes : new int[] { 64, 1000, 4096, 256 * 1024 }) {
+			ContentDigest.Hasher hasher = record(stream, bufferBytes);
+			byte[] digest = ContentDigest.compute(mFile);
+			assertArrayEquals("buffers of " + bufferBytes, digest,
+					hasher.finish(mFile));
+		}
+	}
+
+	@Test
+	public void hashesWhileWrittenWithLargeSize() throws IOException {
+		byte[] stream = new Mp4Fixture(52, 20).pipeStream(RESERVE, true);
+		ContentDigest.Hasher hasher = record(stream, 1000);
+		assertArrayEquals(ContentDigest.compute(mFile), hasher.finish(mFile));
+	}
+
+	@Test
+	public void hashesWhileWrittenWhenMadeFastStart() throws IOException {
+		byte[] stream = new Mp4Fixture(53, 20).pipeStream(RESERVE, false);
+		ContentDigest.Hasher hasher = record(stream, 4096);
+		// The media data moves behind the moov box; the chunk offsets in it
+		// change, and so does the digest.
+		assertTrue(FastStart.process(mFile, true));
+		assertArrayEquals(ContentDigest.compute(mFile), hasher.finish(mFile));
+	}
+
+	@Test
+	public void tellsRecordingsApart() throws IOException {
+		new Mp4Fixture(54, 10).writeFile(mFile);
+		byte[] a = ContentDigest.compute(mFile);
+		new Mp4Fixture(55, 10).writeFile(mFile);
+		assertFalse(Arrays.equals(a, ContentDigest.compute(mFile)));
+	}
+
+	@Test
+	public void givesUpOnTailLongerThanCheckpoints() throws IOException {
+		// A moov box of some 40KB after the media data, in buffers of 64
+		// bytes: the last checkpoint in the media data is long gone.
+		byte[] stream = new Mp4Fixture(56, 400).pipeStream(1024, false);
+		ContentDigest.Hasher hasher = record(stream, 64);
+		assertNull(hasher.finish(mFile));
+	}
+
+	@Test
+	public void givesUpOnStreamNotFromStart() throws IOException {
+		byte[] stream = new Mp4Fixture(57, 4).pipeStream(RESERVE, false);
+		ContentDigest.Hasher hasher = new ContentDigest.Hasher(null);
+		hasher.onWrite(ByteBuffer.wrap(stream), 5000);
+		write(stream);
+		assertNull(hasher.finish(mFile));
+	}
+
+	@Test
+	public void hashesRecordingWithoutMediaDataWhole() throws IOException,
+			NoSuchAlgorithmException {
+		byte[] data = Mp4Fixture.box("moov", Mp4Fixture.box("free",
+				new byte[100]));
+		write(data);
+		assertArrayEquals(MessageDigest.getInstance("SHA-256").digest(data),
+				ContentDigest.compute(mFile));
+	}
+
+	@Test(expected = IOException.class)
+	public void rejectsOtherFiles() throws IOException {
+		write(ThumbnailStoreTest.thumbnail(58, 10000));
+		ContentDigest.compute(mFile);
+	}
+}
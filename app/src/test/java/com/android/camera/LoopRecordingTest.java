@@ -0,0 +1,150 @@
+package com.android.camera;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+
+/**
+ * Adds segments within a budget and checks which are deleted to stay
+ * within it: the oldest, never the protected ones.
+ */
+public class LoopRecordingTest {
+	private static final int SEGMENT_BYTES = 1000;
+
+	private File mDir;
+	private LoopRecording mLoop;
+
+	@Before
+	public void setUp() {
+		mDir = new File(System.getProperty("java.io.tmpdir"), "loop-"
+				+ System.nanoTime());
+		mLoop = new LoopRecording(mDir, 3 * SEGMENT_BYTES, 60000);
+	}
+
+	@After
+	public void tearDown() {
+		delete(mDir);
+	}
+
+	private static void delete(File file) {
+		File[] files = file.listFiles();
+		if (files != null) {
+			for (File f : files) {
+				delete(f);
+			}
+		}
+		file.delete();
+	}
+
+	// Writes segment i, dated i seconds in.
+	private File segment(File dir, int i) throws IOException {
+		dir.mkdirs();
+		File file = new File(dir, "VID_" + i + ".mp4");
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			out.write(new byte[SEGMENT_BYTES]);
+		} finally {
+			out.close();
+		}
+		file.setLastModified(1000000000000L + i * 1000);
+		return file;
+	}
+
+	private File protectedFile(int i) {
+		return new File(new File(mDir, LoopRecording.PROTECTED_DIRECTORY),
+				"VID_" + i + ".mp4");
+	}
+
+	@Test
+	public void deletesTheOldestOverBudget() throws IOException {
+		File[] files = new File[5];
+		for (int i = 0; i < files.length; i++) {
+			files[i] = segment(mDir, i);
+			mLoop.add(files[i]);
+		}
+		assertEquals(Arrays.asList(files[2], files[3], files[4]),
+				mLoop.getSegments());
+		assertEquals(3 * SEGMENT_BYTES, mLoop.getUsedBytes());
+		assertFalse(files[0].exists());
+		assertFalse(files[1].exists());
+	}
+
+	@Test
+	public void keepsRoomForTheReserve() throws IOException {
+		mLoop.add(segment(mDir, 0));
+		mLoop.add(segment(mDir, 1));
+		mLoop.setReserve(SEGMENT_BYTES + 1);
+		mLoop.reclaim();
+		assertEquals(1, mLoop.getSegments().size());
+		assertEquals(SEGMENT_BYTES, mLoop.getUsedBytes());
+	}
+
+	@Test
+	public void reclaimSkipsProtected() throws IOException {
+		File first = segment(mDir, 0);
+		mLoop.add(first);
+		assertEquals(protectedFile(0), mLoop.protect(first));
+		assertTrue(protectedFile(0).isFile());
+		for (int i = 1; i < 5; i++) {
+			mLoop.add(segment(mDir, i));
+		}
+		// The protected one still counts, so only two others are kept.
+		assertTrue(protectedFile(0).isFile());
+		assertEquals(Arrays.asList(new File(mDir, "VID_3.mp4"),
+				new File(mDir, "VID_4.mp4")), mLoop.getSegments());
+		assertEquals(3 * SEGMENT_BYTES, mLoop.getUsedBytes());
+	}
+
+	@Test
+	public void protectsTheSegmentBeingRecordedOnceAdded() throws IOException {
+		File recording = new File(mDir, "VID_0.mp4");
+		assertEquals(protectedFile(0), mLoop.protect(recording));
+		assertFalse(protectedFile(0).exists());
+		mLoop.add(segment(mDir, 0));
+		assertTrue(protectedFile(0).isFile());
+		assertFalse(recording.exists());
+		assertEquals(Collections.<File> emptyList(), mLoop.getSegments());
+		assertEquals(SEGMENT_BYTES, mLoop.getUsedBytes());
+	}
+
+	@Test
+	public void protectsOnce() throws IOException {
+		mLoop.add(segment(mDir, 0));
+		File target = mLoop.protect(new File(mDir, "VID_0.mp4"));
+		assertEquals(target, mLoop.protect(target));
+		assertTrue(target.isFile());
+	}
+
+	@Test
+	public void protectsARelativePath() throws IOException {
+		// No parent to compare with the protected directory.
+		File target = mLoop.protect(new File("VID_0.mp4"));
+		assertEquals(LoopRecording.PROTECTED_DIRECTORY,
+				target.getParentFile().getName());
+	}
+
+	@Test
+	public void takesOverSegmentsOnOpening() throws IOException {
+		mLoop.add(segment(mDir, 0));
+		mLoop.protect(new File(mDir, "VID_0.mp4"));
+		mLoop.add(segment(mDir, 1));
+		mLoop.add(segment(mDir, 2));
+		mLoop = new LoopRecording(mDir, 3 * SEGMENT_BYTES, 60000);
+		assertEquals(3 * SEGMENT_BYTES, mLoop.getUsedBytes());
+		assertEquals(Arrays.asList(new File(mDir, "VID_1.mp4"),
+				new File(mDir, "VID_2.mp4")), mLoop.getSegments());
+		mLoop.add(segment(mDir, 3));
+		assertFalse(new File(mDir, "VID_1.mp4").exists());
+		assertTrue(protectedFile(0).isFile());
+	}
+}
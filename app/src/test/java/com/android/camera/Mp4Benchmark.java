@@ -0,0 +1,77 @@
+package com.android.camera;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Times indexing and trimming of the recordings in {@link Mp4Corpus}. Run
+ * with "./gradlew :app:benchmark"; pass "-Pjmh='-p clip=/path/to.mp4'" to
+ * run on a real recording.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class Mp4Benchmark {
+	@Param({ "1min", "10min" })
+	public String clip;
+
+	private File mFile;
+	private File mTarget;
+
+	@Setup
+	public void setUp() throws IOException {
+		mFile = Mp4Corpus.copy(clip);
+		mTarget = File.createTempFile("benchmark", ".mp4");
+	}
+
+	@TearDown
+	public void tearDown() {
+		mFile.delete();
+		mTarget.delete();
+	}
+
+	@Benchmark
+	public Mp4Index parse() throws IOException {
+		return Mp4Index.parse(mFile);
+	}
+
+	@Benchmark
+	public long walkSamples() throws IOException {
+		long bytes = 0;
+		for (Mp4Index.Track t : Mp4Index.parse(mFile).tracks) {
+			Mp4Index.Samples s = t.samples();
+			while (s.next()) {
+				bytes += s.size;
+			}
+		}
+		return bytes;
+	}
+
+	@Benchmark
+	public long trimInstant() throws IOException {
+		// The same range every time, so each run replaces the edits alike.
+		return Mp4Trimmer.trimInstant(mFile, 10000, 40000);
+	}
+
+	@Benchmark
+	public long trimCompact() throws IOException {
+		return Mp4Trimmer.trimCompact(mFile, mTarget, 10000, 40000);
+	}
+}
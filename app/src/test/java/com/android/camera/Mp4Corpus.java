@@ -0,0 +1,54 @@
+package com.android.camera;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+
+/**
+ * The recordings the benchmarks run on. A clip named like "10min" is built
+ * by {@link Mp4Fixture} at about the bitrate of CIF recordings, the same
+ * every time, and kept in the temporary directory; any other name is taken
+ * as the path of a real recording, e.g. pulled from a device. The
+ * benchmarks get a copy, which they may change.
+ */
+class Mp4Corpus {
+	private static final String SUFFIX = "min";
+	private static final long SEED = 12;
+
+	private Mp4Corpus() {
+	}
+
+	/** Returns a copy of {@code clip} to work on; delete it when done. */
+	static File copy(String clip) throws IOException {
+		File source = clip.endsWith(SUFFIX) ? generate(clip) : new File(clip);
+		File copy = File.createTempFile("corpus", ".mp4");
+		FileChannel in = new FileInputStream(source).getChannel();
+		FileChannel out = new FileOutputStream(copy).getChannel();
+		try {
+			FastStart.transferFully(in, 0, in.size(), out);
+		} finally {
+			in.close();
+			out.close();
+		}
+		return copy;
+	}
+
+	private static File generate(String clip) throws IOException {
+		File dir = new File(System.getProperty("java.io.tmpdir"), "mp4-corpus");
+		File file = new File(dir, clip + ".mp4");
+		if (file.isFile())
+			return file;
+		dir.mkdirs();
+		int minutes = Integer.parseInt(clip.substring(0,
+				clip.length() - SUFFIX.length()));
+		// 30fps; 1750 bytes a frame on average, about 420kbps.
+		int chunks = minutes * 60 * 30 / Mp4Fixture.VIDEO_PER_CHUNK;
+		File tmp = new File(dir, clip + ".tmp");
+		new Mp4Fixture(SEED, chunks).writeFile(tmp);
+		if (!tmp.renameTo(file))
+			throw new IOException("cannot create " + file);
+		return file;
+	}
+}
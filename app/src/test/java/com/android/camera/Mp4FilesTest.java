@@ -0,0 +1,148 @@
+package com.android.camera;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+
+/**
+ * Repairs streams laid out as AOSP's MPEG4Writer writes them into a pipe,
+ * see {@link Mp4Fixture#pipeStream}.
+ */
+public class Mp4FilesTest {
+	// MPEG4Writer's estimate for a short clip at a low bitrate.
+	private static final int RESERVE = 3 * 1024 * 1024 / 100;
+
+	private File mFile;
+
+	@Before
+	public void setUp() throws IOException {
+		mFile = File.createTempFile("mp4files", ".mp4");
+	}
+
+	@After
+	public void tearDown() {
+		mFile.delete();
+	}
+
+	private void write(long start, byte[] data) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(mFile, "rw");
+		try {
+			raf.setLength(start);
+			raf.seek(start);
+			raf.write(data);
+		} finally {
+			raf.close();
+		}
+	}
+
+	private boolean repair(long start) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(mFile, "rw");
+		try {
+			return Mp4Files.repairPipeOutput(raf, start);
+		} finally {
+			raf.close();
+		}
+	}
+
+	@Test
+	public void repairsPipeStream() throws IOException {
+		Mp4Fixture fixture = new Mp4Fixture(1, 20);
+		write(0, fixture.pipeStream(RESERVE, false));
+		assertTrue(repair(0));
+		fixture.assertIntact(mFile, 0);
+		// The free box is left with only its header.
+		Mp4Index index = Mp4Index.parse(mFile);
+		assertEquals(fixture.ftyp().length + 8, index.mdatOffset);
+		assertEquals(8 + fixture.payload.length, index.mdatSize);
+	}
+
+	@Test
+	public void repairsPipeStreamWithLargeSize() throws IOException {
+		Mp4Fixture fixture = new Mp4Fixture(2, 20);
+		write(0, fixture.pipeStream(RESERVE, true));
+		assertTrue(repair(0));
+		fixture.assertIntact(mFile, 0);
+		assertEquals(16, Mp4Index.parse(mFile).mdatHeaderSize);
+	}
+
+	@Test
+	public void repairsPipeStreamWithMoovLargerThanReserve() throws IOException {
+		// No free box after the moov box then.
+		Mp4Fixture fixture = new Mp4Fixture(3, 200);
+		byte[] stream = fixture.pipeStream(1024, false);
+		assertEquals(Mp4Index.TYPE_MOOV, ByteBuffer.wrap(stream).getInt(
+				stream.length - fixture.moov(0).length + 4));
+		write(0, stream);
+		assertTrue(repair(0));
+		fixture.assertIntact(mFile, 0);
+	}
+
+	@Test
+	public void repairsPipeStreamAfterStart() throws IOException {
+		Mp4Fixture fixture = new Mp4Fixture(4, 10);
+		write(5000, fixture.pipeStream(RESERVE, false));
+		assertTrue(repair(5000));
+		fixture.assertIntact(mFile, 5000);
+	}
+
+	@Test
+	public void leavesFinishedFileAlone() throws IOException {
+		Mp4Fixture fixture = new Mp4Fixture(5, 10);
+		byte[] file = fixture.file();
+		write(0, file);
+		assertFalse(repair(0));
+		assertEquals(file.length, mFile.length());
+		fixture.assertIntact(mFile, 0);
+	}
+
+	@Test
+	public void findsPlaceholderOnlyAtMdat() {
+		byte[] head = new byte[64];
+		System.arraycopy(Mp4Fixture.type("????"), 0, head, 20, 4);
+		assertEquals(-1, Mp4Files.findPlaceholderMdat(head, head.length));
+		System.arraycopy(Mp4Fixture.type("mdat"), 0, head, 24, 4);
+		assertEquals(20, Mp4Files.findPlaceholderMdat(head, head.length));
+		// Cut off before the end of a 64 bit header could be told.
+		assertEquals(-1, Mp4Files.findPlaceholderMdat(head, 30));
+	}
+
+	@Test
+	public void rejectsUnknownBoxOverMdat() throws IOException {
+		Mp4Fixture fixture = new Mp4Fixture(6, 4);
+		byte[] stream = fixture.pipeStream(RESERVE, false);
+		// The reserve is no free box.
+		System.arraycopy(Mp4Fixture.type("uuid"), 0, stream,
+				fixture.ftyp().length + 4, 4);
+		write(0, stream);
+		assertFalse(repair(0));
+	}
+
+	@Test
+	public void finishedFileEndsAfterMoov() throws IOException {
+		Mp4Fixture fixture = new Mp4Fixture(7, 4);
+		byte[] file = fixture.file();
+		FileOutputStream out = new FileOutputStream(mFile);
+		try {
+			out.write(file);
+			out.write(new byte[1000]);
+		} finally {
+			out.close();
+		}
+		RandomAccessFile raf = new RandomAccessFile(mFile, "r");
+		try {
+			assertEquals(file.length, Mp4Files.findEnd(raf));
+		} finally {
+			raf.close();
+		}
+	}
+}
@@ -0,0 +1,371 @@
+package com.android.camera;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Random;
+
+/**
+ * Builds MP4 files laid out the way MediaRecorder's MPEG4Writer writes
+ * them: an AVC video track and an AMR audio track, interleaved in chunks of
+ * {@link #VIDEO_PER_CHUNK} frames and {@link #AUDIO_PER_CHUNK} frames.
+ * The content is random, from a seed, so a test can check that it moved
+ * intact.
+ */
+class Mp4Fixture {
+	static final int VIDEO_PER_CHUNK = 6;
+	static final int AUDIO_PER_CHUNK = 10;
+	static final int VIDEO_TIMESCALE = 90000;
+	static final int VIDEO_DELTA = 3000; // 30fps
+	static final int AUDIO_TIMESCALE = 8000;
+	static final int AUDIO_DELTA = 160; // 20ms
+	static final int AMR_FRAME_BYTES = 32;
+	static final int GOP_FRAMES = 10;
+	static final int WIDTH = 352;
+	static final int HEIGHT = 288;
+
+	static final byte[] SPS = { 0x67, 0x42, 0x00, 0x1e, (byte) 0x95, (byte) 0xa0,
+			0x58, 0x25, 0x10 };
+	static final byte[] PPS = { 0x68, (byte) 0xce, 0x38, (byte) 0x80 };
+
+	/** A sample, with its offset from the start of the media data. */
+	static class Sample {
+		boolean video;
+		boolean sync;
+		long offset;
+		byte[] data;
+	}
+
+	final ArrayList<Sample> samples = new ArrayList<Sample>();
+	final int chunks;
+	// The media data, without the mdat header.
+	final byte[] payload;
+
+	Mp4Fixture(long seed, int chunks) {
+		this(seed, chunks, 500, 3000);
+	}
+
+	/** Video frames take between minFrame and maxFrame bytes. */
+	Mp4Fixture(long seed, int chunks, int minFrame, int maxFrame) {
+		this.chunks = chunks;
+		Random random = new Random(seed);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		int frame = 0;
+		for (int c = 0; c < chunks; c++) {
+			for (int i = 0; i < VIDEO_PER_CHUNK; i++, frame++) {
+				boolean sync = frame % GOP_FRAMES == 0;
+				int n = minFrame + random.nextInt(maxFrame - minFrame + 1);
+				byte[] data = new byte[n];
+				random.nextBytes(data);
+				// One NAL unit, with a four byte length.
+				putInt(data, 0, n - 4);
+				data[4] = (byte) (sync ? 0x65 : 0x41);
+				add(out, true, sync, data);
+			}
+			for (int i = 0; i < AUDIO_PER_CHUNK; i++) {
+				byte[] data = new byte[AMR_FRAME_BYTES];
+				random.nextBytes(data);
+				// 12.2kbps, quality bit set.
+				data[0] = 0x3c;
+				add(out, false, true, data);
+			}
+		}
+		payload = out.toByteArray();
+	}
+
+	private void add(ByteArrayOutputStream out, boolean video, boolean sync,
+			byte[] data) {
+		Sample s = new Sample();
+		s.video = video;
+		s.sync = sync;
+		s.offset = out.size();
+		s.data = data;
+		samples.add(s);
+		out.write(data, 0, data.length);
+	}
+
+	int getVideoCount() {
+		return chunks * VIDEO_PER_CHUNK;
+	}
+
+	int getAudioCount() {
+		return chunks * AUDIO_PER_CHUNK;
+	}
+
+	long getDurationMs() {
+		return (long) getVideoCount() * VIDEO_DELTA * 1000 / VIDEO_TIMESCALE;
+	}
+
+	/** The nth video or audio sample, 0 based. */
+	Sample get(boolean video, int n) {
+		for (Sample s : samples) {
+			if (s.video == video && n-- == 0)
+				return s;
+		}
+		throw new IndexOutOfBoundsException();
+	}
+
+	/** Writes {@link #file()} to {@code file}. */
+	void writeFile(File file) throws IOException {
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			out.write(file());
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Checks that {@code file} from {@code start} on is a valid MP4 file,
+	 * ending with the moov box, that holds the samples built here.
+	 */
+	void assertIntact(File file, long start) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			Mp4Index index = Mp4Index.parse(channel, start, channel.size());
+			assertTrue(index.mdatOffset > 0);
+			assertEquals(index.moovOffset + index.moovSize, channel.size());
+			int video = 0;
+			int audio = 0;
+			for (Mp4Index.Track t : index.tracks) {
+				Mp4Index.Samples s = t.samples();
+				while (s.next()) {
+					Sample expected = get(t.isVideo(), s.index);
+					ByteBuffer data = ByteBuffer.allocate(s.size);
+					Mp4Index.readFully(channel, data, start + s.offset);
+					assertArrayEquals(expected.data, data.array());
+					assertTrue(start + s.offset + s.size <= index.mdatOffset
+							+ index.mdatSize);
+				}
+				if (t.isVideo()) {
+					video = t.getSampleCount();
+				} else {
+					audio = t.getSampleCount();
+				}
+			}
+			assertEquals(getVideoCount(), video);
+			assertEquals(getAudioCount(), audio);
+		} finally {
+			raf.close();
+		}
+	}
+
+	/** A finished file: ftyp, mdat and moov, as written to a real file. */
+	byte[] file() throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] ftyp = ftyp();
+		out.write(ftyp);
+		writeInt(out, 8 + payload.length);
+		out.write(type("mdat"));
+		out.write(payload);
+		out.write(moov(ftyp.length + 8));
+		return out.toByteArray();
+	}
+
+	/**
+	 * What MPEG4Writer writes into a pipe, where it cannot seek: the header
+	 * of the free box reserving {@code reserve} bytes for the moov box, but
+	 * not its body; the mdat header with "?" in place of the size; the media
+	 * data; the size; the moov box, its chunk offsets counting the reserve;
+	 * and, if the moov box fit in the reserve, the header of the free box
+	 * meant to fill the rest of it.
+	 */
+	byte[] pipeStream(int reserve, boolean largeSize) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] ftyp = ftyp();
+		out.write(ftyp);
+		writeInt(out, reserve);
+		out.write(type("free"));
+		int header;
+		if (largeSize) {
+			writeInt(out, 1);
+			out.write(type("mdat"));
+			out.write(type("????"));
+			out.write(type("????"));
+			header = 16;
+		} else {
+			out.write(type("????"));
+			out.write(type("mdat"));
+			header = 8;
+		}
+		out.write(payload);
+		long size = header + payload.length;
+		if (largeSize) {
+			writeInt(out, (int) (size >>> 32));
+		}
+		writeInt(out, (int) size);
+		byte[] moov = moov(ftyp.length + reserve + header);
+		out.write(moov);
+		if (moov.length + 8 <= reserve) {
+			writeInt(out, reserve - moov.length);
+			out.write(type("free"));
+		}
+		return out.toByteArray();
+	}
+
+	byte[] ftyp() throws IOException {
+		ByteArrayOutputStream b = new ByteArrayOutputStream();
+		b.write(type("3gp4"));
+		writeInt(b, 0);
+		b.write(type("isom"));
+		b.write(type("3gp4"));
+		return box("ftyp", b.toByteArray());
+	}
+
+	/** The moov box, for media data whose payload starts at mdatStart. */
+	byte[] moov(long mdatStart) throws IOException {
+		ByteArrayOutputStream b = new ByteArrayOutputStream();
+		long durationMs = getDurationMs();
+		b.write(fullBox("mvhd", 0, ints(0, 0, 1000, (int) durationMs,
+				0x10000, 0x01000000, 0, 0), matrix(), new byte[24], ints(3)));
+		b.write(trak(true, mdatStart));
+		b.write(trak(false, mdatStart));
+		return box("moov", b.toByteArray());
+	}
+
+	private byte[] trak(boolean video, long mdatStart) throws IOException {
+		int count = video ? getVideoCount() : getAudioCount();
+		int perChunk = video ? VIDEO_PER_CHUNK : AUDIO_PER_CHUNK;
+		int timescale = video ? VIDEO_TIMESCALE : AUDIO_TIMESCALE;
+		int delta = video ? VIDEO_DELTA : AUDIO_DELTA;
+
+		ByteArrayOutputStream sizes = new ByteArrayOutputStream();
+		ByteArrayOutputStream offsets = new ByteArrayOutputStream();
+		ByteArrayOutputStream syncs = new ByteArrayOutputStream();
+		int n = 0;
+		int syncCount = 0;
+		for (int i = 0; i < samples.size(); i++) {
+			Sample s = samples.get(i);
+			if (s.video != video)
+				continue;
+			writeInt(sizes, s.data.length);
+			if (n % perChunk == 0) {
+				writeInt(offsets, (int) (mdatStart + s.offset));
+			}
+			if (s.sync) {
+				writeInt(syncs, n + 1);
+				syncCount++;
+			}
+			n++;
+		}
+
+		ByteArrayOutputStream stbl = new ByteArrayOutputStream();
+		stbl.write(fullBox("stsd", 0, ints(1), video ? avc1() : samr()));
+		stbl.write(fullBox("stts", 0, ints(1, count, delta)));
+		if (video) {
+			stbl.write(fullBox("stss", 0, ints(syncCount), syncs.toByteArray()));
+		}
+		stbl.write(fullBox("stsc", 0, ints(1, 1, perChunk, 1)));
+		stbl.write(fullBox("stsz", 0, ints(0, count), sizes.toByteArray()));
+		stbl.write(fullBox("stco", 0, ints(chunks), offsets.toByteArray()));
+
+		long duration = (long) count * delta;
+		byte[] minf = box("minf", box("stbl", stbl.toByteArray()));
+		byte[] mdhd = fullBox("mdhd", 0, ints(0, 0, timescale, (int) duration,
+				0x55c40000));
+		byte[] hdlr = fullBox("hdlr", 0, ints(0), type(video ? "vide" : "soun"),
+				new byte[12], new byte[] { 'x', 0 });
+		byte[] mdia = box("mdia", mdhd, hdlr, minf);
+		byte[] tkhd = fullBox("tkhd", 7, ints(0, 0, video ? 1 : 2, 0,
+				(int) getDurationMs(), 0, 0, 0, video ? 0 : 0x01000000),
+				matrix(), ints(video ? WIDTH << 16 : 0, video ? HEIGHT << 16 : 0));
+		return box("trak", tkhd, mdia);
+	}
+
+	private static byte[] avc1() throws IOException {
+		ByteArrayOutputStream avcC = new ByteArrayOutputStream();
+		avcC.write(new byte[] { 1, 0x42, 0, 0x1e, (byte) 0xff, (byte) 0xe1, 0,
+				(byte) SPS.length });
+		avcC.write(SPS);
+		avcC.write(new byte[] { 1, 0, (byte) PPS.length });
+		avcC.write(PPS);
+		ByteArrayOutputStream b = new ByteArrayOutputStream();
+		b.write(new byte[6]);
+		b.write(new byte[] { 0, 1 });
+		b.write(new byte[16]);
+		b.write(new byte[] { WIDTH >> 8, (byte) WIDTH, HEIGHT >> 8, (byte) HEIGHT });
+		b.write(ints(0x480000, 0x480000, 0));
+		b.write(new byte[] { 0, 1 });
+		b.write(new byte[32]);
+		b.write(new byte[] { 0, 0x18, (byte) 0xff, (byte) 0xff });
+		b.write(box("avcC", avcC.toByteArray()));
+		return box("avc1", b.toByteArray());
+	}
+
+	private static byte[] samr() throws IOException {
+		ByteArrayOutputStream b = new ByteArrayOutputStream();
+		b.write(new byte[6]);
+		b.write(new byte[] { 0, 1 });
+		b.write(new byte[8]);
+		b.write(new byte[] { 0, 1, 0, 16, 0, 0, 0, 0 });
+		b.write(ints(AUDIO_TIMESCALE << 16));
+		b.write(box("damr", type("FFMP"), new byte[] { 0, (byte) 0x81, (byte) 0xff,
+				0, 1 }));
+		return box("samr", b.toByteArray());
+	}
+
+	private static byte[] matrix() {
+		return ints(0x10000, 0, 0, 0, 0x10000, 0, 0, 0, 0x40000000);
+	}
+
+	static byte[] box(String type, byte[]... parts) throws IOException {
+		ByteArrayOutputStream b = new ByteArrayOutputStream();
+		int size = 8;
+		for (byte[] p : parts) {
+			size += p.length;
+		}
+		writeInt(b, size);
+		b.write(type(type));
+		for (byte[] p : parts) {
+			b.write(p);
+		}
+		return b.toByteArray();
+	}
+
+	static byte[] fullBox(String type, int flags, byte[]... parts)
+			throws IOException {
+		byte[][] all = new byte[parts.length + 1][];
+		all[0] = ints(flags);
+		System.arraycopy(parts, 0, all, 1, parts.length);
+		return box(type, all);
+	}
+
+	static byte[] ints(int... values) {
+		byte[] b = new byte[values.length * 4];
+		for (int i = 0; i < values.length; i++) {
+			putInt(b, i * 4, values[i]);
+		}
+		return b;
+	}
+
+	static byte[] type(String type) {
+		byte[] b = new byte[4];
+		for (int i = 0; i < 4; i++) {
+			b[i] = (byte) type.charAt(i);
+		}
+		return b;
+	}
+
+	static void putInt(byte[] b, int off, int value) {
+		b[off] = (byte) (value >>> 24);
+		b[off + 1] = (byte) (value >>> 16);
+		b[off + 2] = (byte) (value >>> 8);
+		b[off + 3] = (byte) value;
+	}
+
+	private static void writeInt(ByteArrayOutputStream out, int value)
+			throws IOException {
+		new DataOutputStream(out).writeInt(value);
+	}
+}
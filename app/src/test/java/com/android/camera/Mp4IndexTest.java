@@ -0,0 +1,133 @@
+package com.android.camera;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+
+public class Mp4IndexTest {
+	private static final int CHUNKS = 30;
+
+	private Mp4Fixture mFixture;
+	private File mFile;
+
+	@Before
+	public void setUp() throws IOException {
+		mFixture = new Mp4Fixture(11, CHUNKS);
+		mFile = File.createTempFile("mp4index", ".mp4");
+		mFixture.writeFile(mFile);
+	}
+
+	@After
+	public void tearDown() {
+		mFile.delete();
+	}
+
+	@Test
+	public void indexesTracks() throws IOException {
+		Mp4Index index = Mp4Index.parse(mFile);
+		assertEquals(2, index.tracks.size());
+		assertFalse(index.isFastStart());
+		assertEquals(mFixture.getDurationMs(), index.getDurationMs());
+		Mp4Index.Track video = index.getVideoTrack();
+		assertEquals(Mp4Index.fourcc("avc1"), video.codec);
+		assertEquals(Mp4Fixture.WIDTH, video.width);
+		assertEquals(Mp4Fixture.HEIGHT, video.height);
+		assertEquals(0, index.getRotation());
+		assertEquals(mFixture.getDurationMs(), video.getDurationMs());
+		assertEquals(CHUNKS, video.getChunkCount());
+		assertEquals(mFixture.getVideoCount() / Mp4Fixture.GOP_FRAMES,
+				video.getSyncSampleCount());
+		Mp4Index.Track audio = index.getAudioTrack();
+		assertEquals(Mp4Index.fourcc("samr"), audio.codec);
+		assertTrue(audio.isAllSync());
+	}
+
+	@Test
+	public void walksSamples() throws IOException {
+		Mp4Index index = Mp4Index.parse(mFile);
+		long mdatStart = index.mdatOffset + index.mdatHeaderSize;
+		for (Mp4Index.Track t : index.tracks) {
+			Mp4Index.Samples s = t.samples();
+			int delta = t.isVideo() ? Mp4Fixture.VIDEO_DELTA
+					: Mp4Fixture.AUDIO_DELTA;
+			while (s.next()) {
+				Mp4Fixture.Sample expected = mFixture.get(t.isVideo(), s.index);
+				assertEquals(mdatStart + expected.offset, s.offset);
+				assertEquals(expected.data.length, s.size);
+				assertEquals(expected.sync, s.sync);
+				assertEquals((long) s.index * delta, s.time);
+				assertEquals(delta, s.delta);
+				assertEquals(0, s.compositionOffset);
+			}
+			assertEquals(t.getSampleCount(), s.index + 1);
+		}
+		mFixture.assertIntact(mFile, 0);
+	}
+
+	@Test
+	public void indexesMoovInMemory() throws IOException {
+		Mp4Index index = Mp4Index.fromMoov(ByteBuffer.wrap(mFixture.moov(0)));
+		assertEquals(2, index.tracks.size());
+		assertEquals(mFixture.getVideoCount(), index.getVideoTrack()
+				.getSampleCount());
+		assertEquals(0, index.getVideoTrack().getChunkOffset(0));
+	}
+
+	@Test
+	public void movesMoovToFront() throws IOException {
+		assertTrue(FastStart.process(mFile, false));
+		checkFastStart();
+		// Nothing left to do.
+		assertFalse(FastStart.process(mFile, true));
+	}
+
+	@Test
+	public void movesMoovToFrontInPlace() throws IOException {
+		assertTrue(FastStart.process(mFile, true));
+		checkFastStart();
+	}
+
+	private void checkFastStart() throws IOException {
+		Mp4Index index = Mp4Index.parse(mFile);
+		assertTrue(index.isFastStart());
+		assertEquals(mFile.length(), index.mdatOffset + index.mdatSize);
+		Mp4Index.Samples s = index.getVideoTrack().samples();
+		while (s.next()) {
+			ByteBuffer data = ByteBuffer.allocate(s.size);
+			RandomAccessFile raf = new RandomAccessFile(mFile, "r");
+			try {
+				Mp4Index.readFully(raf.getChannel(), data, s.offset);
+			} finally {
+				raf.close();
+			}
+			assertTrue(java.util.Arrays.equals(mFixture.get(true, s.index).data,
+					data.array()));
+		}
+	}
+
+	@Test
+	public void rejectsFileWithoutMoov() throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(mFile, "rw");
+		try {
+			raf.setLength(raf.length() - mFixture.moov(0).length);
+		} finally {
+			raf.close();
+		}
+		try {
+			Mp4Index.parse(mFile);
+			fail();
+		} catch (IOException e) {
+			// Expected, the recording was never finished.
+		}
+	}
+}
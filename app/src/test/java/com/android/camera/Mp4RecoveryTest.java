@@ -0,0 +1,103 @@
+package com.android.camera;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+
+/**
+ * Recovers a recording cut short before its moov box was written, with the
+ * template of another one, the way the journal keeps it.
+ */
+public class Mp4RecoveryTest {
+	private File mFile;
+	private File mTemplate;
+
+	@Before
+	public void setUp() throws IOException {
+		mFile = File.createTempFile("mp4recovery", ".mp4");
+		mTemplate = File.createTempFile("mp4recovery", ".moov");
+	}
+
+	@After
+	public void tearDown() {
+		mFile.delete();
+		mTemplate.delete();
+	}
+
+	// What is left of the recording if the process dies before it stops.
+	private static void writeUnfinished(File file, Mp4Fixture fixture)
+			throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		out.write(fixture.ftyp());
+		out.write(Mp4Fixture.type("????"));
+		out.write(Mp4Fixture.type("mdat"));
+		out.write(fixture.payload);
+		FileOutputStream f = new FileOutputStream(file);
+		try {
+			f.write(out.toByteArray());
+		} finally {
+			f.close();
+		}
+	}
+
+	private Mp4Index template() throws IOException {
+		new Mp4Fixture(41, 8).writeFile(mFile);
+		Mp4Recovery.writeTemplate(mFile, mTemplate);
+		byte[] bytes = new byte[(int) mTemplate.length()];
+		RandomAccessFile raf = new RandomAccessFile(mTemplate, "r");
+		try {
+			raf.readFully(bytes);
+		} finally {
+			raf.close();
+		}
+		return Mp4Index.fromMoov(ByteBuffer.wrap(bytes));
+	}
+
+	@Test
+	public void recoversWithTemplate() throws IOException {
+		Mp4Index template = template();
+		Mp4Fixture fixture = new Mp4Fixture(42, 10);
+		writeUnfinished(mFile, fixture);
+		assertTrue(Mp4Recovery.recover(mFile, template, 30));
+
+		Mp4Index index = Mp4Index.parse(mFile);
+		assertEquals(8 + fixture.payload.length, index.mdatSize);
+		Mp4Index.Track audio = index.getAudioTrack();
+		assertEquals(fixture.getAudioCount(), audio.getSampleCount());
+		// Each video sample is a single slice here, which may be taken for
+		// part of the one before; no byte of them is lost.
+		long videoBytes = 0;
+		for (Mp4Fixture.Sample s : fixture.samples) {
+			if (s.video) {
+				videoBytes += s.data.length;
+			}
+		}
+		Mp4Index.Samples s = index.getVideoTrack().samples();
+		while (s.next()) {
+			videoBytes -= s.size;
+		}
+		assertEquals(0, videoBytes);
+	}
+
+	@Test
+	public void needsTemplateForFirstSegment() throws IOException {
+		writeUnfinished(mFile, new Mp4Fixture(43, 4));
+		try {
+			Mp4Recovery.recover(mFile, null, 30);
+			fail();
+		} catch (IOException e) {
+			// Left for the next attempt.
+		}
+	}
+}
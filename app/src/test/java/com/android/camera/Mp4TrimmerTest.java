@@ -0,0 +1,104 @@
+package com.android.camera;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+public class Mp4TrimmerTest {
+	// 180 frames, 6 seconds.
+	private static final int CHUNKS = 30;
+
+	private Mp4Fixture mFixture;
+	private File mFile;
+	private File mTarget;
+
+	@Before
+	public void setUp() throws IOException {
+		mFixture = new Mp4Fixture(21, CHUNKS);
+		mFile = File.createTempFile("mp4trimmer", ".mp4");
+		mTarget = File.createTempFile("mp4trimmer", ".trimmed.mp4");
+		mFixture.writeFile(mFile);
+	}
+
+	@After
+	public void tearDown() {
+		mFile.delete();
+		mTarget.delete();
+	}
+
+	@Test
+	public void trimsInstantlyAtTheEnd() throws IOException {
+		assertEquals(1500, Mp4Trimmer.trimInstant(mFile, 2500, 4000));
+		// The moov box was last, it just grew.
+		mFixture.assertIntact(mFile, 0);
+		for (Mp4Index.Track t : Mp4Index.parse(mFile).tracks) {
+			assertTrue(t.edtsPosition >= 0);
+		}
+	}
+
+	@Test
+	public void trimsInstantlyIntoTheReserve() throws IOException {
+		FastStart.process(mFile, false);
+		long length = mFile.length();
+		assertEquals(1500, Mp4Trimmer.trimInstant(mFile, 2500, 4000));
+		assertEquals(length, mFile.length());
+		Mp4Index index = Mp4Index.parse(mFile);
+		assertTrue(index.isFastStart());
+		// Again, replacing the edits.
+		assertEquals(1000, Mp4Trimmer.trimInstant(mFile, 0, 1000));
+		assertEquals(length, mFile.length());
+	}
+
+	@Test
+	public void trimsCompactFromSyncSample() throws IOException {
+		long duration = Mp4Trimmer.trimCompact(mFile, mTarget, 2500, 4000);
+		// From frame 70, the sync sample before 2500ms, at 2333ms.
+		assertTrue(String.valueOf(duration), Math.abs(duration - 1667) <= 20);
+		Mp4Index index = Mp4Index.parse(mTarget);
+		assertTrue(index.isFastStart());
+		assertSamples(index, true, 70, 50);
+		// Audio from 2340ms on, in 20ms frames.
+		assertSamples(index, false, 117, 83);
+		assertTrue(mTarget.length() < mFile.length() / 2);
+	}
+
+	private void assertSamples(Mp4Index index, boolean video, int first,
+			int count) throws IOException {
+		Mp4Index.Track t = video ? index.getVideoTrack() : index
+				.getAudioTrack();
+		assertEquals(count, t.getSampleCount());
+		RandomAccessFile raf = new RandomAccessFile(mTarget, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			Mp4Index.Samples s = t.samples();
+			while (s.next()) {
+				Mp4Fixture.Sample expected = mFixture.get(video, first
+						+ s.index);
+				ByteBuffer data = ByteBuffer.allocate(s.size);
+				Mp4Index.readFully(channel, data, s.offset);
+				assertArrayEquals(expected.data, data.array());
+				if (s.index == 0) {
+					assertTrue(s.sync);
+					assertEquals(0, s.time);
+				}
+			}
+		} finally {
+			raf.close();
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsEmptyRange() throws IOException {
+		Mp4Trimmer.trimInstant(mFile, 7000, 8000);
+	}
+}
@@ -0,0 +1,157 @@
+package com.android.camera;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.HashMap;
+
+/**
+ * Resolves the recording size and bitrate against the capability dumps in
+ * capability-dumps.txt, the way VideoRecorder does for CIF at 30fps.
+ */
+public class ProfileResolverTest {
+	private static final int TARGET_WIDTH = 352;
+	private static final int TARGET_HEIGHT = 288;
+	private static final int FRAME_RATE = 30;
+
+	private static class Dump {
+		int[] sizes;
+		int maxBitRate;
+	}
+
+	private static HashMap<String, Dump> sDumps;
+
+	@BeforeClass
+	public static void loadDumps() throws IOException {
+		sDumps = new HashMap<String, Dump>();
+		BufferedReader in = new BufferedReader(new InputStreamReader(
+				ProfileResolverTest.class
+						.getResourceAsStream("capability-dumps.txt"), "UTF-8"));
+		try {
+			Dump dump = null;
+			String line;
+			while ((line = in.readLine()) != null) {
+				line = line.trim();
+				if (line.length() == 0 || line.startsWith("#"))
+					continue;
+				if (line.startsWith("[")) {
+					dump = new Dump();
+					sDumps.put(line.substring(1, line.length() - 1), dump);
+				} else if (line.startsWith("preview-size-values=")) {
+					dump.sizes = parseSizes(line.substring(line.indexOf('=') + 1));
+				} else if (line.startsWith("max-bit-rate=")) {
+					dump.maxBitRate = Integer.parseInt(line.substring(line
+							.indexOf('=') + 1));
+				}
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	// As DeviceCapabilities keeps them: pairs of width and height.
+	private static int[] parseSizes(String value) {
+		if (value.length() == 0)
+			return new int[0];
+		String[] sizes = value.split(",");
+		int[] result = new int[sizes.length * 2];
+		for (int i = 0; i < sizes.length; i++) {
+			int x = sizes[i].indexOf('x');
+			result[i * 2] = Integer.parseInt(sizes[i].substring(0, x));
+			result[i * 2 + 1] = Integer.parseInt(sizes[i].substring(x + 1));
+		}
+		return result;
+	}
+
+	private static ProfileResolver.Result resolve(String device) {
+		Dump dump = sDumps.get(device);
+		return new ProfileResolver(dump.sizes,
+				ProfileResolver.DEFAULT_BITS_PER_PIXEL, dump.maxBitRate)
+				.resolve(TARGET_WIDTH, TARGET_HEIGHT, FRAME_RATE);
+	}
+
+	private static void assertResult(int width, int height, int bitRate,
+			ProfileResolver.Result result) {
+		assertEquals(width + "x" + height + " " + bitRate + "bps",
+				result.toString());
+	}
+
+	@Test
+	public void devicesWithCifRecordCif() {
+		assertResult(352, 288, 456192, resolve("nexus-s"));
+		assertResult(352, 288, 456192, resolve("galaxy-nexus"));
+		assertResult(352, 288, 456192, resolve("nexus-4"));
+	}
+
+	@Test
+	public void withoutCifTheNearestAreaWins() {
+		// 400x240 is closer to CIF in area than 384x288.
+		assertResult(400, 240, 432000, resolve("desire"));
+		assertResult(320, 180, 259200, resolve("wide-only"));
+	}
+
+	@Test
+	public void sameAspectCountsOnlyWithinTwiceTheArea() {
+		assertResult(176, 144, 114048, resolve("qcif-4cif"));
+	}
+
+	@Test
+	public void noSizesTakesTheTarget() {
+		assertResult(352, 288, 456192, resolve("empty"));
+		assertEquals(-1, ProfileResolver.nearestSize(new int[0], 352, 288));
+	}
+
+	@Test
+	public void sameAspectWinsOverCloserArea() {
+		// 500x340 is closer in area, 400x300 has the target's aspect ratio.
+		int[] sizes = { 500, 340, 400, 300 };
+		assertEquals(2, ProfileResolver.nearestSize(sizes, 480, 360));
+	}
+
+	@Test
+	public void largerSizeWinsTies() {
+		// 30000 and 50000 pixels, both 10000 off the target's 40000.
+		assertEquals(2, ProfileResolver.nearestSize(new int[] { 300, 100, 100,
+				500 }, 200, 200));
+		assertEquals(0, ProfileResolver.nearestSize(new int[] { 100, 500, 300,
+				100 }, 200, 200));
+	}
+
+	@Test
+	public void bitRateScalesWithFrameRate() {
+		Dump dump = sDumps.get("nexus-s");
+		ProfileResolver resolver = new ProfileResolver(dump.sizes,
+				ProfileResolver.DEFAULT_BITS_PER_PIXEL, dump.maxBitRate);
+		assertResult(352, 288, 228096, resolver.resolve(352, 288, 15));
+		assertResult(352, 288, 456192, resolver.resolve(352, 288, 30));
+	}
+
+	@Test
+	public void bitRateIsClamped() {
+		assertEquals(1000000, ProfileResolver.bitRate(720, 480, 30, 0.15f,
+				1000000));
+		assertEquals(1555200, ProfileResolver.bitRate(720, 480, 30, 0.15f, 0));
+		assertEquals(ProfileResolver.MIN_BIT_RATE, ProfileResolver.bitRate(176,
+				144, 10, 0.15f, 0));
+	}
+
+	@Test
+	public void resultsAreRemembered() {
+		Dump dump = sDumps.get("galaxy-nexus");
+		ProfileResolver resolver = ProfileResolver.forCamera("test-galaxy-nexus",
+				dump.sizes, dump.maxBitRate);
+		assertSame(resolver, ProfileResolver.forCamera("test-galaxy-nexus",
+				new int[0], 0));
+		assertNotSame(resolver, ProfileResolver.forCamera("test-nexus-s",
+				sDumps.get("nexus-s").sizes, 0));
+		assertSame(resolver.resolve(352, 288, 30), resolver.resolve(352, 288,
+				30));
+	}
+}
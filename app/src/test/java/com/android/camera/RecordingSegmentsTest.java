@@ -0,0 +1,103 @@
+package com.android.camera;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Joins the segments of a paused recording, and keeps them all when they
+ * cannot be joined.
+ */
+public class RecordingSegmentsTest {
+	private File mDir;
+	private File mFile;
+
+	@Before
+	public void setUp() {
+		mDir = new File(System.getProperty("java.io.tmpdir"), "segments-"
+				+ System.nanoTime());
+		assertTrue(mDir.mkdirs());
+		mFile = new File(mDir, "video.mp4");
+	}
+
+	@After
+	public void tearDown() {
+		for (File f : mDir.listFiles()) {
+			f.delete();
+		}
+		mDir.delete();
+	}
+
+	private static void write(File file, byte[] data, boolean append)
+			throws IOException {
+		FileOutputStream out = new FileOutputStream(file, append);
+		try {
+			out.write(data);
+		} finally {
+			out.close();
+		}
+	}
+
+	private static long duration(File file) throws IOException {
+		return Mp4Index.parse(file).getVideoTrack().getDurationMs();
+	}
+
+	@Test
+	public void joinsSeparateFiles() throws IOException {
+		File second = new File(mFile.getPath() + ".1");
+		new Mp4Fixture(31, 4).writeFile(mFile);
+		new Mp4Fixture(32, 6).writeFile(second);
+		long expected = duration(mFile) + duration(second);
+		RecordingSegments segments = new RecordingSegments(mFile, false);
+		segments.add(segments.nextFile(), segments.nextStart());
+		assertEquals(second, segments.nextFile());
+		segments.add(segments.nextFile(), segments.nextStart());
+		assertTrue(segments.join());
+		assertFalse(second.exists());
+		assertEquals(expected, duration(mFile));
+	}
+
+	@Test
+	public void keepsSeparateFilesThatCannotBeJoined() throws IOException {
+		File second = new File(mFile.getPath() + ".1");
+		byte[] first = new Mp4Fixture(33, 4).file();
+		write(mFile, first, false);
+		write(second, new byte[1000], false);
+		RecordingSegments segments = new RecordingSegments(mFile, false);
+		segments.add(mFile, 0);
+		segments.add(second, 0);
+		assertFalse(segments.join());
+		assertEquals(first.length, mFile.length());
+		assertEquals(1000, second.length());
+		assertTrue(RecordingSegments.isLeftOver(second.getPath()));
+		assertFalse(RecordingSegments.isLeftOver(mFile.getPath()));
+
+		// As once the recording is recovered.
+		new Mp4Fixture(34, 6).writeFile(second);
+		long expected = duration(mFile) + duration(second);
+		assertTrue(RecordingSegments.joinLeftOver(mFile));
+		assertFalse(second.exists());
+		assertEquals(expected, duration(mFile));
+		assertFalse(RecordingSegments.joinLeftOver(mFile));
+	}
+
+	@Test
+	public void keepsAppendedSegmentsThatCannotBeJoined() throws IOException {
+		byte[] first = new Mp4Fixture(35, 4).file();
+		write(mFile, first, false);
+		write(mFile, new byte[1000], true);
+		RecordingSegments segments = new RecordingSegments(mFile, true);
+		segments.add(mFile, 0);
+		segments.add(mFile, first.length);
+		assertFalse(segments.join());
+		assertEquals(first.length + 1000, mFile.length());
+	}
+}
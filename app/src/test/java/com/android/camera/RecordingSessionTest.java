@@ -0,0 +1,243 @@
+package com.android.camera;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Drives the session through its states with fake recorders, which note
+ * what they are asked to do, and checks the transitions the listener sees.
+ */
+public class RecordingSessionTest {
+	// What the recorders and the listener were told, in order.
+	private final List<String> mEvents = new ArrayList<String>();
+	private RecordingSession mSession;
+
+	private class FakeRecorder implements RecordingSession.Recorder {
+		final String name;
+		IOException prepareFailure;
+		RuntimeException startFailure;
+		RuntimeException stopFailure;
+
+		FakeRecorder(String name) {
+			this.name = name;
+		}
+
+		public void prepare() throws IOException {
+			note(name + ".prepare");
+			if (prepareFailure != null)
+				throw prepareFailure;
+		}
+
+		public void start() {
+			note(name + ".start");
+			if (startFailure != null)
+				throw startFailure;
+		}
+
+		public void stop() {
+			note(name + ".stop");
+			if (stopFailure != null)
+				throw stopFailure;
+		}
+
+		public void release() {
+			note(name + ".release");
+		}
+
+		public void finish() {
+			note(name + ".finish");
+		}
+	}
+
+	// Notes the outcome of a request.
+	private class Outcome implements RecordingSession.Callback {
+		public void onComplete(RecordingSession session, boolean success,
+				long elapsedMs) {
+			note(success ? "ok" : "failed");
+		}
+	}
+
+	@Before
+	public void setUp() {
+		mSession = new RecordingSession(new RecordingSession.Listener() {
+			public void onStateChanged(RecordingSession session,
+					int oldState, int newState) {
+				note(RecordingSession.stateToString(newState));
+			}
+
+			public void onError(RecordingSession session, int failedState,
+					int newState, Exception e) {
+				note("error in " + RecordingSession.stateToString(failedState)
+						+ " to " + RecordingSession.stateToString(newState));
+			}
+		});
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		mSession.release().get();
+	}
+
+	private synchronized void note(String event) {
+		mEvents.add(event);
+	}
+
+	// Returns the events since the last call.
+	private synchronized List<String> events() {
+		List<String> events = new ArrayList<String>(mEvents);
+		mEvents.clear();
+		return events;
+	}
+
+	private void record(FakeRecorder recorder) throws Exception {
+		mSession.prepare(recorder).get();
+		mSession.start().get();
+		assertTrue(mSession.isRecording());
+		events();
+	}
+
+	@Test
+	public void recordsAndStops() throws Exception {
+		FakeRecorder a = new FakeRecorder("a");
+		mSession.prepare(a, new Outcome()).get();
+		assertTrue(mSession.isReady());
+		mSession.start(new Outcome()).get();
+		assertTrue(mSession.isRecording());
+		mSession.stop(new Outcome()).get();
+		assertEquals(RecordingSession.STATE_IDLE, mSession.getState());
+		assertEquals(Arrays.asList("PREPARING", "a.prepare", "READY", "ok",
+				"a.start", "RECORDING", "ok", "FINALIZING", "a.stop",
+				"a.release", "a.finish", "IDLE", "ok"), events());
+	}
+
+	@Test
+	public void dropsPreparedRecorderOnStop() throws Exception {
+		FakeRecorder a = new FakeRecorder("a");
+		mSession.prepare(a).get();
+		events();
+		mSession.stop(new Outcome()).get();
+		assertEquals(Arrays.asList("a.release", "a.finish", "IDLE", "ok"),
+				events());
+	}
+
+	@Test
+	public void ignoresRequestsOutOfState() throws Exception {
+		mSession.start(new Outcome()).get();
+		mSession.stop(new Outcome()).get();
+		assertEquals(Arrays.asList("failed", "failed"), events());
+
+		record(new FakeRecorder("a"));
+		// The session is busy; the second recorder is let go at once.
+		FakeRecorder b = new FakeRecorder("b");
+		mSession.prepare(b, new Outcome()).get();
+		assertEquals(Arrays.asList("b.release", "b.finish", "failed"),
+				events());
+		assertTrue(mSession.isRecording());
+	}
+
+	@Test
+	public void rollsToTheNextRecorder() throws Exception {
+		record(new FakeRecorder("a"));
+		FakeRecorder b = new FakeRecorder("b");
+		mSession.roll(b, new Outcome()).get();
+		// The previous one is finished only once the next one runs, and
+		// the session stays RECORDING throughout.
+		assertEquals(Arrays.asList("a.stop", "a.release", "b.prepare",
+				"b.start", "a.finish", "ok"), events());
+		assertTrue(mSession.isRecording());
+		mSession.stop().get();
+		assertEquals(Arrays.asList("FINALIZING", "b.stop", "b.release",
+				"b.finish", "IDLE"), events());
+	}
+
+	@Test
+	public void rollsOnWhenThePreviousFailsToStop() throws Exception {
+		FakeRecorder a = new FakeRecorder("a");
+		a.stopFailure = new RuntimeException("stop");
+		record(a);
+		mSession.roll(new FakeRecorder("b"), new Outcome()).get();
+		assertEquals(Arrays.asList("a.stop", "error in FINALIZING to RECORDING",
+				"a.release", "b.prepare", "b.start", "a.finish", "ok"),
+				events());
+		assertTrue(mSession.isRecording());
+	}
+
+	@Test
+	public void goesIdleWhenTheNextFailsToStart() throws Exception {
+		record(new FakeRecorder("a"));
+		FakeRecorder b = new FakeRecorder("b");
+		b.prepareFailure = new IOException("prepare");
+		mSession.roll(b, new Outcome()).get();
+		assertEquals(Arrays.asList("a.stop", "a.release", "b.prepare",
+				"b.release", "b.finish", "a.finish",
+				"error in RECORDING to IDLE", "failed"), events());
+		assertEquals(RecordingSession.STATE_IDLE, mSession.getState());
+	}
+
+	@Test
+	public void ignoresRollUnlessRecording() throws Exception {
+		mSession.roll(new FakeRecorder("b"), new Outcome()).get();
+		assertEquals(Arrays.asList("b.release", "b.finish", "failed"),
+				events());
+	}
+
+	@Test
+	public void goesIdleWhenPrepareFails() throws Exception {
+		FakeRecorder a = new FakeRecorder("a");
+		a.prepareFailure = new IOException("prepare");
+		mSession.prepare(a, new Outcome()).get();
+		assertEquals(Arrays.asList("PREPARING", "a.prepare", "a.release",
+				"a.finish", "error in PREPARING to IDLE", "failed"), events());
+		assertEquals(RecordingSession.STATE_IDLE, mSession.getState());
+		// And can be prepared again.
+		mSession.prepare(new FakeRecorder("b")).get();
+		assertTrue(mSession.isReady());
+	}
+
+	@Test
+	public void goesIdleWhenStartFails() throws Exception {
+		FakeRecorder a = new FakeRecorder("a");
+		a.startFailure = new RuntimeException("start");
+		mSession.prepare(a).get();
+		events();
+		mSession.start(new Outcome()).get();
+		assertEquals(Arrays.asList("a.start", "a.release", "a.finish",
+				"error in READY to IDLE", "failed"), events());
+		assertEquals(RecordingSession.STATE_IDLE, mSession.getState());
+	}
+
+	@Test
+	public void goesIdleWhenStopFails() throws Exception {
+		FakeRecorder a = new FakeRecorder("a");
+		a.stopFailure = new RuntimeException("stop");
+		record(a);
+		mSession.stop(new Outcome()).get();
+		assertEquals(Arrays.asList("FINALIZING", "a.stop", "a.release",
+				"a.finish", "error in FINALIZING to IDLE", "failed"), events());
+		assertEquals(RecordingSession.STATE_IDLE, mSession.getState());
+	}
+
+	@Test
+	public void releasesWhileRecording() throws Exception {
+		record(new FakeRecorder("a"));
+		mSession.release().get();
+		assertEquals(Arrays.asList("FINALIZING", "a.stop", "a.release",
+				"a.finish", "RELEASED"), events());
+		// Requests after release are dropped, without hanging.
+		FakeRecorder b = new FakeRecorder("b");
+		mSession.prepare(b).get();
+		assertFalse(mSession.isReady());
+		assertEquals(RecordingSession.STATE_RELEASED, mSession.getState());
+		assertTrue(events().isEmpty());
+	}
+}
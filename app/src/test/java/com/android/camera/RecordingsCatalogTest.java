@@ -0,0 +1,160 @@
+package com.android.camera;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * Changes the catalog and opens it again from its file, as appended to,
+ * rewritten once it holds too many records, or left torn.
+ */
+public class RecordingsCatalogTest {
+	private File mDir;
+	private File mFile;
+	private RecordingsCatalog mCatalog;
+
+	@Before
+	public void setUp() throws InterruptedException {
+		mDir = new File(System.getProperty("java.io.tmpdir"), "catalog-"
+				+ System.nanoTime());
+		mDir.mkdirs();
+		mFile = new File(mDir, "catalog");
+		mCatalog = open();
+	}
+
+	@After
+	public void tearDown() {
+		for (File f : mDir.listFiles()) {
+			f.delete();
+		}
+		mDir.delete();
+	}
+
+	private RecordingsCatalog open() throws InterruptedException {
+		RecordingsCatalog catalog = new RecordingsCatalog(mFile);
+		catalog.awaitSettled();
+		return catalog;
+	}
+
+	private RecordingsCatalog reopen() throws InterruptedException {
+		mCatalog.awaitSettled();
+		mCatalog = open();
+		return mCatalog;
+	}
+
+	// Records video i of a few seconds into the directory.
+	private String video(int i) throws IOException {
+		File file = new File(mDir, "VID_" + i + ".mp4");
+		new Mp4Fixture(60 + i, 10 + i).writeFile(file);
+		return file.getPath();
+	}
+
+	@Test
+	public void replaysAddAndRemove() throws Exception {
+		String a = video(0);
+		String b = video(1);
+		String c = video(2);
+		byte[] hash = ThumbnailStoreTest.thumbnail(1, 32);
+		mCatalog.add(a, true, hash);
+		mCatalog.add(b, false, null);
+		mCatalog.add(c, false, null);
+		mCatalog.remove(b);
+		mCatalog.setFlag(c, RecordingsCatalog.FLAG_PROTECTED, true);
+		mCatalog.awaitSettled();
+		RecordingsCatalog.Entry before = mCatalog.get(a);
+		assertTrue(before.durationMs > 0);
+
+		reopen();
+		assertEquals(2, mCatalog.getCount());
+		assertNull(mCatalog.get(b));
+		RecordingsCatalog.Entry entry = mCatalog.get(a);
+		assertEquals(new File(a).length(), entry.size);
+		assertEquals(before.modified, entry.modified);
+		assertEquals(before.durationMs, entry.durationMs);
+		assertEquals(before.keyFrames, entry.keyFrames);
+		assertEquals(entry.modified, entry.thumbnailModified);
+		assertArrayEquals(hash, entry.hash);
+		assertEquals(RecordingsCatalog.HASH_CONTENT_DIGEST, entry.hashScheme);
+		assertTrue(mCatalog.get(c).isProtected());
+	}
+
+	@Test
+	public void replaysMove() throws Exception {
+		String a = video(0);
+		mCatalog.add(a, false, null);
+		mCatalog.setFlag(a, RecordingsCatalog.FLAG_COPIED, true);
+		// The file is read when it is added.
+		mCatalog.awaitSettled();
+		File moved = new File(mDir, "VID_moved.mp4");
+		assertTrue(new File(a).renameTo(moved));
+		mCatalog.move(a, moved.getPath());
+		reopen();
+		assertNull(mCatalog.get(a));
+		assertTrue(mCatalog.get(moved.getPath()).isCopied());
+	}
+
+	@Test
+	public void compactsTheLog() throws Exception {
+		String a = video(0);
+		String b = video(1);
+		for (int i = 0; i < 20; i++) {
+			mCatalog.setFlag(a, RecordingsCatalog.FLAG_COPIED, i % 2 == 0);
+		}
+		mCatalog.add(a, false, null);
+		mCatalog.add(b, false, null);
+		for (int i = 0; i < 20; i++) {
+			mCatalog.setFlag(a, RecordingsCatalog.FLAG_COPIED, i % 2 == 0);
+		}
+		mCatalog.awaitSettled();
+		long appended = mFile.length();
+		// Reconciling finds nothing changed, but many more records than
+		// entries.
+		mCatalog.reconcileAsync(mDir);
+		mCatalog.awaitSettled();
+		assertTrue(mFile.length() < appended / 5);
+		assertEquals(2, mCatalog.getCount());
+
+		// Appended to after the rewrite.
+		mCatalog.remove(b);
+		reopen();
+		assertEquals(1, mCatalog.getCount());
+		assertEquals(new File(a).length(), mCatalog.get(a).size);
+		assertFalse(mCatalog.get(a).isCopied());
+	}
+
+	@Test
+	public void dropsATornRecord() throws Exception {
+		String a = video(0);
+		String b = video(1);
+		mCatalog.add(a, false, null);
+		mCatalog.awaitSettled();
+		long length = mFile.length();
+		// Half a record, as if the process died appending it.
+		RandomAccessFile raf = new RandomAccessFile(mFile, "rw");
+		try {
+			raf.seek(length);
+			raf.write(0);
+			raf.writeShort(100);
+			raf.write(new byte[20]);
+		} finally {
+			raf.close();
+		}
+		reopen();
+		assertEquals(1, mCatalog.getCount());
+		assertEquals(length, mFile.length());
+		mCatalog.add(b, false, null);
+		reopen();
+		assertEquals(2, mCatalog.getCount());
+		assertEquals(new File(b).length(), mCatalog.get(b).size);
+	}
+}
@@ -0,0 +1,112 @@
+package com.android.camera;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Checks which videos {@link RetentionManager#select} deletes, and in what
+ * order, to reach the floor of free space and stay under the cap.
+ */
+public class RetentionManagerTest {
+	private static final long MB = 1024 * 1024;
+
+	private static RecordingsCatalog.Entry entry(int i, long size,
+			int flags) {
+		RecordingsCatalog.Entry e = new RecordingsCatalog.Entry();
+		e.path = ThumbnailStoreTest.path(i);
+		e.size = size;
+		e.modified = 1000 * i;
+		e.flags = flags;
+		return e;
+	}
+
+	// Of videos 0 to count - 1, oldest first, of 10MB each, listed in
+	// another order than they were recorded.
+	private static List<RecordingsCatalog.Entry> entries(int count) {
+		List<RecordingsCatalog.Entry> entries =
+				new ArrayList<RecordingsCatalog.Entry>();
+		for (int i = 0; i < count; i++) {
+			entries.add(entry(i, 10 * MB, 0));
+		}
+		Collections.reverse(entries);
+		return entries;
+	}
+
+	private static List<String> paths(List<RecordingsCatalog.Entry> entries) {
+		List<String> paths = new ArrayList<String>();
+		for (RecordingsCatalog.Entry e : entries) {
+			paths.add(e.path);
+		}
+		return paths;
+	}
+
+	private static List<String> paths(int... indices) {
+		List<String> paths = new ArrayList<String>();
+		for (int i : indices) {
+			paths.add(ThumbnailStoreTest.path(i));
+		}
+		return paths;
+	}
+
+	@Test
+	public void deletesNothingWithinFloorAndCap() {
+		assertTrue(RetentionManager.select(entries(5), 100 * MB, 100 * MB,
+				50 * MB).isEmpty());
+		assertTrue(RetentionManager.select(entries(5), 100 * MB, 0, 0)
+				.isEmpty());
+	}
+
+	@Test
+	public void deletesTheOldestToReachTheFloor() {
+		List<RecordingsCatalog.Entry> selected = RetentionManager.select(
+				entries(5), 5 * MB, 30 * MB, 0);
+		assertEquals(paths(0, 1, 2), paths(selected));
+	}
+
+	@Test
+	public void deletesTheOldestToStayUnderTheCap() {
+		List<RecordingsCatalog.Entry> selected = RetentionManager.select(
+				entries(5), 100 * MB, 0, 25 * MB);
+		assertEquals(paths(0, 1, 2), paths(selected));
+	}
+
+	@Test
+	public void meetsBothFloorAndCap() {
+		// The cap takes one, the floor two.
+		assertEquals(paths(0, 1), paths(RetentionManager.select(entries(5),
+				10 * MB, 30 * MB, 40 * MB)));
+		// The floor takes one, the cap three.
+		assertEquals(paths(0, 1, 2), paths(RetentionManager.select(
+				entries(5), 10 * MB, 20 * MB, 20 * MB)));
+	}
+
+	@Test
+	public void deletesCopiedFirst() {
+		List<RecordingsCatalog.Entry> entries = entries(5);
+		entries.add(entry(5, 10 * MB, RecordingsCatalog.FLAG_COPIED));
+		entries.add(entry(6, 10 * MB, RecordingsCatalog.FLAG_COPIED));
+		entries.add(entry(7, 10 * MB, 0));
+		assertEquals(paths(5, 6, 0), paths(RetentionManager.select(entries,
+				0, 30 * MB, 0)));
+	}
+
+	@Test
+	public void keepsProtectedAndTheNewest() {
+		List<RecordingsCatalog.Entry> entries = Arrays.asList(
+				entry(0, 10 * MB, RecordingsCatalog.FLAG_PROTECTED),
+				entry(1, 10 * MB, 0),
+				entry(2, 10 * MB, RecordingsCatalog.FLAG_PROTECTED
+						| RecordingsCatalog.FLAG_COPIED),
+				entry(3, 10 * MB, RecordingsCatalog.FLAG_COPIED));
+		// Even if the floor cannot be reached.
+		assertEquals(paths(1), paths(RetentionManager.select(entries, 0,
+				100 * MB, 0)));
+	}
+}
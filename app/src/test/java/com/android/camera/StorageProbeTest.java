@@ -0,0 +1,105 @@
+package com.android.camera;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Probes a tmpfs and a file throttled to a known throughput.
+ */
+public class StorageProbeTest {
+	private static final File TMPFS = new File("/dev/shm");
+	private static final int PROBE_BYTES = 1024 * 1024;
+	private static final long THROTTLE_BYTES_PER_SECOND = 2 * 1024 * 1024;
+
+	// Writes no faster than THROTTLE_BYTES_PER_SECOND, like a slow card.
+	private static class ThrottledOutputStream extends FileOutputStream {
+		private final long mBegin = System.nanoTime();
+		private long mWritten;
+
+		ThrottledOutputStream(File file) throws IOException {
+			super(file);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			super.write(b, off, len);
+			mWritten += len;
+			long dueNs = mWritten * 1000000000L / THROTTLE_BYTES_PER_SECOND;
+			long sleepNs = dueNs - (System.nanoTime() - mBegin);
+			if (sleepNs > 0) {
+				try {
+					Thread.sleep(sleepNs / 1000000, (int) (sleepNs % 1000000));
+				} catch (InterruptedException e) {
+					throw new IOException("interrupted");
+				}
+			}
+		}
+	}
+
+	private static File newDir(File parent) {
+		File dir = new File(parent, "probe-" + System.nanoTime());
+		assertTrue(dir.mkdirs());
+		return dir;
+	}
+
+	@Test
+	public void probesTmpfs() throws IOException {
+		assumeTrue(TMPFS.isDirectory());
+		File dir = newDir(TMPFS);
+		try {
+			StorageProbe.Result result = StorageProbe.probe(dir, PROBE_BYTES);
+			assertEquals(dir.getPath(), result.path);
+			// Memory takes far more than the throttled file.
+			assertTrue(result.toString(),
+					result.bytesPerSecond > THROTTLE_BYTES_PER_SECOND * 4);
+			assertTrue(result.syncLatencyUs >= 0);
+			// The scratch file is gone.
+			assertEquals(0, dir.list().length);
+		} finally {
+			dir.delete();
+		}
+	}
+
+	@Test
+	public void measuresThrottledFile() throws IOException {
+		File dir = newDir(new File(System.getProperty("java.io.tmpdir")));
+		File file = new File(dir, "throttled");
+		try {
+			StorageProbe.Result result = StorageProbe.probe("throttled",
+					new ThrottledOutputStream(file), PROBE_BYTES);
+			assertTrue(result.toString(),
+					result.bytesPerSecond <= THROTTLE_BYTES_PER_SECOND);
+			// The sync after the data has its share, but not the most.
+			assertTrue(result.toString(),
+					result.bytesPerSecond > THROTTLE_BYTES_PER_SECOND / 4);
+		} finally {
+			file.delete();
+			dir.delete();
+		}
+	}
+
+	@Test
+	public void encodesAndDecodes() {
+		StorageProbe.Result result = new StorageProbe.Result("/sdcard",
+				5000000, 1200, 1400000000000L);
+		StorageProbe.Result decoded = StorageProbe.Result.decode("/sdcard",
+				result.encode());
+		assertEquals(result.toString(), decoded.toString());
+		assertEquals(result.measuredAt, decoded.measuredAt);
+	}
+
+	@Test
+	public void rejectsBadEncodings() {
+		assertNull(StorageProbe.Result.decode("/sdcard", null));
+		assertNull(StorageProbe.Result.decode("/sdcard", "1,2"));
+		assertNull(StorageProbe.Result.decode("/sdcard", "1,x,3"));
+	}
+}
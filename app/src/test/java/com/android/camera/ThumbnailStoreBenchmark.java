@@ -0,0 +1,155 @@
+package com.android.camera;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Times {@link ThumbnailStore} against one file per thumbnail, the way the
+ * thumbnails were kept before: getting and putting a thumbnail, and opening
+ * the cache, which lists the directory for the files. Run with
+ * "./gradlew :app:benchmark".
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ThumbnailStoreBenchmark {
+	private static final int THUMBNAIL_BYTES = 8 * 1024;
+	private static final long BUDGET = 64L * 1024 * 1024;
+
+	@Param({ "100", "2000" })
+	public int count;
+
+	private File mStoreDir;
+	private File mFilesDir;
+	private ThumbnailStore mStore;
+	private byte[] mThumbnail;
+	private final Random mRandom = new Random(1);
+
+	@Setup
+	public void setUp() throws IOException {
+		long now = System.nanoTime();
+		mStoreDir = new File(System.getProperty("java.io.tmpdir"),
+				"benchmark-store-" + now);
+		mFilesDir = new File(System.getProperty("java.io.tmpdir"),
+				"benchmark-files-" + now);
+		mFilesDir.mkdirs();
+		mStore = new ThumbnailStore(mStoreDir, BUDGET, 0.5f);
+		mThumbnail = ThumbnailStoreTest.thumbnail(1, THUMBNAIL_BYTES);
+		for (int i = 0; i < count; i++) {
+			String path = ThumbnailStoreTest.path(i);
+			mStore.put(path, i, mThumbnail);
+			writeFile(fileFor(path, i), mThumbnail);
+		}
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		mStore.close();
+		delete(mStoreDir);
+		delete(mFilesDir);
+	}
+
+	private static void delete(File dir) {
+		for (File f : dir.listFiles()) {
+			f.delete();
+		}
+		dir.delete();
+	}
+
+	private File fileFor(String path, long mtime) {
+		return new File(mFilesDir, Integer.toHexString(path.hashCode()) + "-"
+				+ mtime + ".jpg");
+	}
+
+	private static void writeFile(File file, byte[] data) throws IOException {
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			out.write(data);
+		} finally {
+			out.close();
+		}
+	}
+
+	private static byte[] readFile(File file) throws IOException {
+		FileInputStream in = new FileInputStream(file);
+		try {
+			byte[] data = new byte[(int) file.length()];
+			int n = 0;
+			while (n < data.length) {
+				int r = in.read(data, n, data.length - n);
+				if (r < 0)
+					throw new IOException("Short read " + file);
+				n += r;
+			}
+			return data;
+		} finally {
+			in.close();
+		}
+	}
+
+	@Benchmark
+	public byte[] storeGet() throws IOException {
+		int i = mRandom.nextInt(count);
+		return mStore.get(ThumbnailStoreTest.path(i), i);
+	}
+
+	@Benchmark
+	public byte[] filesGet() throws IOException {
+		int i = mRandom.nextInt(count);
+		return readFile(fileFor(ThumbnailStoreTest.path(i), i));
+	}
+
+	@Benchmark
+	public void storePut() throws IOException {
+		// Replaces a thumbnail, so dead records pile up and get compacted.
+		int i = mRandom.nextInt(count);
+		mStore.put(ThumbnailStoreTest.path(i), i, mThumbnail);
+	}
+
+	@Benchmark
+	public void filesPut() throws IOException {
+		int i = mRandom.nextInt(count);
+		writeFile(fileFor(ThumbnailStoreTest.path(i), i), mThumbnail);
+	}
+
+	@Benchmark
+	public int storeOpen() throws IOException {
+		ThumbnailStore store = new ThumbnailStore(mStoreDir, BUDGET, 0.5f);
+		try {
+			return store.getCount();
+		} finally {
+			store.close();
+		}
+	}
+
+	@Benchmark
+	public long filesOpen() {
+		// What opening the old cache took: every file listed and sized to
+		// keep within the budget.
+		long bytes = 0;
+		for (File f : mFilesDir.listFiles()) {
+			bytes += f.length();
+		}
+		return bytes;
+	}
+}
@@ -0,0 +1,181 @@
+package com.android.camera;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Random;
+
+/**
+ * Puts, gets and removes thumbnails, and opens the store again after it was
+ * compacted, grown or left torn.
+ */
+public class ThumbnailStoreTest {
+	private static final long BUDGET = 1024 * 1024;
+	private static final float DEAD_SHARE = 0.5f;
+
+	private File mDir;
+	private ThumbnailStore mStore;
+
+	@Before
+	public void setUp() throws IOException {
+		mDir = new File(System.getProperty("java.io.tmpdir"), "thumbnails-"
+				+ System.nanoTime());
+		mStore = open();
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		mStore.close();
+		for (File f : mDir.listFiles()) {
+			f.delete();
+		}
+		mDir.delete();
+	}
+
+	private ThumbnailStore open() throws IOException {
+		return new ThumbnailStore(mDir, BUDGET, DEAD_SHARE);
+	}
+
+	private ThumbnailStore reopen() throws IOException {
+		mStore.close();
+		mStore = open();
+		return mStore;
+	}
+
+	static byte[] thumbnail(int seed, int size) {
+		byte[] data = new byte[size];
+		new Random(seed).nextBytes(data);
+		return data;
+	}
+
+	static String path(int i) {
+		return "/sdcard/DCIM/Camera/VID_" + i + ".mp4";
+	}
+
+	@Test
+	public void getsWhatWasPut() throws IOException {
+		byte[] data = thumbnail(1, 5000);
+		mStore.put(path(1), 100, data);
+		assertArrayEquals(data, mStore.get(path(1), 100));
+		// Another version of the file, or another file.
+		assertNull(mStore.get(path(1), 101));
+		assertNull(mStore.get(path(2), 100));
+		assertEquals(1, mStore.getCount());
+		assertEquals(20 + data.length, mStore.getLiveBytes());
+	}
+
+	@Test
+	public void replacesAndRemoves() throws IOException {
+		mStore.put(path(1), 100, thumbnail(1, 1000));
+		byte[] data = thumbnail(2, 2000);
+		mStore.put(path(1), 200, data);
+		assertArrayEquals(data, mStore.get(path(1), 200));
+		assertNull(mStore.get(path(1), 100));
+		assertEquals(1, mStore.getCount());
+		assertEquals(20 + 1000, mStore.getDeadBytes());
+
+		mStore.remove(path(1));
+		assertNull(mStore.get(path(1), 200));
+		assertEquals(0, mStore.getCount());
+		assertEquals(0, mStore.getLiveBytes());
+		// Nothing to remove.
+		mStore.remove(path(2));
+	}
+
+	@Test
+	public void keepsThumbnailsAcrossOpening() throws IOException {
+		for (int i = 0; i < 10; i++) {
+			mStore.put(path(i), i, thumbnail(i, 1000 + i));
+		}
+		reopen();
+		assertEquals(10, mStore.getCount());
+		for (int i = 0; i < 10; i++) {
+			assertArrayEquals(thumbnail(i, 1000 + i), mStore.get(path(i), i));
+		}
+	}
+
+	@Test
+	public void growsTheIndex() throws IOException {
+		// More than three quarters of the first 256 slots.
+		int count = 1000;
+		for (int i = 0; i < count; i++) {
+			mStore.put(path(i), i, thumbnail(i, 100));
+		}
+		assertEquals(count, mStore.getCount());
+		for (int i = 0; i < count; i++) {
+			assertArrayEquals(thumbnail(i, 100), mStore.get(path(i), i));
+		}
+		reopen();
+		assertEquals(count, mStore.getCount());
+		assertArrayEquals(thumbnail(7, 100), mStore.get(path(7), 7));
+	}
+
+	@Test
+	public void compactsDeadRecords() throws IOException {
+		byte[] data = thumbnail(1, 10000);
+		// Replaced over and over, all but the last are dead.
+		for (int i = 0; i < 20; i++) {
+			mStore.put(path(1), i, data);
+		}
+		assertTrue(mStore.getCompactions() > 0);
+		// Dead records are let to reach 64KB before they are compacted away.
+		assertTrue(mStore.getDeadBytes() < 64 * 1024);
+		assertArrayEquals(data, mStore.get(path(1), 19));
+		assertTrue(new File(mDir, ThumbnailStore.DATA_FILE).length() < 20 * 10000);
+		reopen();
+		assertArrayEquals(data, mStore.get(path(1), 19));
+	}
+
+	@Test
+	public void keepsTheNewestWithinBudget() throws IOException {
+		int size = 100 * 1024;
+		for (int i = 0; i < 20; i++) {
+			mStore.put(path(i), i, thumbnail(i, size));
+		}
+		assertTrue(mStore.getLiveBytes() <= BUDGET);
+		assertNull(mStore.get(path(0), 0));
+		assertArrayEquals(thumbnail(19, size), mStore.get(path(19), 19));
+	}
+
+	@Test
+	public void rebuildsAMissingIndex() throws IOException {
+		for (int i = 0; i < 5; i++) {
+			mStore.put(path(i), i, thumbnail(i, 1000));
+		}
+		mStore.close();
+		assertTrue(new File(mDir, ThumbnailStore.INDEX_FILE).delete());
+		mStore = open();
+		assertEquals(5, mStore.getCount());
+		assertArrayEquals(thumbnail(3, 1000), mStore.get(path(3), 3));
+	}
+
+	@Test
+	public void dropsATornRecord() throws IOException {
+		mStore.put(path(1), 1, thumbnail(1, 1000));
+		mStore.close();
+		File data = new File(mDir, ThumbnailStore.DATA_FILE);
+		long length = data.length();
+		// Half a record, as if the process died appending it.
+		RandomAccessFile raf = new RandomAccessFile(data, "rw");
+		try {
+			raf.seek(length);
+			raf.write(new byte[500]);
+		} finally {
+			raf.close();
+		}
+		mStore = open();
+		assertEquals(length, data.length());
+		assertArrayEquals(thumbnail(1, 1000), mStore.get(path(1), 1));
+		mStore.put(path(2), 2, thumbnail(2, 1000));
+		assertArrayEquals(thumbnail(2, 1000), reopen().get(path(2), 2));
+	}
+}